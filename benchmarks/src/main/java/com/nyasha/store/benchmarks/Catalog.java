@@ -0,0 +1,68 @@
+package com.nyasha.store.benchmarks;
+
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.utils.ProductIndex;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A product index loaded with a synthetic catalog, shared by every thread of a benchmark, with the queries
+ * to run against it. The catalog's size, the Zipf skew of its words and the fan-out of its category tree
+ * are parameters, so they can be swept from the command line, e.g. {@code -p catalogSize=200000}. Loading
+ * is dominated by building the similar-products graph, so large catalogs take minutes to set up.
+ */
+@State(Scope.Benchmark)
+public class Catalog {
+
+    static final long SEED = 42;
+    static final int QUERIES = 4096;
+
+    @Param({"10000", "50000"})
+    public int catalogSize;
+
+    @Param({"20000"})
+    public int vocabularySize;
+
+    @Param({"1.0"})
+    public double skew;
+
+    @Param({"8"})
+    public int fanout;
+
+    ProductIndex index;
+    // The indexed version of every catalog product, by position
+    List<Product> products;
+    String[] textQueries;
+    String[] prefixes;
+    String[] categoryIds;
+
+    @Setup(Level.Trial)
+    public void load() {
+        CatalogGenerator generator = generator(SEED, 1);
+        products = new ArrayList<>(generator.products(catalogSize));
+        index = new ProductIndex();
+        index.bulkIndex(products);
+        textQueries = generator.textQueries(QUERIES);
+        prefixes = generator.prefixes(QUERIES);
+        categoryIds = generator.categoryIds(QUERIES);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        index.close();
+    }
+
+    /**
+     * A generator over the same vocabulary and category tree as the catalog.
+     */
+    CatalogGenerator generator(long seed, long firstProductId) {
+        return new CatalogGenerator(seed, vocabularySize, skew, fanout, firstProductId);
+    }
+}
@@ -0,0 +1,217 @@
+package com.nyasha.store.benchmarks;
+
+import com.nyasha.store.entities.Category;
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.entities.User;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic synthetic catalog: the same seed and settings always generate the same products, users and
+ * queries, so runs on different commits measure the same work.
+ * <p>
+ * Words are drawn from a vocabulary of made-up words with a Zipf distribution, word {@code r} having weight
+ * {@code 1 / r^skew}, so like real product text a few terms have very long posting lists and most are rare.
+ * Queries are drawn from the same distribution. Categories form a tree {@value #CATEGORY_DEPTH} levels deep
+ * with {@code fanout} children per category, and every product is filed under one leaf.
+ */
+public final class CatalogGenerator {
+
+    static final int CATEGORY_DEPTH = 3;
+
+    private static final String CONSONANTS = "bdfgklmnprtvz";
+    private static final String VOWELS = "aiou";
+    private static final int NAME_WORDS = 3;
+    private static final int DESCRIPTION_WORDS = 16;
+
+    private final SplittableRandom random;
+    private final String[] vocabulary;
+    // Cumulative Zipf weights of the vocabulary, normalised to end at 1
+    private final double[] cumulative;
+    private final List<Category> categories = new ArrayList<>();
+    private final List<Category> leaves = new ArrayList<>();
+    private final LocalDateTime now = LocalDateTime.of(2025, 1, 1, 0, 0);
+    private long nextProductId;
+    private long nextUserId = 1;
+
+    public CatalogGenerator(long seed, int vocabularySize, double skew, int fanout) {
+        this(seed, vocabularySize, skew, fanout, 1);
+    }
+
+    /**
+     * A generator numbering its products from {@code firstProductId}, so products generated by several
+     * generators for the same index never share an ID.
+     */
+    public CatalogGenerator(long seed, int vocabularySize, double skew, int fanout, long firstProductId) {
+        this.random = new SplittableRandom(seed);
+        this.nextProductId = firstProductId;
+        this.vocabulary = new String[vocabularySize];
+        this.cumulative = new double[vocabularySize];
+        double total = 0;
+        for (int rank = 0; rank < vocabularySize; rank++) {
+            vocabulary[rank] = word(rank);
+            total += 1 / Math.pow(rank + 1, skew);
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < vocabularySize; rank++) {
+            cumulative[rank] /= total;
+        }
+        addCategories(null, 1, fanout);
+    }
+
+    /**
+     * The next {@code count} products.
+     */
+    public List<Product> products(int count) {
+        List<Product> products = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            products.add(product());
+        }
+        return products;
+    }
+
+    /**
+     * A new product with its own ID.
+     */
+    public Product product() {
+        Product product = new Product();
+        product.setProductId(nextProductId++);
+        product.setName(capitalize(words(NAME_WORDS)));
+        product.setDescription(words(DESCRIPTION_WORDS));
+        product.setSku("SKU-" + product.getProductId());
+        product.setBasePrice(1 + random.nextInt(100_000) / 100.0);
+        product.setCreatedAt(now.minusDays(random.nextInt(730)));
+        product.getCategories().add(leaves.get(random.nextInt(leaves.size())));
+        return product;
+    }
+
+    /**
+     * A copy of a product with new text, as an update would write it.
+     */
+    public Product renamed(Product product) {
+        Product renamed = new Product();
+        renamed.setProductId(product.getProductId());
+        renamed.setName(capitalize(words(NAME_WORDS)));
+        renamed.setDescription(words(DESCRIPTION_WORDS));
+        renamed.setSku(product.getSku());
+        renamed.setBasePrice(product.getBasePrice());
+        renamed.setCreatedAt(product.getCreatedAt());
+        renamed.getCategories().addAll(product.getCategories());
+        return renamed;
+    }
+
+    /**
+     * The next {@code count} users, with made-up names and emails.
+     */
+    public List<User> users(int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = new User();
+            user.setUserId(nextUserId++);
+            String first = uniformWord();
+            String last = uniformWord();
+            user.setName(capitalize(first) + " " + capitalize(last));
+            user.setEmail(first + "." + last + user.getUserId() + "@example.com");
+            user.setHashedPassword("");
+            user.setCreatedAt(now);
+            users.add(user);
+        }
+        return users;
+    }
+
+    /**
+     * {@code count} text queries of one to three words.
+     */
+    public String[] textQueries(int count) {
+        String[] queries = new String[count];
+        for (int i = 0; i < count; i++) {
+            queries[i] = words(1 + random.nextInt(3));
+        }
+        return queries;
+    }
+
+    /**
+     * {@code count} prefixes of two to four letters of words drawn from the vocabulary.
+     */
+    public String[] prefixes(int count) {
+        String[] prefixes = new String[count];
+        for (int i = 0; i < count; i++) {
+            String word = zipfWord();
+            prefixes[i] = word.substring(0, Math.min(word.length(), 2 + random.nextInt(3)));
+        }
+        return prefixes;
+    }
+
+    /**
+     * {@code count} IDs of categories at any level of the tree.
+     */
+    public String[] categoryIds(int count) {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = String.valueOf(categories.get(random.nextInt(categories.size())).getCategoryId());
+        }
+        return ids;
+    }
+
+    private void addCategories(Category parent, int level, int fanout) {
+        for (int i = 0; i < fanout; i++) {
+            Category category = new Category();
+            category.setCategoryId((long) categories.size() + 1);
+            category.setName("Category " + category.getCategoryId());
+            category.setParentCategory(parent);
+            if (parent != null) {
+                parent.getSubCategories().add(category);
+            }
+            categories.add(category);
+            if (level < CATEGORY_DEPTH) {
+                addCategories(category, level + 1, fanout);
+            } else {
+                leaves.add(category);
+            }
+        }
+    }
+
+    private String words(int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(zipfWord());
+        }
+        return text.toString();
+    }
+
+    private String zipfWord() {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        return vocabulary[Math.min(rank < 0 ? -rank - 1 : rank, vocabulary.length - 1)];
+    }
+
+    private String uniformWord() {
+        return vocabulary[random.nextInt(vocabulary.length)];
+    }
+
+    /**
+     * A distinct made-up word per rank, built from consonant-vowel syllables so that stemming leaves the
+     * words distinct.
+     */
+    private static String word(int rank) {
+        int syllables = CONSONANTS.length() * VOWELS.length();
+        StringBuilder word = new StringBuilder();
+        int rest = rank;
+        do {
+            int syllable = rest % syllables;
+            word.append(CONSONANTS.charAt(syllable / VOWELS.length())).append(VOWELS.charAt(syllable % VOWELS.length()));
+            rest /= syllables;
+        } while (rest > 0 || word.length() < 4);
+        return word.toString();
+    }
+
+    private static String capitalize(String text) {
+        return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+    }
+}
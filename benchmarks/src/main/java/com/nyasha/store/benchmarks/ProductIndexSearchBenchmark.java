@@ -0,0 +1,59 @@
+package com.nyasha.store.benchmarks;
+
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.utils.SearchResult;
+import com.nyasha.store.utils.SearchSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the product index's read paths over a {@link Catalog}, each run by one thread and by as many
+ * threads as there are processors ({@code -t} sets another count).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public abstract class ProductIndexSearchBenchmark {
+
+    // Results per page, as the search endpoint returns by default
+    private static final int LIMIT = 20;
+
+    @Benchmark
+    public List<Product> searchByText(Catalog catalog, Queries queries) {
+        return catalog.index.searchByText(catalog.textQueries[queries.next()], LIMIT);
+    }
+
+    @Benchmark
+    public SearchResult searchByTextWithFacets(Catalog catalog, Queries queries) {
+        return catalog.index.search(catalog.textQueries[queries.next()], LIMIT, true);
+    }
+
+    @Benchmark
+    public List<Product> searchByPrefix(Catalog catalog, Queries queries) {
+        return catalog.index.searchByPrefix(catalog.prefixes[queries.next()]);
+    }
+
+    @Benchmark
+    public SearchResult searchByCategory(Catalog catalog, Queries queries) {
+        return catalog.index.searchByCategory(catalog.categoryIds[queries.next()], true, LIMIT, SearchSort.RELEVANCE, null);
+    }
+
+    @Threads(1)
+    public static class SingleThreaded extends ProductIndexSearchBenchmark {
+    }
+
+    @Threads(Threads.MAX)
+    public static class Contended extends ProductIndexSearchBenchmark {
+    }
+}
@@ -0,0 +1,153 @@
+package com.nyasha.store.benchmarks;
+
+import com.nyasha.store.entities.Product;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for each thread to insert, remove or update a batch of {@value #BATCH} products in a {@link Catalog},
+ * by one thread and by as many threads as there are processors ({@code -t} sets another count), where every
+ * thread writes its own batch and the score is the time until all of them are done.
+ * <p>
+ * The products of a batch are generated, and for removals indexed, before the iteration starts, so only the
+ * index writes are measured. Inserted products are removed after their iteration, so the catalog keeps its
+ * size from one iteration to the next.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = ProductIndexWriteBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = ProductIndexWriteBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public abstract class ProductIndexWriteBenchmark {
+
+    static final int BATCH = 5000;
+
+    // Product IDs of each thread's generator start this far apart, above the catalog's
+    private static final long THREAD_ID_RANGE = 1L << 40;
+
+    /**
+     * The products one thread writes in an iteration, in order.
+     */
+    public abstract static class Batch {
+        private CatalogGenerator generator;
+        private int thread;
+        private int threadCount;
+        List<Product> products = new ArrayList<>(BATCH);
+        List<Product> replacements = new ArrayList<>(BATCH);
+        int next;
+
+        @Setup(Level.Trial)
+        public void createGenerator(Catalog catalog, ThreadParams threadParams) {
+            thread = threadParams.getThreadIndex();
+            threadCount = threadParams.getThreadCount();
+            generator = catalog.generator(Catalog.SEED + 1 + thread, (thread + 1) * THREAD_ID_RANGE);
+        }
+
+        /**
+         * New products, with IDs no other thread uses.
+         */
+        void generate() {
+            products = generator.products(BATCH);
+            next = 0;
+        }
+
+        /**
+         * Renamed versions of this thread's share of the catalog, each replacing the version before it.
+         */
+        void rename(Catalog catalog) {
+            products.clear();
+            replacements.clear();
+            int share = Math.max(1, (catalog.products.size() - thread + threadCount - 1) / threadCount);
+            for (int i = 0; i < BATCH; i++) {
+                int position = thread + (i % share) * threadCount;
+                Product current = catalog.products.get(position);
+                Product renamed = generator.renamed(current);
+                catalog.products.set(position, renamed);
+                products.add(current);
+                replacements.add(renamed);
+            }
+            next = 0;
+        }
+    }
+
+    /**
+     * A batch to insert, removed again after the iteration.
+     */
+    @State(Scope.Thread)
+    public static class InsertBatch extends Batch {
+        @Setup(Level.Iteration)
+        public void prepare() {
+            generate();
+        }
+
+        @TearDown(Level.Iteration)
+        public void removeInserted(Catalog catalog) {
+            for (int i = 0; i < next; i++) {
+                catalog.index.remove(products.get(i));
+            }
+        }
+    }
+
+    /**
+     * A batch of indexed products to remove.
+     */
+    @State(Scope.Thread)
+    public static class RemoveBatch extends Batch {
+        @Setup(Level.Iteration)
+        public void prepare(Catalog catalog) {
+            generate();
+            products.forEach(catalog.index::insert);
+        }
+    }
+
+    /**
+     * A batch of updates to this thread's share of the catalog.
+     */
+    @State(Scope.Thread)
+    public static class UpdateBatch extends Batch {
+        @Setup(Level.Iteration)
+        public void prepare(Catalog catalog) {
+            rename(catalog);
+        }
+    }
+
+    @Benchmark
+    public void insert(Catalog catalog, InsertBatch batch) {
+        catalog.index.insert(batch.products.get(batch.next++));
+    }
+
+    @Benchmark
+    public void remove(Catalog catalog, RemoveBatch batch) {
+        catalog.index.remove(batch.products.get(batch.next++));
+    }
+
+    @Benchmark
+    public void update(Catalog catalog, UpdateBatch batch) {
+        int i = batch.next++;
+        catalog.index.update(batch.products.get(i), batch.replacements.get(i));
+    }
+
+    @Threads(1)
+    public static class SingleThreaded extends ProductIndexWriteBenchmark {
+    }
+
+    @Threads(Threads.MAX)
+    public static class Contended extends ProductIndexWriteBenchmark {
+    }
+}
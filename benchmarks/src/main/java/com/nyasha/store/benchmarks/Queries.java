@@ -0,0 +1,25 @@
+package com.nyasha.store.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Each thread's position in the pre-generated queries. Threads start at different queries, so they do not
+ * run the same query at the same time.
+ */
+@State(Scope.Thread)
+public class Queries {
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    private int next = threads.getAndIncrement() * 997;
+
+    /**
+     * Index of the thread's next query among {@link Catalog#QUERIES}.
+     */
+    int next() {
+        return next++ & (Catalog.QUERIES - 1);
+    }
+}
@@ -0,0 +1,69 @@
+package com.nyasha.store.benchmarks;
+
+import com.nyasha.store.entities.User;
+import com.nyasha.store.utils.UserIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of prefix searches of the user index over synthetic users, by one thread and by as many threads
+ * as there are processors ({@code -t} sets another count). Every search takes the index lock, so the
+ * contended run shows what the lock costs readers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public abstract class UserIndexBenchmark {
+
+    /**
+     * A user index loaded with synthetic users, shared by every thread, with the prefixes to search for.
+     */
+    @State(Scope.Benchmark)
+    public static class Users {
+        @Param({"10000", "100000"})
+        public int userCount;
+
+        @Param({"20000"})
+        public int vocabularySize;
+
+        UserIndex index;
+        String[] prefixes;
+
+        @Setup(Level.Trial)
+        public void load() {
+            CatalogGenerator generator = new CatalogGenerator(Catalog.SEED, vocabularySize, 1.0, 1);
+            index = new UserIndex();
+            index.bulkIndex(generator.users(userCount));
+            prefixes = generator.prefixes(Catalog.QUERIES);
+        }
+    }
+
+    @Benchmark
+    public List<User> search(Users users, Queries queries) {
+        return users.index.search(users.prefixes[queries.next()]);
+    }
+
+    @Threads(1)
+    public static class SingleThreaded extends UserIndexBenchmark {
+    }
+
+    @Threads(Threads.MAX)
+    public static class Contended extends UserIndexBenchmark {
+    }
+}
@@ -1,9 +1,17 @@
 package com.nyasha.store.configurations;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nyasha.store.services.SlowQueryLog;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.io.IOException;
+import java.lang.reflect.Type;
+
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
     @Override
@@ -14,4 +22,19 @@ public class WebConfig implements WebMvcConfigurer {
                 .allowedHeaders("*") // Allow all headers
                 .allowCredentials(true); // Allow cookies/credentials if needed
     }
+
+    // Replaces Spring Boot's JSON converter with one that reports how long writing each response took, so
+    // traced searches are logged with the time their real serialization took
+    @Bean
+    public MappingJackson2HttpMessageConverter mappingJackson2HttpMessageConverter(ObjectMapper objectMapper,
+                                                                                   SlowQueryLog slowQueryLog) {
+        return new MappingJackson2HttpMessageConverter(objectMapper) {
+            @Override
+            protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException {
+                long start = System.nanoTime();
+                super.writeInternal(object, type, outputMessage);
+                slowQueryLog.serialized(System.nanoTime() - start);
+            }
+        };
+    }
 }
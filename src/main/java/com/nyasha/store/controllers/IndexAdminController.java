@@ -0,0 +1,50 @@
+package com.nyasha.store.controllers;
+
+import com.nyasha.store.dtos.IndexChangeFeedStatus;
+import com.nyasha.store.services.IndexChangeFeed;
+import com.nyasha.store.services.IndexRebuildService;
+import com.nyasha.store.utils.IndexBuildProgress;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/admin/indexes")
+public class IndexAdminController {
+
+    private final IndexRebuildService indexRebuildService;
+    private final IndexChangeFeed indexChangeFeed;
+
+    @Autowired
+    public IndexAdminController(IndexRebuildService indexRebuildService, IndexChangeFeed indexChangeFeed) {
+        this.indexRebuildService = indexRebuildService;
+        this.indexChangeFeed = indexChangeFeed;
+    }
+
+    // Start rebuilding the products or users index from the database in the background
+    @PostMapping("/{index}/rebuild")
+    public ResponseEntity<IndexBuildProgress> rebuild(@PathVariable String index) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(indexRebuildService.startRebuild(index));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+
+    // Progress and throughput of the running or latest rebuild of every index
+    @GetMapping("/rebuild")
+    public ResponseEntity<List<IndexBuildProgress>> progress() {
+        return ResponseEntity.ok(indexRebuildService.progress());
+    }
+
+    // Position and replication lag of this instance on the index change feed
+    @GetMapping("/feed")
+    public ResponseEntity<IndexChangeFeedStatus> feed() {
+        return ResponseEntity.ok(indexChangeFeed.status());
+    }
+}
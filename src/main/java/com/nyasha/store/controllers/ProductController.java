@@ -1,14 +1,18 @@
 package com.nyasha.store.controllers;
 
+import com.nyasha.store.dtos.ProductHit;
+import com.nyasha.store.dtos.ProductSearchResponse;
+import com.nyasha.store.dtos.SuggestionPage;
 import com.nyasha.store.entities.Product;
 import com.nyasha.store.services.ProductService;
+import com.nyasha.store.utils.SearchRequest;
+import com.nyasha.store.utils.SearchSort;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
-import java.util.Set;
 
 @RestController
 @RequestMapping("/api/products")
@@ -40,6 +44,25 @@ public class ProductController {
         return ResponseEntity.ok(productService.getProductById(id));
     }
 
+    // Products with the most similar name and description; raise ef for better recall at some latency
+    @GetMapping("/{id}/similar")
+    public ResponseEntity<List<ProductHit>> getSimilarProducts(
+            @PathVariable Long id,
+            @RequestParam(defaultValue = "10") int limit,
+            @RequestParam(required = false) Integer ef
+    ) {
+        return ResponseEntity.ok(productService.getSimilarProducts(id, limit, ef));
+    }
+
+    // Products most often bought in the same orders as this one
+    @GetMapping("/{id}/bought-together")
+    public ResponseEntity<List<ProductHit>> getBoughtTogether(
+            @PathVariable Long id,
+            @RequestParam(defaultValue = "10") int limit
+    ) {
+        return ResponseEntity.ok(productService.getBoughtTogether(id, limit));
+    }
+
     // Update a product
     @PutMapping("/{id}")
     public ResponseEntity<Product> updateProduct(
@@ -56,21 +79,45 @@ public class ProductController {
         return ResponseEntity.noContent().build();
     }
 
-    // Full-text search
+    // Full-text search with an optional price range, sorted by relevance, price_asc or price_desc,
+    // with facet counts over all matches; pass the returned nextCursor to fetch the next page.
+    // explain=true adds the time spent in each stage, the posting lists read and the candidates scored.
     @GetMapping("/search")
-    public ResponseEntity<Set<Product>> searchByText(@RequestParam String query) {
-        return ResponseEntity.ok(productService.searchByText(query));
+    public ResponseEntity<ProductSearchResponse> searchByText(
+            @RequestParam(defaultValue = "") String query,
+            @RequestParam(defaultValue = "20") int limit,
+            @RequestParam(defaultValue = "true") boolean facets,
+            @RequestParam(required = false) Double minPrice,
+            @RequestParam(required = false) Double maxPrice,
+            @RequestParam(defaultValue = "relevance") String sort,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean explain
+    ) {
+        SearchRequest request = new SearchRequest(query, limit, facets, minPrice, maxPrice, SearchSort.parse(sort), cursor);
+        return ResponseEntity.ok(productService.searchByText(request, explain));
     }
 
-    // Autocomplete suggestions
+    // Autocomplete suggestions, a page at a time; explain=true adds the time spent in each stage
     @GetMapping("/autocomplete")
-    public ResponseEntity<List<Product>> autocomplete(@RequestParam String prefix) {
-        return ResponseEntity.ok(productService.autocomplete(prefix));
+    public ResponseEntity<SuggestionPage> autocomplete(
+            @RequestParam String prefix,
+            @RequestParam(defaultValue = "10") int limit,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean explain
+    ) {
+        return ResponseEntity.ok(productService.autocomplete(prefix, limit, cursor, explain));
     }
 
-    // Get products by category
+    // Get products by category, including subcategories unless descendants=false,
+    // in index order or sorted by price_asc / price_desc, a page at a time
     @GetMapping("/category/{categoryId}")
-    public ResponseEntity<List<Product>> getProductsByCategory(@PathVariable String categoryId) {
-        return ResponseEntity.ok(productService.getProductsByCategory(categoryId));
+    public ResponseEntity<ProductSearchResponse> getProductsByCategory(
+            @PathVariable String categoryId,
+            @RequestParam(defaultValue = "true") boolean descendants,
+            @RequestParam(defaultValue = "20") int limit,
+            @RequestParam(defaultValue = "relevance") String sort,
+            @RequestParam(required = false) String cursor
+    ) {
+        return ResponseEntity.ok(productService.getProductsByCategory(categoryId, descendants, limit, SearchSort.parse(sort), cursor));
     }
-}
\ No newline at end of file
+}
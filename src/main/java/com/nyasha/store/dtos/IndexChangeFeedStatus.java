@@ -0,0 +1,20 @@
+package com.nyasha.store.dtos;
+
+import java.time.LocalDateTime;
+
+/**
+ * How far this instance's indexes trail the index change feed.
+ *
+ * @param position            Highest change ID read from the feed.
+ * @param pendingChanges      Committed changes after {@code position} not applied yet.
+ * @param pendingGaps         Change IDs below {@code position} still waited on, from transactions not yet committed.
+ * @param expiredGaps         Change IDs given up on since startup, as not committed within the gap timeout.
+ * @param lagMillis           Age of the oldest pending change, 0 when caught up.
+ * @param appliedChanges      Changes applied since startup.
+ * @param lastAppliedChangeAt When the newest applied change was written, or null.
+ * @param listening           Whether commits are pushed with LISTEN/NOTIFY, rather than only polled for.
+ */
+public record IndexChangeFeedStatus(long position, long pendingChanges, int pendingGaps, long expiredGaps,
+                                    long lagMillis, long appliedChanges, LocalDateTime lastAppliedChangeAt,
+                                    boolean listening) {
+}
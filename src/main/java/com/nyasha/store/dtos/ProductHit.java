@@ -0,0 +1,11 @@
+package com.nyasha.store.dtos;
+
+/**
+ * A product as shown in search results and suggestions, built from the fields stored in the search index;
+ * the full product is fetched by ID.
+ *
+ * @param price  Lowest price the product can be bought at.
+ * @param rating Average review rating, null if the product has no ratings.
+ */
+public record ProductHit(Long productId, String name, String sku, Double price, String thumbnailUrl, Double rating) {
+}
@@ -0,0 +1,35 @@
+package com.nyasha.store.dtos;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search response: a page of the best hits, the total number of matches, facet counts
+ * (facet field -> value -> number of matching products) and the cursor of the next page,
+ * null on the last page. When nothing matched, the products most similar to the query may be
+ * suggested instead, in {@code similar} rather than {@code hits}, so they are never taken for matches.
+ * The similar products and the explanation are only present when there are any.
+ */
+public record ProductSearchResponse(List<ProductHit> hits, int totalHits, Map<String, Map<String, Integer>> facets,
+                                    String nextCursor,
+                                    @JsonInclude(JsonInclude.Include.NON_EMPTY) List<ProductHit> similar,
+                                    @JsonInclude(JsonInclude.Include.NON_NULL) SearchExplanation explain) {
+
+    public ProductSearchResponse(List<ProductHit> hits, int totalHits, Map<String, Map<String, Integer>> facets,
+                                 String nextCursor) {
+        this(hits, totalHits, facets, nextCursor, List.of(), null);
+    }
+
+    /**
+     * Response to a query nothing matched, suggesting similar products instead.
+     */
+    public static ProductSearchResponse noMatches(Map<String, Map<String, Integer>> facets, List<ProductHit> similar) {
+        return new ProductSearchResponse(List.of(), 0, facets, null, similar, null);
+    }
+
+    public ProductSearchResponse withExplanation(SearchExplanation explanation) {
+        return new ProductSearchResponse(hits, totalHits, facets, nextCursor, similar, explanation);
+    }
+}
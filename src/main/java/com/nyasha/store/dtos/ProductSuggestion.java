@@ -0,0 +1,7 @@
+package com.nyasha.store.dtos;
+
+/**
+ * Autocomplete suggestion: the text to display and the product it leads to.
+ */
+public record ProductSuggestion(String text, Long productId, ProductHit product) {
+}
@@ -0,0 +1,13 @@
+package com.nyasha.store.dtos;
+
+import java.util.Map;
+
+/**
+ * Where a search spent its time, returned with {@code explain=true}: the nanoseconds of the whole request and
+ * of each stage (parse, lookup, scoring, facets, merge, hydration, serialization), the document frequency of
+ * every term whose posting list was looked up, and the number of candidates scored. Stage times of a sharded
+ * search are summed over the shards.
+ */
+public record SearchExplanation(long totalNanos, Map<String, Long> stageNanos, Map<String, Integer> postings,
+                                long candidatesScored) {
+}
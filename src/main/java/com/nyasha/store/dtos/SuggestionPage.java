@@ -0,0 +1,21 @@
+package com.nyasha.store.dtos;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * A page of autocomplete suggestions and the cursor of the next page, null on the last page.
+ * The explanation is only present when it was asked for.
+ */
+public record SuggestionPage(List<ProductSuggestion> suggestions, String nextCursor,
+                             @JsonInclude(JsonInclude.Include.NON_NULL) SearchExplanation explain) {
+
+    public SuggestionPage(List<ProductSuggestion> suggestions, String nextCursor) {
+        this(suggestions, nextCursor, null);
+    }
+
+    public SuggestionPage withExplanation(SearchExplanation explanation) {
+        return new SuggestionPage(suggestions, nextCursor, explanation);
+    }
+}
@@ -0,0 +1,38 @@
+package com.nyasha.store.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import java.time.LocalDateTime;
+
+/**
+ * Outbox row recording that a search-indexed row changed, written in the same transaction as the change itself.
+ * Every instance tails these rows in ID order to bring its in-memory indexes up to date.
+ */
+@Entity
+@Table(name = "index_changes", indexes = @Index(columnList = "createdAt"))
+@Data
+public class IndexChange {
+    public static final String PRODUCT = "product";
+    public static final String USER = "user";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long changeId;
+
+    // PRODUCT or USER
+    @Column(nullable = false, length = 16)
+    private String entityType;
+
+    @Column(nullable = false)
+    private Long entityId;
+
+    // The row was deleted, rather than created or updated
+    private boolean deleted;
+
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void onCreate() {
+        this.createdAt = LocalDateTime.now();
+    }
+}
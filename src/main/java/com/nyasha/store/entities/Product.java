@@ -18,7 +18,11 @@ public class Product {
     private String description;
     private Double basePrice;
     private String sku;
+    // Small image shown for the product in search results
+    private String thumbnailUrl;
     private LocalDateTime createdAt;
+    // Last change, so search indexes reopened from a snapshot can catch up on what changed since
+    private LocalDateTime updatedAt;
 
     @ManyToOne
     @JoinColumn(name = "supplier_id")
@@ -41,5 +45,11 @@ public class Product {
     @PrePersist
     protected void onCreate() {
         this.createdAt = LocalDateTime.now();
+        this.updatedAt = this.createdAt;
+    }
+
+    @PreUpdate
+    protected void onUpdate() {
+        this.updatedAt = LocalDateTime.now();
     }
 }
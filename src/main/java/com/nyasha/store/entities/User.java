@@ -29,6 +29,8 @@ public class User {
     private String hashedPassword;
 
     private LocalDateTime createdAt;
+    // Last change, so search indexes reopened from a snapshot can catch up on what changed since
+    private LocalDateTime updatedAt;
 
     @JsonIgnore
     @OneToMany(mappedBy = "user", cascade = CascadeType.ALL)
@@ -68,5 +70,11 @@ public class User {
     @PrePersist
     protected void onCreate() {
         this.createdAt = LocalDateTime.now();
+        this.updatedAt = this.createdAt;
+    }
+
+    @PreUpdate
+    protected void onUpdate() {
+        this.updatedAt = LocalDateTime.now();
     }
 }
@@ -0,0 +1,35 @@
+package com.nyasha.store.repositories;
+
+import com.nyasha.store.entities.IndexChange;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface IndexChangeRepository extends JpaRepository<IndexChange, Long> {
+    // Keyset pagination: the page of changes after the given ID, for a Pageable sorted by changeId
+    List<IndexChange> findByChangeIdGreaterThan(Long changeId, Pageable pageable);
+
+    Optional<IndexChange> findFirstByChangeIdGreaterThanOrderByChangeIdAsc(Long changeId);
+
+    Optional<IndexChange> findFirstByOrderByChangeIdDesc();
+
+    // The committed change IDs in a range, in order, to find the holes left by transactions still in flight
+    @Query("select c.changeId from IndexChange c where c.changeId between :from and :to order by c.changeId")
+    List<Long> findChangeIdsBetween(@Param("from") Long from, @Param("to") Long to);
+
+    long countByChangeIdGreaterThan(Long changeId);
+
+    @Modifying
+    @Transactional
+    @Query("delete from IndexChange c where c.createdAt < :before")
+    int deleteCreatedBefore(@Param("before") LocalDateTime before);
+}
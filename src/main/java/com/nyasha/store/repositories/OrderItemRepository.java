@@ -0,0 +1,51 @@
+package com.nyasha.store.repositories;
+
+import com.nyasha.store.entities.OrderItem;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface OrderItemRepository extends JpaRepository<OrderItem, Long> {
+
+    /**
+     * The product of one order line, without loading the order or the product.
+     */
+    interface OrderLine {
+        Long getOrderId();
+
+        Long getProductId();
+    }
+
+    /**
+     * Units of a product sold on one order line, and when the order was placed.
+     */
+    interface Sale {
+        Long getOrderItemId();
+
+        Long getProductId();
+
+        Integer getQuantity();
+
+        LocalDateTime getOrderDate();
+    }
+
+    // Keyset pagination over orders that have items: the IDs of the page of orders after the given ID
+    @Query("select distinct oi.order.orderId from OrderItem oi where oi.order.orderId > :after order by oi.order.orderId")
+    List<Long> findOrderIdsAfter(@Param("after") Long after, Pageable pageable);
+
+    @Query("select oi.order.orderId as orderId, oi.product.productId as productId from OrderItem oi "
+            + "where oi.order.orderId > :after and oi.order.orderId <= :last order by oi.order.orderId")
+    List<OrderLine> findOrderLines(@Param("after") Long after, @Param("last") Long last);
+
+    // Keyset pagination over the order lines after the given ID of orders placed since the given time
+    @Query("select oi.orderItemId as orderItemId, oi.product.productId as productId, oi.quantity as quantity, "
+            + "oi.order.orderDate as orderDate from OrderItem oi "
+            + "where oi.orderItemId > :after and oi.order.orderDate >= :since order by oi.orderItemId")
+    List<Sale> findSalesAfter(@Param("after") Long after, @Param("since") LocalDateTime since, Pageable pageable);
+}
@@ -1,11 +1,22 @@
 package com.nyasha.store.repositories;
 
 import com.nyasha.store.entities.Product;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
 @Repository
 public interface ProductRepository extends JpaRepository<Product,Long> {
     //List<Product> findByNameContainingOrDescriptionContaining(String name, String description);
+
+    List<Product> findByUpdatedAtAfter(LocalDateTime since);
+
+    // Keyset pagination: the page of rows after the given ID, for a Pageable sorted by productId
+    List<Product> findByProductIdGreaterThan(Long productId, Pageable pageable);
+
+    @Query("select p.productId from Product p")
+    List<Long> findAllProductIds();
 }
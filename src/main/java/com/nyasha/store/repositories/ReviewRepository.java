@@ -0,0 +1,33 @@
+package com.nyasha.store.repositories;
+
+import com.nyasha.store.entities.Review;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface ReviewRepository extends JpaRepository<Review, Long> {
+
+    /**
+     * The rating a review gave a product, without loading the review's user or product.
+     */
+    interface ProductRating {
+        Long getReviewId();
+
+        Long getProductId();
+
+        Integer getRating();
+    }
+
+    // Keyset pagination: the ratings of the page of reviews after the given ID
+    @Query("select r.reviewId as reviewId, r.product.productId as productId, r.rating as rating from Review r "
+            + "where r.reviewId > :after order by r.reviewId")
+    List<ProductRating> findRatingsAfter(@Param("after") Long after, Pageable pageable);
+
+    @Query("select max(r.reviewId) from Review r")
+    Long findMaxReviewId();
+}
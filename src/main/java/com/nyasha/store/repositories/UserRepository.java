@@ -1,9 +1,12 @@
 package com.nyasha.store.repositories;
 
 import com.nyasha.store.entities.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -14,4 +17,12 @@ public interface UserRepository extends JpaRepository<User, Long> {
     List<User> findByNameContainingIgnoreCase(String searchTerm);
 
     Optional<User> findByEmail(String email);
+
+    List<User> findByUpdatedAtAfter(LocalDateTime since);
+
+    // Keyset pagination: the page of rows after the given ID, for a Pageable sorted by userId
+    List<User> findByUserIdGreaterThan(Long userId, Pageable pageable);
+
+    @Query("select u.userId from User u")
+    List<Long> findAllUserIds();
 }
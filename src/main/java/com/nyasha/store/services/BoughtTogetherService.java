@@ -0,0 +1,141 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.repositories.OrderItemRepository;
+import com.nyasha.store.utils.BoughtTogetherIndex;
+import com.nyasha.store.utils.BulkIndexer;
+import com.nyasha.store.utils.IndexBuildProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keeps the "frequently bought together" model up to date with the order history.
+ * <p>
+ * The model is built from a keyset-paginated scan of the order lines, counted in parallel, and swapped in
+ * whole, so lookups keep being answered from the previous model while it builds. In between, orders placed
+ * since the last scan are counted every refresh. Orders whose lines are committed after a later order has
+ * been counted are picked up by the next full rebuild.
+ * <p>
+ * Orders are polled for rather than counted as they are placed because this application never writes them, so
+ * there is no commit here to hook into and no change recorded to the index change feed. Co-purchase counts only move the ranking of recommendations, which a refresh interval
+ * of a minute keeps close enough; the keyset read costs one indexed query per refresh when nothing was ordered.
+ */
+@Service
+public class BoughtTogetherService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BoughtTogetherService.class);
+
+    // Orders per keyset page
+    private static final int BATCH_SIZE = 1000;
+
+    private final OrderItemRepository orderItemRepository;
+    private final TransactionTemplate readOnlyTransaction;
+    private final BulkIndexer indexer;
+    private final int topN;
+    private final Duration rebuildInterval;
+
+    private volatile BoughtTogetherIndex model;
+    // Highest order ID counted into the model
+    private long lastOrderId;
+    private long lastRebuildNanos;
+
+    @Autowired
+    public BoughtTogetherService(OrderItemRepository orderItemRepository, PlatformTransactionManager transactionManager,
+                                 @Value("${store.recommendations.bought-together-size:20}") int topN,
+                                 @Value("${store.recommendations.rebuild-interval-hours:24}") long rebuildIntervalHours) {
+        this.orderItemRepository = orderItemRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.indexer = new BulkIndexer("bought-together", ForkJoinPool.commonPool(), BATCH_SIZE, threads * 2);
+        this.topN = topN;
+        this.rebuildInterval = Duration.ofHours(rebuildIntervalHours);
+    }
+
+    /**
+     * Up to {@code limit} products bought in the same orders as {@code productId} most often, most often first;
+     * empty until the model has been built.
+     */
+    public long[] boughtTogether(Long productId, int limit) {
+        BoughtTogetherIndex current = model;
+        return current == null ? new long[0] : current.boughtTogether(productId, Math.min(limit, topN));
+    }
+
+    // Build the model at startup and then count new orders periodically, rebuilding it from scratch once
+    // a day to correct for approximations and for orders committed out of order
+    @Scheduled(fixedDelayString = "${store.recommendations.refresh-ms:60000}")
+    public synchronized void refresh() {
+        try {
+            if (model == null || System.nanoTime() - lastRebuildNanos > rebuildInterval.toNanos()) {
+                rebuild();
+                return;
+            }
+            int counted = 0;
+            List<long[]> orders;
+            while (!(orders = nextOrders(BATCH_SIZE)).isEmpty()) {
+                orders.forEach(model::addOrder);
+                counted += orders.size();
+            }
+            if (counted > 0) {
+                logger.info("Counted {} new orders into the bought-together model", counted);
+            }
+        } catch (Exception e) {
+            logger.error("Error refreshing the bought-together model: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rebuilds the model from every order on the calling thread.
+     */
+    public synchronized IndexBuildProgress rebuild() {
+        BoughtTogetherIndex built = new BoughtTogetherIndex(topN);
+        lastOrderId = Long.MIN_VALUE;
+        IndexBuildProgress progress = indexer.run(this::nextOrders,
+                batch -> batch.forEach(built::addOrderUnpublished));
+        built.publish();
+        model = built;
+        lastRebuildNanos = System.nanoTime();
+        logger.info("Bought-together model rebuilt from {} orders covering {} products",
+                progress.documentsIndexed(), built.size());
+        return progress;
+    }
+
+    /**
+     * The product IDs of the next page of orders after {@link #lastOrderId}, one array per order.
+     */
+    private List<long[]> nextOrders(int batchSize) {
+        return readOnlyTransaction.execute(status -> {
+            List<Long> orderIds = orderItemRepository.findOrderIdsAfter(lastOrderId, PageRequest.of(0, batchSize));
+            if (orderIds.isEmpty()) {
+                return List.of();
+            }
+            long last = orderIds.get(orderIds.size() - 1);
+            List<OrderItemRepository.OrderLine> lines = orderItemRepository.findOrderLines(lastOrderId, last);
+            List<long[]> orders = new ArrayList<>(orderIds.size());
+            int start = 0;
+            for (int i = 1; i <= lines.size(); i++) {
+                if (i == lines.size() || !lines.get(i).getOrderId().equals(lines.get(start).getOrderId())) {
+                    long[] products = new long[i - start];
+                    for (int j = start; j < i; j++) {
+                        products[j - start] = lines.get(j).getProductId();
+                    }
+                    orders.add(products);
+                    start = i;
+                }
+            }
+            lastOrderId = last;
+            return orders;
+        });
+    }
+}
@@ -0,0 +1,548 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.dtos.IndexChangeFeedStatus;
+import com.nyasha.store.entities.IndexChange;
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.entities.User;
+import com.nyasha.store.repositories.IndexChangeRepository;
+import com.nyasha.store.repositories.ProductRepository;
+import com.nyasha.store.repositories.UserRepository;
+import com.nyasha.store.utils.ShardedProductIndex;
+import com.nyasha.store.utils.UserIndex;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.hibernate.Hibernate;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the in-memory search indexes of every instance consistent with the database through a transactional
+ * outbox. Services record each change to an indexed row with {@link #record} in the transaction that makes it,
+ * so a change reaches the indexes only if it commits. The instance that made a change applies it to its own
+ * indexes as soon as the transaction commits, so its clients read their own writes. Every instance tails the
+ * outbox in change ID order on a background thread and applies the changes made elsewhere, woken by Postgres
+ * {@code LISTEN/NOTIFY} on commit and polling otherwise.
+ * <p>
+ * Applying a change re-reads the row's committed state rather than replaying a payload, so applying a change
+ * twice, or a late commit after newer changes to the same row, still leaves the index matching the database.
+ */
+@Service
+public class IndexChangeFeed {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexChangeFeed.class);
+
+    // Postgres channel notified by every transaction that records index changes
+    private static final String CHANNEL = "index_changes";
+
+    private static final int BATCH_SIZE = 500;
+
+    // Change IDs are assigned on insert but become visible on commit, so a slow transaction can commit below
+    // changes that were already applied. Such gaps are re-checked until they show up, or for the gap timeout,
+    // after which they are taken for rolled back transactions. At most MAX_TRACKED_GAPS are tracked at a time;
+    // the feed stops short of any change that would leave more open, until older gaps close.
+    private static final int MAX_TRACKED_GAPS = 1000;
+
+    private final IndexChangeRepository indexChangeRepository;
+    private final ProductRepository productRepository;
+    private final UserRepository userRepository;
+    private final ShardedProductIndex productIndex;
+    private final UserIndex userIndex;
+    // Both run in transactions of their own, as they are also used after the recording transaction commits
+    private final TransactionTemplate readOnlyTransaction;
+    private final TransactionTemplate notifyTransaction;
+    private final JdbcTemplate jdbcTemplate;
+    private final DataSource dataSource;
+    // The LISTEN connection is held for as long as the feed runs, so it is opened outside the pool
+    private final String listenerUrl;
+    private final String listenerUsername;
+    private final String listenerPassword;
+    private final Duration pollInterval;
+    private final Duration gapTimeout;
+    private final Duration retention;
+
+    // Released after every local commit that recorded changes, to wake the applier when not listening
+    private final Semaphore wakeUps = new Semaphore(0);
+    private volatile boolean running;
+    private Thread applier;
+    private boolean postgres;
+
+    // Owned by the applier thread; the volatile and concurrent ones are also read for status()
+    private Connection listener;
+    private volatile boolean listening;
+    private volatile long position;
+    private final Map<Long, Long> gaps = new ConcurrentHashMap<>();
+    // Changes this instance made and already applied when they committed, for the applier to skip
+    private final Set<Long> appliedOnCommit = ConcurrentHashMap.newKeySet();
+    // Applying reads the changed rows and updates the indexes under this lock, so that a change applied on
+    // commit and the applier never overwrite a newer state of the same row with an older one
+    private final Object applyLock = new Object();
+    private final AtomicLong appliedChanges = new AtomicLong();
+    private final AtomicLong expiredGaps = new AtomicLong();
+    private volatile LocalDateTime lastAppliedChangeAt;
+
+    @Autowired
+    public IndexChangeFeed(IndexChangeRepository indexChangeRepository, ProductRepository productRepository,
+                           UserRepository userRepository, ShardedProductIndex productIndex, UserIndex userIndex,
+                           PlatformTransactionManager transactionManager, JdbcTemplate jdbcTemplate,
+                           DataSource dataSource,
+                           @Value("${spring.datasource.url:}") String listenerUrl,
+                           @Value("${spring.datasource.username:}") String listenerUsername,
+                           @Value("${spring.datasource.password:}") String listenerPassword,
+                           @Value("${store.index.feed-poll-interval-ms:1000}") long pollIntervalMillis,
+                           @Value("${store.index.feed-gap-timeout-ms:30000}") long gapTimeoutMillis,
+                           @Value("${store.index.feed-retention-hours:24}") long retentionHours) {
+        this.indexChangeRepository = indexChangeRepository;
+        this.productRepository = productRepository;
+        this.userRepository = userRepository;
+        this.productIndex = productIndex;
+        this.userIndex = userIndex;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.readOnlyTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.notifyTransaction = new TransactionTemplate(transactionManager);
+        this.notifyTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.jdbcTemplate = jdbcTemplate;
+        this.dataSource = dataSource;
+        this.listenerUrl = listenerUrl;
+        this.listenerUsername = listenerUsername;
+        this.listenerPassword = listenerPassword;
+        this.pollInterval = Duration.ofMillis(pollIntervalMillis);
+        this.gapTimeout = Duration.ofMillis(gapTimeoutMillis);
+        this.retention = Duration.ofHours(retentionHours);
+    }
+
+    // Fix the feed position before the services that depend on the feed load their indexes, from a snapshot
+    // caught up with the database or from a rebuild: the loads read the database after this, so they include
+    // every change up to the latest committed one, which becomes the position. Changes below it that were
+    // still in flight show up as holes in the change IDs, and are tracked as gaps from now like any other.
+    @PostConstruct
+    public void initialize() {
+        try {
+            long latest = indexChangeRepository.findFirstByOrderByChangeIdDesc()
+                    .map(IndexChange::getChangeId)
+                    .orElse(0L);
+            long next = Math.max(0, latest - MAX_TRACKED_GAPS);
+            long now = System.nanoTime();
+            List<Long> committed = latest > 0 ? indexChangeRepository.findChangeIdsBetween(next + 1, latest) : List.of();
+            for (Long changeId : committed) {
+                for (long id = next + 1; id < changeId; id++) {
+                    gaps.put(id, now);
+                }
+                next = changeId;
+            }
+            position = latest;
+            try (Connection connection = dataSource.getConnection()) {
+                postgres = connection.isWrapperFor(PGConnection.class);
+            }
+            logger.info("Index change feed starting after change {} with {} gaps open", position, gaps.size());
+        } catch (Exception e) {
+            logger.error("Error initializing index change feed: {}", e.getMessage(), e);
+            throw new RuntimeException("Index change feed initialization failed: " + e.getMessage());
+        }
+    }
+
+    // Start applying changes once every index has been loaded
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        applier = new Thread(this::run, "index-change-feed");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        running = false;
+        if (applier != null) {
+            applier.interrupt();
+            wakeUps.release();
+        }
+    }
+
+    /**
+     * Records a change to an indexed row in the caller's transaction. Every instance applies it to its indexes
+     * once the transaction commits, and none does if it rolls back; this instance does before the commit returns.
+     *
+     * @param entityType {@link IndexChange#PRODUCT} or {@link IndexChange#USER}.
+     * @param deleted    whether the row was deleted, rather than created or updated.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void record(String entityType, Long entityId, boolean deleted) {
+        IndexChange change = new IndexChange();
+        change.setEntityType(entityType);
+        change.setEntityId(entityId);
+        change.setDeleted(deleted);
+        change = indexChangeRepository.save(change);
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof RecordedChanges recorded && recorded.feed() == this) {
+                recorded.changes().add(change);
+                return;
+            }
+        }
+        RecordedChanges recorded = new RecordedChanges(this, new ArrayList<>());
+        recorded.changes().add(change);
+        TransactionSynchronizationManager.registerSynchronization(recorded);
+    }
+
+    /**
+     * The changes one transaction recorded, applied to this instance's indexes and announced to the others
+     * once, when it commits.
+     */
+    private record RecordedChanges(IndexChangeFeed feed, List<IndexChange> changes)
+            implements TransactionSynchronization {
+        @Override
+        public void afterCommit() {
+            feed.applyCommitted(changes);
+        }
+    }
+
+    /**
+     * Applies the changes a transaction recorded as it commits, then notifies the listening instances with one
+     * {@code pg_notify}. A change that fails to apply here is left to the applier.
+     */
+    private void applyCommitted(List<IndexChange> changes) {
+        try {
+            apply(new ArrayList<>(changes));
+            for (IndexChange change : changes) {
+                appliedOnCommit.add(change.getChangeId());
+            }
+        } catch (Exception e) {
+            logger.error("Error applying {} index changes on commit, leaving them to the feed: {}",
+                    changes.size(), e.getMessage(), e);
+        }
+        if (postgres) {
+            try {
+                notifyTransaction.executeWithoutResult(status ->
+                        jdbcTemplate.queryForList("SELECT pg_notify(?, '')", CHANNEL));
+            } catch (Exception e) {
+                logger.warn("Error notifying index changes, other instances will poll for them: {}", e.getMessage());
+            }
+        }
+        wakeUps.release();
+    }
+
+    /**
+     * The change ID up to which every change is known to have been applied: the position, or below the lowest
+     * gap still open. A rebuild records it before reading any row and replays the changes after it once done.
+     */
+    public long appliedThrough() {
+        long through = position;
+        for (Long gap : gaps.keySet()) {
+            through = Math.min(through, gap - 1);
+        }
+        return through;
+    }
+
+    /**
+     * Applies every committed change after {@code changeId} again, reading the rows' current state. A rebuild
+     * calls this after indexing its pages, to put right the rows it read before a change and indexed after the
+     * change was applied.
+     *
+     * @return the number of changes applied again.
+     */
+    public int replayAfter(long changeId) {
+        int replayed = 0;
+        long after = changeId;
+        List<IndexChange> page;
+        do {
+            page = indexChangeRepository.findByChangeIdGreaterThan(after,
+                    PageRequest.of(0, BATCH_SIZE, Sort.by("changeId")));
+            if (!page.isEmpty()) {
+                apply(new ArrayList<>(page));
+                after = page.get(page.size() - 1).getChangeId();
+                replayed += page.size();
+            }
+        } while (page.size() == BATCH_SIZE);
+        return replayed;
+    }
+
+    /**
+     * How far this instance's indexes trail the feed.
+     */
+    public IndexChangeFeedStatus status() {
+        long current = position;
+        long lagMillis = indexChangeRepository.findFirstByChangeIdGreaterThanOrderByChangeIdAsc(current)
+                .map(change -> Math.max(0, Duration.between(change.getCreatedAt(), LocalDateTime.now()).toMillis()))
+                .orElse(0L);
+        return new IndexChangeFeedStatus(current, indexChangeRepository.countByChangeIdGreaterThan(current),
+                gaps.size(), expiredGaps.get(), lagMillis, appliedChanges.get(), lastAppliedChangeAt, listening);
+    }
+
+    // Delete outbox rows old enough that every running instance has applied them; instances that start later
+    // load their indexes from the database instead
+    @Scheduled(initialDelay = 60_000, fixedDelay = 3_600_000)
+    public void pruneChanges() {
+        try {
+            int deleted = indexChangeRepository.deleteCreatedBefore(LocalDateTime.now().minus(retention));
+            if (deleted > 0) {
+                logger.info("Pruned {} applied index changes", deleted);
+            }
+        } catch (Exception e) {
+            logger.error("Error pruning index changes: {}", e.getMessage(), e);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (!applyNextBatch()) {
+                    awaitChanges();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                logger.error("Error applying index changes after change {}: {}", position, e.getMessage(), e);
+                try {
+                    Thread.sleep(pollInterval.toMillis());
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+        closeListener();
+    }
+
+    /**
+     * Applies the next batch of changes after the current position, together with any changes that have
+     * since been committed into gaps below it.
+     * <p>
+     * A change that would open more gaps than can be tracked is left for a later batch, together with everything
+     * after it, so the position never moves past a gap that is not being watched. Once the change is older than
+     * the gap timeout, the untracked gaps below it are counted as expired and skipped.
+     *
+     * @return true if a full batch was read and applied, so more changes may be waiting.
+     */
+    boolean applyNextBatch() {
+        List<IndexChange> read = indexChangeRepository.findByChangeIdGreaterThan(position,
+                PageRequest.of(0, BATCH_SIZE, Sort.by("changeId")));
+        List<IndexChange> batch = new ArrayList<>(resolveGaps());
+        boolean full = read.size() == BATCH_SIZE;
+
+        long now = System.nanoTime();
+        LocalDateTime expired = LocalDateTime.now().minus(gapTimeout);
+        long next = position;
+        for (IndexChange change : read) {
+            long changeId = change.getChangeId();
+            long missing = changeId - next - 1;
+            if (missing > 0 && gaps.size() + missing > MAX_TRACKED_GAPS) {
+                if (change.getCreatedAt().isAfter(expired)) {
+                    logger.debug("Holding index change feed at change {}: {} gaps open, {} more after it",
+                            next, gaps.size(), missing);
+                    full = false;
+                    break;
+                }
+                expiredGaps.addAndGet(missing);
+                logger.warn("Skipping {} untracked index change IDs {} to {} older than {}s, taken for rolled back",
+                        missing, next + 1, changeId - 1, gapTimeout.toSeconds());
+            } else {
+                for (long id = next + 1; id < changeId; id++) {
+                    gaps.put(id, now);
+                }
+            }
+            batch.add(change);
+            next = changeId;
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+        batch.removeIf(change -> appliedOnCommit.remove(change.getChangeId()));
+        if (!batch.isEmpty()) {
+            apply(batch);
+        }
+        position = next;
+        // Changes applied on commit after the applier had already read them are never looked up again
+        long applied = next;
+        appliedOnCommit.removeIf(changeId -> changeId <= applied && !gaps.containsKey(changeId));
+        return full;
+    }
+
+    /**
+     * Changes that have been committed into gaps since they were first seen. Gaps older than the timeout are
+     * dropped, logged and counted as expired.
+     */
+    private List<IndexChange> resolveGaps() {
+        if (gaps.isEmpty()) {
+            return List.of();
+        }
+        List<IndexChange> committed = indexChangeRepository.findAllById(gaps.keySet());
+        for (IndexChange change : committed) {
+            gaps.remove(change.getChangeId());
+        }
+        long expiry = System.nanoTime() - gapTimeout.toNanos();
+        List<Long> expired = new ArrayList<>();
+        gaps.forEach((changeId, firstMissed) -> {
+            if (firstMissed < expiry) {
+                expired.add(changeId);
+            }
+        });
+        if (!expired.isEmpty()) {
+            expired.forEach(gaps::remove);
+            expiredGaps.addAndGet(expired.size());
+            logger.warn("{} index change IDs from {} did not commit within {}s, taken for rolled back",
+                    expired.size(), Collections.min(expired), gapTimeout.toSeconds());
+        }
+        return committed;
+    }
+
+    /**
+     * Applies a batch of changes in order, reading the committed state of the changed rows in one read-only
+     * transaction. Repeated changes to a row are applied once.
+     */
+    private void apply(List<IndexChange> batch) {
+        batch.sort(Comparator.comparing(IndexChange::getChangeId));
+        Map<Long, Boolean> products = new LinkedHashMap<>();
+        Map<Long, Boolean> users = new LinkedHashMap<>();
+        LocalDateTime newest = null;
+        for (IndexChange change : batch) {
+            Map<Long, Boolean> changes = IndexChange.USER.equals(change.getEntityType()) ? users : products;
+            changes.remove(change.getEntityId());
+            changes.put(change.getEntityId(), change.isDeleted());
+            if (newest == null || change.getCreatedAt().isAfter(newest)) {
+                newest = change.getCreatedAt();
+            }
+        }
+        synchronized (applyLock) {
+            readOnlyTransaction.executeWithoutResult(status -> {
+                applyProductChanges(products);
+                applyUserChanges(users);
+            });
+        }
+        appliedChanges.addAndGet(batch.size());
+        lastAppliedChangeAt = newest;
+        logger.debug("Applied {} index changes up to change {}", batch.size(), batch.get(batch.size() - 1).getChangeId());
+    }
+
+    private void applyProductChanges(Map<Long, Boolean> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Map<Long, Product> current = new HashMap<>();
+        for (Product product : productRepository.findAllById(live(changes))) {
+            Hibernate.initialize(product.getVariants());
+            Hibernate.initialize(product.getCategories());
+            Hibernate.initialize(product.getReviews());
+            current.put(product.getProductId(), product);
+        }
+        for (Long productId : changes.keySet()) {
+            Product product = current.get(productId);
+            Product indexed = productIndex.product(productId);
+            if (product == null) {
+                if (indexed != null) {
+                    productIndex.remove(indexed);
+                }
+            } else if (indexed != null) {
+                productIndex.update(indexed, product);
+            } else {
+                productIndex.insert(product);
+            }
+        }
+    }
+
+    private void applyUserChanges(Map<Long, Boolean> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Map<Long, User> current = new HashMap<>();
+        for (User user : userRepository.findAllById(live(changes))) {
+            current.put(user.getUserId(), user);
+        }
+        for (Long userId : changes.keySet()) {
+            User user = current.get(userId);
+            User indexed = userIndex.user(userId);
+            if (user == null) {
+                if (indexed != null) {
+                    userIndex.remove(indexed);
+                }
+            } else if (indexed != null) {
+                userIndex.update(indexed.getName(), indexed.getEmail(), user);
+            } else {
+                userIndex.insert(user);
+            }
+        }
+    }
+
+    // IDs whose latest change was not a delete, so still need reading from the database
+    private static List<Long> live(Map<Long, Boolean> changes) {
+        List<Long> ids = new ArrayList<>();
+        changes.forEach((id, deleted) -> {
+            if (!deleted) {
+                ids.add(id);
+            }
+        });
+        return ids;
+    }
+
+    /**
+     * Waits up to the poll interval for changes to be committed: for a notification on a dedicated Postgres
+     * connection opened outside the pool, or for a local commit when not on Postgres or the connection has failed.
+     */
+    private void awaitChanges() throws InterruptedException {
+        if (postgres) {
+            try {
+                if (listener == null) {
+                    listener = DriverManager.getConnection(listenerUrl, listenerUsername, listenerPassword);
+                    listener.setAutoCommit(true);
+                    try (Statement statement = listener.createStatement()) {
+                        statement.execute("LISTEN " + CHANNEL);
+                    }
+                    listening = true;
+                }
+                listener.unwrap(PGConnection.class).getNotifications((int) pollInterval.toMillis());
+                wakeUps.drainPermits();
+                return;
+            } catch (SQLException e) {
+                logger.warn("Listening for index changes failed, polling instead: {}", e.getMessage());
+                closeListener();
+            }
+        }
+        if (wakeUps.tryAcquire(pollInterval.toMillis(), TimeUnit.MILLISECONDS)) {
+            wakeUps.drainPermits();
+        }
+    }
+
+    private void closeListener() {
+        listening = false;
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.close();
+        } catch (SQLException e) {
+            logger.debug("Error closing index change listener: {}", e.getMessage());
+        }
+        listener = null;
+    }
+}
@@ -0,0 +1,88 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.utils.ShardedProductIndex;
+import com.nyasha.store.utils.UserIndex;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Exports the size, write rate and lock contention of the in-memory indexes, tagged with
+ * {@code index=products} or {@code index=users}:
+ * <ul>
+ *     <li>{@code store.index.documents}, {@code store.index.terms}: indexed documents and distinct terms
+ *     (name and email keys for users);</li>
+ *     <li>{@code store.index.documents.deleted}, {@code store.index.postings.size}, {@code store.index.segments}:
+ *     deleted documents not merged away yet, encoded postings and segments of the product index;</li>
+ *     <li>{@code store.index.mutations}: documents added and deleted, tagged with {@code operation};</li>
+ *     <li>{@code store.index.lock.wait}: acquisitions of the index lock and the time spent waiting for it, so a
+ *     slow search can be told apart from one queued behind writes.</li>
+ * </ul>
+ * Sizes are computed when the registry is scraped, not on every write.
+ */
+@Service
+public class IndexMetrics {
+
+    @Autowired
+    public IndexMetrics(MeterRegistry meterRegistry, ShardedProductIndex productIndex, UserIndex userIndex) {
+        Gauge.builder("store.index.documents", productIndex, ShardedProductIndex::liveDocs)
+                .tag("index", IndexRebuildService.PRODUCTS)
+                .description("Indexed documents")
+                .register(meterRegistry);
+        Gauge.builder("store.index.documents.deleted", productIndex, ShardedProductIndex::deletedDocs)
+                .tag("index", IndexRebuildService.PRODUCTS)
+                .description("Deleted documents whose postings have not been merged away yet")
+                .register(meterRegistry);
+        Gauge.builder("store.index.terms", productIndex, ShardedProductIndex::termCount)
+                .tag("index", IndexRebuildService.PRODUCTS)
+                .description("Distinct terms in the inverted index, per shard")
+                .register(meterRegistry);
+        Gauge.builder("store.index.postings.size", productIndex, ShardedProductIndex::postingBytes)
+                .tag("index", IndexRebuildService.PRODUCTS)
+                .baseUnit("bytes")
+                .description("Encoded size of the postings")
+                .register(meterRegistry);
+        Gauge.builder("store.index.segments", productIndex, ShardedProductIndex::segmentCount)
+                .tag("index", IndexRebuildService.PRODUCTS)
+                .description("Segments of the inverted index, over all shards")
+                .register(meterRegistry);
+        mutations(meterRegistry, IndexRebuildService.PRODUCTS, "add", productIndex, ShardedProductIndex::documentsAdded);
+        mutations(meterRegistry, IndexRebuildService.PRODUCTS, "delete", productIndex, ShardedProductIndex::documentsDeleted);
+        FunctionTimer.builder("store.index.lock.wait", productIndex, ShardedProductIndex::lockAcquisitions,
+                        ShardedProductIndex::lockWaitNanos, TimeUnit.NANOSECONDS)
+                .tag("index", IndexRebuildService.PRODUCTS)
+                .description("Time spent waiting to acquire the index lock")
+                .register(meterRegistry);
+
+        Gauge.builder("store.index.documents", userIndex, UserIndex::size)
+                .tag("index", IndexRebuildService.USERS)
+                .description("Indexed documents")
+                .register(meterRegistry);
+        Gauge.builder("store.index.terms", userIndex, UserIndex::keyCount)
+                .tag("index", IndexRebuildService.USERS)
+                .description("Distinct name and email keys")
+                .register(meterRegistry);
+        mutations(meterRegistry, IndexRebuildService.USERS, "add", userIndex, UserIndex::insertions);
+        mutations(meterRegistry, IndexRebuildService.USERS, "delete", userIndex, UserIndex::removals);
+        FunctionTimer.builder("store.index.lock.wait", userIndex, index -> index.lockWait().acquisitions(),
+                        index -> index.lockWait().totalWaitNanos(), TimeUnit.NANOSECONDS)
+                .tag("index", IndexRebuildService.USERS)
+                .description("Time spent waiting to acquire the index lock")
+                .register(meterRegistry);
+    }
+
+    private static <T> void mutations(MeterRegistry meterRegistry, String index, String operation, T source,
+                                      ToLongFunction<T> count) {
+        FunctionCounter.builder("store.index.mutations", source, value -> count.applyAsLong(value))
+                .tag("index", index)
+                .tag("operation", operation)
+                .description("Documents added to or deleted from the index")
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,210 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.entities.User;
+import com.nyasha.store.repositories.ProductRepository;
+import com.nyasha.store.repositories.UserRepository;
+import com.nyasha.store.utils.BulkIndexer;
+import com.nyasha.store.utils.IndexBuildProgress;
+import com.nyasha.store.utils.ShardedProductIndex;
+import com.nyasha.store.utils.UserIndex;
+import jakarta.annotation.PreDestroy;
+import org.hibernate.Hibernate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Full rebuilds of the search indexes from the database, for when there is no usable snapshot or an
+ * index has to be rebuilt on demand. Rows are read in keyset-paginated pages, each in its own read-only
+ * transaction, and indexed in parallel on a fork-join pool, so memory is bounded by the pages in flight
+ * rather than the size of the table.
+ * <p>
+ * The change feed keeps applying changes while a rebuild runs, so a page read before a change can be indexed
+ * after it, putting the old row back. Every rebuild therefore records how far the feed had applied before it
+ * read anything, and replays the changes made since once its pages are indexed.
+ */
+@Service
+public class IndexRebuildService {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexRebuildService.class);
+
+    public static final String PRODUCTS = "products";
+    public static final String USERS = "users";
+
+    // Rows per keyset page; each indexing thread has up to two pages queued
+    private static final int BATCH_SIZE = 500;
+
+    private final ProductRepository productRepository;
+    private final UserRepository userRepository;
+    private final ShardedProductIndex productIndex;
+    private final UserIndex userIndex;
+    private final IndexChangeFeed indexChangeFeed;
+    private final TransactionTemplate readOnlyTransaction;
+
+    private final ForkJoinPool indexingPool;
+    private final BulkIndexer productIndexer;
+    private final BulkIndexer userIndexer;
+
+    // Rebuilds started from the admin endpoint run here, one at a time
+    private final ExecutorService launcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "index-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Future<?>> backgroundBuilds = new HashMap<>();
+
+    @Autowired
+    public IndexRebuildService(ProductRepository productRepository, UserRepository userRepository,
+                               ShardedProductIndex productIndex, UserIndex userIndex,
+                               IndexChangeFeed indexChangeFeed, PlatformTransactionManager transactionManager,
+                               @Value("${store.index.rebuild-parallelism:0}") int parallelism) {
+        this.productRepository = productRepository;
+        this.userRepository = userRepository;
+        this.productIndex = productIndex;
+        this.userIndex = userIndex;
+        this.indexChangeFeed = indexChangeFeed;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.indexingPool = new ForkJoinPool(threads);
+        this.productIndexer = new BulkIndexer(PRODUCTS, indexingPool, BATCH_SIZE, threads * 2);
+        this.userIndexer = new BulkIndexer(USERS, indexingPool, BATCH_SIZE, threads * 2);
+    }
+
+    /**
+     * Rebuilds the product index from the database on the calling thread. Products are indexed over the
+     * existing index, replacing their indexed copies, so search keeps answering while the rebuild runs;
+     * products no longer in the database are removed at the end and the segments compacted.
+     */
+    public IndexBuildProgress rebuildProducts() {
+        long appliedThrough = indexChangeFeed.appliedThrough();
+        AtomicLong lastId = new AtomicLong(Long.MIN_VALUE);
+        IndexBuildProgress progress = productIndexer.run(batchSize -> readOnlyTransaction.execute(status -> {
+            List<Product> page = productRepository.findByProductIdGreaterThan(lastId.get(),
+                    PageRequest.of(0, batchSize, Sort.by("productId")));
+            for (Product product : page) {
+                // Load the lazy associations the index reads while the page's session is still open
+                Hibernate.initialize(product.getVariants());
+                Hibernate.initialize(product.getCategories());
+                Hibernate.initialize(product.getReviews());
+            }
+            if (!page.isEmpty()) {
+                lastId.set(page.get(page.size() - 1).getProductId());
+            }
+            return page;
+        }), productIndex::bulkIndex);
+        int replayed = indexChangeFeed.replayAfter(appliedThrough);
+        int removed = removeMissing(productIndex.productIds(), productRepository.findAllProductIds(), lastId.get(), id -> {
+            Product indexed = productIndex.product(id);
+            if (indexed != null) {
+                productIndex.remove(indexed);
+            }
+        });
+        productIndex.forceMerge();
+        logger.info("Product index rebuilt with {} products, {} removed, {} changes replayed",
+                progress.documentsIndexed(), removed, replayed);
+        return progress;
+    }
+
+    /**
+     * Rebuilds the user index from the database on the calling thread, the same way as {@link #rebuildProducts()}.
+     */
+    public IndexBuildProgress rebuildUsers() {
+        long appliedThrough = indexChangeFeed.appliedThrough();
+        AtomicLong lastId = new AtomicLong(Long.MIN_VALUE);
+        IndexBuildProgress progress = userIndexer.run(batchSize -> readOnlyTransaction.execute(status -> {
+            List<User> page = userRepository.findByUserIdGreaterThan(lastId.get(),
+                    PageRequest.of(0, batchSize, Sort.by("userId")));
+            if (!page.isEmpty()) {
+                lastId.set(page.get(page.size() - 1).getUserId());
+            }
+            return page;
+        }), userIndex::bulkIndex);
+        int replayed = indexChangeFeed.replayAfter(appliedThrough);
+        Map<Long, User> indexed = new HashMap<>();
+        for (User user : userIndex.users()) {
+            indexed.put(user.getUserId(), user);
+        }
+        int removed = removeMissing(indexed.keySet(), userRepository.findAllUserIds(), lastId.get(),
+                id -> userIndex.remove(indexed.get(id)));
+        logger.info("User index rebuilt with {} users, {} removed, {} changes replayed",
+                progress.documentsIndexed(), removed, replayed);
+        return progress;
+    }
+
+    /**
+     * Starts rebuilding an index in the background and returns its current progress.
+     *
+     * @throws IllegalArgumentException if there is no index of that name.
+     * @throws IllegalStateException    if that index is already being rebuilt.
+     */
+    public synchronized IndexBuildProgress startRebuild(String index) {
+        BulkIndexer indexer = indexer(index);
+        Future<?> previous = backgroundBuilds.get(index);
+        if (indexer.isRunning() || (previous != null && !previous.isDone())) {
+            throw new IllegalStateException("The " + index + " index is already being rebuilt");
+        }
+        backgroundBuilds.put(index, launcher.submit(() -> {
+            try {
+                if (PRODUCTS.equals(index)) {
+                    rebuildProducts();
+                } else {
+                    rebuildUsers();
+                }
+            } catch (Exception e) {
+                logger.error("Error rebuilding the {} index: {}", index, e.getMessage(), e);
+            }
+        }));
+        return indexer.progress();
+    }
+
+    /**
+     * Progress of the running or latest build of every index.
+     */
+    public List<IndexBuildProgress> progress() {
+        return List.of(productIndexer.progress(), userIndexer.progress());
+    }
+
+    @PreDestroy
+    public void close() {
+        launcher.shutdownNow();
+        indexingPool.shutdownNow();
+    }
+
+    private BulkIndexer indexer(String index) {
+        return switch (index) {
+            case PRODUCTS -> productIndexer;
+            case USERS -> userIndexer;
+            default -> throw new IllegalArgumentException("Unknown index: " + index);
+        };
+    }
+
+    /**
+     * Removes indexed rows that are no longer in the database. Only IDs up to the last one the rebuild
+     * read are considered, so rows created after the database IDs were listed are never taken for deleted.
+     */
+    private static int removeMissing(Collection<Long> indexedIds, List<Long> databaseIds, long lastReadId,
+                                     Consumer<Long> remove) {
+        Set<Long> existing = new HashSet<>(databaseIds);
+        int removed = 0;
+        for (Long id : List.copyOf(indexedIds)) {
+            if (id <= lastReadId && !existing.contains(id)) {
+                remove.accept(id);
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
@@ -1,16 +1,45 @@
 package com.nyasha.store.services;
 
 
+import com.nyasha.store.dtos.ProductHit;
+import com.nyasha.store.dtos.ProductSearchResponse;
+import com.nyasha.store.dtos.ProductSuggestion;
+import com.nyasha.store.dtos.SearchExplanation;
+import com.nyasha.store.dtos.SuggestionPage;
+import com.nyasha.store.entities.IndexChange;
 import com.nyasha.store.entities.Product;
 import com.nyasha.store.repositories.ProductRepository;
 import com.nyasha.store.utils.ProductIndex;
+import com.nyasha.store.utils.SearchRequest;
+import com.nyasha.store.utils.SearchResult;
+import com.nyasha.store.utils.SearchSort;
+import com.nyasha.store.utils.SearchTrace;
+import com.nyasha.store.utils.ShardedProductIndex;
+import com.nyasha.store.utils.StoredFields;
+import com.nyasha.store.utils.SuggestionResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 
 @Service
@@ -18,21 +47,119 @@ public class ProductService {
 
     private static final Logger logger = LoggerFactory.getLogger(ProductService.class);
 
+    // Snapshot watermarks lag the time they are taken by this much, to cover writes that were in flight
+    private static final Duration SNAPSHOT_OVERLAP = Duration.ofMinutes(1);
+
     private final ProductRepository productRepository;
-    private final ProductIndex productIndex;
+    private final ShardedProductIndex productIndex;
+    private final IndexRebuildService indexRebuildService;
+    private final IndexChangeFeed indexChangeFeed;
+    private final SearchResultCache searchResultCache;
+    private final BoughtTogetherService boughtTogetherService;
+    private final SearchMetrics searchMetrics;
+    private final SlowQueryLog slowQueryLog;
+    private final TransactionTemplate readOnlyTransaction;
+    private final Path snapshotFile;
+    private final int similarEf;
 
     @Autowired
-    public ProductService(ProductRepository productRepository, ProductIndex productIndex) {
+    public ProductService(ProductRepository productRepository, ShardedProductIndex productIndex,
+                          IndexRebuildService indexRebuildService, IndexChangeFeed indexChangeFeed,
+                          SearchResultCache searchResultCache, BoughtTogetherService boughtTogetherService,
+                          SearchMetrics searchMetrics, SlowQueryLog slowQueryLog,
+                          PlatformTransactionManager transactionManager,
+                          @Value("${store.index.snapshot-dir:data/index}") String snapshotDir,
+                          @Value("${store.search.similar-ef:64}") int similarEf) {
         this.productRepository = productRepository;
         this.productIndex = productIndex;
+        this.indexRebuildService = indexRebuildService;
+        this.indexChangeFeed = indexChangeFeed;
+        this.searchResultCache = searchResultCache;
+        this.boughtTogetherService = boughtTogetherService;
+        this.searchMetrics = searchMetrics;
+        this.slowQueryLog = slowQueryLog;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.snapshotFile = Path.of(snapshotDir, "products.snapshot");
+        this.similarEf = similarEf;
+    }
+
+    // Load the product index at startup: reopen the local snapshot and catch up on the products changed
+    // since its watermark, or bulk build the index from the database if there is no usable snapshot.
+    // The catch-up runs in a read-only transaction so the lazy variants, categories and reviews can be indexed.
+    @PostConstruct
+    public void initializeIndex() {
+        try {
+            Boolean loaded = readOnlyTransaction.execute(status -> loadIndexSnapshot());
+            if (!Boolean.TRUE.equals(loaded)) {
+                indexRebuildService.rebuildProducts();
+            }
+        } catch (Exception e) {
+            logger.error("Error initializing product index: {}", e.getMessage(), e);
+            throw new RuntimeException("Product index initialization failed: " + e.getMessage());
+        }
+    }
+
+    // Write the product index to its local snapshot, periodically and on shutdown
+    @Scheduled(initialDelayString = "${store.index.snapshot-interval-ms:600000}",
+            fixedDelayString = "${store.index.snapshot-interval-ms:600000}")
+    @PreDestroy
+    public synchronized void writeIndexSnapshot() {
+        try {
+            productIndex.writeSnapshot(snapshotFile, LocalDateTime.now().minus(SNAPSHOT_OVERLAP));
+        } catch (Exception e) {
+            logger.error("Error writing product index snapshot {}: {}", snapshotFile, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reopens the product index snapshot, if there is a usable one, and applies the changes made since:
+     * products updated after its watermark are re-indexed and products no longer in the database removed.
+     * Changes that do not touch the product row itself, such as a new review, are picked up when the
+     * product is next updated.
+     *
+     * @return false if there was no usable snapshot.
+     */
+    private boolean loadIndexSnapshot() {
+        if (!productIndex.hasSnapshot(snapshotFile)) {
+            return false;
+        }
+        LocalDateTime watermark;
+        try {
+            watermark = productIndex.loadSnapshot(snapshotFile);
+        } catch (IOException e) {
+            logger.warn("Ignoring unusable product index snapshot {}: {}", snapshotFile, e.getMessage());
+            return false;
+        }
+        List<Product> changed = productRepository.findByUpdatedAtAfter(watermark);
+        for (Product product : changed) {
+            Product indexed = productIndex.product(product.getProductId());
+            if (indexed != null) {
+                productIndex.update(indexed, product);
+            } else {
+                productIndex.insert(product);
+            }
+        }
+        Set<Long> existing = new HashSet<>(productRepository.findAllProductIds());
+        int removed = 0;
+        for (Long productId : List.copyOf(productIndex.productIds())) {
+            if (!existing.contains(productId)) {
+                productIndex.remove(productIndex.product(productId));
+                removed++;
+            }
+        }
+        logger.info("Product index loaded from snapshot with {} products, {} changed and {} deleted since {}",
+                existing.size(), changed.size(), removed, watermark);
+        return true;
     }
 
-    // Create a product and add it to the product index
+    // Create a product; the change feed adds it to the product index as the transaction commits
+    @Transactional
     public Product createProduct(Product product) {
         //product.setCreatedAt(LocalDateTime.now());
         try {
             Product savedProduct = productRepository.save(product);
-            productIndex.insert(savedProduct);
+            indexChangeFeed.record(IndexChange.PRODUCT, savedProduct.getProductId(), false);
             logger.info("Created product with id {}", savedProduct.getProductId());
             return savedProduct;
         } catch (Exception e) {
@@ -52,29 +179,23 @@ public class ProductService {
                 .orElseThrow(() -> new RuntimeException("Product not found"));
     }
 
-    // Update a product and refresh the product index
+    // Update a product; the change feed refreshes the product index as the transaction commits
+    @Transactional
     public Product updateProduct(Long id, Product productDetails) {
         try {
             Product existingProduct = productRepository.findById(id)
                     .orElseThrow(() -> new RuntimeException("Product not found"));
 
-            // Capture the old state for index update
-            Product oldProduct = new Product();
-            oldProduct.setProductId(existingProduct.getProductId());
-            oldProduct.setName(existingProduct.getName());
-            oldProduct.setSku(existingProduct.getSku());
-            oldProduct.setDescription(existingProduct.getDescription());
-            oldProduct.setCategories(existingProduct.getCategories());
-
             // Apply updates
             existingProduct.setName(productDetails.getName());
             existingProduct.setDescription(productDetails.getDescription());
             existingProduct.setBasePrice(productDetails.getBasePrice());
             existingProduct.setSku(productDetails.getSku());
+            existingProduct.setThumbnailUrl(productDetails.getThumbnailUrl());
             existingProduct.setCategories(productDetails.getCategories());
 
             Product updatedProduct = productRepository.save(existingProduct);
-            productIndex.update(oldProduct, updatedProduct);
+            indexChangeFeed.record(IndexChange.PRODUCT, updatedProduct.getProductId(), false);
             logger.info("Updated product with id {}", updatedProduct.getProductId());
             return updatedProduct;
         } catch (RuntimeException e) {
@@ -83,13 +204,14 @@ public class ProductService {
         }
     }
 
-    // Delete a product and remove it from the index
+    // Delete a product; the change feed removes it from the index as the transaction commits
+    @Transactional
     public void deleteProduct(Long id) {
         try {
             Product product = productRepository.findById(id)
                     .orElseThrow(() -> new RuntimeException("Product not found"));
-            productIndex.remove(product);
             productRepository.delete(product);
+            indexChangeFeed.record(IndexChange.PRODUCT, id, true);
             logger.info("Deleted product with id {}", id);
         } catch (RuntimeException e) {
             logger.error("Error deleting product with id {}: {}", id, e.getMessage(), e);
@@ -97,32 +219,164 @@ public class ProductService {
         }
     }
 
-    // Full-text search using the inverted index
-    public Set<Product> searchByText(String query) {
+    // Full-text search using the inverted index, ranked by relevance, with optional facet counts
+    public ProductSearchResponse searchByText(String query, int limit, boolean withFacets) {
+        return searchByText(new SearchRequest(query, limit, withFacets, null, null, SearchSort.RELEVANCE, null));
+    }
+
+    // Full-text search with an optional effective price range, ordered by relevance or price, one page per cursor.
+    // Responses are cached until the product index next changes.
+    public ProductSearchResponse searchByText(SearchRequest request) {
+        return searchByText(request, false);
+    }
+
+    // Full-text search that, when explain is set, bypasses the cache and reports where the time went
+    public ProductSearchResponse searchByText(SearchRequest request, boolean explain) {
         try {
-            Set<Product> results = productIndex.searchByText(query);
-            logger.info("Text search for '{}' returned {} results", query, results.size());
-            return results;
+            SearchTrace trace = slowQueryLog.trace(explain);
+            Supplier<ProductSearchResponse> search = () -> search(request, trace);
+            String key = SearchResultCache.key("search", request.query(), request.limit(), request.facets(),
+                    request.minPrice(), request.maxPrice(), request.sort(), request.cursor());
+            ProductSearchResponse response = searchMetrics.record("product.search",
+                    explain ? search : () -> searchResultCache.get(key, search, SearchResultCache::weigh),
+                    page -> page.hits().size());
+            SearchExplanation explanation = slowQueryLog.finish("product.search", request, trace);
+            return explain ? response.withExplanation(explanation) : response;
         } catch (Exception e) {
-            logger.error("Error during text search for '{}': {}", query, e.getMessage(), e);
+            logger.error("Error during text search for '{}': {}", request.query(), e.getMessage(), e);
             throw new RuntimeException("Text search failed: " + e.getMessage());
         }
     }
 
-    // Prefix-based autocompletion
-    public List<Product> autocomplete(String prefix) {
+    private ProductSearchResponse search(SearchRequest request, SearchTrace trace) {
+        SearchResult result = productIndex.search(request, trace);
+        logger.info("Text search for '{}' matched {} products, returning {}", request.query(), result.totalHits(), result.hits().size());
+        if (result.totalHits() == 0 && request.cursor() == null && request.minPrice() == null
+                && request.maxPrice() == null && request.sort() == SearchSort.RELEVANCE) {
+            // Nothing matched every term: suggest the products nearest to the query's term vector instead
+            long mark = trace.mark();
+            List<Product> similar = productIndex.similarToText(request.query(), request.limit(), similarEf);
+            mark = trace.lap(SearchTrace.Stage.LOOKUP, mark);
+            logger.info("Text search for '{}' fell back to {} similar products", request.query(), similar.size());
+            List<ProductHit> hits = hits(similar);
+            trace.lap(SearchTrace.Stage.HYDRATION, mark);
+            return ProductSearchResponse.noMatches(result.facets(), hits);
+        }
+        long mark = trace.mark();
+        List<ProductHit> hits = hits(result.hits());
+        trace.lap(SearchTrace.Stage.HYDRATION, mark);
+        return new ProductSearchResponse(hits, result.totalHits(), result.facets(), result.nextCursor());
+    }
+
+    // Products with the most similar name and description, from the approximate nearest-neighbour index.
+    // A larger ef explores more candidates for better recall at some latency; null uses the configured default.
+    public List<ProductHit> getSimilarProducts(Long id, int limit, Integer ef) {
+        if (productIndex.product(id) == null) {
+            throw new RuntimeException("Product not found");
+        }
         try {
-            List<Product> results = productIndex.searchByPrefix(prefix);
-            logger.info("Autocomplete for '{}' returned {} results", prefix, results.size());
-            return results;
+            return searchMetrics.record("product.similar", () -> {
+                List<Product> similar = productIndex.similar(id, limit, ef != null ? ef : similarEf);
+                logger.info("Found {} products similar to {}", similar.size(), id);
+                return hits(similar);
+            }, List::size);
+        } catch (Exception e) {
+            logger.error("Error finding products similar to {}: {}", id, e.getMessage(), e);
+            throw new RuntimeException("Similar products lookup failed: " + e.getMessage());
+        }
+    }
+
+    // Products bought in the same orders as this one most often, from the in-memory co-purchase model
+    public List<ProductHit> getBoughtTogether(Long id, int limit) {
+        if (productIndex.product(id) == null) {
+            throw new RuntimeException("Product not found");
+        }
+        return searchMetrics.record("product.bought-together", () -> {
+            List<ProductHit> hits = new ArrayList<>();
+            for (long partner : boughtTogetherService.boughtTogether(id, limit)) {
+                ProductHit hit = hit(productIndex.storedFields(partner));
+                if (hit != null) {
+                    hits.add(hit);
+                }
+            }
+            return hits;
+        }, List::size);
+    }
+
+    // Prefix-based autocompletion, returning a page of lightweight suggestions instead of entities, cached
+    // until the product index next changes
+    public SuggestionPage autocomplete(String prefix, int limit, String cursor) {
+        return autocomplete(prefix, limit, cursor, false);
+    }
+
+    // Autocompletion that, when explain is set, bypasses the cache and reports where the time went
+    public SuggestionPage autocomplete(String prefix, int limit, String cursor, boolean explain) {
+        try {
+            SearchTrace trace = slowQueryLog.trace(explain);
+            Supplier<SuggestionPage> suggest = () -> suggest(prefix, limit, cursor, trace);
+            String key = SearchResultCache.key("autocomplete", prefix, limit, cursor);
+            SuggestionPage page = searchMetrics.record("product.autocomplete",
+                    explain ? suggest : () -> searchResultCache.get(key, suggest, SearchResultCache::weigh),
+                    suggestions -> suggestions.suggestions().size());
+            if (!trace.enabled()) {
+                return page;
+            }
+            Map<String, Object> request = new LinkedHashMap<>();
+            request.put("prefix", prefix);
+            request.put("limit", limit);
+            request.put("cursor", cursor);
+            SearchExplanation explanation = slowQueryLog.finish("product.autocomplete", request, trace);
+            return explain ? page.withExplanation(explanation) : page;
         } catch (Exception e) {
             logger.error("Error during autocomplete for '{}': {}", prefix, e.getMessage(), e);
             throw new RuntimeException("Autocomplete failed: " + e.getMessage());
         }
     }
 
-    // Get products by category
-    public List<Product> getProductsByCategory(String categoryId) {
-        return productIndex.searchByCategory(categoryId);
+    private SuggestionPage suggest(String prefix, int limit, String cursor, SearchTrace trace) {
+        SuggestionResult result = productIndex.suggest(prefix, limit, cursor, trace);
+        long mark = trace.mark();
+        List<ProductSuggestion> suggestions = result.suggestions().stream()
+                .map(suggestion -> new ProductSuggestion(suggestion.text(), suggestion.productId(),
+                        hit(productIndex.storedFields(suggestion.productId()))))
+                .toList();
+        trace.lap(SearchTrace.Stage.HYDRATION, mark);
+        logger.info("Autocomplete for '{}' returned {} results", prefix, suggestions.size());
+        return new SuggestionPage(suggestions, result.nextCursor());
+    }
+
+    // Get a page of products by category, optionally including every descendant category, cached until the
+    // product index next changes
+    public ProductSearchResponse getProductsByCategory(String categoryId, boolean includeDescendants,
+                                                       int limit, SearchSort sort, String cursor) {
+        try {
+            String key = SearchResultCache.key("category", categoryId, includeDescendants, limit, sort, cursor);
+            return searchMetrics.record("product.category", () -> searchResultCache.get(key, () -> {
+                SearchResult result = productIndex.searchByCategory(categoryId, includeDescendants,
+                        Math.min(limit, ProductIndex.MAX_TOP_K), sort, cursor);
+                return new ProductSearchResponse(hits(result.hits()), result.totalHits(), result.facets(), result.nextCursor());
+            }, SearchResultCache::weigh), response -> response.hits().size());
+        } catch (Exception e) {
+            logger.error("Error listing category {}: {}", categoryId, e.getMessage(), e);
+            throw new RuntimeException("Category listing failed: " + e.getMessage());
+        }
+    }
+
+    // Compact hits built from the fields stored in the index, so rendering results never loads an entity.
+    // Products removed since the search ran are skipped.
+    private List<ProductHit> hits(List<Product> products) {
+        List<ProductHit> hits = new ArrayList<>(products.size());
+        for (Product product : products) {
+            ProductHit hit = hit(productIndex.storedFields(product.getProductId()));
+            if (hit != null) {
+                hits.add(hit);
+            }
+        }
+        return hits;
+    }
+
+    private static ProductHit hit(StoredFields fields) {
+        return fields == null ? null : new ProductHit(fields.productId(), fields.name(), fields.sku(),
+                fields.price(), fields.thumbnailUrl(), fields.rating());
     }
-}
\ No newline at end of file
+}
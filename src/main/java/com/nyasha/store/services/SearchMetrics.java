@@ -0,0 +1,72 @@
+package com.nyasha.store.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Latency and result counts of the product and user search paths, exported as {@code store.search.latency}
+ * (tagged with the operation and whether it succeeded) and {@code store.search.results} (tagged with the
+ * operation). Both publish percentiles and histogram buckets, so latency can be read per instance and
+ * aggregated across instances.
+ * <p>
+ * Latency covers the whole service call, cache hits included; how often responses come from the cache is
+ * in the {@code cache.*} metrics of {@link SearchResultCache}.
+ */
+@Service
+public class SearchMetrics {
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DistributionSummary> resultCounts = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SearchMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Runs a search, recording how long it took and how many results it returned.
+     */
+    public <T> T record(String operation, Supplier<T> search, ToIntFunction<T> resultCount) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        boolean succeeded = false;
+        try {
+            T result = search.get();
+            succeeded = true;
+            resultCounts(operation).record(resultCount.applyAsInt(result));
+            return result;
+        } finally {
+            sample.stop(timer(operation, succeeded ? "success" : "error"));
+        }
+    }
+
+    private Timer timer(String operation, String outcome) {
+        return timers.computeIfAbsent(operation + '\u0000' + outcome, key -> Timer.builder("store.search.latency")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .description("Time to answer a search request")
+                .publishPercentiles(PERCENTILES)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    private DistributionSummary resultCounts(String operation) {
+        return resultCounts.computeIfAbsent(operation, key -> DistributionSummary.builder("store.search.results")
+                .tag("operation", operation)
+                .baseUnit("results")
+                .description("Results returned by a search request")
+                .publishPercentiles(PERCENTILES)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+}
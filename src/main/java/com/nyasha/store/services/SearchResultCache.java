@@ -0,0 +1,189 @@
+package com.nyasha.store.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+import com.nyasha.store.dtos.ProductSearchResponse;
+import com.nyasha.store.dtos.ProductSuggestion;
+import com.nyasha.store.dtos.SuggestionPage;
+import com.nyasha.store.utils.ShardedProductIndex;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of product search, autocomplete and category listing responses, so the head queries that make up
+ * most of the traffic are not recomputed on every request.
+ * <p>
+ * The cache is bounded by the estimated size of the responses it holds, and Caffeine's W-TinyLFU policy only
+ * admits a new response over the one it would evict if its query has been asked more often, so a burst of
+ * one-off queries cannot flush the head queries out. Every entry records the {@link ShardedProductIndex#generation()}
+ * it was computed at and is only served while the index is still at that generation, so a response is never
+ * served after a change to the indexed products, and never thrown away before one. Sales and reviews counted
+ * into the static rank only move the {@link ShardedProductIndex#rankEpoch()}, and an entry computed before
+ * them is served for up to the rank staleness, so the steady trickle of orders does not keep emptying the cache.
+ * <p>
+ * Keys are case-folded, as the analyzer lowercases every query, so {@code Phone} and {@code phone} share an entry.
+ * <p>
+ * Hits, misses, stale entries, evictions and the estimated memory are exported as {@code cache.*} and
+ * {@code store.search.cache.*} metrics with {@code cache=product-search}.
+ */
+@Service
+public class SearchResultCache {
+
+    private static final String CACHE_NAME = "product-search";
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    // Rough per-object sizes for estimating the memory of a cached response
+    private static final long OBJECT_OVERHEAD = 16;
+    private static final long REFERENCE_SIZE = 8;
+    private static final long ENTRY_OVERHEAD = 64;
+    // A hit record; its strings are shared with the index's stored fields
+    private static final long HIT_SIZE = OBJECT_OVERHEAD + 6 * REFERENCE_SIZE;
+
+    private final ShardedProductIndex productIndex;
+    private final long rankStalenessNanos;
+    private final Cache<String, Entry> cache;
+    // Hits and misses are recorded here rather than by lookups, as an entry from an older generation is a miss
+    private final StatsCounter stats = new ConcurrentStatsCounter();
+    private final Counter staleEntries;
+
+    @Autowired
+    public SearchResultCache(ShardedProductIndex productIndex, MeterRegistry meterRegistry,
+                             @Value("${store.search.cache-max-bytes:16777216}") long maxBytes,
+                             @Value("${store.search.cache-rank-staleness-ms:60000}") long rankStalenessMillis) {
+        this.productIndex = productIndex;
+        this.rankStalenessNanos = TimeUnit.MILLISECONDS.toNanos(rankStalenessMillis);
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> (int) Math.min(Integer.MAX_VALUE, entry.weight()))
+                .recordStats(() -> stats)
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        Gauge.builder("store.search.cache.memory", cache, c -> c.policy().eviction()
+                        .map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L))
+                .tag("cache", CACHE_NAME)
+                .baseUnit("bytes")
+                .description("Estimated memory held by cached search responses")
+                .register(meterRegistry);
+        this.staleEntries = Counter.builder("store.search.cache.stale")
+                .tag("cache", CACHE_NAME)
+                .description("Lookups that found a response computed before the last index change")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Cache key of a request: its kind, its whitespace-normalized and lowercased text and the parameters that
+     * shape the response.
+     */
+    public static String key(String kind, String text, Object... parameters) {
+        StringBuilder key = new StringBuilder(kind).append('\u0000');
+        if (text != null) {
+            appendFolded(key, WHITESPACE.matcher(text.strip()).replaceAll(" "));
+        }
+        for (Object parameter : parameters) {
+            key.append('\u0000').append(parameter);
+        }
+        return key.toString();
+    }
+
+    // Lowercases query text the way the analyzer does, except for anything that may be the OR operator,
+    // which the query parser only recognizes in upper case
+    private static void appendFolded(StringBuilder key, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.startsWith("OR", i) && (i == 0 || !Character.isLetter(text.charAt(i - 1)))
+                    && (i + 2 == text.length() || isDelimiter(text.charAt(i + 2)))) {
+                key.append("OR");
+                i++;
+            } else {
+                key.append(Character.toLowerCase(text.charAt(i)));
+            }
+        }
+    }
+
+    // The characters that can end an OR operator, as in QueryParser
+    private static boolean isDelimiter(char c) {
+        return c == ' ' || c == '(' || c == ')' || c == '"' || c == '|';
+    }
+
+    /**
+     * The cached response for {@code key} if it was computed at the index's current generation, and at its
+     * current rank epoch or within the rank staleness, otherwise the response of {@code compute}, which is
+     * cached with its estimated size in bytes.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Supplier<T> compute, ToLongFunction<T> weigher) {
+        // Read the generation first: a change made while computing leaves the entry already stale
+        long generation = productIndex.generation();
+        long rankEpoch = productIndex.rankEpoch();
+        long now = System.nanoTime();
+        // Map reads count toward admission frequency without counting as a hit or miss
+        Entry cached = cache.asMap().get(key);
+        if (cached != null && cached.generation() == generation
+                && (cached.rankEpoch() == rankEpoch || now - cached.computedAt() < rankStalenessNanos)) {
+            stats.recordHits(1);
+            return (T) cached.value();
+        }
+        stats.recordMisses(1);
+        if (cached != null) {
+            staleEntries.increment();
+        }
+        T value = compute.get();
+        cache.put(key, new Entry(generation, rankEpoch, now, value,
+                ENTRY_OVERHEAD + key.length() * 2L + weigher.applyAsLong(value)));
+        return value;
+    }
+
+    /**
+     * Runs pending evictions now rather than on the next writes.
+     */
+    void cleanUp() {
+        cache.cleanUp();
+    }
+
+    /**
+     * Estimated size of a search response.
+     */
+    public static long weigh(ProductSearchResponse response) {
+        long size = OBJECT_OVERHEAD * 2 + (response.hits().size() + response.similar().size()) * (REFERENCE_SIZE + HIT_SIZE);
+        for (Map<String, Integer> values : response.facets().values()) {
+            size += ENTRY_OVERHEAD;
+            for (String value : values.keySet()) {
+                size += ENTRY_OVERHEAD + value.length() * 2L;
+            }
+        }
+        if (response.nextCursor() != null) {
+            size += OBJECT_OVERHEAD + response.nextCursor().length() * 2L;
+        }
+        return size;
+    }
+
+    /**
+     * Estimated size of a page of suggestions.
+     */
+    public static long weigh(SuggestionPage page) {
+        long size = OBJECT_OVERHEAD * 2;
+        for (ProductSuggestion suggestion : page.suggestions()) {
+            size += OBJECT_OVERHEAD * 2 + suggestion.text().length() * 2L + HIT_SIZE;
+        }
+        if (page.nextCursor() != null) {
+            size += OBJECT_OVERHEAD + page.nextCursor().length() * 2L;
+        }
+        return size;
+    }
+
+    private record Entry(long generation, long rankEpoch, long computedAt, Object value, long weight) {
+    }
+}
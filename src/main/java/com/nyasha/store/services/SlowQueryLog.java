@@ -0,0 +1,115 @@
+package com.nyasha.store.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nyasha.store.dtos.SearchExplanation;
+import com.nyasha.store.utils.SearchTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which searches are traced stage by stage, and writes the slow ones to the slow-query log.
+ * <p>
+ * A search is traced when an explanation is asked for, and otherwise with the configured sample rate, so only a
+ * share of the traffic pays for timing its stages. A traced search made for an HTTP request is held in the request
+ * until its response has been written, so the JSON converter can report how long the serialization really took;
+ * an explanation returned in the response itself is built before then, so its serialization time reads 0. Traced
+ * searches that took longer than the threshold are written as one JSON line each to the {@value #LOGGER} logger,
+ * which {@code logback-spring.xml} sends to a rolling file of its own.
+ */
+@Service
+public class SlowQueryLog {
+
+    static final String LOGGER = "store.slow-queries";
+
+    // Request attribute holding the traced search whose response is being written
+    private static final String PENDING_ATTRIBUTE = SlowQueryLog.class.getName() + ".pending";
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryLog.class);
+    private static final Logger slowQueries = LoggerFactory.getLogger(LOGGER);
+
+    private final ObjectMapper objectMapper;
+    private final double sampleRate;
+    private final long thresholdNanos;
+
+    @Autowired
+    public SlowQueryLog(ObjectMapper objectMapper,
+                        @Value("${store.search.slow-query-sample-rate:0.1}") double sampleRate,
+                        @Value("${store.search.slow-query-threshold-ms:200}") long thresholdMillis) {
+        this.objectMapper = objectMapper;
+        this.sampleRate = sampleRate;
+        this.thresholdNanos = thresholdMillis * 1_000_000;
+    }
+
+    /**
+     * A new trace if the search is to be explained or is sampled, otherwise {@link SearchTrace#OFF}.
+     */
+    public SearchTrace trace(boolean explain) {
+        return explain || ThreadLocalRandom.current().nextDouble() < sampleRate ? SearchTrace.start() : SearchTrace.OFF;
+    }
+
+    /**
+     * Finishes a traced search and returns its explanation, or null if it was not traced. The search is logged
+     * if it was slow once its response has been serialized, or right away outside of an HTTP request.
+     */
+    public SearchExplanation finish(String operation, Object request, SearchTrace trace) {
+        if (!trace.enabled()) {
+            return null;
+        }
+        PendingQuery pending = new PendingQuery(operation, request, trace);
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes != null) {
+            attributes.setAttribute(PENDING_ATTRIBUTE, pending, RequestAttributes.SCOPE_REQUEST);
+        } else {
+            log(pending);
+        }
+        return explanation(trace);
+    }
+
+    /**
+     * Called by the JSON converter after writing a response body, with the time it took. Adds it to the traced
+     * search of the current request, if there is one, and logs the search if it was slow.
+     */
+    public void serialized(long nanos) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null
+                || !(attributes.getAttribute(PENDING_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) instanceof PendingQuery pending)) {
+            return;
+        }
+        attributes.removeAttribute(PENDING_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        pending.trace().lap(SearchTrace.Stage.SERIALIZATION, pending.trace().mark() - nanos);
+        log(pending);
+    }
+
+    private void log(PendingQuery pending) {
+        SearchExplanation explanation = explanation(pending.trace());
+        if (explanation.totalNanos() < thresholdNanos) {
+            return;
+        }
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("operation", pending.operation());
+        entry.put("request", pending.request());
+        entry.put("explain", explanation);
+        try {
+            slowQueries.info(objectMapper.writeValueAsString(entry));
+        } catch (JsonProcessingException e) {
+            logger.warn("Error writing a slow {} to the slow-query log: {}", pending.operation(), e.getMessage());
+        }
+    }
+
+    private static SearchExplanation explanation(SearchTrace trace) {
+        return new SearchExplanation(trace.elapsedNanos(), trace.stageNanos(), trace.postings(), trace.candidates());
+    }
+
+    private record PendingQuery(String operation, Object request, SearchTrace trace) {
+    }
+}
@@ -0,0 +1,168 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.repositories.OrderItemRepository;
+import com.nyasha.store.repositories.ReviewRepository;
+import com.nyasha.store.utils.ShardedProductIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Feeds the sales and reviews written to the database into the static rank of the product index.
+ * <p>
+ * Sales decay, so only the order lines of the last {@value #SALES_WINDOW_HALF_LIVES} half-lives matter: they are
+ * counted in at startup, and the order lines and reviews added since are counted in every refresh, both read by
+ * keyset pagination on their IDs. Reviews the products already had when they were indexed are counted from the
+ * indexed products, so reviews are only read from the newest one at startup; like any change that does not touch
+ * the product row, a review counted in here is only carried by index snapshots once the product is next updated.
+ * <p>
+ * A sale of a product that is not indexed yet, such as one created moments ago on another instance, is kept and
+ * retried on every refresh for up to {@link #UNMATCHED_SALE_RETRY}, rather than lost as the keyset moves past it.
+ */
+@Service
+public class StaticRankService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticRankService.class);
+
+    // Rows per keyset page
+    private static final int BATCH_SIZE = 1000;
+
+    // Sales older than this many half-lives have decayed below 1/256 of a unit
+    private static final int SALES_WINDOW_HALF_LIVES = 8;
+
+    // Sales of products that are not indexed are retried for this long, and at most this many are kept
+    private static final Duration UNMATCHED_SALE_RETRY = Duration.ofHours(1);
+    private static final int MAX_UNMATCHED_SALES = 10_000;
+
+    private final OrderItemRepository orderItemRepository;
+    private final ReviewRepository reviewRepository;
+    private final ShardedProductIndex productIndex;
+    private final TransactionTemplate readOnlyTransaction;
+    private final Duration salesWindow;
+
+    // Highest order line and review IDs counted in; null until the first refresh
+    private Long lastOrderItemId;
+    private Long lastReviewId;
+    // Sales read past whose product was not indexed yet, oldest first
+    private final Deque<UnmatchedSale> unmatchedSales = new ArrayDeque<>();
+
+    @Autowired
+    public StaticRankService(OrderItemRepository orderItemRepository, ReviewRepository reviewRepository,
+                             ShardedProductIndex productIndex, PlatformTransactionManager transactionManager,
+                             @Value("${store.search.sales-half-life-days:7}") long salesHalfLifeDays) {
+        this.orderItemRepository = orderItemRepository;
+        this.reviewRepository = reviewRepository;
+        this.productIndex = productIndex;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.salesWindow = Duration.ofDays(salesHalfLifeDays * SALES_WINDOW_HALF_LIVES);
+    }
+
+    // Count in the recent sales once the product index has been loaded, then the new sales and reviews periodically
+    @Scheduled(fixedDelayString = "${store.search.static-rank-refresh-ms:60000}")
+    public synchronized void refresh() {
+        try {
+            if (lastOrderItemId == null) {
+                lastOrderItemId = Long.MIN_VALUE;
+                Long maxReviewId = readOnlyTransaction.execute(status -> reviewRepository.findMaxReviewId());
+                lastReviewId = maxReviewId == null ? Long.MIN_VALUE : maxReviewId;
+            }
+            int sales = countSales();
+            int reviews = countReviews();
+            if (sales > 0 || reviews > 0) {
+                logger.info("Counted {} order lines and {} reviews into the static rank", sales, reviews);
+            }
+        } catch (Exception e) {
+            logger.error("Error refreshing the static rank: {}", e.getMessage(), e);
+        }
+    }
+
+    private int countSales() {
+        int counted = retryUnmatchedSales();
+        List<OrderItemRepository.Sale> page;
+        do {
+            LocalDateTime since = LocalDateTime.now().minus(salesWindow);
+            page = readOnlyTransaction.execute(status ->
+                    orderItemRepository.findSalesAfter(lastOrderItemId, since, PageRequest.of(0, BATCH_SIZE)));
+            for (OrderItemRepository.Sale sale : page) {
+                if (sale.getQuantity() != null && sale.getQuantity() > 0
+                        && !productIndex.recordSale(sale.getProductId(), sale.getQuantity(), sale.getOrderDate())) {
+                    keepUnmatched(new UnmatchedSale(sale.getProductId(), sale.getQuantity(), sale.getOrderDate(),
+                            LocalDateTime.now()));
+                }
+                lastOrderItemId = sale.getOrderItemId();
+            }
+            counted += page.size();
+        } while (page.size() == BATCH_SIZE);
+        return counted;
+    }
+
+    /**
+     * Counts in the kept sales whose product has been indexed since, and drops those retried for too long.
+     *
+     * @return the number of sales counted in.
+     */
+    private int retryUnmatchedSales() {
+        if (unmatchedSales.isEmpty()) {
+            return 0;
+        }
+        LocalDateTime expiry = LocalDateTime.now().minus(UNMATCHED_SALE_RETRY);
+        int counted = 0;
+        int expired = 0;
+        for (Iterator<UnmatchedSale> it = unmatchedSales.iterator(); it.hasNext(); ) {
+            UnmatchedSale sale = it.next();
+            if (productIndex.recordSale(sale.productId(), sale.quantity(), sale.orderDate())) {
+                it.remove();
+                counted++;
+            } else if (sale.firstMissed().isBefore(expiry)) {
+                it.remove();
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            logger.warn("Dropped {} sales of products still not indexed after {} minutes",
+                    expired, UNMATCHED_SALE_RETRY.toMinutes());
+        }
+        return counted;
+    }
+
+    private void keepUnmatched(UnmatchedSale sale) {
+        if (unmatchedSales.size() >= MAX_UNMATCHED_SALES) {
+            UnmatchedSale dropped = unmatchedSales.removeFirst();
+            logger.warn("Dropped the sale of product {} not indexed yet, {} unmatched sales already kept",
+                    dropped.productId(), MAX_UNMATCHED_SALES);
+        }
+        unmatchedSales.addLast(sale);
+    }
+
+    private int countReviews() {
+        int counted = 0;
+        List<ReviewRepository.ProductRating> page;
+        do {
+            page = readOnlyTransaction.execute(status ->
+                    reviewRepository.findRatingsAfter(lastReviewId, PageRequest.of(0, BATCH_SIZE)));
+            for (ReviewRepository.ProductRating rating : page) {
+                productIndex.recordReview(rating.getProductId(), rating.getRating());
+                lastReviewId = rating.getReviewId();
+            }
+            counted += page.size();
+        } while (page.size() == BATCH_SIZE);
+        return counted;
+    }
+
+    private record UnmatchedSale(Long productId, int quantity, LocalDateTime orderDate, LocalDateTime firstMissed) {
+    }
+}
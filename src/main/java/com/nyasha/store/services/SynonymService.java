@@ -0,0 +1,66 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.utils.ShardedProductIndex;
+import com.nyasha.store.utils.SynonymDictionary;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Loads the synonym file product searches are rewritten with, and reloads it whenever it changes, so
+ * synonyms can be edited without a restart.
+ */
+@Service
+public class SynonymService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SynonymService.class);
+
+    private final ShardedProductIndex productIndex;
+    private final Path synonymsFile;
+
+    // Modification time of the file last read, or null if there was none, so a bad file is reported once
+    private FileTime loadedVersion;
+
+    @Autowired
+    public SynonymService(ShardedProductIndex productIndex,
+                          @Value("${store.search.synonyms-file:config/synonyms.txt}") String synonymsFile) {
+        this.productIndex = productIndex;
+        this.synonymsFile = Path.of(synonymsFile);
+    }
+
+    // Load the synonyms at startup and check the file for changes periodically.
+    // A file that fails to parse is reported and the previous synonyms are kept.
+    @PostConstruct
+    @Scheduled(initialDelayString = "${store.search.synonyms-reload-ms:30000}",
+            fixedDelayString = "${store.search.synonyms-reload-ms:30000}")
+    public synchronized void reloadSynonyms() {
+        try {
+            if (!Files.exists(synonymsFile)) {
+                if (loadedVersion != null) {
+                    productIndex.setSynonyms(SynonymDictionary.EMPTY);
+                    loadedVersion = null;
+                    logger.info("Synonyms file {} removed, searching without synonyms", synonymsFile);
+                }
+                return;
+            }
+            FileTime version = Files.getLastModifiedTime(synonymsFile);
+            if (version.equals(loadedVersion)) {
+                return;
+            }
+            loadedVersion = version;
+            SynonymDictionary synonyms = SynonymDictionary.load(synonymsFile, productIndex.analyzer());
+            productIndex.setSynonyms(synonyms);
+            logger.info("Loaded synonyms for {} terms from {}", synonyms.size(), synonymsFile);
+        } catch (Exception e) {
+            logger.error("Error loading synonyms from {}: {}", synonymsFile, e.getMessage(), e);
+        }
+    }
+}
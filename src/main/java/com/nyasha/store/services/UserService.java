@@ -1,17 +1,25 @@
 package com.nyasha.store.services;
 
+import com.nyasha.store.entities.IndexChange;
 import com.nyasha.store.entities.User;
 import com.nyasha.store.repositories.UserRepository;
 import com.nyasha.store.utils.UserIndex;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
-import java.util.List;
-import java.util.Optional;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
 
 @Service
 public class UserService {
@@ -24,6 +32,21 @@ public class UserService {
     @Autowired
     private PasswordEncoder passwordEncoder;
 
+    @Autowired
+    private IndexRebuildService indexRebuildService;
+
+    @Autowired
+    private IndexChangeFeed indexChangeFeed;
+
+    @Autowired
+    private SearchMetrics searchMetrics;
+
+    @Value("${store.index.snapshot-dir:data/index}")
+    private String snapshotDir;
+
+    // Snapshot watermarks lag the time they are taken by this much, to cover writes that were in flight
+    private static final Duration SNAPSHOT_OVERLAP = Duration.ofMinutes(1);
+
     // Combined in-memory index.
     private final UserIndex userIndex;
 
@@ -32,26 +55,88 @@ public class UserService {
         this.userIndex = userIndex;
     }
 
+    // Load the user index at startup: reopen the local snapshot and catch up on the users changed since its
+    // watermark, or bulk build the index from the database if there is no usable snapshot.
     @PostConstruct
     public void initializeIndex() {
         try {
-            List<User> users = userRepository.findAll();
-            for (User user : users) {
-                userIndex.insert(user);
+            if (!loadIndexSnapshot()) {
+                indexRebuildService.rebuildUsers();
             }
-            logger.info("User index initialized with {} users", users.size());
         }catch (Exception e){
             logger.error("Error initializing user index: {}", e.getMessage(),e);
             throw new RuntimeException("User initialization failed: "+e.getMessage());
         }
     }
 
-    // Create a new user, save to repository, and update the index.
+    // Write the user index to its local snapshot, periodically and on shutdown
+    @Scheduled(initialDelayString = "${store.index.snapshot-interval-ms:600000}",
+            fixedDelayString = "${store.index.snapshot-interval-ms:600000}")
+    @PreDestroy
+    public synchronized void writeIndexSnapshot() {
+        Path snapshotFile = snapshotFile();
+        try {
+            userIndex.writeSnapshot(snapshotFile, LocalDateTime.now().minus(SNAPSHOT_OVERLAP));
+        } catch (Exception e) {
+            logger.error("Error writing user index snapshot {}: {}", snapshotFile, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reopens the user index snapshot, if there is a usable one, and applies the changes made since:
+     * users updated after its watermark are re-indexed and users no longer in the database removed.
+     *
+     * @return false if there was no usable snapshot.
+     */
+    private boolean loadIndexSnapshot() {
+        Path snapshotFile = snapshotFile();
+        if (!userIndex.hasSnapshot(snapshotFile)) {
+            return false;
+        }
+        LocalDateTime watermark;
+        try {
+            watermark = userIndex.loadSnapshot(snapshotFile);
+        } catch (IOException e) {
+            logger.warn("Ignoring unusable user index snapshot {}: {}", snapshotFile, e.getMessage());
+            return false;
+        }
+        Map<Long, User> indexed = new HashMap<>();
+        for (User user : userIndex.users()) {
+            indexed.put(user.getUserId(), user);
+        }
+        List<User> changed = userRepository.findByUpdatedAtAfter(watermark);
+        for (User user : changed) {
+            User previous = indexed.get(user.getUserId());
+            if (previous != null) {
+                userIndex.update(previous.getName(), previous.getEmail(), user);
+            } else {
+                userIndex.insert(user);
+            }
+        }
+        Set<Long> existing = new HashSet<>(userRepository.findAllUserIds());
+        int removed = 0;
+        for (User user : indexed.values()) {
+            if (!existing.contains(user.getUserId())) {
+                userIndex.remove(user);
+                removed++;
+            }
+        }
+        logger.info("User index loaded from snapshot with {} users, {} changed and {} deleted since {}",
+                existing.size(), changed.size(), removed, watermark);
+        return true;
+    }
+
+    private Path snapshotFile() {
+        return Path.of(snapshotDir, "users.snapshot");
+    }
+
+    // Create a new user and save to repository; the change feed indexes it as the transaction commits.
+    @Transactional
     public User createUser(User user) {
         try {
             user.setHashedPassword(passwordEncoder.encode(user.getHashedPassword()));
             User savedUser = userRepository.save(user);
-            userIndex.insert(savedUser);
+            indexChangeFeed.record(IndexChange.USER, savedUser.getUserId(), false);
             logger.info("Created user with id {}", savedUser.getUserId());
             return savedUser;
         }catch (Exception e){
@@ -85,13 +170,12 @@ public class UserService {
     }
 
     // Update an existing user.
-    // Capture old name/email values before updating, then update the index.
+    // The change feed re-indexes the user under its new name/email as the transaction commits.
+    @Transactional
     public User updateUser(Long id, User userDetails) {
         try {
             User user = userRepository.findById(id)
                     .orElseThrow(() -> new RuntimeException("User not found"));
-            String oldName = user.getName();
-            String oldEmail = user.getEmail();
 
             // Update user details.
             user.setName(userDetails.getName());
@@ -100,9 +184,7 @@ public class UserService {
                 user.setHashedPassword(passwordEncoder.encode(userDetails.getHashedPassword()));
             }
             User updatedUser = userRepository.save(user);
-
-            // Update the in-memory index.
-            userIndex.update(oldName, oldEmail, updatedUser);
+            indexChangeFeed.record(IndexChange.USER, updatedUser.getUserId(), false);
             logger.info("Updated user with id {}", updatedUser.getUserId());
             return updatedUser;
         } catch (RuntimeException e) {
@@ -121,15 +203,14 @@ public class UserService {
         return userRepository.findAll();
     }
 
-    // Delete a user.
+    // Delete a user; the change feed removes it from the index as the transaction commits.
+    @Transactional
     public void deleteUser(Long id) {
         try {
             Optional<User> optionalUser = userRepository.findById(id);
             if (optionalUser.isPresent()) {
-                User user = optionalUser.get();
-                // Remove from index first.
-                userIndex.remove(user);
                 userRepository.deleteById(id);
+                indexChangeFeed.record(IndexChange.USER, id, true);
                 logger.info("Deleted user with id {}", id);
             } else {
                 logger.warn("Attempted to delete non-existing user with id {}", id);
@@ -144,7 +225,7 @@ public class UserService {
     public List<User> searchUsers(String searchTerm) {
         try {
             logger.info("Searching for users with search term: {}", searchTerm);
-            List<User> results = userIndex.search(searchTerm);
+            List<User> results = searchMetrics.record("user.search", () -> userIndex.search(searchTerm), List::size);
             logger.info("Found {} users matching search term '{}'", results.size(), searchTerm);
             return results;
         } catch (Exception e) {
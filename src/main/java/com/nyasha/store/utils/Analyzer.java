@@ -0,0 +1,300 @@
+package com.nyasha.store.utils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Text analysis shared by indexing and querying, so a query term matches the indexed text it was written
+ * for ({@code Shoes} and {@code shoe} both become {@code shoe}).
+ * <p>
+ * A character-level tokenizer splits the text into runs of letters and digits. Each token is copied into a
+ * per-thread buffer and passed through a chain of {@link TokenFilter}s that rewrite it in place, then looked up
+ * in a per-thread cache of terms, so once a thread has seen the vocabulary analysis allocates nothing per token.
+ * Positions count the tokens that survive the filters, so phrases match the same way in documents and queries.
+ */
+public final class Analyzer {
+
+    // Longer tokens are dropped, as they are almost never words
+    static final int MAX_TOKEN_LENGTH = 64;
+
+    // Distinct terms cached per thread before the cache is started afresh
+    private static final int MAX_CACHED_TERMS = 1 << 16;
+
+    /**
+     * Rewrites a token in place.
+     */
+    @FunctionalInterface
+    public interface TokenFilter {
+        /**
+         * Filters the token in {@code buffer[0, length)}, returning its new length, or 0 to drop it.
+         * A filter may grow the token up to the length of the buffer.
+         */
+        int filter(char[] buffer, int length);
+    }
+
+    /**
+     * Receives the terms of analyzed text in order.
+     */
+    @FunctionalInterface
+    public interface TermConsumer {
+        void accept(String term, int position);
+    }
+
+    /**
+     * Lower-cases and folds accented Latin letters to their ASCII base letter ({@code Caf\u00e9} to {@code cafe}).
+     */
+    public static final TokenFilter LOWERCASE_ASCII_FOLDING = new TokenFilter() {
+        // Base letter of every lower-case character below U+0250, or 0 where there is none
+        private final char[] folded = foldingTable();
+
+        @Override
+        public int filter(char[] buffer, int length) {
+            for (int i = 0; i < length; i++) {
+                char c = buffer[i];
+                if (c < 0x80) {
+                    if (c >= 'A' && c <= 'Z') {
+                        buffer[i] = (char) (c + ('a' - 'A'));
+                    }
+                    continue;
+                }
+                c = Character.toLowerCase(c);
+                buffer[i] = c < folded.length && folded[c] != 0 ? folded[c] : c;
+            }
+            return length;
+        }
+    };
+
+    /**
+     * Drops common English function words.
+     */
+    public static final TokenFilter ENGLISH_STOPWORDS = stopwords(List.of(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into", "is", "it",
+            "of", "on", "or", "such", "that", "the", "their", "then", "there", "these", "they", "this", "to",
+            "was", "will", "with"));
+
+    /**
+     * Light English stemming that only conflates plurals with their singular ({@code batteries} to
+     * {@code battery}, {@code boxes} to {@code box}, {@code shoes} to {@code shoe}). Expects lower-case input.
+     */
+    public static final TokenFilter LIGHT_ENGLISH_STEMMER = (buffer, length) -> {
+        if (length <= 3 || buffer[length - 1] != 's') {
+            return length;
+        }
+        char beforeS = buffer[length - 2];
+        if (beforeS == 's' || beforeS == 'u' || beforeS == 'i') {
+            // dress, status, analysis
+            return length;
+        }
+        if (beforeS == 'e') {
+            char beforeEs = buffer[length - 3];
+            if (beforeEs == 'i' && length > 4 && buffer[length - 4] != 'a' && buffer[length - 4] != 'e') {
+                buffer[length - 3] = 'y';
+                return length - 2;
+            }
+            if (beforeEs == 'x' || (length > 4 && buffer[length - 4] == 's' && beforeEs == 's')
+                    || (length > 4 && (buffer[length - 4] == 'c' || buffer[length - 4] == 's') && beforeEs == 'h')) {
+                // boxes, dresses, watches, dishes
+                return length - 2;
+            }
+        }
+        return length - 1;
+    };
+
+    private static final Analyzer STANDARD = new Analyzer(LOWERCASE_ASCII_FOLDING, ENGLISH_STOPWORDS, LIGHT_ENGLISH_STEMMER);
+
+    private final TokenFilter[] filters;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    public Analyzer(TokenFilter... filters) {
+        this.filters = filters.clone();
+    }
+
+    /**
+     * Tokenizer, lower-casing and ASCII folding, English stopwords and light stemming.
+     */
+    public static Analyzer standard() {
+        return STANDARD;
+    }
+
+    /**
+     * Drops the given words. Filters after lower-casing, so the words should be lower-case.
+     */
+    public static TokenFilter stopwords(List<String> words) {
+        TermTable table = new TermTable(words.size());
+        words.forEach(table::add);
+        return (buffer, length) -> table.find(buffer, length) != null ? 0 : length;
+    }
+
+    /**
+     * Analyzes text, passing each term and its position to {@code consumer}.
+     *
+     * @return the number of terms, which is the length of the text for scoring.
+     */
+    public int analyze(String text, TermConsumer consumer) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        Scratch state = scratch.get();
+        if (state.terms.size() >= MAX_CACHED_TERMS) {
+            state.terms = new TermTable(1024);
+        }
+        char[] buffer = state.buffer;
+        int position = 0;
+        int length = text.length();
+        int pos = 0;
+        while (pos < length) {
+            while (pos < length && !Character.isLetterOrDigit(text.charAt(pos))) {
+                pos++;
+            }
+            int start = pos;
+            while (pos < length && Character.isLetterOrDigit(text.charAt(pos))) {
+                pos++;
+            }
+            int tokenLength = pos - start;
+            if (tokenLength == 0 || tokenLength > MAX_TOKEN_LENGTH) {
+                continue;
+            }
+            text.getChars(start, pos, buffer, 0);
+            for (TokenFilter filter : filters) {
+                tokenLength = filter.filter(buffer, tokenLength);
+                if (tokenLength == 0) {
+                    break;
+                }
+            }
+            if (tokenLength > 0) {
+                consumer.accept(state.terms.intern(buffer, tokenLength), position++);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * The terms of a query or other short text.
+     */
+    public String[] terms(String text) {
+        List<String> terms = new ArrayList<>();
+        analyze(text, (term, position) -> terms.add(term));
+        return terms.toArray(new String[0]);
+    }
+
+    private static char[] foldingTable() {
+        char[] table = new char[0x250];
+        for (char c = 0x80; c < table.length; c++) {
+            String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+            char base = decomposed.charAt(0);
+            if (decomposed.length() > 1 && base < 0x80 && Character.isLetter(base)) {
+                table[c] = Character.toLowerCase(base);
+            }
+        }
+        // Letters with a stroke have no decomposition
+        table['\u00f8'] = 'o';
+        table['\u0111'] = 'd';
+        table['\u0127'] = 'h';
+        table['\u0142'] = 'l';
+        return table;
+    }
+
+    /**
+     * Token buffer and term cache of one thread.
+     */
+    private static final class Scratch {
+        // Room for filters that grow a token
+        private final char[] buffer = new char[MAX_TOKEN_LENGTH * 2];
+        private TermTable terms = new TermTable(1024);
+    }
+
+    /**
+     * Open-addressing set of strings that can be probed with a slice of a char array, without creating a string.
+     */
+    static class TermTable {
+        private String[] slots;
+        private int size;
+
+        TermTable(int expectedSize) {
+            slots = new String[Math.max(16, Integer.highestOneBit(Math.max(1, expectedSize) * 2) << 1)];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(String term) {
+            intern(term.toCharArray(), term.length());
+        }
+
+        /**
+         * The string equal to {@code chars[0, length)}, or null if there is none.
+         */
+        String find(char[] chars, int length) {
+            int hash = hash(chars, length);
+            int mask = slots.length - 1;
+            for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+                String term = slots[slot];
+                if (term == null || (term.hashCode() == hash && matches(term, chars, length))) {
+                    return term;
+                }
+            }
+        }
+
+        /**
+         * The string equal to {@code chars[0, length)}, added if it is not in the table yet.
+         */
+        String intern(char[] chars, int length) {
+            int hash = hash(chars, length);
+            int mask = slots.length - 1;
+            int slot = spread(hash) & mask;
+            for (String term; (term = slots[slot]) != null; slot = (slot + 1) & mask) {
+                if (term.hashCode() == hash && matches(term, chars, length)) {
+                    return term;
+                }
+            }
+            String term = new String(chars, 0, length);
+            slots[slot] = term;
+            if (++size * 2 > slots.length) {
+                grow();
+            }
+            return term;
+        }
+
+        private void grow() {
+            String[] old = slots;
+            slots = new String[old.length << 1];
+            int mask = slots.length - 1;
+            for (String term : old) {
+                if (term != null) {
+                    int slot = spread(term.hashCode()) & mask;
+                    while (slots[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = term;
+                }
+            }
+        }
+
+        // Same as String.hashCode, so the cached hash of each stored term can be compared first
+        private static int hash(char[] chars, int length) {
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            return hash;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean matches(String term, char[] chars, int length) {
+            if (term.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (term.charAt(i) != chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
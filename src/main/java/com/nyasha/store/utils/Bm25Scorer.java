@@ -0,0 +1,50 @@
+package com.nyasha.store.utils;
+
+/**
+ * Field-weighted BM25 (BM25F) scoring for the product inverted index.
+ * Term frequencies from each field are length-normalised and boosted before the
+ * usual BM25 saturation, so a match in the name counts more than one in the description.
+ */
+public final class Bm25Scorer {
+
+    // Field ordinals used for per-field term frequencies and lengths
+    public static final int FIELD_NAME = 0;
+    public static final int FIELD_DESCRIPTION = 1;
+    public static final int FIELD_COUNT = 2;
+
+    // Standard BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double[] FIELD_WEIGHTS = { 2.5, 1.0 };
+    private static final double[] FIELD_LENGTH_NORMS = { 0.5, 0.75 };
+
+    private Bm25Scorer() {
+    }
+
+    /**
+     * Inverse document frequency of a term, never negative.
+     */
+    public static double idf(long docFreq, long docCount) {
+        return Math.log(1.0 + (docCount - docFreq + 0.5) / (docFreq + 0.5));
+    }
+
+    /**
+     * Scores a single term for one document.
+     *
+     * @param idf             The term's inverse document frequency.
+     * @param termFreqs       Term frequency per field.
+     * @param fieldLengths    Token count per field of the document.
+     * @param avgFieldLengths Average token count per field across the collection.
+     */
+    public static double score(double idf, int[] termFreqs, int[] fieldLengths, double[] avgFieldLengths) {
+        double weightedFreq = 0.0;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            int tf = termFreqs[field];
+            if (tf == 0) continue;
+            double avgLength = avgFieldLengths[field] > 0 ? avgFieldLengths[field] : 1.0;
+            double b = FIELD_LENGTH_NORMS[field];
+            double norm = 1.0 - b + b * fieldLengths[field] / avgLength;
+            weightedFreq += FIELD_WEIGHTS[field] * tf / norm;
+        }
+        return idf * weightedFreq / (K1 + weightedFreq);
+    }
+}
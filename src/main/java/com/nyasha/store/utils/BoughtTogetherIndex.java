@@ -0,0 +1,160 @@
+package com.nyasha.store.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Item-to-item co-purchase counts: for every product, the products bought in the same orders most often,
+ * so "frequently bought together" is a hash lookup and an array slice.
+ * <p>
+ * Each product keeps counts for a bounded number of candidate partners in primitive arrays, maintained with
+ * the Space-Saving algorithm: a partner that arrives when the candidates are full replaces the one with the
+ * lowest count and inherits that count plus one, so the partners bought with a product most often are kept
+ * however many distinct products it is bought with, with an overestimate of at most the lowest count. The top
+ * {@code topN} partners of each product are published as an immutable array that lookups read without locking.
+ * <p>
+ * Orders are counted once per distinct pair of products, and orders of more than {@value #MAX_ORDER_SIZE}
+ * distinct products, typically bulk or business orders, are skipped as they would pair everything with
+ * everything. Orders may be added from several threads at once.
+ */
+public final class BoughtTogetherIndex {
+
+    static final int MAX_ORDER_SIZE = 50;
+
+    // Candidate partners tracked per product, as a multiple of the partners returned
+    private static final int CANDIDATES_PER_RESULT = 4;
+
+    private static final long[] NO_PARTNERS = new long[0];
+
+    private final int topN;
+    private final ConcurrentMap<Long, Partners> partners = new ConcurrentHashMap<>();
+
+    public BoughtTogetherIndex(int topN) {
+        this.topN = topN;
+    }
+
+    /**
+     * Counts the products of one order, publishing the new partners of each straight away.
+     */
+    public void addOrder(long[] productIds) {
+        addOrder(productIds, true);
+    }
+
+    /**
+     * Counts the products of one order without publishing them, for bulk builds that call {@link #publish()}
+     * once at the end.
+     */
+    public void addOrderUnpublished(long[] productIds) {
+        addOrder(productIds, false);
+    }
+
+    /**
+     * Publishes the top partners of every product.
+     */
+    public void publish() {
+        partners.values().parallelStream().forEach(Partners::publish);
+    }
+
+    /**
+     * Up to {@code limit} products bought together with {@code productId} most often, most often first.
+     */
+    public long[] boughtTogether(long productId, int limit) {
+        Partners entry = partners.get(productId);
+        if (entry == null) {
+            return NO_PARTNERS;
+        }
+        long[] top = entry.top;
+        return top.length <= limit ? top : Arrays.copyOf(top, Math.max(0, limit));
+    }
+
+    /**
+     * Number of products with at least one partner.
+     */
+    public int size() {
+        return partners.size();
+    }
+
+    private void addOrder(long[] productIds, boolean publish) {
+        long[] distinct = distinct(productIds);
+        if (distinct.length < 2 || distinct.length > MAX_ORDER_SIZE) {
+            return;
+        }
+        for (long product : distinct) {
+            Partners entry = partners.computeIfAbsent(product, id -> new Partners(topN * CANDIDATES_PER_RESULT));
+            synchronized (entry) {
+                for (long partner : distinct) {
+                    if (partner != product) {
+                        entry.increment(partner);
+                    }
+                }
+                if (publish) {
+                    entry.publish();
+                }
+            }
+        }
+    }
+
+    private static long[] distinct(long[] productIds) {
+        long[] sorted = productIds.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * Candidate partners of one product with their counts, in parallel arrays in no particular order; short
+     * enough to scan. Guarded by the instance's monitor, except {@link #top}.
+     */
+    private final class Partners {
+        private final long[] ids;
+        private final int[] counts;
+        private int size;
+        private volatile long[] top = NO_PARTNERS;
+
+        Partners(int capacity) {
+            this.ids = new long[capacity];
+            this.counts = new int[capacity];
+        }
+
+        void increment(long partner) {
+            int min = 0;
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == partner) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            if (size < ids.length) {
+                ids[size] = partner;
+                counts[size++] = 1;
+            } else {
+                ids[min] = partner;
+                counts[min]++;
+            }
+        }
+
+        synchronized void publish() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            // Most often first, then the lower product ID, so results are deterministic
+            Arrays.sort(order, (a, b) -> counts[a] != counts[b] ? Integer.compare(counts[b], counts[a])
+                    : Long.compare(ids[a], ids[b]));
+            long[] published = new long[Math.min(topN, size)];
+            for (int i = 0; i < published.length; i++) {
+                published[i] = ids[order[i]];
+            }
+            top = published;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.nyasha.store.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Bulk build pipeline for an in-memory index: the calling thread reads the source one batch at a time,
+ * typically keyset-paginated database pages, and a fork-join pool indexes the batches in parallel.
+ * <p>
+ * The reader blocks once {@code maxInFlight} batches have been read but not yet indexed, so at most
+ * {@code maxInFlight * batchSize} rows are held in memory whatever the size of the table. Progress and
+ * throughput can be read from any thread while a build runs; one build runs at a time.
+ */
+public final class BulkIndexer {
+    private static final Logger logger = LoggerFactory.getLogger(BulkIndexer.class);
+
+    /**
+     * Source of the rows to index.
+     */
+    @FunctionalInterface
+    public interface BatchSource<T> {
+        /**
+         * The next batch of at most {@code batchSize} rows; an empty batch ends the build.
+         */
+        List<T> nextBatch(int batchSize);
+    }
+
+    private final String name;
+    private final ForkJoinPool pool;
+    private final int batchSize;
+    private final int maxInFlight;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong documentsRead = new AtomicLong();
+    private final AtomicLong documentsIndexed = new AtomicLong();
+    private final AtomicLong batchesIndexed = new AtomicLong();
+    private volatile IndexBuildProgress.State state = IndexBuildProgress.State.IDLE;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile String error;
+
+    public BulkIndexer(String name, ForkJoinPool pool, int batchSize, int maxInFlight) {
+        this.name = name;
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Runs a build to completion on the calling thread, handing every batch of the source to {@code indexer}
+     * on the pool. {@code indexer} must be safe to call concurrently.
+     *
+     * @throws IllegalStateException if a build is already running, or if this one failed.
+     */
+    public <T> IndexBuildProgress run(BatchSource<T> source, Consumer<List<T>> indexer) {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A build of the " + name + " index is already running");
+        }
+        documentsRead.set(0);
+        documentsIndexed.set(0);
+        batchesIndexed.set(0);
+        error = null;
+        startNanos = System.nanoTime();
+        state = IndexBuildProgress.State.RUNNING;
+        logger.info("Bulk build of the {} index started", name);
+
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            List<T> batch;
+            while (failure.get() == null && !(batch = source.nextBatch(batchSize)).isEmpty()) {
+                documentsRead.addAndGet(batch.size());
+                inFlight.acquire();
+                List<T> submitted = batch;
+                pool.execute(() -> {
+                    try {
+                        indexer.accept(submitted);
+                        documentsIndexed.addAndGet(submitted.size());
+                        batchesIndexed.incrementAndGet();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            // Every permit is back once the batches in flight have been indexed
+            inFlight.acquireUninterruptibly(maxInFlight);
+            endNanos = System.nanoTime();
+            Throwable cause = failure.get();
+            if (cause != null) {
+                error = cause.getMessage() == null ? cause.toString() : cause.getMessage();
+            }
+            state = cause == null ? IndexBuildProgress.State.COMPLETED : IndexBuildProgress.State.FAILED;
+            running.set(false);
+        }
+
+        IndexBuildProgress progress = progress();
+        if (progress.state() == IndexBuildProgress.State.FAILED) {
+            logger.error("Bulk build of the {} index failed after {} documents: {}",
+                    name, progress.documentsIndexed(), progress.error(), failure.get());
+            throw new IllegalStateException("Bulk build of the " + name + " index failed: " + progress.error(), failure.get());
+        }
+        logger.info("Bulk build of the {} index indexed {} documents in {} ms ({} docs/s)",
+                name, progress.documentsIndexed(), progress.elapsedMillis(), Math.round(progress.documentsPerSecond()));
+        return progress;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Progress of the running build, or the outcome of the last one.
+     */
+    public IndexBuildProgress progress() {
+        IndexBuildProgress.State current = state;
+        long elapsedNanos = switch (current) {
+            case IDLE -> 0;
+            case RUNNING -> System.nanoTime() - startNanos;
+            default -> endNanos - startNanos;
+        };
+        long indexed = documentsIndexed.get();
+        double perSecond = elapsedNanos == 0 ? 0 : indexed * 1e9 / elapsedNanos;
+        return new IndexBuildProgress(name, current, documentsRead.get(), indexed, batchesIndexed.get(),
+                elapsedNanos / 1_000_000, perSecond, error);
+    }
+}
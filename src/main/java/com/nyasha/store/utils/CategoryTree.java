@@ -0,0 +1,187 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Category;
+
+import java.util.*;
+
+/**
+ * In-memory category hierarchy with pre-order (Euler-tour) numbering, so that every subtree
+ * is one contiguous range of ordinals: a category at ordinal {@code o} owns the ordinals
+ * {@code o} up to, but excluding, {@code subtreeEnd[o]}.
+ * <p>
+ * The tree is learnt from the categories products are filed under, following their parent
+ * chain. Re-adding a category that is already known under the same parent is a no-op, so only
+ * actual structural changes (new categories, moves, removals) renumber the tree.
+ * <p>
+ * Writers must be serialised by the owning index. Readers use an immutable {@link Numbering}.
+ */
+public final class CategoryTree {
+
+    /**
+     * Published pre-order numbering of the tree.
+     */
+    private record Numbering(Map<Long, Integer> ordinals, long[] categoryAt, int[] subtreeEnd) {
+        static final Numbering EMPTY = new Numbering(Map.of(), new long[0], new int[0]);
+    }
+
+    // Only touched by the writer; children are ordered by ID so the numbering is deterministic
+    private final Map<Long, Long> parents = new HashMap<>();
+    private final Map<Long, SortedSet<Long>> children = new HashMap<>();
+    private final SortedSet<Long> roots = new TreeSet<>();
+
+    private volatile Numbering numbering = Numbering.EMPTY;
+
+    /**
+     * Adds a category and its ancestors, or moves them if their parent changed.
+     *
+     * @return true if the tree changed and was renumbered.
+     */
+    public boolean add(Category category) {
+        boolean changed = link(category);
+        if (changed) {
+            renumber();
+        }
+        return changed;
+    }
+
+    /**
+     * Adds several categories, renumbering at most once.
+     */
+    public boolean addAll(Collection<Category> categories) {
+        boolean changed = false;
+        for (Category category : categories) {
+            changed |= link(category);
+        }
+        if (changed) {
+            renumber();
+        }
+        return changed;
+    }
+
+    /**
+     * Removes a category together with its subcategories, matching the cascade on {@link Category#getSubCategories()}.
+     *
+     * @return true if the category was known.
+     */
+    public boolean remove(Long categoryId) {
+        if (!parents.containsKey(categoryId)) {
+            return false;
+        }
+        detach(categoryId);
+        Deque<Long> pending = new ArrayDeque<>();
+        pending.push(categoryId);
+        while (!pending.isEmpty()) {
+            Long id = pending.pop();
+            parents.remove(id);
+            SortedSet<Long> removed = children.remove(id);
+            if (removed != null) {
+                removed.forEach(pending::push);
+            }
+        }
+        renumber();
+        return true;
+    }
+
+    /**
+     * IDs of a category and all of its descendants in pre-order, or just the given ID if it is unknown.
+     */
+    public List<Long> subtree(Long categoryId) {
+        Numbering current = numbering;
+        Integer ordinal = current.ordinals().get(categoryId);
+        if (ordinal == null) {
+            return List.of(categoryId);
+        }
+        List<Long> ids = new ArrayList<>(current.subtreeEnd()[ordinal] - ordinal);
+        for (int i = ordinal; i < current.subtreeEnd()[ordinal]; i++) {
+            ids.add(current.categoryAt()[i]);
+        }
+        return ids;
+    }
+
+    public int size() {
+        return numbering.categoryAt().length;
+    }
+
+    /**
+     * Records the category and its parent chain, root first, returning whether any parent link changed.
+     */
+    private boolean link(Category category) {
+        List<Category> chain = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        for (Category current = category; current != null && current.getCategoryId() != null
+                && seen.add(current.getCategoryId()); current = current.getParentCategory()) {
+            chain.add(current);
+        }
+        boolean changed = false;
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Long id = chain.get(i).getCategoryId();
+            Long parentId = i + 1 < chain.size() ? chain.get(i + 1).getCategoryId() : null;
+            if (parentId != null && isAncestorOf(id, parentId)) {
+                parentId = null; // never let a stale link close a cycle
+            }
+            if (parents.containsKey(id)) {
+                if (Objects.equals(parents.get(id), parentId)) continue;
+                detach(id);
+            }
+            parents.put(id, parentId);
+            if (parentId == null) {
+                roots.add(id);
+            } else {
+                children.computeIfAbsent(parentId, k -> new TreeSet<>()).add(id);
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    private boolean isAncestorOf(Long ancestorId, Long categoryId) {
+        Set<Long> seen = new HashSet<>();
+        for (Long id = categoryId; id != null && seen.add(id); id = parents.get(id)) {
+            if (id.equals(ancestorId)) return true;
+        }
+        return false;
+    }
+
+    private void detach(Long categoryId) {
+        Long parentId = parents.get(categoryId);
+        if (parentId == null) {
+            roots.remove(categoryId);
+        } else {
+            SortedSet<Long> siblings = children.get(parentId);
+            if (siblings != null) {
+                siblings.remove(categoryId);
+                if (siblings.isEmpty()) {
+                    children.remove(parentId);
+                }
+            }
+        }
+    }
+
+    private void renumber() {
+        int size = parents.size();
+        Map<Long, Integer> ordinals = new HashMap<>(size * 2);
+        long[] categoryAt = new long[size];
+        int[] subtreeEnd = new int[size];
+        int next = 0;
+        // Iterative DFS: a frame is a node plus an iterator over its children
+        Deque<Map.Entry<Integer, Iterator<Long>>> stack = new ArrayDeque<>();
+        for (Long root : roots) {
+            ordinals.put(root, next);
+            categoryAt[next] = root;
+            stack.push(Map.entry(next++, children.getOrDefault(root, Collections.emptySortedSet()).iterator()));
+            while (!stack.isEmpty()) {
+                Map.Entry<Integer, Iterator<Long>> frame = stack.peek();
+                if (frame.getValue().hasNext()) {
+                    Long child = frame.getValue().next();
+                    ordinals.put(child, next);
+                    categoryAt[next] = child;
+                    stack.push(Map.entry(next++, children.getOrDefault(child, Collections.emptySortedSet()).iterator()));
+                } else {
+                    subtreeEnd[frame.getKey()] = next;
+                    stack.pop();
+                }
+            }
+        }
+        numbering = new Numbering(ordinals, categoryAt, subtreeEnd);
+    }
+}
@@ -0,0 +1,216 @@
+package com.nyasha.store.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Prefix suggester: a character trie where every node caches the top-k suggestions
+ * of its subtree by weight, so a lookup costs O(prefix length + k) no matter how many
+ * keys share the prefix.
+ * <p>
+ * Writers must be serialised externally. Readers never lock: edges and cached suggestions
+ * are immutable arrays swapped in through volatile fields.
+ */
+public final class CompletionTrie {
+
+    /**
+     * A completion for a prefix. Each product appears at most once per node.
+     */
+    public record Suggestion(String text, Long productId, double weight) {
+    }
+
+    static final int MAX_KEY_LENGTH = 32;
+
+    static final Comparator<Suggestion> BEST_FIRST = Comparator
+            .comparingDouble(Suggestion::weight).reversed()
+            .thenComparingInt(suggestion -> suggestion.text().length())
+            .thenComparing(Suggestion::text);
+
+    private static final Suggestion[] NO_SUGGESTIONS = new Suggestion[0];
+
+    /**
+     * Outgoing edges of a node, sorted by label and replaced as a whole.
+     */
+    private record Edges(char[] labels, Node[] children) {
+        static final Edges NONE = new Edges(new char[0], new Node[0]);
+
+        Node get(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            return index >= 0 ? children[index] : null;
+        }
+    }
+
+    private static final class Node {
+        private volatile Edges edges = Edges.NONE;
+        private volatile Suggestion[] top = NO_SUGGESTIONS;
+        // Suggestions whose key ends at this node; only touched by the writer
+        private List<Suggestion> entries;
+    }
+
+    private final int k;
+    private final Node root = new Node();
+
+    public CompletionTrie(int k) {
+        this.k = k;
+    }
+
+    /**
+     * Normalises text into a trie key: lower case, single spaces, at most {@value #MAX_KEY_LENGTH} characters.
+     */
+    public static String normalize(String text) {
+        if (text == null) return "";
+        String key = text.toLowerCase().trim().replaceAll("\\s+", " ");
+        return key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key;
+    }
+
+    /**
+     * Adds a suggestion under a key and refreshes the cached top-k along the path.
+     */
+    public void add(String key, Suggestion suggestion) {
+        String normalized = normalize(key);
+        if (normalized.isEmpty()) return;
+        Node[] path = new Node[normalized.length() + 1];
+        Node node = root;
+        path[0] = node;
+        for (int i = 0; i < normalized.length(); i++) {
+            node = childOrCreate(node, normalized.charAt(i));
+            path[i + 1] = node;
+        }
+        if (node.entries == null) {
+            node.entries = new ArrayList<>(1);
+        }
+        node.entries.add(suggestion);
+        for (Node onPath : path) {
+            onPath.top = offer(onPath.top, suggestion);
+        }
+    }
+
+    /**
+     * Removes a product's suggestion under a key, recomputing cached top-k bottom-up
+     * and pruning nodes left without suggestions.
+     */
+    public void remove(String key, Long productId) {
+        String normalized = normalize(key);
+        if (normalized.isEmpty()) return;
+        Node[] path = new Node[normalized.length() + 1];
+        Node node = root;
+        path[0] = node;
+        for (int i = 0; i < normalized.length(); i++) {
+            node = node.edges.get(normalized.charAt(i));
+            if (node == null) return;
+            path[i + 1] = node;
+        }
+        if (node.entries == null || !node.entries.removeIf(entry -> entry.productId().equals(productId))) {
+            return;
+        }
+        if (node.entries.isEmpty()) {
+            node.entries = null;
+        }
+        for (int depth = normalized.length(); depth >= 0; depth--) {
+            Node current = path[depth];
+            if (depth > 0 && current.entries == null && current.edges.labels().length == 0) {
+                removeChild(path[depth - 1], normalized.charAt(depth - 1));
+                continue;
+            }
+            if (contains(current.top, productId)) {
+                current.top = recompute(current);
+            }
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} suggestions for a prefix, best first.
+     */
+    public List<Suggestion> lookup(String prefix, int limit) {
+        String normalized = normalize(prefix);
+        Node node = root;
+        for (int i = 0; i < normalized.length() && node != null; i++) {
+            node = node.edges.get(normalized.charAt(i));
+        }
+        if (node == null) {
+            return List.of();
+        }
+        Suggestion[] top = node.top;
+        return List.of(Arrays.copyOf(top, Math.min(limit, top.length)));
+    }
+
+    private Suggestion[] offer(Suggestion[] top, Suggestion suggestion) {
+        List<Suggestion> merged = new ArrayList<>(top.length + 1);
+        boolean present = false;
+        for (Suggestion existing : top) {
+            if (existing.productId().equals(suggestion.productId())) {
+                present = true;
+                merged.add(BEST_FIRST.compare(suggestion, existing) < 0 ? suggestion : existing);
+            } else {
+                merged.add(existing);
+            }
+        }
+        if (!present) {
+            if (top.length == k && BEST_FIRST.compare(suggestion, top[k - 1]) >= 0) {
+                return top;
+            }
+            merged.add(suggestion);
+        }
+        merged.sort(BEST_FIRST);
+        return merged.subList(0, Math.min(k, merged.size())).toArray(NO_SUGGESTIONS);
+    }
+
+    private Suggestion[] recompute(Node node) {
+        Suggestion[] top = NO_SUGGESTIONS;
+        if (node.entries != null) {
+            for (Suggestion entry : node.entries) {
+                top = offer(top, entry);
+            }
+        }
+        for (Node child : node.edges.children()) {
+            for (Suggestion suggestion : child.top) {
+                top = offer(top, suggestion);
+            }
+        }
+        return top;
+    }
+
+    private static boolean contains(Suggestion[] top, Long productId) {
+        for (Suggestion suggestion : top) {
+            if (suggestion.productId().equals(productId)) return true;
+        }
+        return false;
+    }
+
+    private static Node childOrCreate(Node parent, char label) {
+        Edges edges = parent.edges;
+        int index = Arrays.binarySearch(edges.labels(), label);
+        if (index >= 0) {
+            return edges.children()[index];
+        }
+        int insertAt = -index - 1;
+        int size = edges.labels().length;
+        char[] labels = new char[size + 1];
+        Node[] children = new Node[size + 1];
+        System.arraycopy(edges.labels(), 0, labels, 0, insertAt);
+        System.arraycopy(edges.children(), 0, children, 0, insertAt);
+        System.arraycopy(edges.labels(), insertAt, labels, insertAt + 1, size - insertAt);
+        System.arraycopy(edges.children(), insertAt, children, insertAt + 1, size - insertAt);
+        Node child = new Node();
+        labels[insertAt] = label;
+        children[insertAt] = child;
+        parent.edges = new Edges(labels, children);
+        return child;
+    }
+
+    private static void removeChild(Node parent, char label) {
+        Edges edges = parent.edges;
+        int index = Arrays.binarySearch(edges.labels(), label);
+        if (index < 0) return;
+        int size = edges.labels().length;
+        char[] labels = new char[size - 1];
+        Node[] children = new Node[size - 1];
+        System.arraycopy(edges.labels(), 0, labels, 0, index);
+        System.arraycopy(edges.children(), 0, children, 0, index);
+        System.arraycopy(edges.labels(), index + 1, labels, index, size - index - 1);
+        System.arraycopy(edges.children(), index + 1, children, index, size - index - 1);
+        parent.edges = size == 1 ? Edges.NONE : new Edges(labels, children);
+    }
+}
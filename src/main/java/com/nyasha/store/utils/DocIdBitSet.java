@@ -0,0 +1,105 @@
+package com.nyasha.store.utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable bit set of doc IDs.
+ * <p>
+ * A single writer may set and clear bits while readers count or iterate without locking;
+ * readers may miss a concurrent change to a word but never see a torn array, because the
+ * word array is only ever replaced whole.
+ */
+public final class DocIdBitSet {
+
+    private volatile long[] words;
+
+    public DocIdBitSet() {
+        this(64);
+    }
+
+    public DocIdBitSet(int expectedMaxDoc) {
+        this.words = new long[Math.max(1, (expectedMaxDoc + 63) >>> 6)];
+    }
+
+    public void set(int docId) {
+        int word = docId >>> 6;
+        long[] current = words;
+        if (word >= current.length) {
+            current = words = Arrays.copyOf(current, Math.max(word + 1, current.length << 1));
+        }
+        current[word] |= 1L << docId;
+    }
+
+    public void clear(int docId) {
+        int word = docId >>> 6;
+        long[] current = words;
+        if (word < current.length) {
+            current[word] &= ~(1L << docId);
+        }
+    }
+
+    public boolean get(int docId) {
+        int word = docId >>> 6;
+        long[] current = words;
+        return word < current.length && (current[word] & (1L << docId)) != 0;
+    }
+
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) return false;
+        }
+        return true;
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Adds every doc ID of {@code other} to this set.
+     */
+    public void or(DocIdBitSet other) {
+        long[] source = other.words;
+        long[] current = words;
+        if (source.length > current.length) {
+            current = words = Arrays.copyOf(current, source.length);
+        }
+        for (int i = 0; i < source.length; i++) {
+            current[i] |= source[i];
+        }
+    }
+
+    /**
+     * Number of doc IDs present in both sets.
+     */
+    public int intersectionCount(DocIdBitSet other) {
+        long[] a = words;
+        long[] b = other.words;
+        int count = 0;
+        for (int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            count += Long.bitCount(a[i] & b[i]);
+        }
+        return count;
+    }
+
+    /**
+     * First doc ID at or after {@code from} that is set, or {@link PostingList#NO_MORE_DOCS}.
+     */
+    public int nextSetBit(int from) {
+        long[] current = words;
+        int word = from >>> 6;
+        if (word >= current.length) return PostingList.NO_MORE_DOCS;
+        long bits = current[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word >= current.length) return PostingList.NO_MORE_DOCS;
+            bits = current[word];
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.nyasha.store.utils;
+
+/**
+ * Iterates matching doc IDs of a query clause in increasing order and scores the current match.
+ * Iterators start unpositioned (doc ID -1) and end at {@link PostingList#NO_MORE_DOCS}.
+ */
+public interface DocIterator {
+
+    int docId();
+
+    /**
+     * Moves to the next match and returns its doc ID.
+     */
+    int nextDoc();
+
+    /**
+     * Moves to the first match whose doc ID is at least {@code target} and returns it.
+     */
+    int advance(int target);
+
+    /**
+     * Relevance score of the current match.
+     */
+    double score();
+
+    /**
+     * Upper bound on the number of matches, used to lead conjunctions with the rarest clause.
+     */
+    long cost();
+}
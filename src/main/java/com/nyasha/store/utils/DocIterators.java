@@ -0,0 +1,642 @@
+package com.nyasha.store.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.nyasha.store.utils.PostingList.NO_MORE_DOCS;
+
+/**
+ * {@link DocIterator} implementations used to execute boolean queries over posting lists.
+ */
+public final class DocIterators {
+
+    private DocIterators() {
+    }
+
+    /**
+     * Iterator that matches nothing.
+     */
+    public static DocIterator empty() {
+        return new DocIterator() {
+            private int docId = -1;
+
+            @Override
+            public int docId() {
+                return docId;
+            }
+
+            @Override
+            public int nextDoc() {
+                return docId = NO_MORE_DOCS;
+            }
+
+            @Override
+            public int advance(int target) {
+                return docId = NO_MORE_DOCS;
+            }
+
+            @Override
+            public double score() {
+                return 0.0;
+            }
+
+            @Override
+            public long cost() {
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Matches the postings of a single term, scored with BM25.
+     */
+    public static DocIterator term(PostingList postings, DocumentTable documents, double[] avgFieldLengths) {
+        return term(postings, documents, avgFieldLengths, 1.0);
+    }
+
+    /**
+     * Matches the postings of a single term, scored with BM25 multiplied by {@code boost}.
+     */
+    public static DocIterator term(PostingList postings, DocumentTable documents, double[] avgFieldLengths, double boost) {
+        return term(postings, postings.docFreq(), documents, avgFieldLengths, boost);
+    }
+
+    /**
+     * Matches the postings of a single term within one segment, scored with BM25 multiplied by {@code boost},
+     * where {@code docFreq} is the term's document frequency across all segments.
+     */
+    public static DocIterator term(PostingList postings, int docFreq, DocumentTable documents,
+                                   double[] avgFieldLengths, double boost) {
+        return new TermIterator(postings.cursor(), docFreq, documents, avgFieldLengths, boost);
+    }
+
+    /**
+     * Matches the documents of a bit set, such as a numeric range filter, without contributing to the score.
+     */
+    public static DocIterator bitSet(DocIdBitSet docs) {
+        long cost = docs.cardinality();
+        return new DocIterator() {
+            private int docId = -1;
+
+            @Override
+            public int docId() {
+                return docId;
+            }
+
+            @Override
+            public int nextDoc() {
+                return docId = docs.nextSetBit(docId + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                if (docId >= target) {
+                    return docId;
+                }
+                return docId = docs.nextSetBit(target);
+            }
+
+            @Override
+            public double score() {
+                return 0.0;
+            }
+
+            @Override
+            public long cost() {
+                return cost;
+            }
+        };
+    }
+
+    /**
+     * Matches documents where the terms occur as a phrase, or within the slop window, in the same field.
+     * Candidates come from a conjunction over the term postings and are then verified by merging
+     * their positional postings; documents are never loaded.
+     */
+    public static DocIterator phrase(List<PostingList> postings, int slop, DocumentTable documents, double[] avgFieldLengths) {
+        int[] docFreqs = postings.stream().mapToInt(PostingList::docFreq).toArray();
+        return phrase(postings, docFreqs, slop, documents, avgFieldLengths);
+    }
+
+    /**
+     * Phrase match within one segment, where {@code docFreqs} are the terms' document frequencies across all segments.
+     */
+    public static DocIterator phrase(List<PostingList> postings, int[] docFreqs, int slop,
+                                     DocumentTable documents, double[] avgFieldLengths) {
+        List<TermIterator> terms = new ArrayList<>(postings.size());
+        for (int i = 0; i < postings.size(); i++) {
+            terms.add(new TermIterator(postings.get(i).cursor(), docFreqs[i], documents, avgFieldLengths, 1.0));
+        }
+        return new PhraseIterator(terms, slop, documents, avgFieldLengths);
+    }
+
+    /**
+     * Matches documents present in every iterator. An empty list matches nothing.
+     */
+    public static DocIterator conjunction(List<DocIterator> iterators) {
+        if (iterators.isEmpty()) return empty();
+        if (iterators.size() == 1) return iterators.get(0);
+        return new ConjunctionIterator(iterators);
+    }
+
+    /**
+     * Matches documents present in any iterator. An empty list matches nothing.
+     */
+    public static DocIterator disjunction(List<DocIterator> iterators) {
+        if (iterators.isEmpty()) return empty();
+        if (iterators.size() == 1) return iterators.get(0);
+        return new DisjunctionIterator(iterators);
+    }
+
+    /**
+     * Matches documents of {@code required} that are not in {@code excluded}.
+     */
+    public static DocIterator exclusion(DocIterator required, DocIterator excluded) {
+        return new ExclusionIterator(required, excluded);
+    }
+
+    /**
+     * Matches documents of {@code required}, adding the score of {@code optional} where it also matches.
+     */
+    public static DocIterator requiredOptional(DocIterator required, DocIterator optional) {
+        return new RequiredOptionalIterator(required, optional);
+    }
+
+    /**
+     * Matches the documents of {@code iterator}, with its score multiplied by {@code boost}.
+     */
+    public static DocIterator boost(DocIterator iterator, double boost) {
+        if (boost == 1.0) return iterator;
+        return new DocIterator() {
+            @Override
+            public int docId() {
+                return iterator.docId();
+            }
+
+            @Override
+            public int nextDoc() {
+                return iterator.nextDoc();
+            }
+
+            @Override
+            public int advance(int target) {
+                return iterator.advance(target);
+            }
+
+            @Override
+            public double score() {
+                return iterator.score() * boost;
+            }
+
+            @Override
+            public long cost() {
+                return iterator.cost();
+            }
+        };
+    }
+
+    /**
+     * Matches the documents of each iterator in turn. The iterators must cover disjoint, ascending
+     * doc ID ranges, as the per-segment iterators of one query do.
+     */
+    public static DocIterator concat(List<DocIterator> iterators) {
+        if (iterators.isEmpty()) return empty();
+        if (iterators.size() == 1) return iterators.get(0);
+        return new ConcatIterator(iterators);
+    }
+
+    private static final class ConcatIterator implements DocIterator {
+        private final DocIterator[] iterators;
+        private final long cost;
+        private int current;
+        private int docId = -1;
+
+        private ConcatIterator(List<DocIterator> iterators) {
+            this.iterators = iterators.toArray(new DocIterator[0]);
+            this.cost = iterators.stream().mapToLong(DocIterator::cost).sum();
+        }
+
+        @Override
+        public int docId() {
+            return docId;
+        }
+
+        @Override
+        public int nextDoc() {
+            while (current < iterators.length) {
+                int doc = iterators[current].nextDoc();
+                if (doc != NO_MORE_DOCS) {
+                    return docId = doc;
+                }
+                current++;
+            }
+            return docId = NO_MORE_DOCS;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            while (current < iterators.length) {
+                int doc = iterators[current].advance(target);
+                if (doc != NO_MORE_DOCS) {
+                    return docId = doc;
+                }
+                current++;
+            }
+            return docId = NO_MORE_DOCS;
+        }
+
+        @Override
+        public double score() {
+            return iterators[current].score();
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
+    private static final class TermIterator implements DocIterator {
+        private final PostingList.Cursor cursor;
+        private final DocumentTable documents;
+        private final double[] avgFieldLengths;
+        private final double idf;
+        private final double boost;
+        private final int[] lengths = new int[Bm25Scorer.FIELD_COUNT];
+
+        private TermIterator(PostingList.Cursor cursor, int docFreq, DocumentTable documents,
+                             double[] avgFieldLengths, double boost) {
+            this.cursor = cursor;
+            this.documents = documents;
+            this.avgFieldLengths = avgFieldLengths;
+            // Postings of deleted docs linger until their segment is merged, so docFreq may exceed the live count
+            this.idf = Bm25Scorer.idf(docFreq, Math.max(documents.liveDocs(), docFreq));
+            this.boost = boost;
+        }
+
+        @Override
+        public int docId() {
+            return cursor.docId();
+        }
+
+        @Override
+        public int nextDoc() {
+            return cursor.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) {
+            return cursor.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return cursor.docFreq();
+        }
+
+        @Override
+        public double score() {
+            documents.fieldLengths(cursor.docId(), lengths);
+            return boost * Bm25Scorer.score(idf, cursor.freqs(), lengths, avgFieldLengths);
+        }
+    }
+
+    private static final class PhraseIterator implements DocIterator {
+        private final TermIterator[] terms;
+        private final DocIterator approximation;
+        private final int slop;
+        private final DocumentTable documents;
+        private final double[] avgFieldLengths;
+        private final double idf;
+        private final int[] phraseFreqs = new int[Bm25Scorer.FIELD_COUNT];
+        private final int[] lengths = new int[Bm25Scorer.FIELD_COUNT];
+        private final int[] pointers;
+        private final int[][] positions;
+        private final int[] freqs;
+
+        private PhraseIterator(List<TermIterator> terms, int slop, DocumentTable documents, double[] avgFieldLengths) {
+            this.terms = terms.toArray(new TermIterator[0]);
+            this.approximation = conjunction(new ArrayList<>(terms));
+            this.slop = slop;
+            this.documents = documents;
+            this.avgFieldLengths = avgFieldLengths;
+            this.idf = terms.stream().mapToDouble(term -> term.idf).sum();
+            this.pointers = new int[this.terms.length];
+            this.positions = new int[this.terms.length][];
+            this.freqs = new int[this.terms.length];
+        }
+
+        @Override
+        public int docId() {
+            return approximation.docId();
+        }
+
+        @Override
+        public int nextDoc() {
+            return verify(approximation.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) {
+            return verify(approximation.advance(target));
+        }
+
+        @Override
+        public long cost() {
+            return approximation.cost();
+        }
+
+        @Override
+        public double score() {
+            documents.fieldLengths(docId(), lengths);
+            return Bm25Scorer.score(idf, phraseFreqs, lengths, avgFieldLengths);
+        }
+
+        private int verify(int doc) {
+            while (doc != NO_MORE_DOCS) {
+                boolean matched = false;
+                for (int field = 0; field < Bm25Scorer.FIELD_COUNT; field++) {
+                    phraseFreqs[field] = phraseFreq(field);
+                    matched |= phraseFreqs[field] > 0;
+                }
+                if (matched) {
+                    return doc;
+                }
+                doc = approximation.nextDoc();
+            }
+            return doc;
+        }
+
+        private int phraseFreq(int field) {
+            for (int i = 0; i < terms.length; i++) {
+                freqs[i] = terms[i].cursor.freq(field);
+                if (freqs[i] == 0) {
+                    return 0;
+                }
+                positions[i] = terms[i].cursor.positions(field);
+                pointers[i] = 0;
+            }
+            return slop == 0 ? exactMatches() : sloppyMatches(terms.length - 1 + slop);
+        }
+
+        /**
+         * Counts start positions of the first term followed by every other term at its offset.
+         */
+        private int exactMatches() {
+            int count = 0;
+            outer:
+            for (int a = 0; a < freqs[0]; a++) {
+                int start = positions[0][a];
+                for (int i = 1; i < terms.length; i++) {
+                    int target = start + i;
+                    while (pointers[i] < freqs[i] && positions[i][pointers[i]] < target) {
+                        pointers[i]++;
+                    }
+                    if (pointers[i] == freqs[i]) {
+                        break outer;
+                    }
+                    if (positions[i][pointers[i]] != target) {
+                        continue outer;
+                    }
+                }
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * Counts windows holding one occurrence of every term whose span is at most {@code maxSpan},
+         * sliding the window by always advancing the term at its lowest position.
+         */
+        private int sloppyMatches(int maxSpan) {
+            int count = 0;
+            while (true) {
+                int minTerm = 0;
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                for (int i = 0; i < terms.length; i++) {
+                    int position = positions[i][pointers[i]];
+                    if (position < min) {
+                        min = position;
+                        minTerm = i;
+                    }
+                    max = Math.max(max, position);
+                }
+                if (max - min <= maxSpan) {
+                    count++;
+                }
+                if (++pointers[minTerm] == freqs[minTerm]) {
+                    return count;
+                }
+            }
+        }
+    }
+
+    /**
+     * Leapfrog intersection led by the cheapest iterator: the others are only ever advanced
+     * to the lead's candidate, which gallops over their skip points.
+     */
+    private static final class ConjunctionIterator implements DocIterator {
+        private final DocIterator[] iterators;
+        private final DocIterator lead;
+        private int docId = -1;
+
+        private ConjunctionIterator(List<DocIterator> iterators) {
+            List<DocIterator> sorted = new ArrayList<>(iterators);
+            sorted.sort(Comparator.comparingLong(DocIterator::cost));
+            this.iterators = sorted.toArray(new DocIterator[0]);
+            this.lead = this.iterators[0];
+        }
+
+        @Override
+        public int docId() {
+            return docId;
+        }
+
+        @Override
+        public int nextDoc() {
+            return docId = align(lead.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) {
+            return docId = align(lead.advance(target));
+        }
+
+        @Override
+        public long cost() {
+            return lead.cost();
+        }
+
+        private int align(int candidate) {
+            outer:
+            while (candidate != NO_MORE_DOCS) {
+                for (int i = 1; i < iterators.length; i++) {
+                    int doc = iterators[i].docId();
+                    if (doc < candidate) {
+                        doc = iterators[i].advance(candidate);
+                    }
+                    if (doc > candidate) {
+                        candidate = lead.advance(doc);
+                        continue outer;
+                    }
+                }
+                return candidate;
+            }
+            return NO_MORE_DOCS;
+        }
+
+        @Override
+        public double score() {
+            double score = 0.0;
+            for (DocIterator iterator : iterators) {
+                score += iterator.score();
+            }
+            return score;
+        }
+    }
+
+    private static final class DisjunctionIterator implements DocIterator {
+        private final DocIterator[] iterators;
+        private final long cost;
+        private int docId = -1;
+
+        private DisjunctionIterator(List<DocIterator> iterators) {
+            this.iterators = iterators.toArray(new DocIterator[0]);
+            this.cost = iterators.stream().mapToLong(DocIterator::cost).sum();
+        }
+
+        @Override
+        public int docId() {
+            return docId;
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+
+        @Override
+        public int nextDoc() {
+            return advance(docId + 1);
+        }
+
+        @Override
+        public int advance(int target) {
+            if (docId == NO_MORE_DOCS) return docId;
+            int min = NO_MORE_DOCS;
+            for (DocIterator iterator : iterators) {
+                int doc = iterator.docId();
+                if (doc < target) {
+                    doc = iterator.advance(target);
+                }
+                min = Math.min(min, doc);
+            }
+            return docId = min;
+        }
+
+        @Override
+        public double score() {
+            double score = 0.0;
+            for (DocIterator iterator : iterators) {
+                if (iterator.docId() == docId) {
+                    score += iterator.score();
+                }
+            }
+            return score;
+        }
+    }
+
+    private static final class ExclusionIterator implements DocIterator {
+        private final DocIterator required;
+        private final DocIterator excluded;
+
+        private ExclusionIterator(DocIterator required, DocIterator excluded) {
+            this.required = required;
+            this.excluded = excluded;
+        }
+
+        @Override
+        public int docId() {
+            return required.docId();
+        }
+
+        @Override
+        public int nextDoc() {
+            return skipExcluded(required.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) {
+            return skipExcluded(required.advance(target));
+        }
+
+        @Override
+        public double score() {
+            return required.score();
+        }
+
+        @Override
+        public long cost() {
+            return required.cost();
+        }
+
+        private int skipExcluded(int doc) {
+            while (doc != NO_MORE_DOCS) {
+                int excludedDoc = excluded.docId();
+                if (excludedDoc < doc) {
+                    excludedDoc = excluded.advance(doc);
+                }
+                if (excludedDoc != doc) {
+                    return doc;
+                }
+                doc = required.nextDoc();
+            }
+            return doc;
+        }
+    }
+
+    private static final class RequiredOptionalIterator implements DocIterator {
+        private final DocIterator required;
+        private final DocIterator optional;
+
+        private RequiredOptionalIterator(DocIterator required, DocIterator optional) {
+            this.required = required;
+            this.optional = optional;
+        }
+
+        @Override
+        public int docId() {
+            return required.docId();
+        }
+
+        @Override
+        public int nextDoc() {
+            return required.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) {
+            return required.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return required.cost();
+        }
+
+        @Override
+        public double score() {
+            int doc = required.docId();
+            int optionalDoc = optional.docId();
+            if (optionalDoc < doc) {
+                optionalDoc = optional.advance(doc);
+            }
+            return optionalDoc == doc ? required.score() + optional.score() : required.score();
+        }
+    }
+}
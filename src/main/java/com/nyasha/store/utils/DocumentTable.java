@@ -0,0 +1,231 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Product;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Assigns dense int doc IDs to indexed products and keeps per-document data in
+ * arrays indexed by doc ID.
+ * <p>
+ * Doc IDs are handed out in increasing order, so posting lists can always append. The
+ * slots of deleted documents are only reclaimed by {@link #compact}, which renumbers the
+ * remaining documents into a new table without changing their order. Every document also
+ * gets a sequence number, its position among all documents ever added, which compaction
+ * keeps: unlike doc IDs it can stand for a document in cursors handed out to clients.
+ * <p>
+ * Writers must be serialised by the owning index; readers only look at doc IDs below
+ * {@link #maxDoc()}, which is published after the slot is filled.
+ */
+public final class DocumentTable {
+
+    private final int fieldCount;
+
+    // productId -> docId for live documents
+    private final ConcurrentMap<Long, Integer> docIdsByProductId = new ConcurrentHashMap<>();
+
+    // Per-doc stored product and the fields shown for hits (null once deleted), sequence number, and token
+    // count per field
+    private volatile Product[] products;
+    private volatile StoredFields[] storedFields;
+    private volatile long[] sequences;
+    private volatile int[] fieldLengths;
+
+    // Collection statistics over live documents
+    private final AtomicLongArray totalFieldLengths;
+
+    private volatile int maxDoc;
+    private volatile int liveDocs;
+
+    // Documents added and deleted since the table was created
+    private volatile long additions;
+    private volatile long deletions;
+
+    public DocumentTable(int fieldCount) {
+        this(fieldCount, 1024);
+    }
+
+    private DocumentTable(int fieldCount, int capacity) {
+        this.fieldCount = fieldCount;
+        this.products = new Product[capacity];
+        this.storedFields = new StoredFields[capacity];
+        this.sequences = new long[capacity];
+        this.fieldLengths = new int[capacity * fieldCount];
+        this.totalFieldLengths = new AtomicLongArray(fieldCount);
+    }
+
+    /**
+     * Adds a document and returns its new doc ID.
+     */
+    public int add(Product product, int[] lengths) {
+        int docId = maxDoc;
+        ensureCapacity(docId);
+        products[docId] = product;
+        storedFields[docId] = StoredFields.of(product);
+        sequences[docId] = additions;
+        System.arraycopy(lengths, 0, fieldLengths, docId * fieldCount, fieldCount);
+        for (int field = 0; field < fieldCount; field++) {
+            totalFieldLengths.addAndGet(field, lengths[field]);
+        }
+        docIdsByProductId.put(product.getProductId(), docId);
+        liveDocs++;
+        additions++;
+        maxDoc = docId + 1;
+        return docId;
+    }
+
+    /**
+     * Marks the product's document as deleted.
+     *
+     * @return the doc ID it had, or -1 if it was not indexed.
+     */
+    public int delete(Long productId) {
+        Integer docId = docIdsByProductId.remove(productId);
+        if (docId == null) {
+            return -1;
+        }
+        for (int field = 0; field < fieldCount; field++) {
+            totalFieldLengths.addAndGet(field, -fieldLengths[docId * fieldCount + field]);
+        }
+        products[docId] = null;
+        storedFields[docId] = null;
+        liveDocs--;
+        deletions++;
+        return docId;
+    }
+
+    /**
+     * Doc ID of a live product, or -1.
+     */
+    public int docId(Long productId) {
+        return docIdsByProductId.getOrDefault(productId, -1);
+    }
+
+    /**
+     * Product IDs of the live documents.
+     */
+    public Set<Long> productIds() {
+        return Collections.unmodifiableSet(docIdsByProductId.keySet());
+    }
+
+    /**
+     * Stored product for a doc ID, or null if it has been deleted.
+     */
+    public Product product(int docId) {
+        return products[docId];
+    }
+
+    /**
+     * Stored fields for a doc ID, or null if it has been deleted.
+     */
+    public StoredFields storedFields(int docId) {
+        return storedFields[docId];
+    }
+
+    /**
+     * Sequence number of a doc ID, deleted or not.
+     */
+    public long sequence(int docId) {
+        return sequences[docId];
+    }
+
+    /**
+     * Number of doc IDs whose sequence number is below {@code sequence}; sequence numbers ascend with doc IDs.
+     */
+    public int docsBefore(long sequence) {
+        // maxDoc first: it is published after the array holding its slot
+        int high = maxDoc;
+        long[] current = sequences;
+        int low = 0;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (current[mid] < sequence) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public int fieldLength(int docId, int field) {
+        return fieldLengths[docId * fieldCount + field];
+    }
+
+    /**
+     * Copies the field lengths of a document into {@code target}.
+     */
+    public void fieldLengths(int docId, int[] target) {
+        System.arraycopy(fieldLengths, docId * fieldCount, target, 0, fieldCount);
+    }
+
+    public double averageFieldLength(int field) {
+        int live = liveDocs;
+        return live == 0 ? 0.0 : (double) totalFieldLengths.get(field) / live;
+    }
+
+    /**
+     * One past the highest doc ID handed out so far.
+     */
+    public int maxDoc() {
+        return maxDoc;
+    }
+
+    /**
+     * Number of documents that have not been deleted.
+     */
+    public int liveDocs() {
+        return liveDocs;
+    }
+
+    public long additions() {
+        return additions;
+    }
+
+    public long deletions() {
+        return deletions;
+    }
+
+    /**
+     * Copy of the table with its doc IDs renumbered: doc {@code d} moves to {@code newDocIds[d]}, or is left
+     * out if that is -1, and the copy ends at {@code maxDoc}. New doc IDs must keep the order of the old ones.
+     * Deleted docs given a new doc ID stay deleted. Sequence numbers and the statistics carry over.
+     */
+    DocumentTable compact(int[] newDocIds, int maxDoc) {
+        DocumentTable compacted = new DocumentTable(fieldCount, Math.max(1024, maxDoc));
+        for (int doc = 0; doc < newDocIds.length; doc++) {
+            int target = newDocIds[doc];
+            if (target < 0) continue;
+            compacted.products[target] = products[doc];
+            compacted.storedFields[target] = storedFields[doc];
+            compacted.sequences[target] = sequences[doc];
+            System.arraycopy(fieldLengths, doc * fieldCount, compacted.fieldLengths, target * fieldCount, fieldCount);
+            if (products[doc] != null) {
+                compacted.docIdsByProductId.put(products[doc].getProductId(), target);
+            }
+        }
+        for (int field = 0; field < fieldCount; field++) {
+            compacted.totalFieldLengths.set(field, totalFieldLengths.get(field));
+        }
+        compacted.liveDocs = liveDocs;
+        compacted.additions = additions;
+        compacted.deletions = deletions;
+        compacted.maxDoc = maxDoc;
+        return compacted;
+    }
+
+    private void ensureCapacity(int docId) {
+        if (docId == products.length) {
+            int capacity = products.length << 1;
+            products = Arrays.copyOf(products, capacity);
+            storedFields = Arrays.copyOf(storedFields, capacity);
+            sequences = Arrays.copyOf(sequences, capacity);
+            fieldLengths = Arrays.copyOf(fieldLengths, capacity * fieldCount);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.nyasha.store.utils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Doc-ID bit sets per facet value (category, supplier, price bucket, rating bucket).
+ * Facet counts for a result set are the intersection cardinalities of its bit set with
+ * each value's bit set, so counting never touches the documents themselves.
+ * <p>
+ * Writers must be serialised by the owning index.
+ */
+public final class FacetIndex {
+
+    public static final String CATEGORY = "category";
+    public static final String SUPPLIER = "supplier";
+    public static final String PRICE = "price";
+    public static final String RATING = "rating";
+
+    // Upper bounds of the price buckets; the last bucket is open-ended
+    private static final double[] PRICE_BUCKET_BOUNDS = { 25, 50, 100, 200, 500 };
+
+    // field -> value -> docs
+    private final ConcurrentMap<String, ConcurrentMap<String, DocIdBitSet>> facets = new ConcurrentHashMap<>();
+
+    // docId -> facet values it was indexed under, so removal does not depend on the caller's copy of the product
+    private final ConcurrentMap<Integer, Map<String, List<String>>> docValues = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes a document under the given values per facet field.
+     */
+    public void add(int docId, Map<String, List<String>> values) {
+        values.forEach((field, fieldValues) -> {
+            ConcurrentMap<String, DocIdBitSet> byValue = facets.computeIfAbsent(field, k -> new ConcurrentHashMap<>());
+            for (String value : fieldValues) {
+                byValue.computeIfAbsent(value, k -> new DocIdBitSet()).set(docId);
+            }
+        });
+        docValues.put(docId, values);
+    }
+
+    /**
+     * Removes a document from every value it was indexed under.
+     */
+    public void remove(int docId) {
+        Map<String, List<String>> values = docValues.remove(docId);
+        if (values == null) return;
+        values.forEach((field, fieldValues) -> {
+            ConcurrentMap<String, DocIdBitSet> byValue = facets.get(field);
+            if (byValue == null) return;
+            for (String value : fieldValues) {
+                DocIdBitSet docs = byValue.get(value);
+                if (docs != null) {
+                    docs.clear(docId);
+                    if (docs.isEmpty()) {
+                        byValue.remove(value, docs);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Copy of the index with its doc IDs renumbered: doc {@code d} moves to {@code newDocIds[d]}, or is left out
+     * if that is -1.
+     */
+    FacetIndex compact(int[] newDocIds) {
+        FacetIndex compacted = new FacetIndex();
+        docValues.forEach((docId, values) -> {
+            if (docId < newDocIds.length && newDocIds[docId] >= 0) {
+                compacted.add(newDocIds[docId], values);
+            }
+        });
+        return compacted;
+    }
+
+    /**
+     * Docs indexed under a facet value, or null if there are none.
+     */
+    public DocIdBitSet docs(String field, String value) {
+        ConcurrentMap<String, DocIdBitSet> byValue = facets.get(field);
+        return byValue == null ? null : byValue.get(value);
+    }
+
+    /**
+     * Counts the matching documents per value of every facet field. Values without matches are
+     * left out and each field's values are ordered by descending count.
+     */
+    public Map<String, Map<String, Integer>> counts(DocIdBitSet matches) {
+        Map<String, Map<String, Integer>> counts = new TreeMap<>();
+        facets.forEach((field, byValue) -> {
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+            byValue.forEach((value, docs) -> {
+                int count = matches.intersectionCount(docs);
+                if (count > 0) {
+                    entries.add(Map.entry(value, count));
+                }
+            });
+            entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed()
+                    .thenComparing(Map.Entry.comparingByKey()));
+            Map<String, Integer> fieldCounts = new LinkedHashMap<>();
+            entries.forEach(entry -> fieldCounts.put(entry.getKey(), entry.getValue()));
+            counts.put(field, fieldCounts);
+        });
+        return counts;
+    }
+
+    /**
+     * Label of the price bucket a price falls into, such as {@code "25-50"} or {@code "500+"}.
+     */
+    public static String priceBucket(double price) {
+        double lower = 0;
+        for (double upper : PRICE_BUCKET_BOUNDS) {
+            if (price < upper) {
+                return (long) lower + "-" + (long) upper;
+            }
+            lower = upper;
+        }
+        return (long) lower + "+";
+    }
+
+    /**
+     * Label of the rating bucket for an average rating: the whole number of stars, e.g. {@code "4"} for 4.0 to 4.9.
+     */
+    public static String ratingBucket(double averageRating) {
+        return Integer.toString((int) Math.floor(averageRating));
+    }
+}
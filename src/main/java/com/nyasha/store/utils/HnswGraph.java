@@ -0,0 +1,570 @@
+package com.nyasha.store.utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.function.IntPredicate;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin) over unit-length vectors, for approximate
+ * nearest-neighbour search by cosine similarity in roughly logarithmic time.
+ * <p>
+ * Nodes are doc IDs. Vectors live in one flat float array, along with the non-zero dimensions of each: hashed
+ * term vectors have few, and dot products only visit those. The neighbours of a node on each layer are an int
+ * array that is replaced whole whenever it changes, so searches run without locks next to the single writer and
+ * at worst follow a neighbour list from just before a change. Deleted docs are unlinked right away, and the nodes
+ * that linked to them re-select their neighbours so the graph stays connected around the gap; their vectors are
+ * dropped by {@link #compact}. Searches only count accepted nodes towards {@code ef}, so filtered nodes never
+ * crowd the results out.
+ * <p>
+ * {@code efConstruction} trades insert time for graph quality, and the {@code ef} of a search trades latency for
+ * recall. Writers must be serialised by the owning index.
+ */
+final class HnswGraph {
+
+    // Neighbours per node on the upper layers, twice as many on layer 0
+    static final int DEFAULT_M = 16;
+    static final int DEFAULT_EF_CONSTRUCTION = 100;
+
+    private static final int[] NO_NEIGHBOURS = new int[0];
+
+    private static final Comparator<Candidate> BEST_FIRST =
+            Comparator.comparingDouble(Candidate::similarity).reversed();
+    private static final Comparator<Candidate> WORST_FIRST = Comparator.comparingDouble(Candidate::similarity);
+    private static final IntPredicate ANY_NODE = node -> true;
+
+    private final int dimensions;
+    private final int m;
+    private final int maxLayer0;
+    private final double levelMultiplier;
+    // Fixed seed: writes are serialised, so the same inserts build the same graph
+    private final SplittableRandom random = new SplittableRandom(42);
+    private volatile int efConstruction = DEFAULT_EF_CONSTRUCTION;
+
+    private volatile float[] vectors;
+    // node -> its non-zero dimensions, ascending
+    private volatile short[][] nonZero = new short[1024][];
+    // node -> layer -> neighbours, null for docs without a vector
+    private volatile int[][][] neighbours = new int[1024][][];
+    private volatile int entryPoint = -1;
+    private volatile int size;
+
+    HnswGraph(int dimensions) {
+        this(dimensions, DEFAULT_M);
+    }
+
+    HnswGraph(int dimensions, int m) {
+        this.dimensions = dimensions;
+        this.m = m;
+        this.maxLayer0 = m * 2;
+        this.levelMultiplier = 1 / Math.log(m);
+        this.vectors = new float[neighbours.length * dimensions];
+    }
+
+    void setEfConstruction(int efConstruction) {
+        this.efConstruction = Math.max(1, efConstruction);
+    }
+
+    /**
+     * Number of nodes in the graph.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a node with a unit-length vector, linking it to its nearest neighbours on every layer it is drawn for.
+     */
+    void add(int node, float[] vector) {
+        ensureCapacity(node);
+        System.arraycopy(vector, 0, vectors, node * dimensions, dimensions);
+        nonZero[node] = nonZeroDimensions(vector);
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        int[][] layers = new int[level + 1][];
+        Arrays.fill(layers, NO_NEIGHBOURS);
+        int entry = entryPoint;
+        if (entry < 0) {
+            neighbours[node] = layers;
+            size++;
+            entryPoint = node;
+            return;
+        }
+        float[] vs = vectors;
+        int[][][] graph = neighbours;
+        int top = graph[entry].length - 1;
+        for (int layer = top; layer > level; layer--) {
+            entry = searchLayer(vector, entry, 1, layer, vs, graph).get(0).node();
+        }
+        for (int layer = Math.min(level, top); layer >= 0; layer--) {
+            List<Candidate> found = searchLayer(vector, entry, efConstruction, layer, vs, graph);
+            layers[layer] = selectNeighbours(found, layer == 0 ? maxLayer0 : m, vs);
+            entry = found.get(0).node();
+        }
+        // Publish the node before linking back to it, so a search that reaches it can follow its links
+        graph[node] = layers;
+        for (int layer = 0; layer < layers.length; layer++) {
+            for (int neighbour : layers[layer]) {
+                link(neighbour, node, layer, vs, graph);
+            }
+        }
+        size++;
+        if (level > top) {
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Unlinks a node. Each neighbour that linked to it re-selects its neighbours on that layer from its remaining
+     * ones and the node's own, so paths through the node are kept. Nodes the node did not link back to are left
+     * with a dangling link, which searches skip and the next re-selection or {@link #compact} drops.
+     */
+    void remove(int node) {
+        int[][][] graph = neighbours;
+        if (node >= graph.length || graph[node] == null) {
+            return;
+        }
+        int[][] removed = graph[node];
+        float[] vs = vectors;
+        // Hand the entry point over first, so a search that finds the old one gone can read it again
+        if (entryPoint == node) {
+            entryPoint = highestNodeOtherThan(node, graph);
+        }
+        graph[node] = null;
+        size--;
+        for (int layer = 0; layer < removed.length; layer++) {
+            for (int neighbour : removed[layer]) {
+                int[][] layers = graph[neighbour];
+                if (layers == null || layer >= layers.length || !contains(layers[layer], node)) {
+                    continue;
+                }
+                layers[layer] = repair(neighbour, layers[layer], removed[layer], layer, vs, graph);
+            }
+        }
+    }
+
+    /**
+     * Up to {@code k} accepted nodes nearest to {@code query}, most similar first, finding at least {@code ef}
+     * accepted candidates on the bottom layer if there are that many.
+     */
+    List<Candidate> search(float[] query, int k, int ef, IntPredicate accept) {
+        int entry;
+        float[] vs;
+        int[][][] graph;
+        int[][] layers;
+        do {
+            entry = entryPoint;
+            if (entry < 0) {
+                return List.of();
+            }
+            vs = vectors;
+            graph = neighbours;
+            // Read once: a concurrent removal can clear the slot between two reads
+            layers = graph[entry];
+        } while (layers == null);
+        for (int layer = layers.length - 1; layer > 0; layer--) {
+            entry = searchLayer(query, entry, 1, layer, vs, graph, ANY_NODE).get(0).node();
+        }
+        List<Candidate> found = searchLayer(query, entry, Math.max(ef, k), 0, vs, graph, accept);
+        return found.size() > k ? found.subList(0, k) : found;
+    }
+
+    /**
+     * Copy of the graph with its nodes renumbered: node {@code n} becomes {@code newNodes[n]}, or is dropped with
+     * its links if that is -1. If the entry point is dropped, a remaining node on the highest layer takes over.
+     */
+    HnswGraph compact(int[] newNodes, int maxNode) {
+        HnswGraph compacted = new HnswGraph(dimensions, m);
+        compacted.efConstruction = efConstruction;
+        compacted.ensureCapacity(Math.max(0, maxNode - 1));
+        float[] vs = vectors;
+        int[][][] graph = neighbours;
+        int limit = Math.min(Math.min(newNodes.length, graph.length), vs.length / dimensions);
+        int entry = -1;
+        for (int node = 0; node < limit; node++) {
+            int target = newNodes[node];
+            if (target < 0 || graph[node] == null) continue;
+            System.arraycopy(vs, node * dimensions, compacted.vectors, target * dimensions, dimensions);
+            compacted.nonZero[target] = nonZero[node];
+            int[][] layers = new int[graph[node].length][];
+            for (int layer = 0; layer < layers.length; layer++) {
+                layers[layer] = renumber(graph[node][layer], newNodes);
+            }
+            compacted.neighbours[target] = layers;
+            compacted.size++;
+            if (entry < 0 || layers.length > compacted.neighbours[entry].length) {
+                entry = target;
+            }
+        }
+        int oldEntry = entryPoint;
+        if (oldEntry >= 0 && oldEntry < limit && newNodes[oldEntry] >= 0 && graph[oldEntry] != null) {
+            entry = newNodes[oldEntry];
+        }
+        compacted.entryPoint = entry;
+        return compacted;
+    }
+
+    /**
+     * The neighbour lists of the nodes below {@code maxNode} as they are now, for writing to a snapshot after the
+     * owning index lets writers go on. Lists are replaced rather than changed, so only the per-node tables are copied.
+     */
+    Links links(int maxNode) {
+        int[][][] graph = neighbours;
+        int[][][] copy = new int[maxNode][][];
+        for (int node = 0; node < Math.min(maxNode, graph.length); node++) {
+            copy[node] = graph[node] == null ? null : graph[node].clone();
+        }
+        return new Links(copy, entryPoint);
+    }
+
+    /**
+     * Adds a node with the neighbour lists it was written to a snapshot with, without searching the graph for
+     * them. Neighbours may be restored after the node; the entry point is set by {@link #restoreEntryPoint}.
+     */
+    void restore(int node, float[] vector, int[][] layers) {
+        ensureCapacity(node);
+        System.arraycopy(vector, 0, vectors, node * dimensions, dimensions);
+        nonZero[node] = nonZeroDimensions(vector);
+        neighbours[node] = layers;
+        size++;
+    }
+
+    void restoreEntryPoint(int node) {
+        entryPoint = node;
+    }
+
+    /**
+     * Reads the neighbour lists of one node written by {@link Links#writeNode}, or an empty array if the node
+     * is not in the graph.
+     */
+    static int[][] readLayers(IndexSnapshot.Reader in) {
+        int[][] layers = new int[in.readInt()][];
+        for (int layer = 0; layer < layers.length; layer++) {
+            layers[layer] = new int[in.readInt()];
+            for (int i = 0; i < layers[layer].length; i++) {
+                layers[layer][i] = in.readInt();
+            }
+        }
+        return layers;
+    }
+
+    private static int[] renumber(int[] nodes, int[] newNodes) {
+        int[] renumbered = new int[nodes.length];
+        int count = 0;
+        for (int node : nodes) {
+            if (node < newNodes.length && newNodes[node] >= 0) {
+                renumbered[count++] = newNodes[node];
+            }
+        }
+        return count == nodes.length ? renumbered : Arrays.copyOf(renumbered, count);
+    }
+
+    /**
+     * Copy of a node's vector, or null if it is not in the graph.
+     */
+    float[] vector(int node) {
+        float[] vs = vectors;
+        int[][][] graph = neighbours;
+        if (node >= graph.length || graph[node] == null || (node + 1) * dimensions > vs.length) {
+            return null;
+        }
+        return Arrays.copyOfRange(vs, node * dimensions, (node + 1) * dimensions);
+    }
+
+    /**
+     * The {@code ef} accepted nodes of one layer nearest to {@code query} found by a best-first walk from
+     * {@code entry}, most similar first. Rejected nodes are walked through but take no room in the results.
+     */
+    private List<Candidate> searchLayer(float[] query, int entry, int ef, int layer, float[] vs, int[][][] graph) {
+        return searchLayer(query, entry, ef, layer, vs, graph, ANY_NODE);
+    }
+
+    private List<Candidate> searchLayer(float[] query, int entry, int ef, int layer, float[] vs, int[][][] graph,
+                                        IntPredicate accept) {
+        int limit = Math.min(graph.length, vs.length / dimensions);
+        NodeSet visited = new NodeSet(ef * 8);
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(BEST_FIRST);
+        PriorityQueue<Candidate> results = new PriorityQueue<>(WORST_FIRST);
+        Candidate start = new Candidate(entry, dot(query, vs, entry));
+        visited.add(entry);
+        candidates.add(start);
+        if (accept.test(entry)) {
+            results.add(start);
+        }
+        while (!candidates.isEmpty()) {
+            Candidate current = candidates.poll();
+            if (results.size() >= ef && current.similarity() < results.peek().similarity()) {
+                break;
+            }
+            int[][] layers = graph[current.node()];
+            if (layers == null || layer >= layers.length) {
+                continue;
+            }
+            for (int neighbour : layers[layer]) {
+                if (neighbour >= limit || graph[neighbour] == null || !visited.add(neighbour)) {
+                    continue;
+                }
+                float similarity = dot(query, vs, neighbour);
+                if (results.size() < ef || similarity > results.peek().similarity()) {
+                    Candidate candidate = new Candidate(neighbour, similarity);
+                    candidates.add(candidate);
+                    if (accept.test(neighbour)) {
+                        results.add(candidate);
+                        if (results.size() > ef) {
+                            results.poll();
+                        }
+                    }
+                }
+            }
+        }
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort(BEST_FIRST);
+        return sorted;
+    }
+
+    /**
+     * Picks up to {@code max} neighbours from candidates sorted most similar first, preferring ones that are
+     * closer to the base node than to any neighbour already picked, so links spread in every direction instead
+     * of bunching in one cluster. Skipped candidates fill any room left.
+     */
+    private int[] selectNeighbours(List<Candidate> candidates, int max, float[] vs) {
+        int[] selected = new int[Math.min(max, candidates.size())];
+        int count = 0;
+        List<Candidate> skipped = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (count == selected.length) {
+                break;
+            }
+            boolean diverse = true;
+            for (int i = 0; i < count; i++) {
+                if (dot(vs, candidate.node(), selected[i]) > candidate.similarity()) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[count++] = candidate.node();
+            } else {
+                skipped.add(candidate);
+            }
+        }
+        for (int i = 0; count < selected.length && i < skipped.size(); i++) {
+            selected[count++] = skipped.get(i).node();
+        }
+        return selected;
+    }
+
+    /**
+     * Adds {@code node} to the neighbours of {@code neighbour}, re-selecting them if that overflows the list.
+     * Keeping only the most similar instead would drop the long links between clusters and strand searches in
+     * whichever cluster they enter.
+     */
+    private void link(int neighbour, int node, int layer, float[] vs, int[][][] graph) {
+        int[][] layers = graph[neighbour];
+        int[] current = layers[layer];
+        int max = layer == 0 ? maxLayer0 : m;
+        if (current.length < max) {
+            int[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = node;
+            layers[layer] = grown;
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<>(current.length + 1);
+        candidates.add(new Candidate(node, dot(vs, neighbour, node)));
+        for (int existing : current) {
+            // Links left dangling by removed nodes are dropped here
+            if (graph[existing] != null) {
+                candidates.add(new Candidate(existing, dot(vs, neighbour, existing)));
+            }
+        }
+        candidates.sort(BEST_FIRST);
+        layers[layer] = selectNeighbours(candidates, max, vs);
+    }
+
+    /**
+     * New neighbours of {@code base} on one layer after a node it linked to was removed: the best of its
+     * remaining neighbours and those of the removed node, picked as on insert.
+     */
+    private int[] repair(int base, int[] current, int[] replacements, int layer, float[] vs, int[][][] graph) {
+        List<Candidate> candidates = new ArrayList<>(current.length + replacements.length);
+        NodeSet seen = new NodeSet(current.length + replacements.length);
+        seen.add(base);
+        for (int[] nodes : new int[][]{current, replacements}) {
+            for (int node : nodes) {
+                if (graph[node] == null || layer >= graph[node].length || !seen.add(node)) {
+                    continue;
+                }
+                candidates.add(new Candidate(node, dot(vs, base, node)));
+            }
+        }
+        candidates.sort(BEST_FIRST);
+        return selectNeighbours(candidates, layer == 0 ? maxLayer0 : m, vs);
+    }
+
+    /**
+     * The node on the most layers other than {@code excluded}, to take over as entry point, or -1 if there is none.
+     * Only needed when the entry point itself is removed.
+     */
+    private static int highestNodeOtherThan(int excluded, int[][][] graph) {
+        int highest = -1;
+        for (int node = 0; node < graph.length; node++) {
+            if (node != excluded && graph[node] != null
+                    && (highest < 0 || graph[node].length > graph[highest].length)) {
+                highest = node;
+            }
+        }
+        return highest;
+    }
+
+    private static boolean contains(int[] nodes, int node) {
+        for (int n : nodes) {
+            if (n == node) return true;
+        }
+        return false;
+    }
+
+    private float dot(float[] query, float[] vs, int node) {
+        short[] dims = nonZero[node];
+        return dims == null ? dot(query, 0, vs, node * dimensions) : sparseDot(dims, vs, node * dimensions, query, 0);
+    }
+
+    private float dot(float[] vs, int a, int b) {
+        short[] dims = nonZero[a];
+        return dims == null ? dot(vs, a * dimensions, vs, b * dimensions)
+                : sparseDot(dims, vs, a * dimensions, vs, b * dimensions);
+    }
+
+    private static float sparseDot(short[] dims, float[] a, int offsetA, float[] b, int offsetB) {
+        float sum = 0;
+        for (short dim : dims) {
+            sum += a[offsetA + dim] * b[offsetB + dim];
+        }
+        return sum;
+    }
+
+    private short[] nonZeroDimensions(float[] vector) {
+        int count = 0;
+        for (float value : vector) {
+            if (value != 0) {
+                count++;
+            }
+        }
+        short[] dims = new short[count];
+        for (int i = 0, j = 0; i < dimensions; i++) {
+            if (vector[i] != 0) {
+                dims[j++] = (short) i;
+            }
+        }
+        return dims;
+    }
+
+    // Four independent sums, so the loop is not bound by the latency of one chain of additions
+    private float dot(float[] a, int offsetA, float[] b, int offsetB) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimensions; i += 4) {
+            s0 += a[offsetA + i] * b[offsetB + i];
+            s1 += a[offsetA + i + 1] * b[offsetB + i + 1];
+            s2 += a[offsetA + i + 2] * b[offsetB + i + 2];
+            s3 += a[offsetA + i + 3] * b[offsetB + i + 3];
+        }
+        for (; i < dimensions; i++) {
+            s0 += a[offsetA + i] * b[offsetB + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private void ensureCapacity(int node) {
+        if (node >= neighbours.length) {
+            int capacity = Math.max(neighbours.length << 1, node + 1);
+            // Vectors first: readers bound node IDs by both arrays
+            vectors = Arrays.copyOf(vectors, capacity * dimensions);
+            nonZero = Arrays.copyOf(nonZero, capacity);
+            neighbours = Arrays.copyOf(neighbours, capacity);
+        }
+    }
+
+    /**
+     * A node and its similarity to the query.
+     */
+    record Candidate(int node, float similarity) {
+    }
+
+    /**
+     * The neighbour lists of every node at one point in time, per node and layer; null for nodes not in the graph.
+     */
+    record Links(int[][][] neighbours, int entryPoint) {
+
+        /**
+         * Writes the neighbour lists of a node renumbered by {@code newNodes}: the number of layers, none if the
+         * node is not in the graph, then each layer's neighbour count and neighbours. Links to dropped nodes are
+         * left out.
+         */
+        void writeNode(DataOutput out, int node, int[] newNodes) throws IOException {
+            int[][] layers = node < neighbours.length ? neighbours[node] : null;
+            if (layers == null) {
+                out.writeInt(0);
+                return;
+            }
+            out.writeInt(layers.length);
+            for (int[] layer : layers) {
+                int[] renumbered = renumber(layer, newNodes);
+                out.writeInt(renumbered.length);
+                for (int neighbour : renumbered) {
+                    out.writeInt(neighbour);
+                }
+            }
+        }
+
+        /**
+         * The entry point under {@code newNodes}, or -1.
+         */
+        int entryPoint(int[] newNodes) {
+            return entryPoint >= 0 && entryPoint < newNodes.length ? newNodes[entryPoint] : -1;
+        }
+    }
+
+    /**
+     * Open-addressing set of the nodes a search has visited, sized for the search rather than the graph.
+     */
+    private static final class NodeSet {
+        private int[] slots;
+        private int size;
+
+        NodeSet(int expectedSize) {
+            slots = new int[Integer.highestOneBit(Math.max(16, expectedSize) * 2)];
+            Arrays.fill(slots, -1);
+        }
+
+        /**
+         * Adds a node, returning false if it was already in the set.
+         */
+        boolean add(int node) {
+            int mask = slots.length - 1;
+            int slot = (node * 0x9E3779B9) >>> 1 & mask;
+            while (slots[slot] != -1) {
+                if (slots[slot] == node) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = node;
+            if (++size * 2 > slots.length) {
+                int[] old = slots;
+                slots = new int[old.length << 1];
+                Arrays.fill(slots, -1);
+                size = 0;
+                for (int n : old) {
+                    if (n != -1) {
+                        add(n);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
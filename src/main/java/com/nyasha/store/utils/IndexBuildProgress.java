@@ -0,0 +1,19 @@
+package com.nyasha.store.utils;
+
+/**
+ * Progress and throughput of the latest bulk build of an index.
+ *
+ * @param documentsRead      Rows read from the database so far.
+ * @param documentsIndexed   Rows indexed so far; trails {@code documentsRead} by the batches in flight.
+ * @param batchesIndexed     Batches indexed so far.
+ * @param elapsedMillis      Time since the build started, or its total duration once it has finished.
+ * @param documentsPerSecond Indexing throughput over the elapsed time.
+ * @param error              Why the build failed, or null.
+ */
+public record IndexBuildProgress(String index, State state, long documentsRead, long documentsIndexed,
+                                 long batchesIndexed, long elapsedMillis, double documentsPerSecond, String error) {
+
+    public enum State {
+        IDLE, RUNNING, COMPLETED, FAILED
+    }
+}
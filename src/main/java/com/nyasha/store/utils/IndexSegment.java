@@ -0,0 +1,250 @@
+package com.nyasha.store.utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Slice of the inverted index holding the postings of the doc IDs from {@code docBase} up to,
+ * but excluding, {@code docLimit}.
+ * <p>
+ * The newest segment is the write buffer: the single writer appends to its posting lists, which
+ * readers can already see through their published snapshots. Sealing freezes the buffer into an
+ * immutable segment; after that a segment is only ever replaced as a whole by a merge, which
+ * rewrites a run of adjacent segments without the postings of deleted docs. Doc IDs are global
+ * and segments cover disjoint ascending ranges, so a regular merge keeps doc IDs as they are;
+ * only compacting the index renumbers them, by merging with a map from old to new doc IDs.
+ */
+final class IndexSegment {
+
+    private final int docBase;
+    private final int docLimit;
+    private final ConcurrentMap<String, PostingList> postings;
+    // Docs with postings in the segment, and how many of them have been deleted since
+    private final DocIdBitSet docs;
+    private final AtomicInteger docCount;
+    private final AtomicInteger deletedCount;
+
+    private IndexSegment(int docBase, int docLimit, ConcurrentMap<String, PostingList> postings,
+                         DocIdBitSet docs, int deletedCount) {
+        this.docBase = docBase;
+        this.docLimit = docLimit;
+        this.postings = postings;
+        this.docs = docs;
+        this.docCount = new AtomicInteger(docs.cardinality());
+        this.deletedCount = new AtomicInteger(deletedCount);
+    }
+
+    /**
+     * New, empty write buffer for doc IDs from {@code docBase} on.
+     */
+    static IndexSegment buffer(int docBase) {
+        return new IndexSegment(docBase, PostingList.NO_MORE_DOCS, new ConcurrentHashMap<>(), new DocIdBitSet(), 0);
+    }
+
+    /**
+     * Freezes the buffer at {@code docLimit}; the returned segment shares its posting lists.
+     */
+    IndexSegment seal(int docLimit) {
+        return new IndexSegment(docBase, docLimit, postings, docs, deletedCount.get());
+    }
+
+    boolean isSealed() {
+        return docLimit != PostingList.NO_MORE_DOCS;
+    }
+
+    int docBase() {
+        return docBase;
+    }
+
+    int docLimit() {
+        return docLimit;
+    }
+
+    boolean contains(int docId) {
+        return docId >= docBase && docId < docLimit;
+    }
+
+    /**
+     * Postings of a term in this segment, or null.
+     */
+    PostingList postings(String term) {
+        return postings.get(term);
+    }
+
+    /**
+     * Postings of a term in the write buffer, created on first use.
+     *
+     * @param onCreate Called with the term when its posting list is created.
+     */
+    PostingList postingsForWrite(String term, Consumer<String> onCreate) {
+        return postings.computeIfAbsent(term, k -> {
+            onCreate.accept(k);
+            return new PostingList(Bm25Scorer.FIELD_COUNT);
+        });
+    }
+
+    Set<String> terms() {
+        return postings.keySet();
+    }
+
+    void docAdded(int docId) {
+        docs.set(docId);
+        docCount.incrementAndGet();
+    }
+
+    void docDeleted(int docId) {
+        if (docs.get(docId)) {
+            deletedCount.incrementAndGet();
+        }
+    }
+
+    int docCount() {
+        return docCount.get();
+    }
+
+    int deletedCount() {
+        return deletedCount.get();
+    }
+
+    /**
+     * Share of the segment's docs that have been deleted but whose postings are still present.
+     */
+    double deletedRatio() {
+        int count = docCount.get();
+        return count == 0 ? 0.0 : (double) deletedCount.get() / count;
+    }
+
+    long sizeInBytes() {
+        long size = 0;
+        for (PostingList list : postings.values()) {
+            size += list.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Merges adjacent sealed segments into one, keeping only the postings of docs accepted by {@code live}.
+     * Terms left without postings are dropped.
+     */
+    static IndexSegment merge(List<IndexSegment> segments, IntPredicate live) {
+        IndexSegment first = segments.get(0);
+        IndexSegment last = segments.get(segments.size() - 1);
+        return merge(segments, doc -> live.test(doc) ? doc : -1, first.docBase, last.docLimit);
+    }
+
+    /**
+     * Merges sealed segments into one covering {@code docBase} to {@code docLimit}, moving the postings of each
+     * doc to {@code newDocId(doc)}, or dropping them if that is -1. New doc IDs must keep the order of the old ones.
+     */
+    static IndexSegment merge(List<IndexSegment> segments, IntUnaryOperator newDocId, int docBase, int docLimit) {
+        SortedSet<String> terms = new TreeSet<>();
+        for (IndexSegment segment : segments) {
+            terms.addAll(segment.terms());
+        }
+        ConcurrentMap<String, PostingList> postings = new ConcurrentHashMap<>(terms.size() * 2);
+        DocIdBitSet docs = new DocIdBitSet();
+        int[][] positions = new int[Bm25Scorer.FIELD_COUNT][];
+        for (String term : terms) {
+            PostingList merged = null;
+            for (IndexSegment segment : segments) {
+                PostingList source = segment.postings(term);
+                if (source == null) continue;
+                PostingList.Cursor cursor = source.cursor();
+                for (int doc = cursor.nextDoc(); doc != PostingList.NO_MORE_DOCS; doc = cursor.nextDoc()) {
+                    int target = newDocId.applyAsInt(doc);
+                    if (target < 0) continue;
+                    for (int field = 0; field < Bm25Scorer.FIELD_COUNT; field++) {
+                        positions[field] = cursor.positions(field);
+                    }
+                    if (merged == null) {
+                        merged = new PostingList(Bm25Scorer.FIELD_COUNT);
+                    }
+                    merged.add(target, cursor.freqs(), positions);
+                    docs.set(target);
+                }
+            }
+            if (merged != null) {
+                postings.put(term, merged);
+            }
+        }
+        return new IndexSegment(docBase, docLimit, postings, docs, 0);
+    }
+
+    /**
+     * Copy of a sealed segment with every doc ID shifted up by {@code offset}, used to move a segment
+     * built with batch-local doc IDs to the range the batch was given.
+     */
+    IndexSegment rebase(int offset) {
+        ConcurrentMap<String, PostingList> rebased = new ConcurrentHashMap<>(postings.size() * 2);
+        postings.forEach((term, list) -> rebased.put(term, list.rebase(offset)));
+        DocIdBitSet rebasedDocs = new DocIdBitSet(docLimit + offset);
+        for (int doc = docs.nextSetBit(0); doc != PostingList.NO_MORE_DOCS; doc = docs.nextSetBit(doc + 1)) {
+            rebasedDocs.set(doc + offset);
+        }
+        return new IndexSegment(docBase + offset, docLimit + offset, rebased, rebasedDocs, deletedCount.get());
+    }
+
+    /**
+     * Writes a sealed segment for an index snapshot: its doc range and docs, then its terms in sorted
+     * order with their encoded postings.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(docBase);
+        out.writeInt(docLimit);
+        out.writeInt(docs.cardinality());
+        for (int doc = docs.nextSetBit(0); doc != PostingList.NO_MORE_DOCS; doc = docs.nextSetBit(doc + 1)) {
+            out.writeInt(doc);
+        }
+        SortedMap<String, PostingList> sorted = new TreeMap<>(postings);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, PostingList> entry : sorted.entrySet()) {
+            IndexSnapshot.writeString(out, entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a sealed segment written by {@link #writeTo}; docs rejected by {@code live} count as deleted.
+     */
+    static IndexSegment readFrom(IndexSnapshot.Reader in, IntPredicate live) {
+        int docBase = in.readInt();
+        int docLimit = in.readInt();
+        int docCount = in.readInt();
+        DocIdBitSet docs = new DocIdBitSet(docLimit);
+        int deleted = 0;
+        for (int i = 0; i < docCount; i++) {
+            int doc = in.readInt();
+            docs.set(doc);
+            if (!live.test(doc)) {
+                deleted++;
+            }
+        }
+        int termCount = in.readInt();
+        ConcurrentMap<String, PostingList> postings = new ConcurrentHashMap<>(termCount * 2);
+        for (int i = 0; i < termCount; i++) {
+            String term = in.readString();
+            postings.put(term, PostingList.readFrom(in, Bm25Scorer.FIELD_COUNT));
+        }
+        return new IndexSegment(docBase, docLimit, postings, docs, deleted);
+    }
+
+    /**
+     * Recounts the deleted docs, for a merged segment whose inputs saw deletes while it was being built.
+     */
+    void recountDeleted(IntPredicate live) {
+        int deleted = 0;
+        for (int doc = docs.nextSetBit(0); doc != PostingList.NO_MORE_DOCS; doc = docs.nextSetBit(doc + 1)) {
+            if (!live.test(doc)) {
+                deleted++;
+            }
+        }
+        deletedCount.set(deleted);
+    }
+}
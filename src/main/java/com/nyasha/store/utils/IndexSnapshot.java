@@ -0,0 +1,290 @@
+package com.nyasha.store.utils;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Versioned binary snapshot file of an in-memory index.
+ * <p>
+ * Layout: magic, format version, index kind, watermark, the body written by the index, then the body
+ * length and its CRC32. Snapshots are written to a temporary file and atomically moved into place, so
+ * a crash mid-write leaves the previous snapshot intact. Reading memory-maps the whole file and checks
+ * the trailer before the index decodes anything, so a truncated or foreign file is rejected up front.
+ * A single mapping is limited to 2 GB, so the file is mapped in chunks of {@value #MAX_CHUNK_SIZE} bytes
+ * and read at long offsets; values that straddle two chunks are put together byte by byte.
+ * <p>
+ * The watermark is the time up to which the database is known to be reflected in the snapshot; the owner
+ * of the index catches up on rows changed after it once the snapshot is reopened.
+ */
+final class IndexSnapshot {
+
+    private static final int MAGIC = 0x53584458; // "SXDX"
+    // Bumped whenever the encoding or the text analysis changes, so older snapshots are rebuilt instead
+    static final int FORMAT_VERSION = 5;
+
+    // Body length (long) and CRC32 (int) after the body
+    private static final int TRAILER_LENGTH = Long.BYTES + Integer.BYTES;
+
+    // Size of each mapping of a snapshot file; a power of two
+    static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private IndexSnapshot() {
+    }
+
+    /**
+     * Writes the body of an index snapshot.
+     */
+    @FunctionalInterface
+    interface Body {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a snapshot of the given kind to {@code file}, replacing any previous one.
+     */
+    static void write(Path file, String kind, LocalDateTime watermark, Body body) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = parent.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, kind);
+            writeDateTime(out, watermark);
+            out.flush();
+
+            CRC32 crc = new CRC32();
+            DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(stream, crc));
+            body.writeTo(checked);
+            checked.flush();
+            out.writeLong(checked.size());
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a snapshot and validates its header and checksum.
+     *
+     * @throws IOException if the file is missing, was written for another kind of index or format version,
+     *                     or is truncated or corrupt.
+     */
+    static Reader open(Path file, String kind) throws IOException {
+        return open(file, kind, MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * {@link #open(Path, String)} mapping the file in chunks of {@code chunkSize} bytes, a power of two.
+     */
+    static Reader open(Path file, String kind, int chunkSize) throws IOException {
+        if (Integer.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException("Chunk size must be a power of two: " + chunkSize);
+        }
+        ByteBuffer[] chunks;
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mappings stay valid after the channel is closed
+            size = channel.size();
+            chunks = new ByteBuffer[(int) ((size + chunkSize - 1) / chunkSize)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i * chunkSize;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, size - start));
+            }
+        }
+        Reader reader = new Reader(chunks, chunkSize, size);
+        try {
+            if (reader.readInt() != MAGIC) {
+                throw new IOException("Not an index snapshot: " + file);
+            }
+            int version = reader.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot format version " + version + ": " + file);
+            }
+            String fileKind = reader.readString();
+            if (!kind.equals(fileKind)) {
+                throw new IOException("Snapshot " + file + " holds a " + fileKind + " index, not " + kind);
+            }
+            reader.watermark = reader.readDateTime();
+        } catch (RuntimeException e) {
+            throw new IOException("Truncated snapshot header: " + file, e);
+        }
+        long bodyStart = reader.position;
+        long bodyEnd = size - TRAILER_LENGTH;
+        if (bodyEnd < bodyStart || reader.bigEndian(bodyEnd, Long.BYTES) != bodyEnd - bodyStart) {
+            throw new IOException("Truncated snapshot: " + file);
+        }
+        if ((int) reader.crc(bodyStart, bodyEnd) != (int) reader.bigEndian(bodyEnd + Long.BYTES, Integer.BYTES)) {
+            throw new IOException("Snapshot checksum mismatch: " + file);
+        }
+        reader.limit = bodyEnd;
+        return reader;
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void writeOptionalLong(DataOutput out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    static void writeOptionalDouble(DataOutput out, Double value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    static void writeDateTime(DataOutput out, LocalDateTime value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    /**
+     * Sequential reader over the mapped body of a snapshot, at long offsets into its chunks. Values are
+     * big-endian, as written by {@link DataOutputStream}.
+     */
+    static final class Reader {
+        private final ByteBuffer[] chunks;
+        private final int chunkShift;
+        private final int chunkMask;
+        private long position;
+        private long limit;
+        private LocalDateTime watermark;
+
+        private Reader(ByteBuffer[] chunks, int chunkSize, long limit) {
+            this.chunks = chunks;
+            this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+            this.chunkMask = chunkSize - 1;
+            this.limit = limit;
+        }
+
+        LocalDateTime watermark() {
+            return watermark;
+        }
+
+        int readInt() {
+            return (int) bigEndian(advance(Integer.BYTES), Integer.BYTES);
+        }
+
+        long readLong() {
+            return bigEndian(advance(Long.BYTES), Long.BYTES);
+        }
+
+        double readDouble() {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        boolean readBoolean() {
+            return byteAt(advance(1)) != 0;
+        }
+
+        /**
+         * Copies the next {@code length} bytes out of the mapping.
+         */
+        byte[] readBytes(int length) {
+            long at = advance(length);
+            byte[] bytes = new byte[length];
+            int copied = 0;
+            while (copied < length) {
+                ByteBuffer chunk = chunks[(int) (at >>> chunkShift)];
+                int offset = (int) (at & chunkMask);
+                int count = Math.min(length - copied, chunk.limit() - offset);
+                chunk.get(offset, bytes, copied, count);
+                copied += count;
+                at += count;
+            }
+            return bytes;
+        }
+
+        String readString() {
+            int length = readInt();
+            return length < 0 ? null : new String(readBytes(length), StandardCharsets.UTF_8);
+        }
+
+        Long readOptionalLong() {
+            return readBoolean() ? readLong() : null;
+        }
+
+        Double readOptionalDouble() {
+            return readBoolean() ? readDouble() : null;
+        }
+
+        LocalDateTime readDateTime() {
+            if (!readBoolean()) {
+                return null;
+            }
+            long seconds = readLong();
+            return LocalDateTime.ofEpochSecond(seconds, readInt(), ZoneOffset.UTC);
+        }
+
+        // Moves past the next length bytes and returns where they start
+        private long advance(int length) {
+            long at = position;
+            if (length < 0 || at + length > limit) {
+                throw new BufferUnderflowException();
+            }
+            position = at + length;
+            return at;
+        }
+
+        private byte byteAt(long at) {
+            return chunks[(int) (at >>> chunkShift)].get((int) (at & chunkMask));
+        }
+
+        // Big-endian value of the given number of bytes at an offset, read from one chunk when it fits in it
+        private long bigEndian(long at, int bytes) {
+            ByteBuffer chunk = chunks[(int) (at >>> chunkShift)];
+            int offset = (int) (at & chunkMask);
+            if (offset + bytes <= chunk.limit()) {
+                return bytes == Long.BYTES ? chunk.getLong(offset) : chunk.getInt(offset);
+            }
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | (byteAt(at + i) & 0xFF);
+            }
+            return bytes == Long.BYTES ? value : (int) value;
+        }
+
+        private long crc(long start, long end) {
+            CRC32 crc = new CRC32();
+            for (long at = start; at < end; ) {
+                ByteBuffer chunk = chunks[(int) (at >>> chunkShift)];
+                int offset = (int) (at & chunkMask);
+                int count = (int) Math.min(end - at, chunk.limit() - offset);
+                crc.update(chunk.slice(offset, count));
+                at += count;
+            }
+            return crc.getValue();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.nyasha.store.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+
+/**
+ * Finds dictionary terms within a bounded edit distance of a query term.
+ * <p>
+ * The automaton state after consuming a prefix is a row of the edit-distance matrix
+ * (insertions, deletions, substitutions and adjacent transpositions). The sorted term
+ * dictionary is walked in order: rows of the prefix shared with the previous term are reused,
+ * and as soon as a prefix can no longer reach an accepting state the walk seeks past every
+ * term starting with it, so only a small part of the dictionary is ever visited.
+ */
+public final class LevenshteinAutomaton {
+
+    /**
+     * A dictionary term accepted by the automaton.
+     */
+    public record Match(String term, int edits, int docFreq) {
+    }
+
+    private final String query;
+    private final int maxEdits;
+
+    public LevenshteinAutomaton(String query, int maxEdits) {
+        this.query = query;
+        this.maxEdits = maxEdits;
+    }
+
+    /**
+     * Default edit budget for a term: none below 3 characters, 1 up to 5, otherwise 2.
+     */
+    public static int maxEditsFor(String term) {
+        int length = term.length();
+        if (length < 3) return 0;
+        if (length <= 5) return 1;
+        return 2;
+    }
+
+    /**
+     * Walks the dictionary and returns at most {@code maxExpansions} matches, preferring fewer
+     * edits and then more frequent terms.
+     */
+    public List<Match> expand(NavigableSet<String> dictionary, ToIntFunction<String> docFreq, int maxExpansions) {
+        Comparator<Match> worstFirst = Comparator.comparingInt(Match::edits).reversed()
+                .thenComparingInt(Match::docFreq)
+                .thenComparing(Match::term, Comparator.reverseOrder());
+        PriorityQueue<Match> best = new PriorityQueue<>(maxExpansions + 1, worstFirst);
+
+        int width = query.length() + 1;
+        int maxLength = query.length() + maxEdits;
+        int[][] rows = new int[maxLength + 1][width];
+        for (int j = 0; j < width; j++) {
+            rows[0][j] = j;
+        }
+
+        // rows[0..validDepth] hold the states for the first validDepth characters of rowsTerm
+        String rowsTerm = "";
+        int validDepth = 0;
+        String term = dictionary.ceiling("");
+        while (term != null) {
+            int depth = Math.min(commonPrefix(rowsTerm, term), validDepth);
+            int limit = Math.min(term.length(), maxLength);
+            boolean dead = false;
+            while (depth < limit && !dead) {
+                depth++;
+                dead = !step(rows, depth, term);
+            }
+            rowsTerm = term;
+            validDepth = depth;
+            if (dead || term.length() > maxLength) {
+                // No term starting with this prefix can match: seek past the whole subtree
+                term = dictionary.higher(term.substring(0, depth) + Character.MAX_VALUE);
+                continue;
+            }
+            int edits = rows[depth][query.length()];
+            if (edits <= maxEdits) {
+                best.add(new Match(term, edits, docFreq.applyAsInt(term)));
+                if (best.size() > maxExpansions) {
+                    best.poll();
+                }
+            }
+            term = dictionary.higher(term);
+        }
+
+        List<Match> matches = new ArrayList<>(best);
+        matches.sort(worstFirst.reversed());
+        return matches;
+    }
+
+    /**
+     * Computes row {@code i} for the i-th character of {@code term}.
+     *
+     * @return false if no completion of the prefix can stay within the edit budget.
+     */
+    private boolean step(int[][] rows, int i, String term) {
+        char c = term.charAt(i - 1);
+        int[] row = rows[i];
+        int[] above = rows[i - 1];
+        row[0] = i;
+        int min = row[0];
+        for (int j = 1; j < row.length; j++) {
+            int cost = query.charAt(j - 1) == c ? 0 : 1;
+            int value = Math.min(Math.min(row[j - 1] + 1, above[j] + 1), above[j - 1] + cost);
+            if (i > 1 && j > 1 && c == query.charAt(j - 2) && term.charAt(i - 2) == query.charAt(j - 1)) {
+                value = Math.min(value, rows[i - 2][j - 2] + 1);
+            }
+            row[j] = value;
+            min = Math.min(min, value);
+        }
+        return min <= maxEdits;
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int limit = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < limit && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,56 @@
+package com.nyasha.store.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals of the time threads spent waiting to acquire an index lock, so contention on the lock can be told
+ * apart from slow work done while holding it.
+ * <p>
+ * Callers read the time before entering the lock and report it once they hold it:
+ * <pre>{@code
+ * long waitStart = lockWait.start(indexLock);
+ * synchronized (indexLock) {
+ *     lockWait.acquired(waitStart);
+ *     ...
+ * }
+ * }</pre>
+ * Re-entering a lock the thread already holds never waits, and is not counted.
+ */
+public final class LockWaitTimer {
+
+    private static final long REENTERED = -1;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * The time before trying to acquire {@code lock}.
+     */
+    public long start(Object lock) {
+        return Thread.holdsLock(lock) ? REENTERED : System.nanoTime();
+    }
+
+    /**
+     * Counts an acquisition of the lock that was tried at {@code startNanos}.
+     */
+    public void acquired(long startNanos) {
+        if (startNanos != REENTERED) {
+            waitNanos.add(System.nanoTime() - startNanos);
+            acquisitions.increment();
+        }
+    }
+
+    /**
+     * Number of times the lock was acquired.
+     */
+    public long acquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * Total time spent waiting to acquire the lock, in nanoseconds.
+     */
+    public long totalWaitNanos() {
+        return waitNanos.sum();
+    }
+}
@@ -0,0 +1,387 @@
+package com.nyasha.store.utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressed positional posting list for a single term.
+ * Entries are kept sorted by doc ID and encoded as variable-byte integers:
+ * the gap to the previous doc ID, the term frequency in each field, the byte length of the
+ * position block, then the token positions of each field as gaps.
+ * Every {@value #SKIP_INTERVAL} entries a skip point (doc ID, byte offset) is recorded so
+ * cursors can gallop forward to a target doc ID without decoding the entries in between.
+ * Positions are only decoded when a phrase or proximity query asks for them.
+ * <p>
+ * Writers must be serialised externally (the owning index holds its write lock).
+ * Readers never lock: they work on an immutable {@link Snapshot} of the encoded
+ * bytes, and appends only ever write past the end a published snapshot can see.
+ */
+public final class PostingList {
+
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+    static final int SKIP_INTERVAL = 64;
+
+    /**
+     * Published view of the list: the encoded bytes up to {@code length} and the first
+     * {@code skipCount} skip points. Skip point i is the doc ID of entry (i + 1) * SKIP_INTERVAL - 1
+     * and the byte offset just past it.
+     */
+    record Snapshot(byte[] data, int length, int docCount, int lastDocId,
+                    int[] skipDocs, int[] skipOffsets, int skipCount) {
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new byte[0], 0, 0, -1, new int[0], new int[0], 0);
+
+    private final int fieldCount;
+    private volatile Snapshot snapshot = EMPTY;
+
+    public PostingList(int fieldCount) {
+        this.fieldCount = fieldCount;
+    }
+
+    /**
+     * Appends a document. Doc IDs must be added in increasing order.
+     *
+     * @param freqs     Term frequency per field.
+     * @param positions Token positions per field, ascending; only the first {@code freqs[field]} are used.
+     */
+    public void add(int docId, int[] freqs, int[][] positions) {
+        Snapshot current = snapshot;
+        if (docId <= current.lastDocId()) {
+            throw new IllegalArgumentException("Doc IDs must be appended in order: " + docId + " <= " + current.lastDocId());
+        }
+        int positionBytes = 0;
+        for (int field = 0; field < fieldCount; field++) {
+            int previous = 0;
+            for (int i = 0; i < freqs[field]; i++) {
+                positionBytes += vIntLength(positions[field][i] - previous);
+                previous = positions[field][i];
+            }
+        }
+        byte[] data = current.data();
+        int required = current.length() + (fieldCount + 2) * 5 + positionBytes;
+        if (required > data.length) {
+            data = Arrays.copyOf(data, Math.max(required, data.length + (data.length >> 1) + 16));
+        }
+        int pos = writeVInt(data, current.length(), docId - current.lastDocId() - 1);
+        for (int field = 0; field < fieldCount; field++) {
+            pos = writeVInt(data, pos, freqs[field]);
+        }
+        pos = writeVInt(data, pos, positionBytes);
+        for (int field = 0; field < fieldCount; field++) {
+            int previous = 0;
+            for (int i = 0; i < freqs[field]; i++) {
+                pos = writeVInt(data, pos, positions[field][i] - previous);
+                previous = positions[field][i];
+            }
+        }
+        int docCount = current.docCount() + 1;
+        int[] skipDocs = current.skipDocs();
+        int[] skipOffsets = current.skipOffsets();
+        int skipCount = current.skipCount();
+        if (docCount % SKIP_INTERVAL == 0) {
+            if (skipCount == skipDocs.length) {
+                int capacity = Math.max(4, skipCount << 1);
+                skipDocs = Arrays.copyOf(skipDocs, capacity);
+                skipOffsets = Arrays.copyOf(skipOffsets, capacity);
+            }
+            skipDocs[skipCount] = docId;
+            skipOffsets[skipCount] = pos;
+            skipCount++;
+        }
+        snapshot = new Snapshot(data, pos, docCount, docId, skipDocs, skipOffsets, skipCount);
+    }
+
+    /**
+     * Removes a document by re-encoding the list without it. Entries after the removed one
+     * are copied as-is apart from their doc ID gap.
+     *
+     * @return true if the document was present.
+     */
+    public boolean remove(int docId) {
+        Snapshot current = snapshot;
+        byte[] data = new byte[current.length()];
+        int[] skipDocs = new int[current.skipCount()];
+        int[] skipOffsets = new int[current.skipCount()];
+        int skipCount = 0;
+        int pos = 0;
+        int count = 0;
+        int lastDocId = -1;
+        boolean removed = false;
+        Cursor cursor = new Cursor(current, fieldCount);
+        for (int doc = cursor.nextDoc(); doc != NO_MORE_DOCS; doc = cursor.nextDoc()) {
+            if (doc == docId) {
+                removed = true;
+                continue;
+            }
+            pos = writeVInt(data, pos, doc - lastDocId - 1);
+            int bodyLength = cursor.pos - cursor.entryBodyStart;
+            System.arraycopy(current.data(), cursor.entryBodyStart, data, pos, bodyLength);
+            pos += bodyLength;
+            lastDocId = doc;
+            count++;
+            if (count % SKIP_INTERVAL == 0) {
+                skipDocs[skipCount] = doc;
+                skipOffsets[skipCount] = pos;
+                skipCount++;
+            }
+        }
+        if (removed) {
+            snapshot = new Snapshot(data, pos, count, lastDocId, skipDocs, skipOffsets, skipCount);
+        }
+        return removed;
+    }
+
+    /**
+     * Number of documents containing the term.
+     */
+    public int docFreq() {
+        return snapshot.docCount();
+    }
+
+    /**
+     * Encoded size of the postings in bytes.
+     */
+    public int sizeInBytes() {
+        return snapshot.length();
+    }
+
+    /**
+     * Copy of the list with every doc ID shifted up by {@code offset}. Only the doc ID gap of the first
+     * entry changes, so the rest of the encoded entries are copied as they are.
+     */
+    PostingList rebase(int offset) {
+        Snapshot current = snapshot;
+        PostingList list = new PostingList(fieldCount);
+        if (current.docCount() == 0) {
+            return list;
+        }
+        Cursor cursor = new Cursor(current, fieldCount);
+        int firstDoc = cursor.nextDoc();
+        int gapLength = cursor.entryBodyStart;
+        byte[] data = new byte[current.length() - gapLength + vIntLength(firstDoc + offset)];
+        int pos = writeVInt(data, 0, firstDoc + offset);
+        System.arraycopy(current.data(), gapLength, data, pos, current.length() - gapLength);
+        int shift = pos - gapLength;
+        int[] skipDocs = Arrays.copyOf(current.skipDocs(), current.skipCount());
+        int[] skipOffsets = Arrays.copyOf(current.skipOffsets(), current.skipCount());
+        for (int i = 0; i < skipDocs.length; i++) {
+            skipDocs[i] += offset;
+            skipOffsets[i] += shift;
+        }
+        list.snapshot = new Snapshot(data, data.length, current.docCount(), current.lastDocId() + offset,
+                skipDocs, skipOffsets, skipDocs.length);
+        return list;
+    }
+
+    /**
+     * Writes the encoded postings and skip points as they are, for an index snapshot.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        Snapshot current = snapshot;
+        out.writeInt(current.docCount());
+        out.writeInt(current.lastDocId());
+        out.writeInt(current.skipCount());
+        for (int i = 0; i < current.skipCount(); i++) {
+            out.writeInt(current.skipDocs()[i]);
+            out.writeInt(current.skipOffsets()[i]);
+        }
+        out.writeInt(current.length());
+        out.write(current.data(), 0, current.length());
+    }
+
+    /**
+     * Reads a list written by {@link #writeTo}, copying its encoded bytes without decoding them.
+     */
+    static PostingList readFrom(IndexSnapshot.Reader in, int fieldCount) {
+        int docCount = in.readInt();
+        int lastDocId = in.readInt();
+        int skipCount = in.readInt();
+        int[] skipDocs = new int[skipCount];
+        int[] skipOffsets = new int[skipCount];
+        for (int i = 0; i < skipCount; i++) {
+            skipDocs[i] = in.readInt();
+            skipOffsets[i] = in.readInt();
+        }
+        byte[] data = in.readBytes(in.readInt());
+        PostingList list = new PostingList(fieldCount);
+        list.snapshot = new Snapshot(data, data.length, docCount, lastDocId, skipDocs, skipOffsets, skipCount);
+        return list;
+    }
+
+    /**
+     * Returns a cursor over a point-in-time view of the list.
+     */
+    public Cursor cursor() {
+        return new Cursor(snapshot, fieldCount);
+    }
+
+    /**
+     * Forward-only iterator over the postings.
+     */
+    public static final class Cursor {
+        private final byte[] data;
+        private final int length;
+        private final int docFreq;
+        private final int[] skipDocs;
+        private final int[] skipOffsets;
+        private final int skipCount;
+        private final int[] freqs;
+        private final int[][] positions;
+        private int pos;
+        private int docId = -1;
+        // Index of the next skip point that has not been passed yet
+        private int skipIndex;
+        // Byte offsets of the current entry, just after its doc ID gap and at its position block
+        private int entryBodyStart;
+        private int positionsStart;
+
+        private Cursor(Snapshot snapshot, int fieldCount) {
+            this.data = snapshot.data();
+            this.length = snapshot.length();
+            this.docFreq = snapshot.docCount();
+            this.skipDocs = snapshot.skipDocs();
+            this.skipOffsets = snapshot.skipOffsets();
+            this.skipCount = snapshot.skipCount();
+            this.freqs = new int[fieldCount];
+            this.positions = new int[fieldCount][];
+        }
+
+        /**
+         * Moves to the next document and returns its ID, or {@link #NO_MORE_DOCS}.
+         */
+        public int nextDoc() {
+            if (pos >= length) {
+                return docId = NO_MORE_DOCS;
+            }
+            int gap = readVInt();
+            entryBodyStart = pos;
+            for (int field = 0; field < freqs.length; field++) {
+                freqs[field] = readVInt();
+            }
+            int positionBytes = readVInt();
+            positionsStart = pos;
+            pos += positionBytes;
+            return docId += gap + 1;
+        }
+
+        /**
+         * Moves to the first document whose ID is at least {@code target} and returns it,
+         * or {@link #NO_MORE_DOCS}. Gallops over the skip points first, then decodes linearly
+         * within the final block.
+         */
+        public int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            while (skipIndex < skipCount && skipOffsets[skipIndex] <= pos) {
+                skipIndex++;
+            }
+            if (skipIndex < skipCount && skipDocs[skipIndex] < target) {
+                // Exponential search for the last skip point below the target, then binary search
+                int low = skipIndex;
+                int step = 1;
+                int high = low + step;
+                while (high < skipCount && skipDocs[high] < target) {
+                    low = high;
+                    step <<= 1;
+                    high = low + step;
+                }
+                high = Math.min(high, skipCount);
+                while (high - low > 1) {
+                    int mid = (low + high) >>> 1;
+                    if (skipDocs[mid] < target) {
+                        low = mid;
+                    } else {
+                        high = mid;
+                    }
+                }
+                docId = skipDocs[low];
+                pos = skipOffsets[low];
+                skipIndex = low + 1;
+            }
+            int doc;
+            do {
+                doc = nextDoc();
+            } while (doc < target);
+            return doc;
+        }
+
+        public int docId() {
+            return docId;
+        }
+
+        public int docFreq() {
+            return docFreq;
+        }
+
+        public int freq(int field) {
+            return freqs[field];
+        }
+
+        /**
+         * Term frequency per field for the current document. The array is reused between calls.
+         */
+        public int[] freqs() {
+            return freqs;
+        }
+
+        /**
+         * Decodes the token positions of the current document in one field. The returned array
+         * is reused between calls and only its first {@link #freq(int)} entries are valid.
+         */
+        public int[] positions(int field) {
+            int read = positionsStart;
+            for (int skipped = 0; skipped < field; skipped++) {
+                for (int i = 0; i < freqs[skipped]; i++) {
+                    while (data[read++] < 0) {
+                        // continuation byte of a skipped position
+                    }
+                }
+            }
+            int freq = freqs[field];
+            int[] buffer = positions[field];
+            if (buffer == null || buffer.length < freq) {
+                buffer = positions[field] = new int[Math.max(freq, 8)];
+            }
+            int saved = pos;
+            pos = read;
+            int position = 0;
+            for (int i = 0; i < freq; i++) {
+                position += readVInt();
+                buffer[i] = position;
+            }
+            pos = saved;
+            return buffer;
+        }
+
+        private int readVInt() {
+            byte b = data[pos++];
+            int value = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = data[pos++];
+                value |= (b & 0x7F) << shift;
+            }
+            return value;
+        }
+    }
+
+    private static int vIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int writeVInt(byte[] data, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            data[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[pos++] = (byte) value;
+        return pos;
+    }
+}
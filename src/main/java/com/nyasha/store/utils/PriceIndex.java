@@ -0,0 +1,284 @@
+package com.nyasha.store.utils;
+
+import java.util.Arrays;
+
+/**
+ * Numeric index over effective product price.
+ * <p>
+ * Entries live in sorted primitive arrays of (price, doc ID): a large main run and a small
+ * pending run that absorbs inserts and is merged into the main run once it holds
+ * {@value #MAX_PENDING} entries, so a write costs O(pending) instead of O(n) most of the time.
+ * Deletes only clear the doc's price; stale entries are skipped by readers and dropped at
+ * the next merge. Range predicates binary-search both runs, and cursors stream docs in price
+ * order so a price sort only reads as many entries as it needs.
+ * <p>
+ * Writers must be serialised by the owning index. Readers work on an immutable {@link State}.
+ */
+public final class PriceIndex {
+
+    static final int MAX_PENDING = 1024;
+
+    /**
+     * Sorted run of entries, ordered by price and then doc ID.
+     */
+    private record Run(double[] prices, int[] docs, int size) {
+        static final Run EMPTY = new Run(new double[0], new int[0], 0);
+
+        /**
+         * First index whose entry is at or after (price, docId).
+         */
+        int lowerBound(double price, int docId) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Double.compare(prices[mid], price);
+                if (cmp < 0 || (cmp == 0 && docs[mid] < docId)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private record State(Run main, Run pending, double[] docPrices) {
+    }
+
+    private volatile State state;
+
+    public PriceIndex() {
+        double[] docPrices = new double[1024];
+        Arrays.fill(docPrices, Double.NaN);
+        this.state = new State(Run.EMPTY, Run.EMPTY, docPrices);
+    }
+
+    /**
+     * Indexes a document's price.
+     */
+    public void add(int docId, double price) {
+        State current = state;
+        double[] docPrices = current.docPrices();
+        if (docId >= docPrices.length) {
+            int oldLength = docPrices.length;
+            docPrices = Arrays.copyOf(docPrices, Math.max(docId + 1, oldLength << 1));
+            Arrays.fill(docPrices, oldLength, docPrices.length, Double.NaN);
+        }
+        docPrices[docId] = price;
+
+        Run pending = current.pending();
+        int at = pending.lowerBound(price, docId);
+        double[] prices = new double[pending.size() + 1];
+        int[] docs = new int[pending.size() + 1];
+        System.arraycopy(pending.prices(), 0, prices, 0, at);
+        System.arraycopy(pending.docs(), 0, docs, 0, at);
+        prices[at] = price;
+        docs[at] = docId;
+        System.arraycopy(pending.prices(), at, prices, at + 1, pending.size() - at);
+        System.arraycopy(pending.docs(), at, docs, at + 1, pending.size() - at);
+        pending = new Run(prices, docs, prices.length);
+
+        if (pending.size() >= MAX_PENDING) {
+            state = new State(merge(current.main(), pending, docPrices), Run.EMPTY, docPrices);
+        } else {
+            state = new State(current.main(), pending, docPrices);
+        }
+    }
+
+    /**
+     * Removes a document's price.
+     */
+    public void remove(int docId) {
+        double[] docPrices = state.docPrices();
+        if (docId < docPrices.length) {
+            docPrices[docId] = Double.NaN;
+        }
+    }
+
+    /**
+     * Copy of the index with its doc IDs renumbered: doc {@code d} moves to {@code newDocIds[d]}, or is left out
+     * if that is -1, and the copy covers doc IDs up to {@code maxDoc}. New doc IDs must keep the order of the old
+     * ones, so the merged runs stay sorted.
+     */
+    PriceIndex compact(int[] newDocIds, int maxDoc) {
+        State current = state;
+        Run merged = merge(current.main(), current.pending(), current.docPrices());
+        double[] docPrices = new double[Math.max(1024, maxDoc)];
+        Arrays.fill(docPrices, Double.NaN);
+        double[] prices = new double[merged.size()];
+        int[] docs = new int[merged.size()];
+        int size = 0;
+        for (int i = 0; i < merged.size(); i++) {
+            int doc = merged.docs()[i];
+            int target = doc < newDocIds.length ? newDocIds[doc] : -1;
+            if (target < 0) continue;
+            prices[size] = merged.prices()[i];
+            docs[size] = target;
+            docPrices[target] = prices[size];
+            size++;
+        }
+        PriceIndex compacted = new PriceIndex();
+        compacted.state = new State(new Run(prices, docs, size), Run.EMPTY, docPrices);
+        return compacted;
+    }
+
+    /**
+     * Number of (price, doc ID) entries in the runs, including those of deleted docs not merged away yet.
+     */
+    int entryCount() {
+        State current = state;
+        return current.main().size() + current.pending().size();
+    }
+
+    /**
+     * Price of a document, or NaN if it is not indexed.
+     */
+    public double price(int docId) {
+        double[] docPrices = state.docPrices();
+        return docId < docPrices.length ? docPrices[docId] : Double.NaN;
+    }
+
+    /**
+     * Docs whose price lies within [min, max]; either bound may be null for an open range.
+     */
+    public DocIdBitSet range(Double min, Double max) {
+        DocIdBitSet docs = new DocIdBitSet(state.docPrices().length);
+        Cursor cursor = cursor(min, max, false);
+        for (int doc = cursor.nextDoc(); doc != PostingList.NO_MORE_DOCS; doc = cursor.nextDoc()) {
+            docs.set(doc);
+        }
+        return docs;
+    }
+
+    /**
+     * Streams docs with a price within [min, max] in ascending or descending price order; docs with
+     * equal prices come in ascending doc ID order, or descending when the price order is.
+     */
+    public Cursor cursor(Double min, Double max, boolean descending) {
+        return new Cursor(state, min == null ? Double.NEGATIVE_INFINITY : min,
+                max == null ? Double.POSITIVE_INFINITY : max, descending);
+    }
+
+    /**
+     * Like {@link #cursor(Double, Double, boolean)}, but resumes right after the entry (afterPrice, afterDoc)
+     * in the cursor's direction, found by binary search.
+     */
+    public Cursor cursorAfter(Double min, Double max, boolean descending, double afterPrice, int afterDoc) {
+        Cursor cursor = cursor(min, max, descending);
+        cursor.seekPast(afterPrice, afterDoc);
+        return cursor;
+    }
+
+    /**
+     * Merge of the main and pending runs over a price range, skipping deleted entries.
+     */
+    public static final class Cursor {
+        private final Run main;
+        private final Run pending;
+        private final double[] docPrices;
+        private final boolean descending;
+        private final double min;
+        private final double max;
+        private int mainPos;
+        private int pendingPos;
+        private double price = Double.NaN;
+
+        private Cursor(State state, double min, double max, boolean descending) {
+            this.main = state.main();
+            this.pending = state.pending();
+            this.docPrices = state.docPrices();
+            this.descending = descending;
+            this.min = min;
+            this.max = max;
+            if (descending) {
+                mainPos = main.lowerBound(max, Integer.MAX_VALUE) - 1;
+                pendingPos = pending.lowerBound(max, Integer.MAX_VALUE) - 1;
+            } else {
+                mainPos = main.lowerBound(min, Integer.MIN_VALUE);
+                pendingPos = pending.lowerBound(min, Integer.MIN_VALUE);
+            }
+        }
+
+        private void seekPast(double afterPrice, int afterDoc) {
+            if (descending) {
+                mainPos = Math.min(mainPos, main.lowerBound(afterPrice, afterDoc) - 1);
+                pendingPos = Math.min(pendingPos, pending.lowerBound(afterPrice, afterDoc) - 1);
+            } else {
+                mainPos = Math.max(mainPos, main.lowerBound(afterPrice, afterDoc + 1));
+                pendingPos = Math.max(pendingPos, pending.lowerBound(afterPrice, afterDoc + 1));
+            }
+        }
+
+        /**
+         * Returns the next doc in price order, or {@link PostingList#NO_MORE_DOCS} once the range is exhausted.
+         */
+        public int nextDoc() {
+            while (true) {
+                boolean fromMain;
+                if (!valid(main, mainPos)) {
+                    if (!valid(pending, pendingPos)) return PostingList.NO_MORE_DOCS;
+                    fromMain = false;
+                } else if (!valid(pending, pendingPos)) {
+                    fromMain = true;
+                } else {
+                    int cmp = Double.compare(main.prices()[mainPos], pending.prices()[pendingPos]);
+                    if (cmp == 0) cmp = Integer.compare(main.docs()[mainPos], pending.docs()[pendingPos]);
+                    fromMain = descending ? cmp > 0 : cmp < 0;
+                }
+                Run run = fromMain ? main : pending;
+                int index = fromMain ? mainPos : pendingPos;
+                if (fromMain) {
+                    mainPos += descending ? -1 : 1;
+                } else {
+                    pendingPos += descending ? -1 : 1;
+                }
+                int doc = run.docs()[index];
+                price = run.prices()[index];
+                if (doc < docPrices.length && Double.compare(docPrices[doc], price) == 0) {
+                    return doc;
+                }
+            }
+        }
+
+        /**
+         * Price of the doc last returned by {@link #nextDoc()}.
+         */
+        public double price() {
+            return price;
+        }
+
+        private boolean valid(Run run, int index) {
+            if (index < 0 || index >= run.size()) return false;
+            double value = run.prices()[index];
+            return descending ? value >= min : value <= max;
+        }
+    }
+
+    private static Run merge(Run main, Run pending, double[] docPrices) {
+        double[] prices = new double[main.size() + pending.size()];
+        int[] docs = new int[prices.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < main.size() || j < pending.size()) {
+            boolean takeMain;
+            if (i == main.size()) {
+                takeMain = false;
+            } else if (j == pending.size()) {
+                takeMain = true;
+            } else {
+                int cmp = Double.compare(main.prices()[i], pending.prices()[j]);
+                takeMain = cmp < 0 || (cmp == 0 && main.docs()[i] < pending.docs()[j]);
+            }
+            double price = takeMain ? main.prices()[i] : pending.prices()[j];
+            int doc = takeMain ? main.docs()[i++] : pending.docs()[j++];
+            if (Double.compare(docPrices[doc], price) == 0) {
+                prices[size] = price;
+                docs[size] = doc;
+                size++;
+            }
+        }
+        return new Run(prices, docs, size);
+    }
+}
@@ -1,17 +1,32 @@
 package com.nyasha.store.utils;
 
+import com.nyasha.store.entities.Category;
 import com.nyasha.store.entities.Product;
+import com.nyasha.store.entities.ProductVariant;
+import com.nyasha.store.entities.Review;
+import com.nyasha.store.entities.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Component;
-
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
-@Component
+/**
+ * In-memory search index over products: one shard of the {@link ShardedProductIndex}, or the whole index.
+ */
 public class ProductIndex {
     private static final Logger logger = LoggerFactory.getLogger(ProductIndex.class);
 
@@ -19,17 +34,120 @@ public class ProductIndex {
     private final ConcurrentMap<String, List<Product>> fastIndexByName = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, List<Product>> fastIndexBySku = new ConcurrentHashMap<>();
 
-    // Sorted indexes for prefix/range searches
-    private final ConcurrentSkipListMap<String, List<Product>> sortedIndexByName = new ConcurrentSkipListMap<>();
-    private final ConcurrentSkipListMap<String, List<Product>> sortedIndexBySku = new ConcurrentSkipListMap<>();
+    // Prefix suggester over names and SKUs, caching the top suggestions of every prefix
+    private final CompletionTrie suggester = new CompletionTrie(MAX_SUGGESTIONS);
+
+    // Everything keyed by doc ID: the doc store, the inverted index and the doc values. Readers take the volatile
+    // space once per operation as a point-in-time view; the writer and the merger replace it under the index lock,
+    // as a whole when doc IDs are compacted, so the doc IDs of one view agree across all of its parts.
+    private volatile DocSpace space = DocSpace.empty();
+
+    // Sorted term dictionary of the inverted index, walked by the Levenshtein automaton for fuzzy matching
+    private final ConcurrentSkipListSet<String> termDictionary = new ConcurrentSkipListSet<>();
+
+    public static final int DEFAULT_TOP_K = 20;
+    public static final int MAX_TOP_K = 1000;
+    public static final int MAX_SUGGESTIONS = 10;
+    public static final int MAX_SIMILAR = 100;
+    public static final double DEFAULT_STATIC_RANK_WEIGHT = 0.5;
+
+    // Besides the full name, suggestions are also keyed from this many later words of the name
+    private static final int SUGGESTION_WORD_STARTS = 3;
+
+    // Fuzzy matching: at most this many expansions per term, each edit halving the score
+    static final int MAX_FUZZY_EXPANSIONS = 24;
+    private static final double FUZZY_EDIT_PENALTY = 0.5;
+
+    // Category hierarchy in pre-order, so a category and its descendants are one contiguous range
+    private final CategoryTree categoryTree = new CategoryTree();
+
+    // Weight of the static rank of each doc (rating, review count, decayed sales and age) in relevance scores
+    private volatile double staticRankWeight = DEFAULT_STATIC_RANK_WEIGHT;
 
-    // Inverted index for full-text search (term -> products)
-    private final ConcurrentMap<String, Set<Product>> invertedIndex = new ConcurrentHashMap<>();
+    // Segments: the buffer is sealed once it holds this many docs, and MERGE_FACTOR sealed segments of
+    // the same size tier, or one with more than MAX_DELETED_RATIO of its docs deleted, are merged. Doc IDs
+    // are compacted once deleted docs hold as many of them as live docs do, and at least a buffer's worth
+    static final int DEFAULT_SEAL_THRESHOLD = 4096;
+    static final int MERGE_FACTOR = 4;
+    static final double MAX_DELETED_RATIO = 0.3;
 
-    // Category index (categoryId -> products)
-    private final ConcurrentMap<String, List<Product>> categoryIndex = new ConcurrentHashMap<>();
+    private final int sealThreshold;
+
+    // Kind recorded in snapshot files, so a snapshot of another index is never loaded into this one
+    static final String SNAPSHOT_KIND = "products";
+
+    // Background merges run one at a time; mergeLock serialises them with forceMerge
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "product-index-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object mergeLock = new Object();
 
     private final Object indexLock = new Object();
+    private final LockWaitTimer lockWait = new LockWaitTimer();
+
+    // Used for both indexed text and queries, so query terms match the indexed terms they were written for
+    private final Analyzer analyzer;
+    private final QueryParser queryParser;
+    // Swapped as a whole when the synonyms are reloaded, which also drops its cache of rewritten queries
+    private volatile QueryRewriter queryRewriter;
+
+    // Bumped after every change that can change search results, so results cached outside the index can
+    // tell whether they are still current; sales and reviews counted into the static rank, which only nudge
+    // the order of results, bump the rank epoch instead
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong rankEpoch = new AtomicLong();
+
+    public ProductIndex() {
+        this(Analyzer.standard(), DEFAULT_SEAL_THRESHOLD);
+    }
+
+    public ProductIndex(Analyzer analyzer) {
+        this(analyzer, DEFAULT_SEAL_THRESHOLD);
+    }
+
+    ProductIndex(int sealThreshold) {
+        this(Analyzer.standard(), sealThreshold);
+    }
+
+    ProductIndex(Analyzer analyzer, int sealThreshold) {
+        this.analyzer = analyzer;
+        this.queryParser = new QueryParser(analyzer::terms);
+        this.queryRewriter = new QueryRewriter(queryParser, SynonymDictionary.EMPTY);
+        this.sealThreshold = sealThreshold;
+    }
+
+    /**
+     * Analyzer of the indexed text and queries, for building synonym dictionaries that match its terms.
+     */
+    public Analyzer analyzer() {
+        return analyzer;
+    }
+
+    /**
+     * Replaces the synonyms queries are rewritten with. Queries already running keep the previous ones.
+     */
+    public void setSynonyms(SynonymDictionary synonyms) {
+        queryRewriter = new QueryRewriter(queryParser, synonyms);
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Counter bumped after every change to the indexed products, categories, synonyms or ranking settings.
+     * A result computed after reading generation {@code g} is current for as long as the generation is still {@code g}.
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Counter bumped after every sale or review counted into the static rank. These arrive continuously and
+     * only nudge the order of results, so caches may keep serving a result across a few of them.
+     */
+    public long rankEpoch() {
+        return rankEpoch.get();
+    }
 
     /**
      * Helper method to get or create a synchronized list.
@@ -42,23 +160,29 @@ public class ProductIndex {
      * Inserts a product into all indexes.
      */
     public void insert(Product product) {
-        // Index by name and SKU
-        String nameKey = product.getName().toLowerCase();
-        String skuKey = product.getSku().toLowerCase();
         try {
+            long waitStart = lockWait.start(indexLock);
             synchronized (indexLock) {
-                getOrCreateList(fastIndexByName, nameKey).add(product);
-                getOrCreateList(fastIndexBySku, skuKey).add(product);
-                getOrCreateList(sortedIndexByName, nameKey).add(product);
-                getOrCreateList(sortedIndexBySku, skuKey).add(product);
-
-                // Index categories
-                product.getCategories().forEach(category ->
-                        getOrCreateList(categoryIndex, category.getCategoryId().toString()).add(product)
-                );
+                lockWait.acquired(waitStart);
+                // Re-inserting a product that is already indexed replaces its document; the old doc becomes
+                // a tombstone whose postings are skipped at query time and dropped when its segment is merged.
+                // The indexed copy's name, SKU and suggestion entries go with it
+                DocumentTable documents = space.documents();
+                int previous = documents.docId(product.getProductId());
+                if (previous >= 0) {
+                    removeLookups(documents.product(previous));
+                }
+                removeDocument(product);
+                addLookups(product);
 
-                // Build inverted index for full-text search
-                indexTextFields(product);
+                // Build inverted index for full-text search, then facets and price for the new doc ID
+                int docId = indexTextFields(product);
+                addDocValues(product, docId);
+                if (previous >= 0) {
+                    space.ranks().moveSales(previous, docId);
+                }
+                maybeSeal();
+                generation.incrementAndGet();
             }
             logger.debug("Inserted product {} into indexes", product.getProductId());
         }catch (Exception e){
@@ -71,22 +195,15 @@ public class ProductIndex {
      * Removes a product from all indexes.
      */
     public void remove(Product product) {
-        String nameKey = product.getName().toLowerCase();
-        String skuKey = product.getSku().toLowerCase();
         try {
+            long waitStart = lockWait.start(indexLock);
             synchronized (indexLock) {
-                removeFromIndex(fastIndexByName, nameKey, product);
-                removeFromIndex(fastIndexBySku, skuKey, product);
-                removeFromIndex(sortedIndexByName, nameKey, product);
-                removeFromIndex(sortedIndexBySku, skuKey, product);
-
-                // Remove from category index
-                product.getCategories().forEach(category ->
-                        removeFromIndex(categoryIndex, category.getCategoryId().toString(), product)
-                );
+                lockWait.acquired(waitStart);
+                removeLookups(product);
 
-                // Remove from inverted index
-                removeFromInvertedIndex(product);
+                // Remove from inverted index, facets and price index
+                removeDocument(product);
+                generation.incrementAndGet();
             }
             logger.debug("Removed product {} from indexes", product.getProductId());
         }catch (Exception e){
@@ -99,9 +216,18 @@ public class ProductIndex {
      */
     public void update(Product oldProduct, Product updatedProduct) {
         try {
+            long waitStart = lockWait.start(indexLock);
             synchronized (indexLock) {
+                lockWait.acquired(waitStart);
+                // Sales are not part of the product, so they carry over to its new doc
+                DocumentTable documents = space.documents();
+                int previous = documents.docId(oldProduct.getProductId());
                 remove(oldProduct);
                 insert(updatedProduct);
+                int docId = documents.docId(updatedProduct.getProductId());
+                if (previous >= 0 && docId >= 0) {
+                    space.ranks().moveSales(previous, docId);
+                }
             }
             logger.debug("Updated product {} in indexes", updatedProduct.getProductId());
         }catch (Exception e){
@@ -109,89 +235,1590 @@ public class ProductIndex {
         }
     }
 
+    /**
+     * Indexes a batch of products for a bulk build, replacing any of them that are already indexed.
+     * Safe to call from several threads at once: each call tokenizes its batch into a partial segment of
+     * its own, with doc IDs local to the batch, without taking any lock. The index lock is only held to
+     * give the batch the next range of doc IDs, move the partial segment there and add the doc values;
+     * background merges then fold the batch segments together. Concurrent batches get their doc IDs in
+     * the order they finish, which only shows in the order of equally scored hits.
+     */
+    public void bulkIndex(List<Product> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        IndexSegment partial = IndexSegment.buffer(0);
+        int[][] lengths = new int[batch.size()][];
+        for (int i = 0; i < batch.size(); i++) {
+            int doc = i;
+            lengths[i] = new int[Bm25Scorer.FIELD_COUNT];
+            analyze(batch.get(i), lengths[i]).forEach((term, occurrence) ->
+                    partial.postingsForWrite(term, k -> { }).add(doc, occurrence.freqs, occurrence.positions));
+            partial.docAdded(doc);
+        }
+        int docBase;
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            // Seal the write buffer so the batch's doc ID range directly follows it
+            seal();
+            DocumentTable documents = space.documents();
+            docBase = documents.maxDoc();
+            for (int i = 0; i < batch.size(); i++) {
+                Product product = batch.get(i);
+                int previousDoc = documents.docId(product.getProductId());
+                if (previousDoc >= 0) {
+                    remove(documents.product(previousDoc));
+                }
+                int docId = documents.add(product, lengths[i]);
+                addLookups(product);
+                addDocValues(product, docId);
+                if (previousDoc >= 0) {
+                    space.ranks().moveSales(previousDoc, docId);
+                }
+            }
+            IndexSegment segment = partial.seal(batch.size()).rebase(docBase);
+            termDictionary.addAll(segment.terms());
+            List<IndexSegment> next = new ArrayList<>(sealedSegments());
+            next.add(segment);
+            next.add(IndexSegment.buffer(documents.maxDoc()));
+            space = space.withSegments(List.copyOf(next));
+            generation.incrementAndGet();
+        }
+        merger.execute(this::mergeInBackground);
+        logger.debug("Bulk indexed {} products at doc IDs {} to {}", batch.size(), docBase, docBase + batch.size() - 1);
+    }
+
+    /**
+     * Full-text search across product names and descriptions, returning the top
+     * {@value #DEFAULT_TOP_K} products ranked by BM25.
+     */
+    public List<Product> searchByText(String query) {
+        return searchByText(query, DEFAULT_TOP_K);
+    }
+
     /**
      * Full-text search across product names and descriptions.
+     * The query is parsed with {@link QueryParser} (+required, -excluded, OR groups, phrases, proximity),
+     * executed over the posting lists, scored with field-weighted BM25 boosted by each product's
+     * {@link StaticRank static rank}, and only the {@code limit} best hits are kept, best first.
+     */
+    public List<Product> searchByText(String query, int limit) {
+        return search(query, limit, false).hits();
+    }
+
+    /**
+     * Full-text search returning the top hits together with the total match count and, if requested,
+     * facet counts over every match. Matches are gathered into a doc-ID bit set in the same pass that
+     * scores them, and facet counts are its intersection cardinalities with each facet value.
+     */
+    public SearchResult search(String query, int limit, boolean withFacets) {
+        return search(new SearchRequest(query, limit, withFacets, null, null, SearchSort.RELEVANCE, null));
+    }
+
+    /**
+     * First page of a full-text search restricted to an effective price range and ordered by relevance or price.
+     */
+    public SearchResult search(String query, int limit, boolean withFacets,
+                               Double minPrice, Double maxPrice, SearchSort sort) {
+        return search(new SearchRequest(query, limit, withFacets, minPrice, maxPrice, sort, null));
+    }
+
+    /**
+     * Full-text search restricted to an effective price range and ordered by relevance or price,
+     * one page at a time. Either price bound may be null, and the query may be blank when a price
+     * bound is given. The range is answered by the price index as a doc-ID bit set and intersected
+     * with the query.
+     * <p>
+     * Pages resume from the request's cursor rather than an offset: a relevance page only collects
+     * hits ranked after the cursor's (score, doc) into a heap of {@code limit}, and a price page
+     * seeks the price index straight to the cursor's (price, doc) and streams from there, so the
+     * match set is never sorted. Products without a price are left out of price-ordered results.
+     * Cursors name the doc by its sequence number, so they stay valid when doc IDs are compacted.
+     */
+    public SearchResult search(SearchRequest request) {
+        return search(request, SearchTrace.OFF);
+    }
+
+    /**
+     * {@link #search(SearchRequest)}, recording the time of each stage into {@code trace}.
+     */
+    public SearchResult search(SearchRequest request, SearchTrace trace) {
+        return page(request.sort(), searchPage(request, SearchCursor.decode(request.cursor(), request.sort()), trace));
+    }
+
+    /**
+     * One page of {@link #search(SearchRequest)} following {@code after}, with the sort value of every hit.
      */
-    public Set<Product> searchByText(String query) {
-        Set<Product> results = new HashSet<>();
-        String[] terms = query.toLowerCase().split("\\W+");
-        for (String term : terms) {
-            Set<Product> matches = invertedIndex.getOrDefault(term, Collections.emptySet());
-            results.addAll(matches);
+    Page searchPage(SearchRequest request, SearchCursor after, SearchTrace trace) {
+        long mark = trace.mark();
+        int k = Math.max(1, Math.min(request.limit(), MAX_TOP_K));
+        SearchSort sort = request.sort();
+        QueryNode parsed = queryRewriter.rewrite(request.query());
+        Double minPrice = request.minPrice();
+        Double maxPrice = request.maxPrice();
+        boolean priceFiltered = minPrice != null || maxPrice != null;
+        mark = trace.lap(SearchTrace.Stage.PARSE, mark);
+        DocSpace current = space;
+        DocumentTable documents = current.documents();
+        if ((parsed == null && !priceFiltered) || documents.liveDocs() == 0) {
+            return Page.EMPTY;
         }
-        logger.debug("Full-text search for '{}' returned {} results", query, results.size());
-        return results;
+        int afterDoc = after == null ? -1 : afterDoc(after, documents);
+        double[] avgFieldLengths = new double[Bm25Scorer.FIELD_COUNT];
+        for (int field = 0; field < Bm25Scorer.FIELD_COUNT; field++) {
+            avgFieldLengths[field] = documents.averageFieldLength(field);
+        }
+
+        QueryContext context = new QueryContext(current, avgFieldLengths);
+        DocIterator iterator;
+        if (parsed == null) {
+            iterator = DocIterators.bitSet(current.prices().range(minPrice, maxPrice));
+        } else if (priceFiltered) {
+            iterator = DocIterators.conjunction(List.of(
+                    iterator(parsed, context),
+                    DocIterators.bitSet(current.prices().range(minPrice, maxPrice))));
+        } else {
+            iterator = iterator(parsed, context);
+        }
+        trace.postings(context.docFreqs);
+        mark = trace.lap(SearchTrace.Stage.LOOKUP, mark);
+
+        boolean byPrice = sort == SearchSort.PRICE_ASC || sort == SearchSort.PRICE_DESC;
+        TopKCollector<Product> collector = byPrice ? null : new TopKCollector<>(k);
+        // Scored as of the hour, so the shards of a search and its later pages age products alike
+        StaticRank.Scorer ranking = current.ranks().scorer(staticRankWeight, Instant.now().truncatedTo(ChronoUnit.HOURS));
+        double maxBoost = ranking.maxBoost();
+        DocIdBitSet matches = request.facets() || byPrice ? new DocIdBitSet(documents.maxDoc()) : null;
+        int matched = 0;
+        int scored = 0;
+        // Matches ranked after the cursor; more than k of them means there is another page
+        int remaining = 0;
+        for (int doc = iterator.nextDoc(); doc != PostingList.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            Product product = documents.product(doc);
+            if (product == null) {
+                continue;
+            }
+            matched++;
+            if (matches != null) {
+                matches.set(doc);
+            }
+            if (collector != null) {
+                double score = iterator.score();
+                scored++;
+                if (after == null && score * maxBoost < collector.minCompetitiveScore()) {
+                    // Cannot make the page even with the largest boost
+                    remaining++;
+                    continue;
+                }
+                score *= ranking.boost(doc);
+                if (after == null || score < after.value() || (score == after.value() && doc > afterDoc)) {
+                    collector.collect(product, documents.sequence(doc), score);
+                    remaining++;
+                }
+            }
+        }
+
+        List<TopKCollector.ScoredHit<Product>> hits;
+        boolean more;
+        if (byPrice) {
+            boolean descending = sort == SearchSort.PRICE_DESC;
+            PriceIndex.Cursor cursor = after == null
+                    ? current.prices().cursor(minPrice, maxPrice, descending)
+                    : current.prices().cursorAfter(minPrice, maxPrice, descending, after.value(), afterDoc);
+            hits = new ArrayList<>(k);
+            more = pricePage(documents, cursor, matches, k, hits);
+        } else {
+            hits = collector.results();
+            more = remaining > hits.size();
+        }
+        trace.candidates(scored);
+        mark = trace.lap(SearchTrace.Stage.SCORING, mark);
+        Map<String, Map<String, Integer>> facets = request.facets() ? current.facets().counts(matches) : Collections.emptyMap();
+        trace.lap(SearchTrace.Stage.FACETS, mark);
+        logger.debug("Search for '{}' (price {} to {}, sort {}) matched {} products, returning {}",
+                request.query(), minPrice, maxPrice, sort, matched, hits.size());
+        return new Page(hits, matched, facets, more);
+    }
+
+    /**
+     * A page of hits with the sort value of each, and the sequence number of the doc as the tie-breaker:
+     * relevance score, price, or 0 for index order. {@code more} tells whether hits follow the last one.
+     */
+    record Page(List<TopKCollector.ScoredHit<Product>> hits, int totalHits,
+                Map<String, Map<String, Integer>> facets, boolean more) {
+        static final Page EMPTY = new Page(List.of(), 0, Collections.emptyMap(), false);
+    }
+
+    /**
+     * The search result of a page, with the cursor of the page's last hit when more follow.
+     */
+    static SearchResult page(SearchSort sort, Page page) {
+        List<Product> results = new ArrayList<>(page.hits().size());
+        for (TopKCollector.ScoredHit<Product> hit : page.hits()) {
+            results.add(hit.item());
+        }
+        String nextCursor = null;
+        if (page.more() && !page.hits().isEmpty()) {
+            TopKCollector.ScoredHit<Product> last = page.hits().get(page.hits().size() - 1);
+            nextCursor = new SearchCursor(sort, last.score(), last.key()).encode();
+        }
+        return new SearchResult(results, page.totalHits(), page.facets(), nextCursor);
+    }
+
+    /**
+     * Prefix-based suggestions for autocompletion: at most {@code limit} product names whose name,
+     * a later word of the name, or SKU starts with the prefix, most popular first.
+     */
+    public List<CompletionTrie.Suggestion> suggest(String prefix, int limit) {
+        return suggest(prefix, limit, null).suggestions();
+    }
+
+    /**
+     * A page of autocomplete suggestions following the cursor's suggestion. Pages are slices of the
+     * prefix's cached top {@value #MAX_SUGGESTIONS}, so paging never goes past them.
+     */
+    public SuggestionResult suggest(String prefix, int limit, String cursor) {
+        SuggestionResult result = suggestionPage(topSuggestions(prefix), limit, cursor);
+        logger.debug("Suggestions for '{}' returned {} results", prefix, result.suggestions().size());
+        return result;
+    }
+
+    /**
+     * The prefix's top {@value #MAX_SUGGESTIONS} suggestions, most popular first.
+     */
+    List<CompletionTrie.Suggestion> topSuggestions(String prefix) {
+        return suggester.lookup(prefix, MAX_SUGGESTIONS);
+    }
+
+    /**
+     * The page of {@code top} following the cursor's suggestion.
+     */
+    static SuggestionResult suggestionPage(List<CompletionTrie.Suggestion> top, int limit, String cursor) {
+        int k = Math.max(1, Math.min(limit, MAX_SUGGESTIONS));
+        SearchCursor after = SearchCursor.decode(cursor, SearchSort.RELEVANCE);
+        int start = 0;
+        if (after != null) {
+            // Resume after the cursor's product or, if it has dropped out, at the first lighter suggestion
+            start = top.size();
+            for (int i = 0; i < top.size(); i++) {
+                if (top.get(i).productId() == after.key()) {
+                    start = i + 1;
+                    break;
+                }
+                if (start == top.size() && top.get(i).weight() < after.value()) {
+                    start = i;
+                }
+            }
+        }
+        int end = Math.min(start + k, top.size());
+        List<CompletionTrie.Suggestion> results = top.subList(start, end);
+        String nextCursor = null;
+        if (end < top.size()) {
+            CompletionTrie.Suggestion last = results.get(results.size() - 1);
+            nextCursor = new SearchCursor(SearchSort.RELEVANCE, last.weight(), last.productId()).encode();
+        }
+        return new SuggestionResult(results, nextCursor);
+    }
+
+    /**
+     * Products whose name and description are most similar to the given product's, most similar first, from an
+     * approximate nearest-neighbour search that explores {@code ef} candidates: a larger {@code ef} finds more
+     * of the true nearest products at the cost of latency.
+     */
+    public List<Product> similar(Long productId, int limit, int ef) {
+        float[] vector = vector(productId);
+        return vector == null ? List.of() : products(nearest(vector, limit, ef, productId));
+    }
+
+    /**
+     * Products whose name and description are most similar to free text, for queries no product matches.
+     */
+    public List<Product> similarToText(String text, int limit, int ef) {
+        float[] vector = TermVectors.of(analyzer, text);
+        return vector == null ? List.of() : products(nearest(vector, limit, ef, null));
+    }
+
+    /**
+     * Set how many candidates inserts explore when linking a product into the similarity graph.
+     */
+    public void setSimilarityEfConstruction(int efConstruction) {
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            space.similarity().setEfConstruction(efConstruction);
+        }
+    }
+
+    /**
+     * Sets how much the static rank of a product (rating, review count, decayed sales and age) can raise its
+     * relevance score: by up to {@code 1 + weight} times, or not at all at 0.
+     */
+    public void setStaticRankWeight(double weight) {
+        staticRankWeight = Math.max(0, weight);
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Sets the half-life of the sales counted into the static rank.
+     */
+    public void setSalesHalfLife(Duration halfLife) {
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            space.ranks().setSalesHalfLife(halfLife);
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts units of a product sold into its static rank.
+     *
+     * @return false if the product is not indexed.
+     */
+    public boolean recordSale(Long productId, int quantity, LocalDateTime at) {
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            int docId = space.documents().docId(productId);
+            if (docId < 0) {
+                return false;
+            }
+            space.ranks().addSale(docId, quantity, at);
+            rankEpoch.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Counts a review written since the product was indexed into its static rank. Reviews the product
+     * already had when it was indexed are counted from its stored copy.
+     *
+     * @return false if the product is not indexed.
+     */
+    public boolean recordReview(Long productId, Integer rating) {
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            int docId = space.documents().docId(productId);
+            if (docId < 0) {
+                return false;
+            }
+            space.ranks().addReview(docId, rating);
+            rankEpoch.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Static rank prior of an indexed product between 0 and 1, or null if it is not indexed.
+     */
+    Double staticRank(Long productId) {
+        DocSpace current = space;
+        int docId = current.documents().docId(productId);
+        return docId < 0 ? null : current.ranks().scorer(staticRankWeight, Instant.now()).prior(docId);
+    }
+
+    /**
+     * The similarity vector of an indexed product, or null if it is not indexed or has no text.
+     */
+    float[] vector(Long productId) {
+        DocSpace current = space;
+        int docId = current.documents().docId(productId);
+        return docId < 0 ? null : current.similarity().vector(docId);
+    }
+
+    /**
+     * The live products nearest to a vector, other than {@code excluded}, with their cosine similarity.
+     */
+    List<TopKCollector.ScoredHit<Product>> nearest(float[] vector, int limit, int ef, Long excluded) {
+        int k = Math.max(1, Math.min(limit, MAX_SIMILAR));
+        DocSpace current = space;
+        DocumentTable documents = current.documents();
+        List<HnswGraph.Candidate> candidates = current.similarity().search(vector, k + 1, ef, doc -> documents.product(doc) != null);
+        List<TopKCollector.ScoredHit<Product>> hits = new ArrayList<>(k);
+        for (HnswGraph.Candidate candidate : candidates) {
+            Product product = documents.product(candidate.node());
+            if (product != null && !product.getProductId().equals(excluded) && hits.size() < k) {
+                hits.add(new TopKCollector.ScoredHit<>(product, documents.sequence(candidate.node()), candidate.similarity()));
+            }
+        }
+        return hits;
+    }
+
+    private static List<Product> products(List<TopKCollector.ScoredHit<Product>> hits) {
+        List<Product> products = new ArrayList<>(hits.size());
+        for (TopKCollector.ScoredHit<Product> hit : hits) {
+            products.add(hit.item());
+        }
+        return products;
     }
 
     /**
-     * Prefix-based search for autocompletion.
+     * Prefix-based search for autocompletion, returning the products behind the top suggestions.
      */
     public List<Product> searchByPrefix(String prefix) {
-        String normalizedPrefix = prefix.toLowerCase();
-        Set<Product> results = new HashSet<>();
-        results.addAll(searchByPrefix(sortedIndexByName, normalizedPrefix));
-        results.addAll(searchByPrefix(sortedIndexBySku, normalizedPrefix));
-        logger.debug("Prefix search for '{}' returned {} results", prefix, results.size());
-        return new ArrayList<>(results);
+        List<Product> results = new ArrayList<>();
+        DocumentTable documents = space.documents();
+        for (CompletionTrie.Suggestion suggestion : suggest(prefix, MAX_SUGGESTIONS)) {
+            int docId = documents.docId(suggestion.productId());
+            Product product = docId < 0 ? null : documents.product(docId);
+            if (product != null) {
+                results.add(product);
+            }
+        }
+        return results;
     }
 
     /**
-     * Search products by category ID.
+     * Search products by category ID, including products filed under any descendant category.
      */
     public List<Product> searchByCategory(String categoryId) {
-        return categoryIndex.getOrDefault(categoryId, Collections.emptyList());
+        return searchByCategory(categoryId, true);
     }
 
-    // --- Helper Methods ---
-    private void indexTextFields(Product product) {
-        String[] textFields = { product.getName(), product.getDescription() };
-        for (String text : textFields) {
-            String[] terms = text.toLowerCase().split("\\W+");
-            for (String term : terms) {
-                invertedIndex.computeIfAbsent(term, k -> ConcurrentHashMap.newKeySet())
-                        .add(product);
-            }
-        }
-    }
-
-    private void removeFromInvertedIndex(Product product) {
-        String[] textFields = { product.getName(), product.getDescription() };
-        for (String text : textFields) {
-            String[] terms = text.toLowerCase().split("\\W+");
-            for (String term : terms) {
-                Set<Product> products = invertedIndex.get(term);
-                if (products != null) {
-                    products.remove(product);
-                    if (products.isEmpty()) {
-                        invertedIndex.remove(term);
-                    }
+    /**
+     * Search products by category ID. With descendants, the category's subtree is one contiguous
+     * range of the pre-order numbering, and the doc sets of the categories in that range are unioned.
+     */
+    public List<Product> searchByCategory(String categoryId, boolean includeDescendants) {
+        return searchByCategory(categoryId, includeDescendants, Integer.MAX_VALUE, SearchSort.RELEVANCE, null).hits();
+    }
+
+    /**
+     * A page of the products in a category, in index order (for {@link SearchSort#RELEVANCE}) or by price.
+     * Index-order pages resume at the doc after the cursor and price pages seek the price index
+     * to the cursor, so every page costs the same however deep it is.
+     */
+    public SearchResult searchByCategory(String categoryId, boolean includeDescendants,
+                                         int limit, SearchSort sort, String cursor) {
+        return page(sort, categoryPage(categoryId, includeDescendants, limit, sort, SearchCursor.decode(cursor, sort)));
+    }
+
+    /**
+     * One page of {@link #searchByCategory(String, boolean, int, SearchSort, String)} following {@code after}.
+     */
+    Page categoryPage(String categoryId, boolean includeDescendants, int limit, SearchSort sort, SearchCursor after) {
+        int k = Math.max(1, limit);
+        DocSpace current = space;
+        DocumentTable documents = current.documents();
+        DocIdBitSet docs = includeDescendants
+                ? subtreeDocs(current, categoryId)
+                : current.facets().docs(FacetIndex.CATEGORY, categoryId);
+        if (docs == null) {
+            return Page.EMPTY;
+        }
+        List<TopKCollector.ScoredHit<Product>> hits = new ArrayList<>(Math.min(k, 1024));
+        boolean more = false;
+        if (sort == SearchSort.RELEVANCE) {
+            int from = after == null ? 0 : afterDoc(after, documents) + 1;
+            for (int doc = docs.nextSetBit(from); doc != PostingList.NO_MORE_DOCS; doc = docs.nextSetBit(doc + 1)) {
+                Product product = documents.product(doc);
+                if (product == null) {
+                    continue;
                 }
+                if (hits.size() == k) {
+                    more = true;
+                    break;
+                }
+                hits.add(new TopKCollector.ScoredHit<>(product, documents.sequence(doc), 0));
             }
+        } else {
+            boolean descending = sort == SearchSort.PRICE_DESC;
+            PriceIndex.Cursor priceCursor = after == null
+                    ? current.prices().cursor(null, null, descending)
+                    : current.prices().cursorAfter(null, null, descending, after.value(), afterDoc(after, documents));
+            more = pricePage(documents, priceCursor, docs, k, hits);
         }
+        return new Page(hits, docs.cardinality(), Collections.emptyMap(), more);
     }
 
-    private void removeFromIndex(ConcurrentMap<String, List<Product>> map, String key, Product product) {
-        List<Product> list = map.get(key);
-        if (list != null) {
-            synchronized (list) {
-                list.remove(product);
-                if (list.isEmpty()) {
-                    map.remove(key, list);
+    /**
+     * Seals the write buffer and merges every segment into one, dropping the postings of all deleted docs
+     * and reclaiming their doc IDs. Meant for the end of a bulk load; regular writes are compacted by
+     * background merges.
+     */
+    public void forceMerge() {
+        synchronized (mergeLock) {
+            long waitStart = lockWait.start(indexLock);
+            synchronized (indexLock) {
+                lockWait.acquired(waitStart);
+                seal();
+            }
+            DocumentTable documents = space.documents();
+            if (documents.maxDoc() > documents.liveDocs()) {
+                compact();
+                return;
+            }
+            List<IndexSegment> sealed = sealedSegments();
+            if (sealed.size() > 1) {
+                merge(sealed);
+            }
+        }
+    }
+
+    /**
+     * Stops background merging.
+     */
+    public void close() {
+        merger.shutdownNow();
+    }
+
+    /**
+     * Writes a snapshot of the index to {@code file}: the doc store (stored fields, field lengths and
+     * similarity graph links of every live doc, and the categories they are filed under), then the segments
+     * with their sorted terms and encoded postings, all under doc IDs numbering the live docs densely. Every
+     * product indexed before the call is included, and {@code watermark} is stored with it for
+     * {@link #loadSnapshot} to hand back. Writers are only blocked while the write buffer is sealed and the
+     * stored products and graph links are captured.
+     */
+    public void writeSnapshot(Path file, LocalDateTime watermark) throws IOException {
+        // Compact first so the snapshot carries as few postings of deleted docs as possible
+        forceMerge();
+        DocumentTable documents;
+        List<IndexSegment> sealed;
+        Product[] stored;
+        HnswGraph.Links links;
+        int[] newDocIds;
+        int live = 0;
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            seal();
+            documents = space.documents();
+            sealed = sealedSegments();
+            stored = new Product[documents.maxDoc()];
+            newDocIds = new int[stored.length];
+            for (int doc = 0; doc < stored.length; doc++) {
+                stored[doc] = documents.product(doc);
+                newDocIds[doc] = stored[doc] != null ? live++ : -1;
+            }
+            links = space.similarity().links(stored.length);
+        }
+        // Docs deleted since the forced merge are left out here, so their postings are too
+        List<IndexSegment> segments = live == stored.length
+                ? sealed
+                : List.of(IndexSegment.merge(sealed, doc -> newDocIds[doc], 0, live));
+        int liveCount = live;
+        IndexSnapshot.write(file, SNAPSHOT_KIND, watermark, out -> {
+            writeCategories(out, stored);
+            out.writeInt(liveCount);
+            int[] lengths = new int[Bm25Scorer.FIELD_COUNT];
+            for (int doc = 0; doc < stored.length; doc++) {
+                if (stored[doc] == null) continue;
+                writeProduct(out, stored[doc]);
+                documents.fieldLengths(doc, lengths);
+                for (int length : lengths) {
+                    out.writeInt(length);
+                }
+                links.writeNode(out, doc, newDocIds);
+            }
+            out.writeInt(links.entryPoint(newDocIds));
+            out.writeInt(segments.size());
+            for (IndexSegment segment : segments) {
+                segment.writeTo(out);
+            }
+        });
+        logger.info("Wrote index snapshot of {} docs in {} segments to {}", liveCount, segments.size(), file);
+    }
+
+    /**
+     * Reopens a snapshot written by {@link #writeSnapshot} into this index, which must still be empty,
+     * and returns the snapshot's watermark. The file is memory-mapped and decoded in one sequential pass:
+     * posting lists are copied out of the mapping as encoded bytes and doc IDs are kept as they were written, so
+     * the inverted index is not rebuilt; only the doc values (facets, prices, categories, suggestions and
+     * similarity vectors) are rebuilt from the stored fields. The vectors get back the graph links they were
+     * written with, so none is searched for its neighbours again.
+     *
+     * @throws IOException if the snapshot is missing, has another format version or is corrupt, in which
+     *                     case the index is left untouched.
+     */
+    public LocalDateTime loadSnapshot(Path file) throws IOException {
+        IndexSnapshot.Reader in = IndexSnapshot.open(file, SNAPSHOT_KIND);
+        int maxDoc;
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            DocumentTable documents = space.documents();
+            if (documents.maxDoc() > 0) {
+                throw new IllegalStateException("A snapshot can only be loaded into an empty index");
+            }
+            Map<Long, Category> categories = readCategories(in);
+            categoryTree.addAll(categories.values());
+            maxDoc = in.readInt();
+            int[] lengths = new int[Bm25Scorer.FIELD_COUNT];
+            for (int doc = 0; doc < maxDoc; doc++) {
+                Product product = readProduct(in, categories);
+                for (int field = 0; field < lengths.length; field++) {
+                    lengths[field] = in.readInt();
                 }
+                int docId = documents.add(product, lengths);
+                addLookups(product);
+                addDocValues(product, docId, HnswGraph.readLayers(in));
+            }
+            space.similarity().restoreEntryPoint(in.readInt());
+            int segmentCount = in.readInt();
+            List<IndexSegment> restored = new ArrayList<>(segmentCount + 1);
+            for (int i = 0; i < segmentCount; i++) {
+                IndexSegment segment = IndexSegment.readFrom(in, doc -> documents.product(doc) != null);
+                termDictionary.addAll(segment.terms());
+                restored.add(segment);
             }
+            restored.add(IndexSegment.buffer(maxDoc));
+            space = space.withSegments(List.copyOf(restored));
+            generation.incrementAndGet();
+        }
+        logger.info("Loaded index snapshot of {} products from {}", maxDoc, file);
+        return in.watermark();
+    }
+
+    // --- Statistics ---
+
+    /**
+     * Number of indexed products.
+     */
+    public int liveDocs() {
+        return space.documents().liveDocs();
+    }
+
+    /**
+     * Number of deleted documents whose postings have not been merged away yet.
+     */
+    public int deletedDocs() {
+        int deleted = 0;
+        for (IndexSegment segment : space.segments()) {
+            deleted += segment.deletedCount();
+        }
+        return deleted;
+    }
+
+    /**
+     * Number of distinct terms in the inverted index.
+     */
+    public int termCount() {
+        return termDictionary.size();
+    }
+
+    /**
+     * Encoded size of the postings of every segment, in bytes.
+     */
+    public long postingBytes() {
+        long bytes = 0;
+        for (IndexSegment segment : space.segments()) {
+            bytes += segment.sizeInBytes();
         }
+        return bytes;
+    }
+
+    /**
+     * Documents added since the index was created, re-indexed products included.
+     */
+    public long documentsAdded() {
+        return space.documents().additions();
+    }
+
+    /**
+     * Documents deleted since the index was created, replaced documents of re-indexed products included.
+     */
+    public long documentsDeleted() {
+        return space.documents().deletions();
+    }
+
+    /**
+     * Time spent waiting for the index lock, which writes, merges and snapshots take.
+     */
+    public LockWaitTimer lockWait() {
+        return lockWait;
+    }
+
+    /**
+     * Product IDs of every indexed product.
+     */
+    public Set<Long> productIds() {
+        return space.documents().productIds();
     }
 
-    private List<Product> searchByPrefix(ConcurrentSkipListMap<String, List<Product>> map, String prefix) {
-        List<Product> matches = new ArrayList<>();
-        NavigableMap<String, List<Product>> tailMap = map.tailMap(prefix, true);
-        for (Map.Entry<String, List<Product>> entry : tailMap.entrySet()) {
-            String key = entry.getKey();
-            if (!key.startsWith(prefix)) break;
-            synchronized (entry.getValue()) {
-                matches.addAll(entry.getValue());
+    /**
+     * The indexed copy of a product, or null if it is not indexed.
+     */
+    public Product product(Long productId) {
+        DocumentTable documents = space.documents();
+        int docId = documents.docId(productId);
+        return docId < 0 ? null : documents.product(docId);
+    }
+
+    /**
+     * The fields shown for a product in a result list, or null if it is not indexed.
+     */
+    public StoredFields storedFields(Long productId) {
+        DocumentTable documents = space.documents();
+        int docId = documents.docId(productId);
+        return docId < 0 ? null : documents.storedFields(docId);
+    }
+
+    public int segmentCount() {
+        return space.segments().size();
+    }
+
+    /**
+     * One past the highest doc ID in use, deleted docs that have not been compacted away included.
+     */
+    int maxDoc() {
+        return space.documents().maxDoc();
+    }
+
+    /**
+     * Number of vectors in the similarity graph.
+     */
+    int similarityGraphSize() {
+        return space.similarity().size();
+    }
+
+    /**
+     * Number of entries in the price index, deleted docs that have not been compacted away included.
+     */
+    int priceEntries() {
+        return space.prices().entryCount();
+    }
+
+    /**
+     * Waits until the merges scheduled so far have run.
+     */
+    void awaitMerges() {
+        try {
+            merger.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Adds or moves a category in the category tree after it was created or re-parented.
+     */
+    public void updateCategory(Category category) {
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            if (categoryTree.add(category)) {
+                generation.incrementAndGet();
+                logger.debug("Category {} changed, category tree renumbered", category.getCategoryId());
+            }
+        }
+    }
+
+    /**
+     * Removes a deleted category and its subcategories from the category tree.
+     */
+    public void removeCategory(Long categoryId) {
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            if (categoryTree.remove(categoryId)) {
+                generation.incrementAndGet();
+                logger.debug("Category {} removed, category tree renumbered", categoryId);
+            }
+        }
+    }
+
+    // --- Helper Methods ---
+
+    private DocIdBitSet subtreeDocs(DocSpace current, String categoryId) {
+        long id;
+        try {
+            id = Long.parseLong(categoryId);
+        } catch (NumberFormatException e) {
+            return current.facets().docs(FacetIndex.CATEGORY, categoryId);
+        }
+        DocIdBitSet docs = new DocIdBitSet(current.documents().maxDoc());
+        for (Long descendant : categoryTree.subtree(id)) {
+            DocIdBitSet categoryDocs = current.facets().docs(FacetIndex.CATEGORY, descendant.toString());
+            if (categoryDocs != null) {
+                docs.or(categoryDocs);
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Streams the price cursor into {@code results} until it holds {@code k} docs from {@code matches},
+     * returning the cursor of the next page, or null if no further match follows.
+     */
+    private static boolean pricePage(DocumentTable documents, PriceIndex.Cursor cursor, DocIdBitSet matches, int k,
+                                     List<TopKCollector.ScoredHit<Product>> hits) {
+        for (int doc = cursor.nextDoc(); doc != PostingList.NO_MORE_DOCS; doc = cursor.nextDoc()) {
+            Product product = documents.product(doc);
+            if (product == null || !matches.get(doc)) {
+                continue;
+            }
+            if (hits.size() == k) {
+                return true;
+            }
+            hits.add(new TopKCollector.ScoredHit<>(product, documents.sequence(doc), cursor.price()));
+        }
+        return false;
+    }
+
+    /**
+     * The doc a cursor's hit had, or the one it would have had if it was since dropped: hits past the cursor
+     * are past this doc in the cursor's sort order, which breaks ties by descending doc for {@code PRICE_DESC}
+     * and by ascending doc otherwise.
+     */
+    private static int afterDoc(SearchCursor after, DocumentTable documents) {
+        if (after.sort() == SearchSort.PRICE_DESC) {
+            return documents.docsBefore(after.key());
+        }
+        return documents.docsBefore(after.key() + 1) - 1;
+    }
+
+    /**
+     * Adds the product to the exact-match lookups and the suggester.
+     */
+    private void addLookups(Product product) {
+        getOrCreateList(fastIndexByName, product.getName().toLowerCase()).add(product);
+        getOrCreateList(fastIndexBySku, product.getSku().toLowerCase()).add(product);
+        addSuggestions(product);
+    }
+
+    private void removeLookups(Product product) {
+        removeFromIndex(fastIndexByName, product.getName().toLowerCase(), product);
+        removeFromIndex(fastIndexBySku, product.getSku().toLowerCase(), product);
+        removeSuggestions(product);
+    }
+
+    /**
+     * Adds the facets, categories, effective price and similarity vector of a doc.
+     */
+    private void addDocValues(Product product, int docId) {
+        addDocValues(product, docId, null);
+    }
+
+    /**
+     * Adds the doc values of a doc, restoring the links of its similarity vector from a snapshot if
+     * {@code links} are given instead of searching the graph for its neighbours.
+     */
+    private void addDocValues(Product product, int docId, int[][] links) {
+        DocSpace current = space;
+        current.facets().add(docId, facetValues(product));
+        categoryTree.addAll(product.getCategories());
+        Double price = effectivePrice(product);
+        if (price != null) {
+            current.prices().add(docId, price);
+        }
+        float[] vector = TermVectors.of(analyzer, product.getName(), product.getDescription());
+        if (vector != null) {
+            if (links == null) {
+                current.similarity().add(docId, vector);
+            } else if (links.length > 0) {
+                current.similarity().restore(docId, vector, links);
+            }
+        }
+        current.ranks().add(docId, product);
+    }
+
+    private void addSuggestions(Product product) {
+        CompletionTrie.Suggestion suggestion =
+                new CompletionTrie.Suggestion(product.getName(), product.getProductId(), popularity(product));
+        for (String key : suggestionKeys(product)) {
+            suggester.add(key, suggestion);
+        }
+    }
+
+    private void removeSuggestions(Product product) {
+        for (String key : suggestionKeys(product)) {
+            suggester.remove(key, product.getProductId());
+        }
+    }
+
+    private static List<String> suggestionKeys(Product product) {
+        List<String> keys = new ArrayList<>();
+        String name = product.getName().trim().toLowerCase().replaceAll("\\s+", " ");
+        keys.add(name);
+        int start = name.indexOf(' ');
+        for (int i = 0; i < SUGGESTION_WORD_STARTS && start >= 0; i++) {
+            keys.add(name.substring(start + 1));
+            start = name.indexOf(' ', start + 1);
+        }
+        keys.add(product.getSku());
+        return keys;
+    }
+
+    /**
+     * Popularity weight used to rank suggestions: the number of reviews the product has.
+     */
+    private static double popularity(Product product) {
+        return product.getReviews() == null ? 0 : product.getReviews().size();
+    }
+
+    /**
+     * The parts of the index keyed by doc ID, which are only ever renumbered together.
+     *
+     * @param documents  Dense doc IDs, stored products and field lengths for documents in the inverted index
+     * @param segments   Inverted index for full-text search, split into segments of term -> compressed postings
+     *                   over disjoint doc ID ranges: sealed immutable segments followed by the write buffer
+     * @param facets     Facet index (category, supplier, price bucket, rating bucket -> doc-ID bit sets)
+     * @param prices     Effective price per doc in sorted arrays, for price range filters and price-ordered results
+     * @param similarity Hashed term vectors of name and description in an HNSW graph, for similar products;
+     *                   nodes are doc IDs
+     * @param ranks      Rating, review count, decayed sales and age per doc, blended into relevance scores
+     */
+    private record DocSpace(DocumentTable documents, List<IndexSegment> segments, FacetIndex facets,
+                            PriceIndex prices, HnswGraph similarity, StaticRank ranks) {
+
+        static DocSpace empty() {
+            return new DocSpace(new DocumentTable(Bm25Scorer.FIELD_COUNT), List.of(IndexSegment.buffer(0)),
+                    new FacetIndex(), new PriceIndex(), new HnswGraph(TermVectors.DIMENSIONS), new StaticRank());
+        }
+
+        DocSpace withSegments(List<IndexSegment> segments) {
+            return new DocSpace(documents, segments, facets, prices, similarity, ranks);
+        }
+    }
+
+    /**
+     * Point-in-time view of the segments a query runs against. Collection-wide statistics such as
+     * document frequencies and fuzzy expansions are computed once here and shared by all segments.
+     */
+    private final class QueryContext {
+        private final DocumentTable documents;
+        private final List<IndexSegment> segments;
+        private final double[] avgFieldLengths;
+        private final Map<String, Integer> docFreqs = new HashMap<>();
+        private final Map<String, List<LevenshteinAutomaton.Match>> expansions = new HashMap<>();
+
+        private QueryContext(DocSpace space, double[] avgFieldLengths) {
+            this.documents = space.documents();
+            this.segments = space.segments();
+            this.avgFieldLengths = avgFieldLengths;
+        }
+
+        private int docFreq(String term) {
+            return docFreqs.computeIfAbsent(term, k -> {
+                int docFreq = 0;
+                for (IndexSegment segment : segments) {
+                    PostingList postings = segment.postings(k);
+                    if (postings != null) {
+                        docFreq += postings.docFreq();
+                    }
+                }
+                return docFreq;
+            });
+        }
+
+        private List<LevenshteinAutomaton.Match> expand(String term, int maxEdits) {
+            int edits = maxEdits == QueryNode.Fuzzy.AUTO ? LevenshteinAutomaton.maxEditsFor(term) : maxEdits;
+            return expansions.computeIfAbsent(edits + ":" + term, k -> {
+                List<LevenshteinAutomaton.Match> matches = new LevenshteinAutomaton(term, edits)
+                        .expand(termDictionary, this::docFreq, MAX_FUZZY_EXPANSIONS);
+                logger.debug("Fuzzy term '{}' (max edits {}) expanded to {} terms", term, edits, matches.size());
+                return matches;
+            });
+        }
+    }
+
+    /**
+     * Builds the query's iterator in every segment and chains them; segments hold ascending doc ID ranges.
+     */
+    private DocIterator iterator(QueryNode node, QueryContext context) {
+        List<DocIterator> perSegment = new ArrayList<>(context.segments.size());
+        for (IndexSegment segment : context.segments) {
+            perSegment.add(iterator(node, segment, context, true));
+        }
+        return DocIterators.concat(perSegment);
+    }
+
+    private DocIterator fuzzyIterator(String term, int maxEdits, IndexSegment segment, QueryContext context) {
+        List<DocIterator> expansions = new ArrayList<>();
+        for (LevenshteinAutomaton.Match match : context.expand(term, maxEdits)) {
+            PostingList postings = segment.postings(match.term());
+            if (postings != null) {
+                double boost = Math.pow(FUZZY_EDIT_PENALTY, match.edits());
+                expansions.add(DocIterators.term(postings, match.docFreq(), context.documents, context.avgFieldLengths, boost));
+            }
+        }
+        return DocIterators.disjunction(expansions);
+    }
+
+    /**
+     * Weighted disjunction of a term and its synonyms. Alternatives that occur nowhere in the index are
+     * skipped before any posting list is opened; if that leaves only phrases, or nothing, the term
+     * itself still falls back to its fuzzy expansions when {@code expandUnknown} is set.
+     */
+    private DocIterator synonymIterator(QueryNode.Synonyms synonyms, IndexSegment segment, QueryContext context,
+                                        boolean expandUnknown) {
+        List<DocIterator> alternatives = new ArrayList<>(synonyms.alternatives().size());
+        boolean anyTermKnown = false;
+        for (QueryNode.Synonyms.Alternative alternative : synonyms.alternatives()) {
+            if (alternative.terms().size() > 1) {
+                QueryNode.Phrase phrase = new QueryNode.Phrase(alternative.terms(), 0);
+                alternatives.add(DocIterators.boost(iterator(phrase, segment, context, expandUnknown), alternative.weight()));
+                continue;
+            }
+            String term = alternative.terms().get(0);
+            int docFreq = context.docFreq(term);
+            if (docFreq == 0) {
+                continue;
+            }
+            anyTermKnown = true;
+            PostingList postings = segment.postings(term);
+            if (postings != null) {
+                alternatives.add(DocIterators.term(postings, docFreq, context.documents, context.avgFieldLengths, alternative.weight()));
+            }
+        }
+        if (!anyTermKnown && expandUnknown) {
+            String term = synonyms.alternatives().get(0).terms().get(0);
+            alternatives.add(fuzzyIterator(term, QueryNode.Fuzzy.AUTO, segment, context));
+        }
+        return DocIterators.disjunction(alternatives);
+    }
+
+    /**
+     * Iterator of one query node within a segment.
+     *
+     * @param expandUnknown Whether terms that occur nowhere in the index fall back to their fuzzy expansions.
+     *                      Off below a mustNot clause, where a typo must not exclude every product it resembles.
+     */
+    private DocIterator iterator(QueryNode node, IndexSegment segment, QueryContext context, boolean expandUnknown) {
+        if (node instanceof QueryNode.Term term) {
+            int docFreq = context.docFreq(term.term());
+            if (docFreq == 0) {
+                // Unknown term, most likely a typo: fall back to its fuzzy expansions
+                return expandUnknown
+                        ? fuzzyIterator(term.term(), QueryNode.Fuzzy.AUTO, segment, context)
+                        : DocIterators.empty();
+            }
+            PostingList postings = segment.postings(term.term());
+            return postings == null
+                    ? DocIterators.empty()
+                    : DocIterators.term(postings, docFreq, context.documents, context.avgFieldLengths, 1.0);
+        }
+        if (node instanceof QueryNode.Fuzzy fuzzy) {
+            return fuzzyIterator(fuzzy.term(), fuzzy.maxEdits(), segment, context);
+        }
+        if (node instanceof QueryNode.Synonyms synonyms) {
+            return synonymIterator(synonyms, segment, context, expandUnknown);
+        }
+        if (node instanceof QueryNode.Phrase phrase) {
+            List<PostingList> postings = new ArrayList<>(phrase.terms().size());
+            int[] docFreqs = new int[phrase.terms().size()];
+            for (String term : phrase.terms()) {
+                PostingList termPostings = segment.postings(term);
+                if (termPostings == null) {
+                    return DocIterators.empty();
+                }
+                docFreqs[postings.size()] = context.docFreq(term);
+                postings.add(termPostings);
+            }
+            return DocIterators.phrase(postings, docFreqs, phrase.slop(), context.documents, context.avgFieldLengths);
+        }
+        QueryNode.Bool bool = (QueryNode.Bool) node;
+        List<DocIterator> must = new ArrayList<>();
+        for (QueryNode clause : bool.must()) {
+            must.add(iterator(clause, segment, context, expandUnknown));
+        }
+        List<DocIterator> should = new ArrayList<>();
+        for (QueryNode clause : bool.should()) {
+            should.add(iterator(clause, segment, context, expandUnknown));
+        }
+        List<DocIterator> mustNot = new ArrayList<>();
+        for (QueryNode clause : bool.mustNot()) {
+            mustNot.add(iterator(clause, segment, context, false));
+        }
+
+        DocIterator result = must.isEmpty()
+                ? DocIterators.disjunction(should)
+                : DocIterators.conjunction(must);
+        if (!must.isEmpty() && !should.isEmpty()) {
+            result = DocIterators.requiredOptional(result, DocIterators.disjunction(should));
+        }
+        if (!mustNot.isEmpty()) {
+            result = DocIterators.exclusion(result, DocIterators.disjunction(mustNot));
+        }
+        return result;
+    }
+
+    private static String[] textFields(Product product) {
+        String[] fields = new String[Bm25Scorer.FIELD_COUNT];
+        fields[Bm25Scorer.FIELD_NAME] = product.getName();
+        fields[Bm25Scorer.FIELD_DESCRIPTION] = product.getDescription();
+        return fields;
+    }
+
+    /**
+     * Analyzes the text fields of a product into the positions of each term, filling in the field lengths.
+     */
+    private Map<String, TermOccurrences> analyze(Product product, int[] lengths) {
+        String[] textFields = textFields(product);
+        Map<String, TermOccurrences> occurrences = new HashMap<>();
+        for (int field = 0; field < textFields.length; field++) {
+            int current = field;
+            lengths[field] = analyzer.analyze(textFields[field], (term, position) ->
+                    occurrences.computeIfAbsent(term, k -> new TermOccurrences()).add(current, position));
+        }
+        return occurrences;
+    }
+
+    private int indexTextFields(Product product) {
+        int[] lengths = new int[Bm25Scorer.FIELD_COUNT];
+        Map<String, TermOccurrences> occurrences = analyze(product, lengths);
+        int docId = space.documents().add(product, lengths);
+        IndexSegment buffer = writeBuffer();
+        occurrences.forEach((term, occurrence) ->
+                buffer.postingsForWrite(term, termDictionary::add).add(docId, occurrence.freqs, occurrence.positions));
+        buffer.docAdded(docId);
+        return docId;
+    }
+
+    /**
+     * Positions of one term in each field of the document being indexed.
+     */
+    private static final class TermOccurrences {
+        private final int[] freqs = new int[Bm25Scorer.FIELD_COUNT];
+        private final int[][] positions = new int[Bm25Scorer.FIELD_COUNT][];
+
+        private void add(int field, int position) {
+            int[] fieldPositions = positions[field];
+            if (fieldPositions == null) {
+                fieldPositions = positions[field] = new int[4];
+            } else if (freqs[field] == fieldPositions.length) {
+                fieldPositions = positions[field] = Arrays.copyOf(fieldPositions, freqs[field] << 1);
+            }
+            fieldPositions[freqs[field]++] = position;
+        }
+    }
+
+    private void removeDocument(Product product) {
+        DocSpace current = space;
+        int docId = current.documents().delete(product.getProductId());
+        if (docId >= 0) {
+            IndexSegment segment = segmentOf(docId);
+            if (segment != null) {
+                segment.docDeleted(docId);
+            }
+            current.facets().remove(docId);
+            current.prices().remove(docId);
+            current.similarity().remove(docId);
+        }
+    }
+
+    /**
+     * Lowest price the product can be bought at: the base price plus the smallest variant price adjustment,
+     * or null if the product has no base price.
+     */
+    static Double effectivePrice(Product product) {
+        if (product.getBasePrice() == null) {
+            return null;
+        }
+        double adjustment = 0;
+        if (product.getVariants() != null && !product.getVariants().isEmpty()) {
+            adjustment = product.getVariants().stream()
+                    .map(ProductVariant::getPriceAdjustment)
+                    .filter(Objects::nonNull)
+                    .mapToDouble(Double::doubleValue)
+                    .min()
+                    .orElse(0);
+        }
+        return product.getBasePrice() + adjustment;
+    }
+
+    private static Map<String, List<String>> facetValues(Product product) {
+        Map<String, List<String>> values = new HashMap<>();
+        List<String> categories = new ArrayList<>();
+        product.getCategories().forEach(category -> categories.add(category.getCategoryId().toString()));
+        values.put(FacetIndex.CATEGORY, categories);
+        if (product.getSupplier() != null && product.getSupplier().getSupplierId() != null) {
+            values.put(FacetIndex.SUPPLIER, List.of(product.getSupplier().getSupplierId().toString()));
+        }
+        Double price = effectivePrice(product);
+        if (price != null) {
+            values.put(FacetIndex.PRICE, List.of(FacetIndex.priceBucket(price)));
+        }
+        if (product.getReviews() != null) {
+            product.getReviews().stream()
+                    .filter(review -> review.getRating() != null)
+                    .mapToInt(Review::getRating)
+                    .average()
+                    .ifPresent(rating -> values.put(FacetIndex.RATING, List.of(FacetIndex.ratingBucket(rating))));
+        }
+        return values;
+    }
+
+    // --- Snapshots ---
+
+    /**
+     * Writes the categories the products are filed under, with their ancestors, as (ID, name, parent ID).
+     */
+    private static void writeCategories(DataOutput out, Product[] stored) throws IOException {
+        Map<Long, Category> categories = new LinkedHashMap<>();
+        for (Product product : stored) {
+            if (product == null) continue;
+            for (Category category : product.getCategories()) {
+                Category current = category;
+                while (current != null && current.getCategoryId() != null
+                        && categories.putIfAbsent(current.getCategoryId(), current) == null) {
+                    current = current.getParentCategory();
+                }
+            }
+        }
+        out.writeInt(categories.size());
+        for (Category category : categories.values()) {
+            out.writeLong(category.getCategoryId());
+            IndexSnapshot.writeString(out, category.getName());
+            Category parent = category.getParentCategory();
+            IndexSnapshot.writeOptionalLong(out, parent == null ? null : parent.getCategoryId());
+        }
+    }
+
+    private static Map<Long, Category> readCategories(IndexSnapshot.Reader in) {
+        int count = in.readInt();
+        Map<Long, Category> categories = new HashMap<>(count * 2);
+        Map<Long, Long> parents = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            Category category = new Category();
+            category.setCategoryId(in.readLong());
+            category.setName(in.readString());
+            Long parentId = in.readOptionalLong();
+            categories.put(category.getCategoryId(), category);
+            if (parentId != null) {
+                parents.put(category.getCategoryId(), parentId);
+            }
+        }
+        parents.forEach((id, parentId) -> categories.get(id).setParentCategory(categories.get(parentId)));
+        return categories;
+    }
+
+    /**
+     * Writes the stored fields of a product: the fields search results and doc values are built from,
+     * with the supplier, variants and reviews flattened and categories referenced by ID. Variants and
+     * reviews are read back without their product back-reference, which would make their hash codes recurse.
+     */
+    private static void writeProduct(DataOutput out, Product product) throws IOException {
+        out.writeLong(product.getProductId());
+        IndexSnapshot.writeString(out, product.getName());
+        IndexSnapshot.writeString(out, product.getDescription());
+        IndexSnapshot.writeString(out, product.getSku());
+        IndexSnapshot.writeString(out, product.getThumbnailUrl());
+        IndexSnapshot.writeOptionalDouble(out, product.getBasePrice());
+        IndexSnapshot.writeDateTime(out, product.getCreatedAt());
+        IndexSnapshot.writeDateTime(out, product.getUpdatedAt());
+
+        Supplier supplier = product.getSupplier();
+        out.writeBoolean(supplier != null);
+        if (supplier != null) {
+            IndexSnapshot.writeOptionalLong(out, supplier.getSupplierId());
+            IndexSnapshot.writeString(out, supplier.getName());
+            IndexSnapshot.writeString(out, supplier.getContactInfo());
+            IndexSnapshot.writeString(out, supplier.getAddress());
+        }
+
+        out.writeInt(product.getCategories().size());
+        for (Category category : product.getCategories()) {
+            out.writeLong(category.getCategoryId());
+        }
+
+        Set<ProductVariant> variants = product.getVariants() == null ? Set.of() : product.getVariants();
+        out.writeInt(variants.size());
+        for (ProductVariant variant : variants) {
+            IndexSnapshot.writeOptionalLong(out, variant.getVariantId());
+            IndexSnapshot.writeString(out, variant.getSku());
+            IndexSnapshot.writeString(out, variant.getSize());
+            IndexSnapshot.writeString(out, variant.getColor());
+            IndexSnapshot.writeString(out, variant.getMaterial());
+            IndexSnapshot.writeOptionalDouble(out, variant.getPriceAdjustment());
+        }
+
+        Set<Review> reviews = product.getReviews() == null ? Set.of() : product.getReviews();
+        out.writeInt(reviews.size());
+        for (Review review : reviews) {
+            IndexSnapshot.writeOptionalLong(out, review.getReviewId());
+            out.writeInt(review.getRating() == null ? -1 : review.getRating());
+            IndexSnapshot.writeString(out, review.getComment());
+            IndexSnapshot.writeDateTime(out, review.getDate());
+        }
+    }
+
+    private static Product readProduct(IndexSnapshot.Reader in, Map<Long, Category> categories) {
+        Product product = new Product();
+        product.setProductId(in.readLong());
+        product.setName(in.readString());
+        product.setDescription(in.readString());
+        product.setSku(in.readString());
+        product.setThumbnailUrl(in.readString());
+        product.setBasePrice(in.readOptionalDouble());
+        product.setCreatedAt(in.readDateTime());
+        product.setUpdatedAt(in.readDateTime());
+
+        if (in.readBoolean()) {
+            Supplier supplier = new Supplier();
+            supplier.setSupplierId(in.readOptionalLong());
+            supplier.setName(in.readString());
+            supplier.setContactInfo(in.readString());
+            supplier.setAddress(in.readString());
+            product.setSupplier(supplier);
+        }
+
+        int categoryCount = in.readInt();
+        for (int i = 0; i < categoryCount; i++) {
+            Category category = categories.get(in.readLong());
+            if (category != null) {
+                product.getCategories().add(category);
+            }
+        }
+
+        int variantCount = in.readInt();
+        for (int i = 0; i < variantCount; i++) {
+            ProductVariant variant = new ProductVariant();
+            variant.setVariantId(in.readOptionalLong());
+            variant.setSku(in.readString());
+            variant.setSize(in.readString());
+            variant.setColor(in.readString());
+            variant.setMaterial(in.readString());
+            variant.setPriceAdjustment(in.readOptionalDouble());
+            product.getVariants().add(variant);
+        }
+
+        int reviewCount = in.readInt();
+        for (int i = 0; i < reviewCount; i++) {
+            Review review = new Review();
+            review.setReviewId(in.readOptionalLong());
+            int rating = in.readInt();
+            review.setRating(rating < 0 ? null : rating);
+            review.setComment(in.readString());
+            review.setDate(in.readDateTime());
+            product.getReviews().add(review);
+        }
+        return product;
+    }
+
+    // --- Segments ---
+
+    private IndexSegment writeBuffer() {
+        List<IndexSegment> current = space.segments();
+        return current.get(current.size() - 1);
+    }
+
+    private List<IndexSegment> sealedSegments() {
+        List<IndexSegment> current = space.segments();
+        return current.subList(0, current.size() - 1);
+    }
+
+    private IndexSegment segmentOf(int docId) {
+        for (IndexSegment segment : space.segments()) {
+            if (segment.contains(docId)) return segment;
+        }
+        return null;
+    }
+
+    /**
+     * Seals the write buffer once it is full and schedules a background merge. Caller holds the index lock.
+     */
+    private void maybeSeal() {
+        if (writeBuffer().docCount() >= sealThreshold) {
+            seal();
+            merger.execute(this::mergeInBackground);
+        }
+    }
+
+    /**
+     * Freezes the write buffer into a sealed segment and opens a new buffer. Caller holds the index lock.
+     */
+    private void seal() {
+        List<IndexSegment> current = space.segments();
+        IndexSegment buffer = current.get(current.size() - 1);
+        if (buffer.docCount() == 0) return;
+        int maxDoc = space.documents().maxDoc();
+        List<IndexSegment> next = new ArrayList<>(current.subList(0, current.size() - 1));
+        next.add(buffer.seal(maxDoc));
+        next.add(IndexSegment.buffer(maxDoc));
+        space = space.withSegments(List.copyOf(next));
+        logger.debug("Sealed segment of {} docs, {} segments", buffer.docCount(), next.size());
+    }
+
+    private void mergeInBackground() {
+        try {
+            synchronized (mergeLock) {
+                List<IndexSegment> candidates;
+                while ((candidates = findMerge(sealedSegments())) != null) {
+                    merge(candidates);
+                }
+                if (needsCompaction()) {
+                    compact();
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error merging index segments: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Picks the next run of adjacent sealed segments to merge: MERGE_FACTOR segments of one size tier,
+     * where tier t holds roughly sealThreshold * MERGE_FACTOR^t docs, or else a single segment with too
+     * many deletes. Returns null when nothing needs merging.
+     */
+    private List<IndexSegment> findMerge(List<IndexSegment> sealed) {
+        int runStart = 0;
+        for (int i = 1; i <= sealed.size(); i++) {
+            if (i == sealed.size() || tier(sealed.get(i)) != tier(sealed.get(runStart))) {
+                if (i - runStart >= MERGE_FACTOR) {
+                    return sealed.subList(runStart, runStart + MERGE_FACTOR);
+                }
+                runStart = i;
+            }
+        }
+        for (IndexSegment segment : sealed) {
+            if (segment.deletedRatio() > MAX_DELETED_RATIO) {
+                return List.of(segment);
+            }
+        }
+        return null;
+    }
+
+    private int tier(IndexSegment segment) {
+        int tier = 0;
+        for (long size = (long) sealThreshold * MERGE_FACTOR; segment.docCount() >= size; size *= MERGE_FACTOR) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Rewrites a run of adjacent sealed segments into one without the postings of deleted docs.
+     * The merge itself runs without the index lock; only swapping the result in takes it.
+     */
+    private void merge(List<IndexSegment> inputs) {
+        // Doc IDs only change by compaction, which also holds the merge lock
+        DocumentTable documents = space.documents();
+        IndexSegment merged = IndexSegment.merge(inputs, doc -> documents.product(doc) != null);
+        int segmentCount;
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            List<IndexSegment> current = space.segments();
+            int start = current.indexOf(inputs.get(0));
+            List<IndexSegment> next = new ArrayList<>(current.subList(0, start));
+            next.add(merged);
+            next.addAll(current.subList(start + inputs.size(), current.size()));
+            space = space.withSegments(List.copyOf(next));
+            segmentCount = next.size();
+            // Docs deleted while the merge ran still have postings in the merged segment
+            merged.recountDeleted(doc -> documents.product(doc) != null);
+            dropDeletedTerms(inputs);
+        }
+        logger.debug("Merged {} segments into one of {} docs ({} bytes), {} segments",
+                inputs.size(), merged.docCount(), merged.sizeInBytes(), segmentCount);
+    }
+
+    /**
+     * Whether deleted docs hold enough doc IDs to be worth compacting: as many as live docs do, and at least
+     * a write buffer's worth.
+     */
+    private boolean needsCompaction() {
+        DocumentTable documents = space.documents();
+        int dead = documents.maxDoc() - documents.liveDocs();
+        return dead > 0 && dead >= Math.max(documents.liveDocs(), sealThreshold);
+    }
+
+    /**
+     * Renumbers the live docs densely from 0, reclaiming the doc IDs of deleted docs in the doc store, the
+     * segments and every doc value. The sealed segments are merged into one under the new doc IDs without
+     * the index lock; docs indexed meanwhile are renumbered after them when the result is swapped in, together
+     * with a renumbered copy of everything else. Readers keep the space they started with, and cursors name
+     * docs by sequence number, so neither notices. Caller holds the merge lock.
+     */
+    private void compact() {
+        List<IndexSegment> inputs;
+        int captured;
+        int[] newDocIds;
+        int liveCount = 0;
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            seal();
+            inputs = sealedSegments();
+            DocumentTable documents = space.documents();
+            captured = documents.maxDoc();
+            newDocIds = new int[captured];
+            for (int doc = 0; doc < captured; doc++) {
+                newDocIds[doc] = documents.product(doc) != null ? liveCount++ : -1;
+            }
+        }
+        IndexSegment compacted = IndexSegment.merge(inputs, doc -> newDocIds[doc], 0, liveCount);
+
+        waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            seal();
+            DocSpace current = space;
+            DocumentTable documents = current.documents();
+            int maxDoc = documents.maxDoc();
+            // Docs indexed since the capture follow the compacted ones; docs of either deleted since keep
+            // their new doc ID until the next compaction, like any other deleted doc
+            int[] remap = Arrays.copyOf(newDocIds, maxDoc);
+            int newMaxDoc = liveCount;
+            for (int doc = captured; doc < maxDoc; doc++) {
+                remap[doc] = documents.product(doc) != null ? newMaxDoc++ : -1;
+            }
+            List<IndexSegment> old = current.segments();
+            List<IndexSegment> next = new ArrayList<>();
+            next.add(compacted);
+            for (IndexSegment segment : old) {
+                if (!segment.isSealed() || segment.docBase() < captured) continue;
+                int docBase = remap.length;
+                int docLimit = 0;
+                for (int doc = segment.docBase(); doc < segment.docLimit(); doc++) {
+                    if (remap[doc] >= 0) {
+                        docBase = Math.min(docBase, remap[doc]);
+                        docLimit = remap[doc] + 1;
+                    }
+                }
+                if (docLimit > 0) {
+                    next.add(IndexSegment.merge(List.of(segment), doc -> remap[doc], docBase, docLimit));
+                }
+            }
+            next.add(IndexSegment.buffer(newMaxDoc));
+            DocumentTable renumbered = documents.compact(remap, newMaxDoc);
+            compacted.recountDeleted(doc -> renumbered.product(doc) != null);
+            space = new DocSpace(renumbered, List.copyOf(next),
+                    current.facets().compact(remap),
+                    current.prices().compact(remap, newMaxDoc),
+                    current.similarity().compact(remap, newMaxDoc),
+                    current.ranks().compact(remap, newMaxDoc));
+            dropDeletedTerms(old);
+            logger.info("Compacted doc IDs from {} to {}, {} segments", maxDoc, newMaxDoc, next.size());
+        }
+    }
+
+    /**
+     * Drops dictionary terms of replaced segments that have no postings left in any segment. Caller holds
+     * the index lock.
+     */
+    private void dropDeletedTerms(List<IndexSegment> replaced) {
+        for (IndexSegment segment : replaced) {
+            for (String term : segment.terms()) {
+                if (termDictionary.contains(term) && !inAnySegment(term)) {
+                    termDictionary.remove(term);
+                }
+            }
+        }
+    }
+
+    private boolean inAnySegment(String term) {
+        for (IndexSegment segment : space.segments()) {
+            if (segment.postings(term) != null) return true;
+        }
+        return false;
+    }
+
+    private void removeFromIndex(ConcurrentMap<String, List<Product>> map, String key, Product product) {
+        List<Product> list = map.get(key);
+        if (list != null) {
+            synchronized (list) {
+                list.remove(product);
+                if (list.isEmpty()) {
+                    map.remove(key, list);
+                }
             }
         }
-        return matches;
     }
 }
\ No newline at end of file
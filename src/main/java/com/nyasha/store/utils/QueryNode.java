@@ -0,0 +1,53 @@
+package com.nyasha.store.utils;
+
+import java.util.List;
+
+/**
+ * Parsed form of a product search query.
+ */
+public sealed interface QueryNode {
+
+    /**
+     * A single analysed term.
+     */
+    record Term(String term) implements QueryNode {
+    }
+
+    /**
+     * A term that also matches dictionary terms within {@code maxEdits} edits, scored below exact matches.
+     * {@link #AUTO} scales the edit distance with the term length.
+     */
+    record Fuzzy(String term, int maxEdits) implements QueryNode {
+        public static final int AUTO = -1;
+        public static final int MAX_EDITS = 2;
+    }
+
+    /**
+     * Terms that must occur close together in the same field. With a slop of 0 they must be
+     * adjacent and in order; with a slop of N they may appear in any order as long as all of them
+     * fit in a window of {@code terms.size() + N} consecutive positions.
+     */
+    record Phrase(List<String> terms, int slop) implements QueryNode {
+    }
+
+    /**
+     * A query term together with its synonyms, any of which matches. Each alternative is a term or a
+     * phrase whose score is multiplied by its weight, so the shopper's own word can rank above its synonyms.
+     */
+    record Synonyms(List<Alternative> alternatives) implements QueryNode {
+
+        /**
+         * One way of writing the term: a single analysed term, or several that must occur as a phrase.
+         */
+        public record Alternative(List<String> terms, double weight) {
+        }
+    }
+
+    /**
+     * Boolean combination of clauses. Documents must match every {@code must} clause and no
+     * {@code mustNot} clause; when there are no {@code must} clauses at least one {@code should}
+     * clause has to match. Matching {@code should} clauses always add to the score.
+     */
+    record Bool(List<QueryNode> must, List<QueryNode> should, List<QueryNode> mustNot) implements QueryNode {
+    }
+}
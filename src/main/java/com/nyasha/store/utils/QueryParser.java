@@ -0,0 +1,185 @@
+package com.nyasha.store.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Parses shopper queries into a {@link QueryNode} tree.
+ * <p>
+ * Supported syntax:
+ * <ul>
+ *     <li>{@code shirt} - optional term; with no required clauses at least one optional clause must match</li>
+ *     <li>{@code +cotton} - required clause</li>
+ *     <li>{@code -polyester} - excluded clause</li>
+ *     <li>{@code tv OR television} - either alternative; a leading + or - applies to the whole group</li>
+ *     <li>{@code "usb c cable"} - exact phrase</li>
+ *     <li>{@code "usb cable"~3} - proximity: the terms within 3 extra words of each other, in any order</li>
+ *     <li>{@code hedphones~} or {@code hedphones~1} - fuzzy term, with the default or an explicit edit distance</li>
+ *     <li>{@code (a b)} - nested group with the same rules</li>
+ * </ul>
+ * Words are passed through the analyzer, so a word that splits into several terms
+ * (for example {@code t-shirt}) is treated as a phrase.
+ */
+public final class QueryParser {
+
+    private static final int NOT_FUZZY = -2;
+
+    private final Function<String, String[]> analyzer;
+
+    public QueryParser(Function<String, String[]> analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Parses a query. Returns null if it contains no searchable terms.
+     */
+    public QueryNode parse(String query) {
+        return simplify(new Parse(query == null ? "" : query).parseClauses(false));
+    }
+
+    /**
+     * Recursive-descent state for a single query string.
+     */
+    private final class Parse {
+        private final String input;
+        private int pos;
+
+        private Parse(String input) {
+            this.input = input;
+        }
+
+        private QueryNode.Bool parseClauses(boolean nested) {
+            List<QueryNode> must = new ArrayList<>();
+            List<QueryNode> should = new ArrayList<>();
+            List<QueryNode> mustNot = new ArrayList<>();
+            while (true) {
+                skipWhitespace();
+                if (pos >= input.length()) break;
+                if (input.charAt(pos) == ')') {
+                    pos++;
+                    if (nested) break;
+                    continue;
+                }
+                char prefix = input.charAt(pos);
+                if (prefix == '+' || prefix == '-') {
+                    pos++;
+                } else {
+                    prefix = 0;
+                }
+                QueryNode clause = parseAlternatives();
+                if (clause == null) continue;
+                switch (prefix) {
+                    case '+' -> must.add(clause);
+                    case '-' -> mustNot.add(clause);
+                    default -> should.add(clause);
+                }
+            }
+            return new QueryNode.Bool(must, should, mustNot);
+        }
+
+        private QueryNode parseAlternatives() {
+            List<QueryNode> alternatives = new ArrayList<>();
+            addIfPresent(alternatives, parsePrimary());
+            while (true) {
+                int mark = pos;
+                skipWhitespace();
+                if (consumeOrOperator()) {
+                    skipWhitespace();
+                    addIfPresent(alternatives, parsePrimary());
+                } else {
+                    pos = mark;
+                    break;
+                }
+            }
+            if (alternatives.isEmpty()) return null;
+            if (alternatives.size() == 1) return alternatives.get(0);
+            return new QueryNode.Bool(List.of(), alternatives, List.of());
+        }
+
+        private QueryNode parsePrimary() {
+            if (pos >= input.length()) return null;
+            char c = input.charAt(pos);
+            if (c == '"') {
+                int end = input.indexOf('"', pos + 1);
+                if (end < 0) end = input.length();
+                String text = input.substring(pos + 1, end);
+                pos = Math.min(end + 1, input.length());
+                return phrase(analyzer.apply(text), parseTilde(0, 0));
+            }
+            if (c == '(') {
+                pos++;
+                return simplify(parseClauses(true));
+            }
+            int start = pos;
+            while (pos < input.length() && !isDelimiter(input.charAt(pos)) && input.charAt(pos) != '~') {
+                pos++;
+            }
+            String[] terms = analyzer.apply(input.substring(start, pos));
+            int maxEdits = parseTilde(NOT_FUZZY, QueryNode.Fuzzy.AUTO);
+            if (maxEdits != NOT_FUZZY && terms.length == 1) {
+                return new QueryNode.Fuzzy(terms[0], Math.min(maxEdits, QueryNode.Fuzzy.MAX_EDITS));
+            }
+            return phrase(terms, 0);
+        }
+
+        /**
+         * Parses an optional {@code ~N} suffix.
+         *
+         * @param absent Value returned when there is no suffix.
+         * @param bare   Value returned for a {@code ~} without a number.
+         */
+        private int parseTilde(int absent, int bare) {
+            if (pos >= input.length() || input.charAt(pos) != '~') return absent;
+            int start = ++pos;
+            while (pos < input.length() && Character.isDigit(input.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos) return bare;
+            return Integer.parseInt(input.substring(start, Math.min(pos, start + 4)));
+        }
+
+        private boolean consumeOrOperator() {
+            if (input.startsWith("|", pos)) {
+                pos++;
+                return true;
+            }
+            if (input.startsWith("OR", pos) && (pos + 2 == input.length() || isDelimiter(input.charAt(pos + 2)))) {
+                pos += 2;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+
+    private static boolean isDelimiter(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')' || c == '"' || c == '|';
+    }
+
+    private static QueryNode phrase(String[] terms, int slop) {
+        if (terms.length == 0) return null;
+        if (terms.length == 1) return new QueryNode.Term(terms[0]);
+        return new QueryNode.Phrase(List.of(terms), slop);
+    }
+
+    private static void addIfPresent(List<QueryNode> clauses, QueryNode clause) {
+        if (clause != null) clauses.add(clause);
+    }
+
+    /**
+     * Unwraps groups holding a single positive clause and drops groups that cannot match anything.
+     */
+    private static QueryNode simplify(QueryNode.Bool bool) {
+        if (bool.must().isEmpty() && bool.should().isEmpty()) return null;
+        if (bool.mustNot().isEmpty() && bool.must().size() + bool.should().size() == 1) {
+            return bool.must().isEmpty() ? bool.should().get(0) : bool.must().get(0);
+        }
+        return bool;
+    }
+}
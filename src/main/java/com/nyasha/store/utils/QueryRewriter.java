@@ -0,0 +1,55 @@
+package com.nyasha.store.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Parses queries and rewrites them with a synonym dictionary, caching the result per normalized query
+ * string so a repeated query skips both steps. A rewriter is tied to one dictionary; reloading the
+ * dictionary replaces the rewriter, and with it the cache.
+ * <p>
+ * The cached form holds every expansion in the dictionary. Expansions that do not occur in the index
+ * are dropped when the query runs, against the document frequencies of that moment, so the cache never
+ * has to be invalidated as products change.
+ */
+final class QueryRewriter {
+
+    // The cache is started afresh once it holds this many queries
+    private static final int MAX_CACHED_QUERIES = 10_000;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final QueryParser parser;
+    private final SynonymDictionary synonyms;
+    private final ConcurrentMap<String, Rewritten> cache = new ConcurrentHashMap<>();
+
+    QueryRewriter(QueryParser parser, SynonymDictionary synonyms) {
+        this.parser = parser;
+        this.synonyms = synonyms;
+    }
+
+    SynonymDictionary synonyms() {
+        return synonyms;
+    }
+
+    /**
+     * The parsed and rewritten query, or null if it contains no searchable terms.
+     */
+    QueryNode rewrite(String query) {
+        String normalized = query == null ? "" : WHITESPACE.matcher(query.strip()).replaceAll(" ");
+        Rewritten cached = cache.get(normalized);
+        if (cached == null) {
+            if (cache.size() >= MAX_CACHED_QUERIES) {
+                cache.clear();
+            }
+            cached = new Rewritten(synonyms.rewrite(parser.parse(normalized)));
+            cache.putIfAbsent(normalized, cached);
+        }
+        return cached.query();
+    }
+
+    // Wrapper so queries without terms, which parse to null, are cached too
+    private record Rewritten(QueryNode query) {
+    }
+}
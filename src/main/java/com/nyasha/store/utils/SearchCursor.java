@@ -0,0 +1,51 @@
+package com.nyasha.store.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Position of the last hit of a page, handed to clients as an opaque token so the next page
+ * resumes right after it instead of skipping an offset.
+ * <p>
+ * {@code value} is the sort value of that hit (score, price or suggestion weight) and {@code key}
+ * its tie-breaker (sequence number of the doc, which unlike its doc ID survives compaction, or product
+ * ID for suggestions).
+ */
+public record SearchCursor(SearchSort sort, double value, long key) {
+
+    private static final int ENCODED_LENGTH = 1 + Double.BYTES + Long.BYTES;
+
+    public String encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(ENCODED_LENGTH);
+        buffer.put((byte) sort.ordinal());
+        buffer.putDouble(value);
+        buffer.putLong(key);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decodes a token produced by {@link #encode()}; a null or blank token means the first page.
+     *
+     * @throws IllegalArgumentException if the token is malformed or was issued for another sort order.
+     */
+    public static SearchCursor decode(String token, SearchSort expectedSort) {
+        if (token == null || token.isBlank()) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        if (bytes.length != ENCODED_LENGTH) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int ordinal = buffer.get();
+        if (ordinal != expectedSort.ordinal()) {
+            throw new IllegalArgumentException("Cursor was issued for a different sort order");
+        }
+        return new SearchCursor(expectedSort, buffer.getDouble(), buffer.getLong());
+    }
+}
@@ -0,0 +1,26 @@
+package com.nyasha.store.utils;
+
+/**
+ * Parameters of a product search.
+ *
+ * @param query    Query text; may be blank when a price bound is given.
+ * @param limit    Page size, capped at {@link ProductIndex#MAX_TOP_K}.
+ * @param facets   Whether to count facet values over all matches.
+ * @param minPrice Lowest effective price, or null.
+ * @param maxPrice Highest effective price, or null.
+ * @param sort     Hit order.
+ * @param cursor   Token from the previous page's {@link SearchResult#nextCursor()}, or null for the first page.
+ */
+public record SearchRequest(String query, int limit, boolean facets,
+                            Double minPrice, Double maxPrice, SearchSort sort, String cursor) {
+
+    public SearchRequest {
+        if (sort == null) {
+            sort = SearchSort.RELEVANCE;
+        }
+    }
+
+    public static SearchRequest of(String query, int limit) {
+        return new SearchRequest(query, limit, false, null, null, SearchSort.RELEVANCE, null);
+    }
+}
@@ -0,0 +1,15 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Product;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a full-text search: the top hits, best first, how many products matched in total,
+ * the facet counts over all matches (empty when facets were not requested), and the cursor of
+ * the next page (null on the last page).
+ */
+public record SearchResult(List<Product> hits, int totalHits, Map<String, Map<String, Integer>> facets,
+                           String nextCursor) {
+}
@@ -0,0 +1,24 @@
+package com.nyasha.store.utils;
+
+/**
+ * Order of search hits: by relevance score, or by effective price in either direction.
+ */
+public enum SearchSort {
+    RELEVANCE,
+    PRICE_ASC,
+    PRICE_DESC;
+
+    /**
+     * Parses a request parameter such as {@code "price_asc"}, case-insensitively; blank means relevance.
+     */
+    public static SearchSort parse(String value) {
+        if (value == null || value.isBlank()) {
+            return RELEVANCE;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown sort '" + value + "', expected one of relevance, price_asc, price_desc");
+        }
+    }
+}
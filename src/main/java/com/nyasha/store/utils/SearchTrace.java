@@ -0,0 +1,130 @@
+package com.nyasha.store.utils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where one search spent its time, for explain responses and the slow-query log: nanoseconds per {@link Stage},
+ * the posting lists looked up with their lengths, and the number of candidates scored.
+ * <p>
+ * The shards of a sharded search add to the same trace from their own threads, so a stage's time is summed over
+ * the shards and the stages can add up to more than the request's wall time. Searches that are not traced are
+ * given {@link #OFF}, which records nothing and never reads the clock.
+ */
+public final class SearchTrace {
+
+    /**
+     * Stages of a search, in the order they run.
+     */
+    public enum Stage {
+        // Rewriting the query with synonyms and parsing it
+        PARSE,
+        // Opening posting lists, expanding fuzzy terms and resolving price ranges, or walking the suggester
+        LOOKUP,
+        // Iterating and scoring the matches into the top k; posting lists are decoded lazily here
+        SCORING,
+        FACETS,
+        // Merging the shards' pages
+        MERGE,
+        // Building result hits from the stored fields
+        HYDRATION,
+        SERIALIZATION
+    }
+
+    public static final SearchTrace OFF = new SearchTrace(false);
+
+    private final boolean enabled;
+    private final long startNanos;
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private final ConcurrentMap<String, Integer> postings = new ConcurrentHashMap<>();
+    private final LongAdder candidates = new LongAdder();
+
+    private SearchTrace(boolean enabled) {
+        this.enabled = enabled;
+        this.startNanos = enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * A new trace, timing the request from now.
+     */
+    public static SearchTrace start() {
+        return new SearchTrace(true);
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * The time a stage starts at, to pass to {@link #lap}.
+     */
+    public long mark() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Adds the time since {@code mark} to a stage and returns the current time, the mark of the next stage.
+     */
+    public long lap(Stage stage, long mark) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        stageNanos.addAndGet(stage.ordinal(), now - mark);
+        return now;
+    }
+
+    /**
+     * Records the terms whose posting lists were looked up, with their document frequencies.
+     */
+    public void postings(Map<String, Integer> docFreqs) {
+        if (enabled) {
+            docFreqs.forEach((term, docFreq) -> postings.merge(term, docFreq, Integer::sum));
+        }
+    }
+
+    public void candidates(long count) {
+        if (enabled) {
+            candidates.add(count);
+        }
+    }
+
+    /**
+     * Time since the trace started.
+     */
+    public long elapsedNanos() {
+        return enabled ? System.nanoTime() - startNanos : 0;
+    }
+
+    /**
+     * Nanoseconds per stage, in stage order, keyed by the lower-case stage name.
+     */
+    public Map<String, Long> stageNanos() {
+        Map<String, Long> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.name().toLowerCase(Locale.ROOT), stageNanos.get(stage.ordinal()));
+        }
+        return stages;
+    }
+
+    /**
+     * Document frequency of every term looked up, summed over the shards, by term.
+     */
+    public Map<String, Integer> postings() {
+        return Collections.unmodifiableMap(new TreeMap<>(postings));
+    }
+
+    /**
+     * Matches scored, or suggestions considered.
+     */
+    public long candidates() {
+        return candidates.sum();
+    }
+}
@@ -0,0 +1,589 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Category;
+import com.nyasha.store.entities.Product;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * The product index, hash-partitioned by product ID into shards that are each a complete {@link ProductIndex}
+ * with its own segments, doc values, suggester and write lock, so writes to different shards never contend and
+ * every query runs on all shards at once.
+ * <p>
+ * Queries are scattered to the shards on virtual threads and each shard returns its own top k with their sort
+ * values; the pages are then merged with a k-way heap. Hits are ordered across shards by sort value, then by a
+ * global key of {@code doc * shards + shard}, so results and cursors stay deterministic. Relevance is scored
+ * with each shard's own term statistics, as in a query-then-fetch search over a sharded cluster: with products
+ * spread evenly by hash the statistics of the shards converge, and scores differ from a single index only on
+ * small catalogues.
+ * <p>
+ * With a single shard every call goes straight to it.
+ */
+@Component
+public class ShardedProductIndex {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedProductIndex.class);
+
+    // Fibonacci hashing spreads sequential product IDs evenly over the shards
+    private static final long SPREAD = 0x9E3779B97F4A7C15L;
+
+    private final ProductIndex[] shards;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Autowired
+    public ShardedProductIndex(@Value("${store.index.shards:1}") int shards,
+                               @Value("${store.index.similar-ef-construction:100}") int efConstruction,
+                               @Value("${store.search.static-rank-weight:0.5}") double staticRankWeight,
+                               @Value("${store.search.sales-half-life-days:7}") long salesHalfLifeDays) {
+        this(shards, Analyzer.standard());
+        for (ProductIndex shard : this.shards) {
+            shard.setSimilarityEfConstruction(efConstruction);
+            shard.setStaticRankWeight(staticRankWeight);
+            shard.setSalesHalfLife(Duration.ofDays(salesHalfLifeDays));
+        }
+    }
+
+    public ShardedProductIndex(int shards, Analyzer analyzer) {
+        int count = shards > 0 ? shards : Runtime.getRuntime().availableProcessors();
+        this.shards = new ProductIndex[count];
+        for (int i = 0; i < count; i++) {
+            this.shards[i] = new ProductIndex(analyzer);
+        }
+        logger.info("Product index split into {} shards", count);
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Analyzer shared by all shards.
+     */
+    public Analyzer analyzer() {
+        return shards[0].analyzer();
+    }
+
+    /**
+     * Replaces the synonyms queries are rewritten with on every shard.
+     */
+    public void setSynonyms(SynonymDictionary synonyms) {
+        for (ProductIndex shard : shards) {
+            shard.setSynonyms(synonyms);
+        }
+    }
+
+    /**
+     * Sum of the shards' generations, which changes with any change to any shard.
+     *
+     * @see ProductIndex#generation()
+     */
+    public long generation() {
+        long generation = 0;
+        for (ProductIndex shard : shards) {
+            generation += shard.generation();
+        }
+        return generation;
+    }
+
+    /**
+     * Sum of the shards' rank epochs, which changes with any sale or review counted into any shard.
+     *
+     * @see ProductIndex#rankEpoch()
+     */
+    public long rankEpoch() {
+        long epoch = 0;
+        for (ProductIndex shard : shards) {
+            epoch += shard.rankEpoch();
+        }
+        return epoch;
+    }
+
+    public void insert(Product product) {
+        shard(product.getProductId()).insert(product);
+    }
+
+    public void remove(Product product) {
+        shard(product.getProductId()).remove(product);
+    }
+
+    public void update(Product oldProduct, Product updatedProduct) {
+        shard(updatedProduct.getProductId()).update(oldProduct, updatedProduct);
+    }
+
+    /**
+     * Splits a batch by shard and indexes each part into its shard in parallel.
+     */
+    public void bulkIndex(List<Product> batch) {
+        if (shards.length == 1) {
+            shards[0].bulkIndex(batch);
+            return;
+        }
+        List<List<Product>> parts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>(batch.size() / shards.length + 1));
+        }
+        for (Product product : batch) {
+            parts.get(shardOf(product.getProductId())).add(product);
+        }
+        scatter(i -> {
+            if (!parts.get(i).isEmpty()) {
+                shards[i].bulkIndex(parts.get(i));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * The indexed copy of a product, or null if it is not indexed.
+     */
+    public Product product(Long productId) {
+        return shard(productId).product(productId);
+    }
+
+    /**
+     * The fields shown for a product in a result list, or null if it is not indexed.
+     */
+    public StoredFields storedFields(Long productId) {
+        return shard(productId).storedFields(productId);
+    }
+
+    /**
+     * Counts units of a product sold into its static rank.
+     *
+     * @see ProductIndex#recordSale(Long, int, LocalDateTime)
+     */
+    public boolean recordSale(Long productId, int quantity, LocalDateTime at) {
+        return shard(productId).recordSale(productId, quantity, at);
+    }
+
+    /**
+     * Counts a new review of a product into its static rank.
+     *
+     * @see ProductIndex#recordReview(Long, Integer)
+     */
+    public boolean recordReview(Long productId, Integer rating) {
+        return shard(productId).recordReview(productId, rating);
+    }
+
+    /**
+     * Product IDs of every indexed product.
+     */
+    public Set<Long> productIds() {
+        if (shards.length == 1) {
+            return shards[0].productIds();
+        }
+        Set<Long> ids = new HashSet<>();
+        for (ProductIndex shard : shards) {
+            ids.addAll(shard.productIds());
+        }
+        return ids;
+    }
+
+    /**
+     * Full-text search over all shards.
+     *
+     * @see ProductIndex#search(SearchRequest)
+     */
+    public SearchResult search(SearchRequest request) {
+        return search(request, SearchTrace.OFF);
+    }
+
+    /**
+     * Full-text search over all shards, recording the time of each stage into {@code trace}.
+     */
+    public SearchResult search(SearchRequest request, SearchTrace trace) {
+        if (shards.length == 1) {
+            return shards[0].search(request, trace);
+        }
+        SearchSort sort = request.sort();
+        SearchCursor after = SearchCursor.decode(request.cursor(), sort);
+        int k = Math.max(1, Math.min(request.limit(), ProductIndex.MAX_TOP_K));
+        List<ProductIndex.Page> pages = scatter(i -> shards[i].searchPage(request, localCursor(after, i), trace));
+        long mark = trace.mark();
+        SearchResult result = merge(sort, k, pages);
+        trace.lap(SearchTrace.Stage.MERGE, mark);
+        return result;
+    }
+
+    /**
+     * Autocomplete suggestions over all shards.
+     *
+     * @see ProductIndex#suggest(String, int, String)
+     */
+    public SuggestionResult suggest(String prefix, int limit, String cursor) {
+        return suggest(prefix, limit, cursor, SearchTrace.OFF);
+    }
+
+    /**
+     * Autocomplete suggestions over all shards, recording the time of each stage into {@code trace}.
+     */
+    public SuggestionResult suggest(String prefix, int limit, String cursor, SearchTrace trace) {
+        long mark = trace.mark();
+        List<List<CompletionTrie.Suggestion>> perShard = shards.length == 1
+                ? List.of(shards[0].topSuggestions(prefix))
+                : scatter(i -> shards[i].topSuggestions(prefix));
+        mark = trace.lap(SearchTrace.Stage.LOOKUP, mark);
+        List<CompletionTrie.Suggestion> top;
+        if (perShard.size() == 1) {
+            top = perShard.get(0);
+        } else {
+            top = new ArrayList<>();
+            for (List<CompletionTrie.Suggestion> suggestions : perShard) {
+                top.addAll(suggestions);
+            }
+            top.sort(CompletionTrie.BEST_FIRST);
+            top = top.subList(0, Math.min(top.size(), ProductIndex.MAX_SUGGESTIONS));
+        }
+        trace.candidates(top.size());
+        SuggestionResult result = ProductIndex.suggestionPage(top, limit, cursor);
+        trace.lap(SearchTrace.Stage.MERGE, mark);
+        return result;
+    }
+
+    /**
+     * Products filed under a category over all shards.
+     *
+     * @see ProductIndex#searchByCategory(String, boolean, int, SearchSort, String)
+     */
+    public SearchResult searchByCategory(String categoryId, boolean includeDescendants,
+                                         int limit, SearchSort sort, String cursor) {
+        if (shards.length == 1) {
+            return shards[0].searchByCategory(categoryId, includeDescendants, limit, sort, cursor);
+        }
+        SearchCursor after = SearchCursor.decode(cursor, sort);
+        int k = Math.max(1, limit);
+        return merge(sort, k, scatter(i ->
+                shards[i].categoryPage(categoryId, includeDescendants, k, sort, localCursor(after, i))));
+    }
+
+    /**
+     * Products most similar to the given one over all shards: its vector is looked up in its own shard and
+     * searched for in every shard.
+     *
+     * @see ProductIndex#similar(Long, int, int)
+     */
+    public List<Product> similar(Long productId, int limit, int ef) {
+        float[] vector = shard(productId).vector(productId);
+        return vector == null ? List.of() : nearest(vector, limit, ef, productId);
+    }
+
+    /**
+     * Products most similar to free text over all shards.
+     *
+     * @see ProductIndex#similarToText(String, int, int)
+     */
+    public List<Product> similarToText(String text, int limit, int ef) {
+        float[] vector = TermVectors.of(analyzer(), text);
+        return vector == null ? List.of() : nearest(vector, limit, ef, null);
+    }
+
+    private List<Product> nearest(float[] vector, int limit, int ef, Long excluded) {
+        int k = Math.max(1, Math.min(limit, ProductIndex.MAX_SIMILAR));
+        List<ProductIndex.Page> pages = scatter(i -> {
+            List<TopKCollector.ScoredHit<Product>> hits = shards[i].nearest(vector, k, ef, excluded);
+            return new ProductIndex.Page(hits, hits.size(), Collections.emptyMap(), false);
+        });
+        return merge(SearchSort.RELEVANCE, k, pages).hits();
+    }
+
+    public void updateCategory(Category category) {
+        for (ProductIndex shard : shards) {
+            shard.updateCategory(category);
+        }
+    }
+
+    public void removeCategory(Long categoryId) {
+        for (ProductIndex shard : shards) {
+            shard.removeCategory(categoryId);
+        }
+    }
+
+    // --- Statistics, summed over the shards ---
+
+    /**
+     * @see ProductIndex#liveDocs()
+     */
+    public long liveDocs() {
+        return sum(ProductIndex::liveDocs);
+    }
+
+    /**
+     * @see ProductIndex#deletedDocs()
+     */
+    public long deletedDocs() {
+        return sum(ProductIndex::deletedDocs);
+    }
+
+    /**
+     * Distinct terms of each shard, summed, so terms found in several shards are counted once per shard.
+     */
+    public long termCount() {
+        return sum(ProductIndex::termCount);
+    }
+
+    public long postingBytes() {
+        return sum(ProductIndex::postingBytes);
+    }
+
+    public long segmentCount() {
+        return sum(ProductIndex::segmentCount);
+    }
+
+    public long documentsAdded() {
+        return sum(ProductIndex::documentsAdded);
+    }
+
+    public long documentsDeleted() {
+        return sum(ProductIndex::documentsDeleted);
+    }
+
+    /**
+     * Number of times a shard's index lock was acquired.
+     */
+    public long lockAcquisitions() {
+        return sum(shard -> shard.lockWait().acquisitions());
+    }
+
+    /**
+     * Time spent waiting for the shards' index locks, in nanoseconds.
+     */
+    public long lockWaitNanos() {
+        return sum(shard -> shard.lockWait().totalWaitNanos());
+    }
+
+    private long sum(ToLongFunction<ProductIndex> statistic) {
+        long total = 0;
+        for (ProductIndex shard : shards) {
+            total += statistic.applyAsLong(shard);
+        }
+        return total;
+    }
+
+    /**
+     * Compacts every shard in parallel.
+     */
+    public void forceMerge() {
+        scatter(i -> {
+            shards[i].forceMerge();
+            return null;
+        });
+    }
+
+    /**
+     * Writes a snapshot of every shard in parallel: to {@code file} itself with a single shard, otherwise to
+     * one file per shard next to it, named for the shard and the shard count so a snapshot taken with another
+     * shard count is never loaded.
+     */
+    public void writeSnapshot(Path file, LocalDateTime watermark) throws IOException {
+        try {
+            scatter(i -> {
+                try {
+                    shards[i].writeSnapshot(shardFile(file, i), watermark);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Whether there is a snapshot of every shard at {@code file}.
+     */
+    public boolean hasSnapshot(Path file) {
+        for (int i = 0; i < shards.length; i++) {
+            if (!Files.exists(shardFile(file, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Loads the snapshot of every shard in parallel and returns the oldest of their watermarks.
+     *
+     * @throws IOException if the snapshot of any shard is missing or unreadable. Shards that did load keep
+     *                     their products; a rebuild replaces them.
+     */
+    public LocalDateTime loadSnapshot(Path file) throws IOException {
+        List<LocalDateTime> watermarks;
+        try {
+            watermarks = scatter(i -> {
+                try {
+                    return shards[i].loadSnapshot(shardFile(file, i));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return Collections.min(watermarks);
+    }
+
+    /**
+     * Stops background merging on every shard.
+     */
+    @PreDestroy
+    public void close() {
+        for (ProductIndex shard : shards) {
+            shard.close();
+        }
+        executor.shutdownNow();
+    }
+
+    // --- Helper Methods ---
+
+    private ProductIndex shard(Long productId) {
+        return shards[shardOf(productId)];
+    }
+
+    int shardOf(Long productId) {
+        return (int) ((productId * SPREAD >>> 32) * shards.length >>> 32);
+    }
+
+    private Path shardFile(Path file, int shard) {
+        return shards.length == 1 ? file
+                : file.resolveSibling(file.getFileName() + "." + shard + "-of-" + shards.length);
+    }
+
+    /**
+     * Runs a task for every shard, on virtual threads when there is more than one, and returns the
+     * results in shard order.
+     */
+    private <T> List<T> scatter(IntFunction<T> task) {
+        if (shards.length == 1) {
+            return Collections.singletonList(task.apply(0));
+        }
+        List<Future<T>> futures = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            futures.add(executor.submit(() -> task.apply(shard)));
+        }
+        List<T> results = new ArrayList<>(shards.length);
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying index shards", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * The cursor within one shard equivalent to a global cursor: hits of the shard with the cursor's sort value
+     * follow it if their global key does, which for the shard's sequence numbers is a bound one below, at or one
+     * above the cursor's sequence number depending on which side of the cursor's shard the shard lies.
+     */
+    private SearchCursor localCursor(SearchCursor after, int shard) {
+        if (after == null) {
+            return null;
+        }
+        long doc = Math.floorDiv(after.key(), shards.length);
+        int cursorShard = (int) Math.floorMod(after.key(), shards.length);
+        long key;
+        if (after.sort() == SearchSort.PRICE_DESC) {
+            key = shard < cursorShard ? doc + 1 : doc;
+        } else {
+            key = shard > cursorShard ? doc - 1 : doc;
+        }
+        return new SearchCursor(after.sort(), after.value(), key);
+    }
+
+    /**
+     * Merges the shards' pages into the global top {@code k} and sums their hit and facet counts.
+     */
+    private SearchResult merge(SearchSort sort, int k, List<ProductIndex.Page> pages) {
+        Comparator<TopKCollector.ScoredHit<Product>> order = switch (sort) {
+            case RELEVANCE -> Comparator.<TopKCollector.ScoredHit<Product>>comparingDouble(TopKCollector.ScoredHit::score)
+                    .reversed().thenComparingLong(TopKCollector.ScoredHit::key);
+            case PRICE_ASC -> Comparator.<TopKCollector.ScoredHit<Product>>comparingDouble(TopKCollector.ScoredHit::score)
+                    .thenComparingLong(TopKCollector.ScoredHit::key);
+            case PRICE_DESC -> Comparator.<TopKCollector.ScoredHit<Product>>comparingDouble(TopKCollector.ScoredHit::score)
+                    .thenComparingLong(TopKCollector.ScoredHit::key).reversed();
+        };
+        PriorityQueue<Head> heads = new PriorityQueue<>(pages.size(), (a, b) -> order.compare(a.hit(), b.hit()));
+        int totalHits = 0;
+        boolean more = false;
+        Map<String, Map<String, Integer>> facetSums = new TreeMap<>();
+        for (int shard = 0; shard < pages.size(); shard++) {
+            ProductIndex.Page page = pages.get(shard);
+            totalHits += page.totalHits();
+            more |= page.more();
+            page.facets().forEach((field, counts) -> {
+                Map<String, Integer> sums = facetSums.computeIfAbsent(field, f -> new HashMap<>());
+                counts.forEach((value, count) -> sums.merge(value, count, Integer::sum));
+            });
+            if (!page.hits().isEmpty()) {
+                heads.add(head(page, shard, 0));
+            }
+        }
+        List<TopKCollector.ScoredHit<Product>> hits = new ArrayList<>(k);
+        while (hits.size() < k && !heads.isEmpty()) {
+            Head head = heads.poll();
+            hits.add(head.hit());
+            if (head.position() + 1 < pages.get(head.shard()).hits().size()) {
+                heads.add(head(pages.get(head.shard()), head.shard(), head.position() + 1));
+            }
+        }
+        more |= !heads.isEmpty();
+        return ProductIndex.page(sort, new ProductIndex.Page(hits, totalHits, sortFacets(facetSums), more));
+    }
+
+    private Head head(ProductIndex.Page page, int shard, int position) {
+        TopKCollector.ScoredHit<Product> hit = page.hits().get(position);
+        long globalKey = hit.key() * shards.length + shard;
+        return new Head(shard, position, new TopKCollector.ScoredHit<>(hit.item(), globalKey, hit.score()));
+    }
+
+    // Values of each facet by descending count, then by value, as a single index orders them
+    private static Map<String, Map<String, Integer>> sortFacets(Map<String, Map<String, Integer>> facetSums) {
+        Map<String, Map<String, Integer>> facets = new TreeMap<>();
+        facetSums.forEach((field, sums) -> {
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            sums.entrySet().stream()
+                    .sorted(Map.Entry.<String, Integer>comparingByValue().reversed()
+                            .thenComparing(Map.Entry.comparingByKey()))
+                    .forEach(entry -> counts.put(entry.getKey(), entry.getValue()));
+            facets.put(field, counts);
+        });
+        return facets;
+    }
+
+    /**
+     * The next unmerged hit of a shard's page, keyed globally.
+     */
+    private record Head(int shard, int position, TopKCollector.ScoredHit<Product> hit) {
+    }
+}
@@ -0,0 +1,243 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.entities.Review;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Query-independent quality signals of every document, in primitive arrays indexed by doc ID, so relevance
+ * can favour products that are well reviewed, selling and recent without touching the database per query.
+ * <p>
+ * Per doc it keeps the number of reviews, the number and sum of their ratings, the creation time and a sales
+ * count that decays exponentially with a half-life. The prior of a doc is a weighted mean of four scores
+ * between 0 and 1:
+ * <ul>
+ *     <li>rating: the average rating smoothed towards {@value #PRIOR_RATING} stars by {@value #PRIOR_RATINGS}
+ *     virtual ratings, so a single 5-star review does not outrank a hundred 4.8s;</li>
+ *     <li>reviews: {@code n / (n + }{@value #REVIEW_SATURATION}{@code )};</li>
+ *     <li>sales: the same curve over the decayed units sold, saturating at {@value #SALES_SATURATION};</li>
+ *     <li>freshness: halving every {@value #AGE_HALF_LIFE_DAYS} days since the product was created.</li>
+ * </ul>
+ * A relevance score is multiplied by {@code 1 + weight * prior}, so the boost never exceeds
+ * {@code 1 + weight}: a top-k collection can skip docs whose text score cannot make the heap even with the
+ * full boost, without computing their prior.
+ * <p>
+ * A sale of {@code q} units at time {@code t} is stored as {@code q * 2^((t - epoch) / halfLife)}, so sales
+ * never have to be revisited to decay them: the decayed count at time {@code now} is the stored sum times
+ * {@code 2^(-(now - epoch) / halfLife)}, one factor shared by every doc.
+ * <p>
+ * Writers must be serialised by the owning index; readers only look at doc IDs that have been added.
+ */
+public final class StaticRank {
+
+    public static final Duration DEFAULT_SALES_HALF_LIFE = Duration.ofDays(7);
+
+    // Ratings are smoothed towards a neutral 3 stars
+    static final double PRIOR_RATING = 3.0;
+    static final int PRIOR_RATINGS = 5;
+    static final int REVIEW_SATURATION = 20;
+    static final int SALES_SATURATION = 10;
+    static final int AGE_HALF_LIFE_DAYS = 180;
+
+    // Weights of the signals in the prior
+    private static final double RATING_WEIGHT = 0.4;
+    private static final double REVIEWS_WEIGHT = 0.2;
+    private static final double SALES_WEIGHT = 0.3;
+    private static final double FRESHNESS_WEIGHT = 0.1;
+
+    // Sales are rebased onto a later epoch before their scale factor leaves this many doublings
+    private static final double MAX_SCALE_EXPONENT = 256;
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private volatile int[] reviews = new int[1024];
+    private volatile int[] ratings = new int[1024];
+    private volatile int[] ratingSums = new int[1024];
+    private volatile long[] createdAt = new long[1024];
+    private volatile double[] sales = new double[1024];
+
+    private volatile long epochSeconds = Instant.now().getEpochSecond();
+    private volatile double halfLifeSeconds = DEFAULT_SALES_HALF_LIFE.toSeconds();
+
+    /**
+     * Sets how fast sales decay, keeping the current decayed counts.
+     */
+    public void setSalesHalfLife(Duration halfLife) {
+        rebase(Instant.now().getEpochSecond());
+        halfLifeSeconds = Math.max(1, halfLife.toSeconds());
+    }
+
+    /**
+     * Sets the reviews and creation time of a new doc, with no sales.
+     */
+    public void add(int docId, Product product) {
+        ensureCapacity(docId);
+        int reviewCount = 0;
+        int ratingCount = 0;
+        int ratingSum = 0;
+        if (product.getReviews() != null) {
+            for (Review review : product.getReviews()) {
+                reviewCount++;
+                if (review.getRating() != null) {
+                    ratingCount++;
+                    ratingSum += review.getRating();
+                }
+            }
+        }
+        reviews[docId] = reviewCount;
+        ratings[docId] = ratingCount;
+        ratingSums[docId] = ratingSum;
+        createdAt[docId] = seconds(product.getCreatedAt());
+        sales[docId] = 0;
+    }
+
+    /**
+     * Moves the sales of a replaced doc to the doc that replaces it.
+     */
+    public void moveSales(int fromDocId, int toDocId) {
+        sales[toDocId] = sales[fromDocId];
+    }
+
+    /**
+     * Counts a new review of a doc; the rating may be null.
+     */
+    public void addReview(int docId, Integer rating) {
+        reviews[docId]++;
+        if (rating != null) {
+            ratings[docId]++;
+            ratingSums[docId] += rating;
+        }
+    }
+
+    /**
+     * Counts units of a doc sold at a time.
+     */
+    public void addSale(int docId, int quantity, LocalDateTime at) {
+        long time = at == null ? Instant.now().getEpochSecond() : seconds(at);
+        if (Math.abs(time - epochSeconds) / halfLifeSeconds > MAX_SCALE_EXPONENT) {
+            rebase(time);
+        }
+        sales[docId] += quantity * Math.pow(2, (time - epochSeconds) / halfLifeSeconds);
+    }
+
+    /**
+     * Units of a doc sold, decayed to the given time.
+     */
+    public double decayedSales(int docId, Instant now) {
+        return sales[docId] * Math.pow(2, -(now.getEpochSecond() - epochSeconds) / halfLifeSeconds);
+    }
+
+    /**
+     * Copy of the signals with the doc IDs renumbered: doc {@code d} moves to {@code newDocIds[d]}, or is left
+     * out if that is -1, and the copy covers doc IDs up to {@code maxDoc}.
+     */
+    StaticRank compact(int[] newDocIds, int maxDoc) {
+        StaticRank compacted = new StaticRank();
+        compacted.epochSeconds = epochSeconds;
+        compacted.halfLifeSeconds = halfLifeSeconds;
+        compacted.ensureCapacity(maxDoc - 1);
+        int limit = Math.min(newDocIds.length, reviews.length);
+        for (int doc = 0; doc < limit; doc++) {
+            int target = newDocIds[doc];
+            if (target < 0) continue;
+            compacted.reviews[target] = reviews[doc];
+            compacted.ratings[target] = ratings[doc];
+            compacted.ratingSums[target] = ratingSums[doc];
+            compacted.createdAt[target] = createdAt[doc];
+            compacted.sales[target] = sales[doc];
+        }
+        return compacted;
+    }
+
+    /**
+     * Scores docs as of {@code now} with the given weight of the prior.
+     */
+    public Scorer scorer(double weight, Instant now) {
+        return new Scorer(weight, now.getEpochSecond());
+    }
+
+    /**
+     * Boosts the relevance scores of one query. Reads the arrays as they were when it was created.
+     */
+    public final class Scorer {
+        private final double weight;
+        private final long now;
+        private final double salesDecay;
+        private final int[] reviews = StaticRank.this.reviews;
+        private final int[] ratings = StaticRank.this.ratings;
+        private final int[] ratingSums = StaticRank.this.ratingSums;
+        private final long[] createdAt = StaticRank.this.createdAt;
+        private final double[] sales = StaticRank.this.sales;
+
+        private Scorer(double weight, long now) {
+            this.weight = Math.max(0, weight);
+            this.now = now;
+            this.salesDecay = Math.pow(2, -(now - epochSeconds) / halfLifeSeconds);
+        }
+
+        /**
+         * Upper bound of {@link #boost(int)} over all docs.
+         */
+        public double maxBoost() {
+            return 1 + weight;
+        }
+
+        /**
+         * Factor the relevance score of a doc is multiplied by.
+         */
+        public double boost(int docId) {
+            return weight == 0 ? 1 : 1 + weight * prior(docId);
+        }
+
+        /**
+         * Prior of a doc between 0 and 1.
+         */
+        public double prior(int docId) {
+            double rating = (ratingSums[docId] + PRIOR_RATING * PRIOR_RATINGS) / (ratings[docId] + PRIOR_RATINGS);
+            int reviewCount = reviews[docId];
+            double units = sales[docId] * salesDecay;
+            double freshness = 0;
+            if (createdAt[docId] != NO_TIME) {
+                double ageDays = Math.max(0, now - createdAt[docId]) / 86_400.0;
+                freshness = Math.pow(2, -ageDays / AGE_HALF_LIFE_DAYS);
+            }
+            return RATING_WEIGHT * (rating - 1) / 4
+                    + REVIEWS_WEIGHT * reviewCount / (reviewCount + REVIEW_SATURATION)
+                    + SALES_WEIGHT * units / (units + SALES_SATURATION)
+                    + FRESHNESS_WEIGHT * freshness;
+        }
+    }
+
+    /**
+     * Rescales the sales onto a new epoch, keeping their decayed counts.
+     */
+    private void rebase(long newEpochSeconds) {
+        double scale = Math.pow(2, -(newEpochSeconds - epochSeconds) / halfLifeSeconds);
+        double[] current = sales;
+        for (int i = 0; i < current.length; i++) {
+            current[i] *= scale;
+        }
+        epochSeconds = newEpochSeconds;
+    }
+
+    private static long seconds(LocalDateTime time) {
+        return time == null ? NO_TIME : time.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    private void ensureCapacity(int docId) {
+        if (docId < reviews.length) {
+            return;
+        }
+        int capacity = Math.max(reviews.length * 2, docId + 1);
+        reviews = Arrays.copyOf(reviews, capacity);
+        ratings = Arrays.copyOf(ratings, capacity);
+        ratingSums = Arrays.copyOf(ratingSums, capacity);
+        createdAt = Arrays.copyOf(createdAt, capacity);
+        sales = Arrays.copyOf(sales, capacity);
+    }
+}
@@ -0,0 +1,30 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.entities.Review;
+
+import java.util.OptionalDouble;
+
+/**
+ * The fields of a product a result list shows, captured when the product is indexed so hits can be rendered
+ * without touching the product's associations or the database.
+ *
+ * @param price  Lowest price the product can be bought at, or null if it has no price.
+ * @param rating Average review rating, or null if it has no rated reviews.
+ */
+public record StoredFields(Long productId, String name, String sku, Double price, String thumbnailUrl,
+                           Double rating) {
+
+    static StoredFields of(Product product) {
+        Double rating = null;
+        if (product.getReviews() != null) {
+            OptionalDouble average = product.getReviews().stream()
+                    .filter(review -> review.getRating() != null)
+                    .mapToInt(Review::getRating)
+                    .average();
+            rating = average.isPresent() ? average.getAsDouble() : null;
+        }
+        return new StoredFields(product.getProductId(), product.getName(), product.getSku(),
+                ProductIndex.effectivePrice(product), product.getThumbnailUrl(), rating);
+    }
+}
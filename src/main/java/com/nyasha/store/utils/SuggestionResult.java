@@ -0,0 +1,9 @@
+package com.nyasha.store.utils;
+
+import java.util.List;
+
+/**
+ * A page of autocomplete suggestions, best first, and the cursor of the next page (null on the last page).
+ */
+public record SuggestionResult(List<CompletionTrie.Suggestion> suggestions, String nextCursor) {
+}
@@ -0,0 +1,171 @@
+package com.nyasha.store.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Immutable synonym dictionary used to rewrite queries before they run, so shopper vocabulary matches
+ * catalog vocabulary ({@code tv} and {@code television}, {@code sneakers} and {@code trainers}).
+ * <p>
+ * One rule per line, in the Solr synonym format:
+ * <ul>
+ *     <li>{@code tv, television, telly} - equivalent words; each one expands to all the others</li>
+ *     <li>{@code laptop => notebook, ultrabook} - one way; only the left-hand words expand</li>
+ *     <li>{@code trainers^0.9} - an explicit weight for an expansion, {@value #DEFAULT_WEIGHT} otherwise</li>
+ *     <li>{@code # comment} and blank lines are ignored</li>
+ * </ul>
+ * Entries are passed through the index's analyzer, so they match the analysed query terms; an expansion
+ * of several words becomes a phrase. Only single-word entries are expanded from, as queries are rewritten
+ * one term at a time. Expansions that analyse to the same terms are kept once, with the highest weight.
+ */
+public final class SynonymDictionary {
+
+    private static final Logger logger = LoggerFactory.getLogger(SynonymDictionary.class);
+
+    public static final double DEFAULT_WEIGHT = 0.8;
+
+    public static final SynonymDictionary EMPTY = new SynonymDictionary(Map.of());
+
+    // Rewritten form of every term that has synonyms, the term itself first with a weight of 1
+    private final Map<String, QueryNode.Synonyms> expansions;
+
+    private SynonymDictionary(Map<String, QueryNode.Synonyms> expansions) {
+        this.expansions = expansions;
+    }
+
+    /**
+     * Reads a synonym file.
+     *
+     * @throws IOException              if the file cannot be read.
+     * @throws IllegalArgumentException if a rule is malformed.
+     */
+    public static SynonymDictionary load(Path file, Analyzer analyzer) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8), analyzer);
+    }
+
+    /**
+     * Parses synonym rules, one per line.
+     *
+     * @throws IllegalArgumentException if a rule is malformed.
+     */
+    public static SynonymDictionary parse(List<String> lines, Analyzer analyzer) {
+        Map<String, Map<List<String>, Double>> rules = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                int arrow = line.indexOf("=>");
+                if (arrow >= 0) {
+                    List<Entry> from = entries(line.substring(0, arrow), analyzer);
+                    List<Entry> to = entries(line.substring(arrow + 2), analyzer);
+                    for (Entry source : from) {
+                        for (Entry target : to) {
+                            addRule(rules, source, target);
+                        }
+                    }
+                } else {
+                    List<Entry> group = entries(line, analyzer);
+                    for (Entry source : group) {
+                        for (Entry target : group) {
+                            addRule(rules, source, target);
+                        }
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+
+        Map<String, QueryNode.Synonyms> expansions = new HashMap<>(rules.size() * 2);
+        rules.forEach((term, targets) -> {
+            List<QueryNode.Synonyms.Alternative> alternatives = new ArrayList<>(targets.size() + 1);
+            alternatives.add(new QueryNode.Synonyms.Alternative(List.of(term), 1.0));
+            targets.entrySet().stream()
+                    .sorted(Map.Entry.<List<String>, Double>comparingByValue().reversed())
+                    .forEach(target -> alternatives.add(new QueryNode.Synonyms.Alternative(target.getKey(), target.getValue())));
+            expansions.put(term, new QueryNode.Synonyms(List.copyOf(alternatives)));
+        });
+        logger.debug("Parsed {} synonym rules into expansions for {} terms", lines.size(), expansions.size());
+        return new SynonymDictionary(Map.copyOf(expansions));
+    }
+
+    /**
+     * Number of terms that have synonyms.
+     */
+    public int size() {
+        return expansions.size();
+    }
+
+    /**
+     * Replaces every term of the query that has synonyms with the term or any of its synonyms. Phrases and
+     * fuzzy terms are left as written.
+     */
+    public QueryNode rewrite(QueryNode node) {
+        if (node == null || expansions.isEmpty()) {
+            return node;
+        }
+        if (node instanceof QueryNode.Term term) {
+            QueryNode.Synonyms synonyms = expansions.get(term.term());
+            return synonyms != null ? synonyms : node;
+        }
+        if (node instanceof QueryNode.Bool bool) {
+            return new QueryNode.Bool(rewrite(bool.must()), rewrite(bool.should()), rewrite(bool.mustNot()));
+        }
+        return node;
+    }
+
+    private List<QueryNode> rewrite(List<QueryNode> clauses) {
+        List<QueryNode> rewritten = new ArrayList<>(clauses.size());
+        for (QueryNode clause : clauses) {
+            rewritten.add(rewrite(clause));
+        }
+        return rewritten;
+    }
+
+    private static void addRule(Map<String, Map<List<String>, Double>> rules, Entry source, Entry target) {
+        if (source.terms().size() != 1 || source.terms().equals(target.terms())) {
+            return;
+        }
+        rules.computeIfAbsent(source.terms().get(0), k -> new HashMap<>())
+                .merge(target.terms(), target.weight(), Math::max);
+    }
+
+    /**
+     * Analysed words of a comma-separated list; words that analyse to nothing, such as stopwords, are dropped.
+     */
+    private static List<Entry> entries(String list, Analyzer analyzer) {
+        List<Entry> entries = new ArrayList<>();
+        for (String item : list.split(",")) {
+            String text = item.strip();
+            double weight = DEFAULT_WEIGHT;
+            int caret = text.lastIndexOf('^');
+            if (caret >= 0) {
+                try {
+                    weight = Double.parseDouble(text.substring(caret + 1).strip());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid weight in '" + text + "'");
+                }
+                if (!(weight > 0)) {
+                    throw new IllegalArgumentException("Weights must be positive: '" + text + "'");
+                }
+                text = text.substring(0, caret);
+            }
+            String[] terms = analyzer.terms(text);
+            if (terms.length > 0) {
+                entries.add(new Entry(List.of(terms), weight));
+            }
+        }
+        return entries;
+    }
+
+    private record Entry(List<String> terms, double weight) {
+    }
+}
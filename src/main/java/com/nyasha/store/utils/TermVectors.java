@@ -0,0 +1,76 @@
+package com.nyasha.store.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dense vectors of product text for similarity search, computed locally with the hashing trick: every analysed
+ * term is hashed to one of {@value #DIMENSIONS} dimensions with a random sign, weighted by the log of its
+ * frequency and by field, and the vector is scaled to unit length so the dot product of two vectors is their
+ * cosine similarity.
+ * <p>
+ * The analyzer already drops stopwords, the terms an inverse document frequency would discount most, so terms are
+ * not weighted by IDF; that keeps a product's vector independent of the rest of the catalogue and of the order
+ * products were indexed in.
+ */
+final class TermVectors {
+
+    static final int DIMENSIONS = 256;
+
+    // Name terms count for more than description terms, as they say what the product is
+    private static final float NAME_WEIGHT = 2.0f;
+    private static final float DESCRIPTION_WEIGHT = 1.0f;
+
+    private TermVectors() {
+    }
+
+    /**
+     * Vector of a product's name and description, or null if neither has a term.
+     */
+    static float[] of(Analyzer analyzer, String name, String description) {
+        Map<String, Float> weights = new HashMap<>();
+        analyzer.analyze(name, (term, position) -> weights.merge(term, NAME_WEIGHT, Float::sum));
+        analyzer.analyze(description, (term, position) -> weights.merge(term, DESCRIPTION_WEIGHT, Float::sum));
+        return weights.isEmpty() ? null : vector(weights);
+    }
+
+    /**
+     * Vector of free text such as a query, or null if it has no terms.
+     */
+    static float[] of(Analyzer analyzer, String text) {
+        Map<String, Float> weights = new HashMap<>();
+        analyzer.analyze(text, (term, position) -> weights.merge(term, 1.0f, Float::sum));
+        return weights.isEmpty() ? null : vector(weights);
+    }
+
+    private static float[] vector(Map<String, Float> weights) {
+        float[] vector = new float[DIMENSIONS];
+        weights.forEach((term, weight) -> {
+            int hash = mix(term.hashCode());
+            float value = (float) (1 + Math.log(weight));
+            vector[hash & (DIMENSIONS - 1)] += hash < 0 ? -value : value;
+        });
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm == 0) {
+            return null;
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] *= scale;
+        }
+        return vector;
+    }
+
+    // Murmur3 finalizer, so similar strings land in unrelated dimensions
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,70 @@
+package com.nyasha.store.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k best-scoring hits seen so far in a bounded min-heap,
+ * so ranking a large match set costs O(n log k) instead of a full sort.
+ */
+public class TopKCollector<T> {
+
+    /**
+     * A scored hit. Ties are broken on the key so results are deterministic.
+     */
+    public record ScoredHit<T>(T item, long key, double score) {
+    }
+
+    private static final Comparator<ScoredHit<?>> WORST_FIRST = Comparator
+            .<ScoredHit<?>>comparingDouble(ScoredHit::score)
+            .thenComparing(ScoredHit::key, Comparator.reverseOrder());
+
+    private final int k;
+    private final PriorityQueue<ScoredHit<T>> heap;
+
+    public TopKCollector(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        this.k = k;
+        this.heap = new PriorityQueue<>(Math.min(k, 1024) + 1, WORST_FIRST);
+    }
+
+    /**
+     * Offers a hit, evicting the current worst one if the heap is full.
+     */
+    public void collect(T item, long key, double score) {
+        if (heap.size() < k) {
+            heap.add(new ScoredHit<>(item, key, score));
+            return;
+        }
+        ScoredHit<T> worst = heap.peek();
+        if (score > worst.score() || (score == worst.score() && key < worst.key())) {
+            heap.poll();
+            heap.add(new ScoredHit<>(item, key, score));
+        }
+    }
+
+    /**
+     * Lowest score currently retained, or negative infinity while the heap is not yet full.
+     */
+    public double minCompetitiveScore() {
+        return heap.size() < k ? Double.NEGATIVE_INFINITY : heap.peek().score();
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    /**
+     * Returns the collected hits, best first.
+     */
+    public List<ScoredHit<T>> results() {
+        List<ScoredHit<T>> sorted = new ArrayList<>(heap);
+        sorted.sort(Collections.reverseOrder(WORST_FIRST));
+        return sorted;
+    }
+}
@@ -5,10 +5,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
 
 @Component
 public class UserIndex {
@@ -24,12 +29,23 @@ public class UserIndex {
     private final ConcurrentSkipListMap<String, List<User>> sortedIndexByName = new ConcurrentSkipListMap<>();
     private final ConcurrentSkipListMap<String, List<User>> sortedIndexByEmail = new ConcurrentSkipListMap<>();
 
+    // Indexed copy of each user, to replace it when the user is indexed again
+    private final ConcurrentMap<Long, User> usersById = new ConcurrentHashMap<>();
+
     /**
      * Helper method to get or create a synchronized list from the given map.
      */
 
     // A common lock to ensure atomic index updates. Adjust granularity as needed.
     private final Object indexLock = new Object();
+    private final LockWaitTimer lockWait = new LockWaitTimer();
+
+    // Users inserted and removed since startup, updates counting as both
+    private final LongAdder insertions = new LongAdder();
+    private final LongAdder removals = new LongAdder();
+
+    // Kind recorded in snapshot files, so a snapshot of another index is never loaded into this one
+    static final String SNAPSHOT_KIND = "users";
 
     private List<User> getOrCreateList(ConcurrentMap<String, List<User>> map, String key) {
         return map.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()));
@@ -42,11 +58,15 @@ public class UserIndex {
         String nameKey = user.getName().toLowerCase();
         String emailKey = user.getEmail().toLowerCase();
         try {
+            long waitStart = lockWait.start(indexLock);
             synchronized (indexLock) {
+                lockWait.acquired(waitStart);
                 getOrCreateList(fastIndexByName, nameKey).add(user);
                 getOrCreateList(fastIndexByEmail, emailKey).add(user);
                 getOrCreateList(sortedIndexByName, nameKey).add(user);
                 getOrCreateList(sortedIndexByEmail, emailKey).add(user);
+                usersById.put(user.getUserId(), user);
+                insertions.increment();
             }
             logger.debug("Inserted user {} into indexes", user.getUserId());
         }catch (Exception e){
@@ -61,11 +81,15 @@ public class UserIndex {
         String nameKey = user.getName().toLowerCase();
         String emailKey = user.getEmail().toLowerCase();
         try {
+            long waitStart = lockWait.start(indexLock);
             synchronized (indexLock) {
+                lockWait.acquired(waitStart);
                 removeFromIndex(fastIndexByName, nameKey, user);
                 removeFromIndex(fastIndexByEmail, emailKey, user);
                 removeFromIndex(sortedIndexByName, nameKey, user);
                 removeFromIndex(sortedIndexByEmail, emailKey, user);
+                usersById.remove(user.getUserId(), user);
+                removals.increment();
             }
             logger.debug("Removed user {} from indexes", user.getUserId());
         }catch  (Exception e){
@@ -85,12 +109,15 @@ public class UserIndex {
         String oldNameKey = oldName.toLowerCase();
         String oldEmailKey = oldEmail.toLowerCase();
         try {
-            // Remove using the old keys.
+            long waitStart = lockWait.start(indexLock);
             synchronized (indexLock) {
+                lockWait.acquired(waitStart);
+                // Remove using the old keys.
                 removeFromIndex(fastIndexByName, oldNameKey, updatedUser);
                 removeFromIndex(fastIndexByEmail, oldEmailKey, updatedUser);
                 removeFromIndex(sortedIndexByName, oldNameKey, updatedUser);
                 removeFromIndex(sortedIndexByEmail, oldEmailKey, updatedUser);
+                removals.increment();
 
                 // Insert the updated user with the new keys.
                 insert(updatedUser);
@@ -109,7 +136,9 @@ public class UserIndex {
         String prefix = searchTerm.toLowerCase();
         Set<User> results = new HashSet<>();
         try {
+            long waitStart = lockWait.start(indexLock);
             synchronized (indexLock) {
+                lockWait.acquired(waitStart);
                 results.addAll(searchByPrefix(sortedIndexByName, prefix));
                 results.addAll(searchByPrefix(sortedIndexByEmail, prefix));
             }
@@ -120,6 +149,125 @@ public class UserIndex {
         return new ArrayList<>(results);
     }
 
+    /**
+     * Every indexed user.
+     */
+    public List<User> users() {
+        return new ArrayList<>(usersById.values());
+    }
+
+    /**
+     * The indexed copy of a user, or null if it is not indexed.
+     */
+    public User user(Long userId) {
+        return usersById.get(userId);
+    }
+
+    /**
+     * Number of indexed users.
+     */
+    public int size() {
+        return usersById.size();
+    }
+
+    /**
+     * Number of distinct name and email keys in the prefix indexes.
+     */
+    public int keyCount() {
+        return sortedIndexByName.size() + sortedIndexByEmail.size();
+    }
+
+    public long insertions() {
+        return insertions.sum();
+    }
+
+    public long removals() {
+        return removals.sum();
+    }
+
+    /**
+     * Time spent waiting for the index lock, which searches share with writes.
+     */
+    public LockWaitTimer lockWait() {
+        return lockWait;
+    }
+
+    /**
+     * Indexes a batch of users for a bulk build, replacing the indexed copy of any that are already indexed.
+     * Users only need a few map entries each, so the whole batch is applied under one acquisition of the lock.
+     */
+    public void bulkIndex(List<User> batch) {
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            for (User user : batch) {
+                User previous = usersById.get(user.getUserId());
+                if (previous != null) {
+                    remove(previous);
+                }
+                insert(user);
+            }
+        }
+        logger.debug("Bulk indexed {} users", batch.size());
+    }
+
+    /**
+     * Writes a snapshot of the indexed users (ID, name, email and timestamps) to {@code file}, together
+     * with the caller's watermark. Password hashes are left out: they are never needed to search, and
+     * should not be copied to local disk.
+     */
+    public void writeSnapshot(Path file, LocalDateTime watermark) throws IOException {
+        List<User> users = users();
+        IndexSnapshot.write(file, SNAPSHOT_KIND, watermark, out -> {
+            out.writeInt(users.size());
+            for (User user : users) {
+                out.writeLong(user.getUserId());
+                IndexSnapshot.writeString(out, user.getName());
+                IndexSnapshot.writeString(out, user.getEmail());
+                IndexSnapshot.writeDateTime(out, user.getCreatedAt());
+                IndexSnapshot.writeDateTime(out, user.getUpdatedAt());
+            }
+        });
+        logger.info("Wrote index snapshot of {} users to {}", users.size(), file);
+    }
+
+    /**
+     * Whether there is a snapshot at {@code file} to try loading.
+     */
+    public boolean hasSnapshot(Path file) {
+        return Files.isRegularFile(file);
+    }
+
+    /**
+     * Reopens a snapshot written by {@link #writeSnapshot} into this index and returns its watermark.
+     *
+     * @throws IOException if the snapshot is missing, has another format version or is corrupt, in which
+     *                     case the index is left untouched.
+     */
+    public LocalDateTime loadSnapshot(Path file) throws IOException {
+        IndexSnapshot.Reader in = IndexSnapshot.open(file, SNAPSHOT_KIND);
+        int count = in.readInt();
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = new User();
+            user.setUserId(in.readLong());
+            user.setName(in.readString());
+            user.setEmail(in.readString());
+            user.setCreatedAt(in.readDateTime());
+            user.setUpdatedAt(in.readDateTime());
+            users.add(user);
+        }
+        long waitStart = lockWait.start(indexLock);
+        synchronized (indexLock) {
+            lockWait.acquired(waitStart);
+            for (User user : users) {
+                insert(user);
+            }
+        }
+        logger.info("Loaded index snapshot of {} users from {}", users.size(), file);
+        return in.watermark();
+    }
+
     /**
      * Helper method to remove a user from an index.
      */
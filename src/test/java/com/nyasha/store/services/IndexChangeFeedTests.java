@@ -0,0 +1,219 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.entities.IndexChange;
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.repositories.IndexChangeRepository;
+import com.nyasha.store.repositories.ProductRepository;
+import com.nyasha.store.repositories.UserRepository;
+import com.nyasha.store.utils.Analyzer;
+import com.nyasha.store.utils.ShardedProductIndex;
+import com.nyasha.store.utils.UserIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IndexChangeFeedTests {
+
+    // The outbox rows committed so far, and the products in the database, by ID
+    private final TreeMap<Long, IndexChange> committed = new TreeMap<>();
+    private final Map<Long, Product> products = new TreeMap<>();
+
+    private final IndexChangeRepository indexChangeRepository = mock(IndexChangeRepository.class);
+    private final ProductRepository productRepository = mock(ProductRepository.class);
+    private final ShardedProductIndex productIndex = new ShardedProductIndex(1, Analyzer.standard());
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void mockRepositories() {
+        when(indexChangeRepository.findFirstByOrderByChangeIdDesc()).thenAnswer(invocation ->
+                committed.isEmpty() ? Optional.empty() : Optional.of(committed.lastEntry().getValue()));
+        when(indexChangeRepository.findChangeIdsBetween(anyLong(), anyLong())).thenAnswer(invocation ->
+                new ArrayList<>(committed.subMap(invocation.getArgument(0), true, invocation.getArgument(1), true).keySet()));
+        when(indexChangeRepository.findByChangeIdGreaterThan(anyLong(), any(Pageable.class))).thenAnswer(invocation -> {
+            Pageable page = invocation.getArgument(1);
+            return committed.tailMap(invocation.getArgument(0), false).values().stream()
+                    .limit(page.getPageSize()).toList();
+        });
+        when(indexChangeRepository.findAllById(any(Iterable.class))).thenAnswer(invocation ->
+                found(committed, invocation.getArgument(0)));
+        when(indexChangeRepository.save(any(IndexChange.class))).thenAnswer(invocation -> {
+            IndexChange change = invocation.getArgument(0);
+            change.setChangeId(committed.isEmpty() ? 1 : committed.lastKey() + 1);
+            change.setCreatedAt(LocalDateTime.now());
+            committed.put(change.getChangeId(), change);
+            return change;
+        });
+        when(productRepository.findAllById(any(Iterable.class))).thenAnswer(invocation ->
+                found(products, invocation.getArgument(0)));
+    }
+
+    @Test
+    void gapThatFillsLateIsAppliedWhenItCommits() throws Exception {
+        IndexChangeFeed feed = feed(30_000);
+        commit(1, 1);
+        commit(3, 3);
+
+        feed.applyNextBatch();
+        assertNotNull(productIndex.product(1L));
+        assertNotNull(productIndex.product(3L));
+        assertEquals(3, feed.status().position());
+        assertEquals(1, feed.status().pendingGaps());
+
+        // The transaction holding change 2 commits after the changes above it were applied
+        commit(2, 2);
+        feed.applyNextBatch();
+        assertNotNull(productIndex.product(2L));
+        assertEquals(0, feed.status().pendingGaps());
+        assertEquals(0, feed.status().expiredGaps());
+    }
+
+    @Test
+    void gapThatNeverFillsExpires() throws Exception {
+        IndexChangeFeed feed = feed(1);
+        commit(1, 1);
+        commit(3, 3);
+
+        feed.applyNextBatch();
+        assertEquals(1, feed.status().pendingGaps());
+
+        Thread.sleep(10);
+        feed.applyNextBatch();
+        assertEquals(0, feed.status().pendingGaps());
+        assertEquals(1, feed.status().expiredGaps());
+
+        // Taken for rolled back, so a commit this late is no longer looked for
+        commit(2, 2);
+        feed.applyNextBatch();
+        assertNull(productIndex.product(2L));
+    }
+
+    @Test
+    void changesInFlightAtStartupAreWaitedFor() throws Exception {
+        // Changes 1, 2 and 4 committed before startup and are part of the index load; 3 is still in flight
+        commit(1, 1);
+        commit(2, 2);
+        commit(4, 4);
+        IndexChangeFeed feed = feed(30_000);
+        assertEquals(4, feed.status().position());
+        assertEquals(1, feed.status().pendingGaps());
+
+        commit(3, 3);
+        feed.applyNextBatch();
+        assertNotNull(productIndex.product(3L));
+        assertNull(productIndex.product(1L));
+        assertEquals(0, feed.status().pendingGaps());
+    }
+
+    @Test
+    void changesAreAppliedOnCommitAndSkippedByTheFeed() throws Exception {
+        IndexChangeFeed feed = feed(30_000);
+        products.put(7L, product(7));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            feed.record(IndexChange.PRODUCT, 7L, false);
+            feed.record(IndexChange.PRODUCT, 7L, false);
+            List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+            // Both changes are applied, and announced, once for the transaction
+            assertEquals(1, synchronizations.size());
+            assertNull(productIndex.product(7L));
+            for (TransactionSynchronization synchronization : synchronizations) {
+                synchronization.afterCommit();
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertNotNull(productIndex.product(7L));
+
+        feed.applyNextBatch();
+        assertEquals(2, feed.status().position());
+        verify(productRepository, times(1)).findAllById(any());
+    }
+
+    @Test
+    void replayPutsBackRowsARebuildReadBeforeTheyChanged() throws Exception {
+        IndexChangeFeed feed = feed(30_000);
+        long appliedThrough = feed.appliedThrough();
+        // A rebuild reads product 1, which is then renamed and the change applied, before the page is indexed
+        Product stale = product(1);
+        commit(1, 1);
+        products.get(1L).setName("Renamed");
+        feed.applyNextBatch();
+        productIndex.bulkIndex(List.of(stale));
+        assertEquals("Product 1", productIndex.product(1L).getName());
+
+        assertEquals(1, feed.replayAfter(appliedThrough));
+        assertEquals("Renamed", productIndex.product(1L).getName());
+    }
+
+    @Test
+    void appliedThroughStopsBelowOpenGaps() throws Exception {
+        IndexChangeFeed feed = feed(30_000);
+        commit(1, 1);
+        commit(4, 4);
+        feed.applyNextBatch();
+        assertEquals(4, feed.status().position());
+        assertEquals(1, feed.appliedThrough());
+    }
+
+    private IndexChangeFeed feed(long gapTimeoutMillis) throws Exception {
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(mock(Connection.class));
+        IndexChangeFeed feed = new IndexChangeFeed(indexChangeRepository, productRepository,
+                mock(UserRepository.class), productIndex, new UserIndex(), mock(PlatformTransactionManager.class),
+                null, dataSource, "", "", "", 1000, gapTimeoutMillis, 24);
+        feed.initialize();
+        return feed;
+    }
+
+    // Commits a change to a product, with the product row it leaves behind
+    private void commit(long changeId, long productId) {
+        IndexChange change = new IndexChange();
+        change.setChangeId(changeId);
+        change.setEntityType(IndexChange.PRODUCT);
+        change.setEntityId(productId);
+        change.setCreatedAt(LocalDateTime.now());
+        committed.put(changeId, change);
+        products.put(productId, product(productId));
+    }
+
+    private static Product product(long productId) {
+        Product product = new Product();
+        product.setProductId(productId);
+        product.setName("Product " + productId);
+        product.setDescription("Description");
+        product.setSku("SKU-" + productId);
+        product.setBasePrice(10.0);
+        return product;
+    }
+
+    private static <T> List<T> found(Map<Long, T> rows, Iterable<Long> ids) {
+        Set<Long> wanted = new HashSet<>();
+        ids.forEach(wanted::add);
+        return rows.entrySet().stream().filter(entry -> wanted.contains(entry.getKey())).map(Map.Entry::getValue).toList();
+    }
+}
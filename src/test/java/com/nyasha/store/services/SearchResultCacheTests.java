@@ -0,0 +1,103 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.utils.Analyzer;
+import com.nyasha.store.utils.ShardedProductIndex;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchResultCacheTests {
+
+    private final ShardedProductIndex productIndex = new ShardedProductIndex(2, Analyzer.standard());
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger computed = new AtomicInteger();
+
+    @Test
+    void repeatedLookupIsServedFromTheCache() {
+        SearchResultCache cache = cache(1 << 20, 60_000);
+
+        assertEquals("result 1", cache.get("key", compute(), value -> 100));
+        assertEquals("result 1", cache.get("key", compute(), value -> 100));
+        assertEquals(1, computed.get());
+        assertEquals(1, meterRegistry.get("cache.gets").tag("result", "hit").functionCounter().count());
+    }
+
+    @Test
+    void changeToTheIndexMakesEntriesStale() {
+        SearchResultCache cache = cache(1 << 20, 60_000);
+        cache.get("key", compute(), value -> 100);
+
+        productIndex.insert(product(1));
+        assertEquals("result 2", cache.get("key", compute(), value -> 100));
+        assertEquals(1, meterRegistry.get("store.search.cache.stale").counter().count());
+        assertEquals("result 2", cache.get("key", compute(), value -> 100));
+    }
+
+    @Test
+    void staticRankChangesAreServedStaleForBoundedTime() {
+        productIndex.insert(product(1));
+        SearchResultCache lenient = cache(1 << 20, 60_000);
+        lenient.get("key", compute(), value -> 100);
+        productIndex.recordSale(1L, 3, LocalDateTime.now());
+        assertEquals("result 1", lenient.get("key", compute(), value -> 100));
+
+        SearchResultCache strict = cache(1 << 20, 0);
+        strict.get("key", compute(), value -> 100);
+        productIndex.recordReview(1L, 5);
+        assertEquals("result 3", strict.get("key", compute(), value -> 100));
+    }
+
+    @Test
+    void entriesAreEvictedByWeight() {
+        SearchResultCache cache = cache(10_000, 60_000);
+        for (int i = 0; i < 100; i++) {
+            cache.get("key " + i, compute(), value -> 1_000);
+        }
+        cache.cleanUp();
+        double memory = meterRegistry.get("store.search.cache.memory").gauge().value();
+        assertTrue(memory > 0 && memory <= 10_000, "estimated memory " + memory);
+
+        // A response heavier than the whole budget is never kept
+        cache.get("heavy", compute(), value -> 20_000);
+        cache.cleanUp();
+        int before = computed.get();
+        cache.get("heavy", compute(), value -> 20_000);
+        assertEquals(before + 1, computed.get());
+    }
+
+    @Test
+    void keysFoldCaseAndWhitespaceButNotOperators() {
+        assertEquals(SearchResultCache.key("search", "Phone", 10), SearchResultCache.key("search", "  phone ", 10));
+        assertEquals(SearchResultCache.key("search", "Red  COLOR"), SearchResultCache.key("search", "red color"));
+        assertEquals(SearchResultCache.key("search", "tv OR Television"), SearchResultCache.key("search", "TV OR television"));
+        assertNotEquals(SearchResultCache.key("search", "tv OR television"), SearchResultCache.key("search", "tv or television"));
+        assertNotEquals(SearchResultCache.key("search", "phone", 10), SearchResultCache.key("search", "phone", 20));
+    }
+
+    private SearchResultCache cache(long maxBytes, long rankStalenessMillis) {
+        return new SearchResultCache(productIndex, meterRegistry, maxBytes, rankStalenessMillis);
+    }
+
+    private Supplier<String> compute() {
+        return () -> "result " + computed.incrementAndGet();
+    }
+
+    private static Product product(long productId) {
+        Product product = new Product();
+        product.setProductId(productId);
+        product.setName("Product " + productId);
+        product.setDescription("Description");
+        product.setSku("SKU-" + productId);
+        product.setBasePrice(10.0);
+        return product;
+    }
+}
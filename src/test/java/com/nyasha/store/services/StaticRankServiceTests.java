@@ -0,0 +1,79 @@
+package com.nyasha.store.services;
+
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.repositories.OrderItemRepository;
+import com.nyasha.store.repositories.ReviewRepository;
+import com.nyasha.store.utils.Analyzer;
+import com.nyasha.store.utils.ShardedProductIndex;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StaticRankServiceTests {
+
+    @Test
+    void saleOfProductNotIndexedYetIsCountedOnceItIs() {
+        List<OrderItemRepository.Sale> sales = new ArrayList<>();
+        OrderItemRepository orderItemRepository = mock(OrderItemRepository.class);
+        when(orderItemRepository.findSalesAfter(anyLong(), any(LocalDateTime.class), any(Pageable.class)))
+                .thenAnswer(invocation -> {
+                    long after = invocation.getArgument(0);
+                    return sales.stream().filter(sale -> sale.getOrderItemId() > after).toList();
+                });
+        ShardedProductIndex productIndex = new ShardedProductIndex(1, Analyzer.standard());
+        StaticRankService service = new StaticRankService(orderItemRepository, mock(ReviewRepository.class),
+                productIndex, mock(PlatformTransactionManager.class), 7);
+
+        sales.add(sale(1, 5, 2));
+        service.refresh();
+        assertEquals(0, productIndex.rankEpoch());
+
+        // The product reaches the index after the refresh that read past its sale
+        productIndex.insert(product(5));
+        service.refresh();
+        assertEquals(1, productIndex.rankEpoch());
+        service.refresh();
+        assertEquals(1, productIndex.rankEpoch());
+    }
+
+    private static OrderItemRepository.Sale sale(long orderItemId, long productId, int quantity) {
+        LocalDateTime orderDate = LocalDateTime.now();
+        return new OrderItemRepository.Sale() {
+            public Long getOrderItemId() {
+                return orderItemId;
+            }
+
+            public Long getProductId() {
+                return productId;
+            }
+
+            public Integer getQuantity() {
+                return quantity;
+            }
+
+            public LocalDateTime getOrderDate() {
+                return orderDate;
+            }
+        };
+    }
+
+    private static Product product(long productId) {
+        Product product = new Product();
+        product.setProductId(productId);
+        product.setName("Product " + productId);
+        product.setDescription("Description");
+        product.setSku("SKU-" + productId);
+        product.setBasePrice(10.0);
+        return product;
+    }
+}
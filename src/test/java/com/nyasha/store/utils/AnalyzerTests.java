@@ -0,0 +1,77 @@
+package com.nyasha.store.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class AnalyzerTests {
+
+    @Test
+    void lowerCasesAndFoldsAccentedLetters() {
+        Analyzer analyzer = new Analyzer(Analyzer.LOWERCASE_ASCII_FOLDING);
+        assertArrayEquals(new String[]{"cafe", "creme", "brulee"}, analyzer.terms("Caf\u00e9 CR\u00c8ME br\u00fbl\u00e9e"));
+        // Letters with a stroke have no decomposition but still fold
+        assertArrayEquals(new String[]{"kobenhavn", "lodz"}, analyzer.terms("K\u00f8benhavn \u0141\u00f3d\u017a"));
+    }
+
+    @Test
+    void splitsOnAnythingButLettersAndDigits() {
+        Analyzer analyzer = new Analyzer(Analyzer.LOWERCASE_ASCII_FOLDING);
+        assertArrayEquals(new String[]{"usb", "c", "65w", "charger"}, analyzer.terms("  USB-C, 65W...charger!"));
+        assertArrayEquals(new String[0], analyzer.terms(""));
+        assertArrayEquals(new String[0], analyzer.terms(null));
+    }
+
+    @Test
+    void stemmerOnlyConflatesPlurals() {
+        Analyzer analyzer = Analyzer.standard();
+        assertArrayEquals(new String[]{"battery", "box", "dress", "watch", "shoe", "cable"},
+                analyzer.terms("batteries boxes dresses watches shoes cables"));
+        // Words that only look plural, and short tokens, are left alone
+        assertArrayEquals(new String[]{"dress", "status", "analysis", "gas"}, analyzer.terms("dress status analysis gas"));
+    }
+
+    @Test
+    void stopwordsAreDroppedWithoutLeavingPositionGaps() {
+        List<String> terms = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        int length = Analyzer.standard().analyze("The pack of the eight", (term, position) -> {
+            terms.add(term);
+            positions.add(position);
+        });
+
+        assertEquals(List.of("pack", "eight"), terms);
+        assertEquals(List.of(0, 1), positions);
+        assertEquals(2, length);
+    }
+
+    @Test
+    void overlongTokensAreDropped() {
+        String overlong = "x".repeat(Analyzer.MAX_TOKEN_LENGTH + 1);
+        String longest = "y".repeat(Analyzer.MAX_TOKEN_LENGTH);
+        assertArrayEquals(new String[]{"red", longest}, Analyzer.standard().terms("red " + overlong + " " + longest));
+    }
+
+    @Test
+    void customChainsRunFiltersInOrder() {
+        Analyzer analyzer = new Analyzer(Analyzer.LOWERCASE_ASCII_FOLDING, Analyzer.stopwords(List.of("pack", "set")));
+        assertArrayEquals(new String[]{"the", "gift"}, analyzer.terms("The gift SET"));
+        // Without lower-casing first, the stopword list no longer matches
+        Analyzer caseSensitive = new Analyzer(Analyzer.stopwords(List.of("set")));
+        assertArrayEquals(new String[]{"SET"}, caseSensitive.terms("SET set"));
+    }
+
+    @Test
+    void termsAreInternedPerThread() {
+        Analyzer analyzer = Analyzer.standard();
+        String first = analyzer.terms("Wireless headphones")[1];
+        String second = analyzer.terms("HEADPHONES")[0];
+        assertEquals("headphone", first);
+        assertSame(first, second);
+    }
+}
@@ -0,0 +1,43 @@
+package com.nyasha.store.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BoughtTogetherIndexTests {
+
+    @Test
+    void partnersAreRankedByOrdersInCommon() {
+        BoughtTogetherIndex index = new BoughtTogetherIndex(3);
+        index.addOrder(new long[] {1, 2, 3});
+        index.addOrder(new long[] {1, 2});
+        index.addOrder(new long[] {2, 1, 1, 4});
+        index.addOrder(new long[] {1, 3});
+        index.addOrder(new long[] {5});
+
+        assertArrayEquals(new long[] {2, 3, 4}, index.boughtTogether(1, 10));
+        assertArrayEquals(new long[] {2}, index.boughtTogether(1, 1));
+        assertArrayEquals(new long[] {1, 3, 4}, index.boughtTogether(2, 10));
+        assertArrayEquals(new long[0], index.boughtTogether(5, 10));
+        // Bulk orders are skipped
+        index.addOrder(LongStream.rangeClosed(100, 100 + BoughtTogetherIndex.MAX_ORDER_SIZE).toArray());
+        assertArrayEquals(new long[0], index.boughtTogether(100, 10));
+    }
+
+    @Test
+    void frequentPartnersSurviveManyRareOnes() {
+        BoughtTogetherIndex index = new BoughtTogetherIndex(2);
+        IntStream.range(0, 1000).parallel().forEach(i -> {
+            index.addOrderUnpublished(new long[] {1, i % 3 == 0 ? 3 : 2});
+            index.addOrderUnpublished(new long[] {1, 1000 + i});
+        });
+        index.publish();
+
+        assertArrayEquals(new long[] {2, 3}, index.boughtTogether(1, 5));
+        assertEquals(1003, index.size());
+    }
+}
@@ -0,0 +1,75 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Category;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.nyasha.store.utils.ProductIndexTests.category;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CategoryTreeTests {
+
+    @Test
+    void subtreesListDescendantsInPreOrder() {
+        CategoryTree tree = new CategoryTree();
+        Category clothing = category(1L, null);
+        Category shirts = category(2L, clothing);
+        Category tees = category(4L, shirts);
+        Category shoes = category(3L, clothing);
+        // Adding a leaf learns its whole parent chain
+        assertTrue(tree.add(tees));
+        assertTrue(tree.addAll(List.of(shoes, category(9L, null))));
+
+        assertEquals(5, tree.size());
+        assertEquals(List.of(1L, 2L, 4L, 3L), tree.subtree(1L));
+        assertEquals(List.of(2L, 4L), tree.subtree(2L));
+        assertEquals(List.of(9L), tree.subtree(9L));
+        // Unknown categories only match themselves
+        assertEquals(List.of(42L), tree.subtree(42L));
+    }
+
+    @Test
+    void onlyStructuralChangesRenumber() {
+        CategoryTree tree = new CategoryTree();
+        Category clothing = category(1L, null);
+        Category shirts = category(2L, clothing);
+        assertTrue(tree.add(shirts));
+        assertFalse(tree.add(shirts));
+        assertFalse(tree.addAll(List.of(clothing, shirts)));
+
+        // Moving a category takes its subtree along
+        Category sale = category(5L, null);
+        tree.add(category(3L, shirts));
+        assertTrue(tree.add(category(2L, sale)));
+        assertEquals(List.of(1L), tree.subtree(1L));
+        assertEquals(List.of(5L, 2L, 3L), tree.subtree(5L));
+    }
+
+    @Test
+    void removingACategoryRemovesItsSubcategories() {
+        CategoryTree tree = new CategoryTree();
+        Category clothing = category(1L, null);
+        tree.add(category(3L, category(2L, clothing)));
+
+        assertTrue(tree.remove(2L));
+        assertFalse(tree.remove(2L));
+        assertEquals(1, tree.size());
+        assertEquals(List.of(1L), tree.subtree(1L));
+        assertEquals(List.of(3L), tree.subtree(3L));
+    }
+
+    @Test
+    void swappingParentAndChildNeverClosesACycle() {
+        CategoryTree tree = new CategoryTree();
+        tree.add(category(2L, category(1L, null)));
+        // Category 1 is moved under category 2, which its copy shows as a root
+        tree.add(category(1L, category(2L, null)));
+
+        assertEquals(2, tree.size());
+        assertEquals(List.of(2L, 1L), tree.subtree(2L));
+        assertEquals(List.of(1L), tree.subtree(1L));
+    }
+}
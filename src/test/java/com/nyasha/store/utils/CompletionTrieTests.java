@@ -0,0 +1,83 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.utils.CompletionTrie.Suggestion;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompletionTrieTests {
+
+    @Test
+    void keysAreNormalized() {
+        assertEquals("wireless headphones", CompletionTrie.normalize("  Wireless \t HEADPHONES "));
+        assertEquals(CompletionTrie.MAX_KEY_LENGTH, CompletionTrie.normalize("x".repeat(100)).length());
+        assertEquals("", CompletionTrie.normalize(null));
+    }
+
+    @Test
+    void lookupReturnsTheBestSuggestionsUnderAPrefix() {
+        CompletionTrie trie = new CompletionTrie(3);
+        add(trie, "Headphones basic", 1, 1.0);
+        add(trie, "Headphones pro", 2, 5.0);
+        add(trie, "Headband", 3, 2.0);
+        add(trie, "Hat", 4, 9.0);
+
+        assertEquals(List.of(2L, 3L, 1L), productIds(trie.lookup("head", 10)));
+        assertEquals(List.of(4L, 2L, 3L), productIds(trie.lookup("h", 10)));
+        assertEquals(List.of(4L), productIds(trie.lookup("h", 1)));
+        assertEquals(List.of(2L), productIds(trie.lookup("HEADPHONES P", 10)));
+        assertEquals(List.of(), trie.lookup("shoe", 10));
+    }
+
+    @Test
+    void tiesGoToShorterTextThenAlphabetical() {
+        CompletionTrie trie = new CompletionTrie(5);
+        add(trie, "Mug large", 1, 1.0);
+        add(trie, "Mug blue", 2, 1.0);
+        add(trie, "Mug", 3, 1.0);
+
+        assertEquals(List.of(3L, 2L, 1L), productIds(trie.lookup("mug", 5)));
+    }
+
+    @Test
+    void productAppearsOnceUnderEachPrefix() {
+        CompletionTrie trie = new CompletionTrie(3);
+        // A product suggested by both its name and its SKU keeps only its best suggestion per prefix
+        add(trie, "Lamp", 1, 1.0);
+        add(trie, "Lamp shade", 1, 3.0);
+        add(trie, "Lantern", 2, 2.0);
+
+        List<Suggestion> suggestions = trie.lookup("la", 10);
+        assertEquals(List.of(1L, 2L), productIds(suggestions));
+        assertEquals("Lamp shade", suggestions.get(0).text());
+    }
+
+    @Test
+    void removedSuggestionsMakeRoomForTheNextBest() {
+        CompletionTrie trie = new CompletionTrie(2);
+        add(trie, "Sofa", 1, 3.0);
+        add(trie, "Sofa bed", 2, 2.0);
+        add(trie, "Sofa cover", 3, 1.0);
+        assertEquals(List.of(1L, 2L), productIds(trie.lookup("so", 10)));
+
+        trie.remove("Sofa", 1L);
+        assertEquals(List.of(2L, 3L), productIds(trie.lookup("so", 10)));
+        // Removing under a key the product was never added to changes nothing
+        trie.remove("Sofa bed", 3L);
+        assertEquals(List.of(2L, 3L), productIds(trie.lookup("so", 10)));
+
+        trie.remove("Sofa bed", 2L);
+        trie.remove("Sofa cover", 3L);
+        assertEquals(List.of(), trie.lookup("s", 10));
+    }
+
+    private static void add(CompletionTrie trie, String text, long productId, double weight) {
+        trie.add(text, new Suggestion(text, productId, weight));
+    }
+
+    private static List<Long> productIds(List<Suggestion> suggestions) {
+        return suggestions.stream().map(Suggestion::productId).toList();
+    }
+}
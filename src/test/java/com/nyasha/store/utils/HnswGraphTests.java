@@ -0,0 +1,164 @@
+package com.nyasha.store.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HnswGraphTests {
+
+    private static final int DIMENSIONS = 16;
+    private static final int NODES = 1000;
+
+    @Test
+    void searchFindsNearlyAllExactNeighbours() {
+        float[][] vectors = vectors(NODES, 1);
+        HnswGraph graph = graph(vectors);
+        assertEquals(NODES, graph.size());
+
+        // Most similar first, and at least nine in ten of the true top ten found
+        float[][] queries = vectors(50, 2);
+        int found = 0;
+        for (float[] query : queries) {
+            List<HnswGraph.Candidate> results = graph.search(query, 10, 50, node -> true);
+            assertEquals(10, results.size());
+            for (int i = 1; i < results.size(); i++) {
+                assertTrue(results.get(i - 1).similarity() >= results.get(i).similarity());
+            }
+            found += overlap(results, exact(vectors, query, 10, node -> true));
+        }
+        assertTrue(found >= queries.length * 9, "recall " + found + " of " + queries.length * 10);
+    }
+
+    @Test
+    void filteredSearchesReturnOnlyAcceptedNodes() {
+        float[][] vectors = vectors(NODES, 3);
+        HnswGraph graph = graph(vectors);
+        // One node in fifty accepted, like a narrow category filter
+        IntPredicate accept = node -> node % 50 == 0;
+
+        float[] query = vectors(1, 4)[0];
+        List<HnswGraph.Candidate> results = graph.search(query, 10, 10, accept);
+        assertEquals(10, results.size());
+        assertTrue(results.stream().allMatch(candidate -> accept.test(candidate.node())));
+        assertTrue(overlap(results, exact(vectors, query, 10, accept)) >= 8);
+    }
+
+    @Test
+    void removedNodesAreNeverReturnedAndTheRestStayReachable() {
+        float[][] vectors = vectors(NODES, 5);
+        HnswGraph graph = graph(vectors);
+        for (int node = 0; node < NODES; node += 2) {
+            graph.remove(node);
+        }
+        // Removing twice changes nothing
+        graph.remove(0);
+        assertEquals(NODES / 2, graph.size());
+        assertEquals(List.of(), graph.search(vectors[0], 1, 1, node -> node == 0));
+
+        IntPredicate live = node -> node % 2 == 1;
+        int found = 0;
+        float[][] queries = vectors(20, 6);
+        for (float[] query : queries) {
+            List<HnswGraph.Candidate> results = graph.search(query, 10, 50, node -> true);
+            assertTrue(results.stream().allMatch(candidate -> live.test(candidate.node())));
+            found += overlap(results, exact(vectors, query, 10, live));
+        }
+        assertTrue(found >= queries.length * 9, "recall " + found + " of " + queries.length * 10);
+    }
+
+    @Test
+    void compactionRenumbersNodesAndKeepsResults() {
+        float[][] vectors = vectors(NODES, 7);
+        HnswGraph graph = graph(vectors);
+        for (int node = 0; node < NODES; node += 3) {
+            graph.remove(node);
+        }
+        int[] newNodes = new int[NODES];
+        int next = 0;
+        for (int node = 0; node < NODES; node++) {
+            newNodes[node] = node % 3 == 0 ? -1 : next++;
+        }
+
+        HnswGraph compacted = graph.compact(newNodes, next);
+        assertEquals(graph.size(), compacted.size());
+        assertArrayEquals(vectors[1], compacted.vector(newNodes[1]));
+        float[] query = vectors(1, 8)[0];
+        List<Integer> before = graph.search(query, 10, 100, node -> true).stream()
+                .map(candidate -> newNodes[candidate.node()]).toList();
+        List<Integer> after = compacted.search(query, 10, 100, node -> true).stream()
+                .map(HnswGraph.Candidate::node).toList();
+        assertEquals(before, after);
+    }
+
+    @Test
+    void restoredLinksSearchLikeTheOriginalGraph() {
+        float[][] vectors = vectors(NODES, 9);
+        HnswGraph graph = graph(vectors);
+        HnswGraph.Links links = graph.links(NODES);
+
+        HnswGraph restored = new HnswGraph(DIMENSIONS);
+        // Neighbours may be restored after the nodes that link to them
+        for (int node = NODES - 1; node >= 0; node--) {
+            restored.restore(node, vectors[node], links.neighbours()[node]);
+        }
+        restored.restoreEntryPoint(links.entryPoint());
+
+        float[] query = vectors(1, 10)[0];
+        assertEquals(graph.search(query, 10, 50, node -> true), restored.search(query, 10, 50, node -> true));
+    }
+
+    private static HnswGraph graph(float[][] vectors) {
+        HnswGraph graph = new HnswGraph(DIMENSIONS);
+        for (int node = 0; node < vectors.length; node++) {
+            graph.add(node, vectors[node]);
+        }
+        return graph;
+    }
+
+    // Random unit-length vectors
+    private static float[][] vectors(int count, long seed) {
+        Random random = new Random(seed);
+        float[][] vectors = new float[count][DIMENSIONS];
+        for (float[] vector : vectors) {
+            double norm = 0;
+            for (int i = 0; i < DIMENSIONS; i++) {
+                vector[i] = (float) random.nextGaussian();
+                norm += vector[i] * vector[i];
+            }
+            for (int i = 0; i < DIMENSIONS; i++) {
+                vector[i] /= (float) Math.sqrt(norm);
+            }
+        }
+        return vectors;
+    }
+
+    private static int[] exact(float[][] vectors, float[] query, int k, IntPredicate accept) {
+        return IntStream.range(0, vectors.length).filter(accept).boxed()
+                .sorted(Comparator.comparingDouble(node -> -dot(vectors[node], query)))
+                .limit(k).mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int overlap(List<HnswGraph.Candidate> results, int[] expected) {
+        Set<Integer> wanted = new HashSet<>(Arrays.stream(expected).boxed().toList());
+        return (int) results.stream().filter(candidate -> wanted.contains(candidate.node())).count();
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
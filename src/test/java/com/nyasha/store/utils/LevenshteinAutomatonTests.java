@@ -0,0 +1,54 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.utils.LevenshteinAutomaton.Match;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LevenshteinAutomatonTests {
+
+    private static final Map<String, Integer> DOC_FREQS = Map.of(
+            "headphone", 40, "headphones", 5, "headband", 12, "headset", 30, "phone", 50,
+            "hat", 8, "cat", 3, "act", 2, "chat", 1);
+    private static final NavigableSet<String> DICTIONARY = new TreeSet<>(DOC_FREQS.keySet());
+
+    @Test
+    void editBudgetGrowsWithTermLength() {
+        assertEquals(0, LevenshteinAutomaton.maxEditsFor("tv"));
+        assertEquals(1, LevenshteinAutomaton.maxEditsFor("hat"));
+        assertEquals(1, LevenshteinAutomaton.maxEditsFor("shirt"));
+        assertEquals(2, LevenshteinAutomaton.maxEditsFor("jackets"));
+    }
+
+    @Test
+    void findsTermsWithinTheEditBudget() {
+        assertEquals(List.of(new Match("headphone", 1, 40), new Match("headphones", 2, 5)),
+                expand("hedphone", 2, 10));
+        // Insertions, deletions, substitutions and adjacent transpositions each cost one edit
+        assertEquals(List.of("hat", "cat", "chat"), terms(expand("hat", 1, 10)));
+        assertEquals(List.of("cat", "hat", "act", "chat"), terms(expand("cat", 1, 10)));
+        assertEquals(List.of(), expand("hedphone", 0, 10));
+    }
+
+    @Test
+    void prefersFewerEditsThenMoreFrequentTerms() {
+        // Both are one edit away, so the more frequent comes first and wins when only one fits
+        assertEquals(List.of(new Match("hat", 1, 8), new Match("cat", 1, 3)), expand("bat", 1, 10));
+        assertEquals(List.of("hat"), terms(expand("bat", 1, 1)));
+        // An exact match beats a more frequent term one edit away
+        assertEquals(List.of("cat"), terms(expand("cat", 1, 1)));
+    }
+
+    private static List<Match> expand(String query, int maxEdits, int maxExpansions) {
+        return new LevenshteinAutomaton(query, maxEdits).expand(DICTIONARY, DOC_FREQS::get, maxExpansions);
+    }
+
+    private static List<String> terms(List<Match> matches) {
+        return matches.stream().map(Match::term).toList();
+    }
+}
@@ -0,0 +1,106 @@
+package com.nyasha.store.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PostingListTests {
+
+    @Test
+    void cursorsDecodeDocsFrequenciesAndPositions() {
+        PostingList postings = new PostingList(2);
+        postings.add(3, new int[]{1, 0}, new int[][]{{0}, {}});
+        postings.add(70_000, new int[]{2, 3}, new int[][]{{4, 300}, {1, 2, 200_000}});
+        assertEquals(2, postings.docFreq());
+
+        PostingList.Cursor cursor = postings.cursor();
+        assertEquals(3, cursor.nextDoc());
+        assertArrayEquals(new int[]{1, 0}, cursor.freqs());
+        assertEquals(70_000, cursor.nextDoc());
+        assertEquals(3, cursor.freq(1));
+        // Positions of a later field are read past those of the earlier ones
+        assertArrayEquals(new int[]{1, 2, 200_000}, Arrays.copyOf(cursor.positions(1), 3));
+        assertArrayEquals(new int[]{4, 300}, Arrays.copyOf(cursor.positions(0), 2));
+        assertEquals(PostingList.NO_MORE_DOCS, cursor.nextDoc());
+    }
+
+    @Test
+    void docsMustBeAppendedInOrder() {
+        PostingList postings = new PostingList(1);
+        postings.add(5, new int[]{1}, new int[][]{{0}});
+        assertThrows(IllegalArgumentException.class, () -> postings.add(5, new int[]{1}, new int[][]{{0}}));
+        assertThrows(IllegalArgumentException.class, () -> postings.add(4, new int[]{1}, new int[][]{{0}}));
+    }
+
+    @Test
+    void advanceGallopsToTheSameDocsAsALinearScan() {
+        PostingList postings = new PostingList(1);
+        List<Integer> docIds = new ArrayList<>();
+        for (int doc = 0; doc < 10 * PostingList.SKIP_INTERVAL; doc += 1 + doc % 7) {
+            postings.add(doc, new int[]{1}, new int[][]{{doc % 5}});
+            docIds.add(doc);
+        }
+
+        for (int target = 0; target < docIds.get(docIds.size() - 1) + 2; target += 13) {
+            int expected = PostingList.NO_MORE_DOCS;
+            for (int doc : docIds) {
+                if (doc >= target) {
+                    expected = doc;
+                    break;
+                }
+            }
+            PostingList.Cursor cursor = postings.cursor();
+            assertEquals(expected, cursor.advance(target), "target " + target);
+            if (expected != PostingList.NO_MORE_DOCS) {
+                // The entry body is decoded too, not just the doc ID
+                assertEquals(expected % 5, cursor.positions(0)[0]);
+            }
+        }
+
+        // Advancing from part way through only ever moves forward
+        PostingList.Cursor cursor = postings.cursor();
+        int middle = docIds.get(docIds.size() / 2);
+        assertEquals(middle, cursor.advance(middle));
+        assertEquals(middle, cursor.advance(0));
+    }
+
+    @Test
+    void removeReencodesTheRestOfTheList() {
+        PostingList postings = new PostingList(1);
+        for (int doc = 0; doc < 3 * PostingList.SKIP_INTERVAL; doc++) {
+            postings.add(doc, new int[]{1}, new int[][]{{doc}});
+        }
+        int sizeBefore = postings.sizeInBytes();
+
+        assertTrue(postings.remove(PostingList.SKIP_INTERVAL));
+        assertFalse(postings.remove(PostingList.SKIP_INTERVAL));
+        assertEquals(3 * PostingList.SKIP_INTERVAL - 1, postings.docFreq());
+        assertTrue(postings.sizeInBytes() < sizeBefore);
+
+        PostingList.Cursor cursor = postings.cursor();
+        assertEquals(PostingList.SKIP_INTERVAL + 1, cursor.advance(PostingList.SKIP_INTERVAL));
+        assertEquals(PostingList.SKIP_INTERVAL + 1, cursor.positions(0)[0]);
+        assertEquals(2 * PostingList.SKIP_INTERVAL + 5, cursor.advance(2 * PostingList.SKIP_INTERVAL + 5));
+    }
+
+    @Test
+    void rebaseShiftsEveryDocId() {
+        PostingList postings = new PostingList(1);
+        postings.add(0, new int[]{1}, new int[][]{{0}});
+        postings.add(9, new int[]{2}, new int[][]{{1, 4}});
+
+        PostingList.Cursor cursor = postings.rebase(100).cursor();
+        assertEquals(100, cursor.nextDoc());
+        assertEquals(109, cursor.nextDoc());
+        assertArrayEquals(new int[]{1, 4}, Arrays.copyOf(cursor.positions(0), 2));
+        assertEquals(PostingList.NO_MORE_DOCS, cursor.nextDoc());
+    }
+}
@@ -0,0 +1,102 @@
+package com.nyasha.store.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PriceIndexTests {
+
+    @Test
+    void cursorsStreamDocsInPriceOrderWithinTheRange() {
+        PriceIndex index = new PriceIndex();
+        index.add(0, 30.0);
+        index.add(1, 10.0);
+        index.add(2, 20.0);
+        index.add(3, 20.0);
+        index.add(4, 40.0);
+
+        assertEquals(List.of(1, 2, 3, 0, 4), docs(index.cursor(null, null, false)));
+        // Ties come in ascending doc ID order, and in descending order when the prices do
+        assertEquals(List.of(0, 3, 2), docs(index.cursor(15.0, 30.0, true)));
+        assertEquals(List.of(2, 3, 0), docs(index.cursor(20.0, 30.0, false)));
+        assertEquals(List.of(), docs(index.cursor(41.0, null, false)));
+
+        DocIdBitSet range = index.range(null, 20.0);
+        assertEquals(3, range.cardinality());
+        assertTrue(range.get(1) && range.get(2) && range.get(3));
+    }
+
+    @Test
+    void cursorsResumeRightAfterAnEntry() {
+        PriceIndex index = new PriceIndex();
+        for (int doc = 0; doc < 10; doc++) {
+            index.add(doc, doc % 3);
+        }
+        // Prices 0: docs 0, 3, 6, 9; 1: docs 1, 4, 7; 2: docs 2, 5, 8
+        assertEquals(List.of(7, 2, 5, 8), docs(index.cursorAfter(null, null, false, 1.0, 4)));
+        assertEquals(List.of(1, 9, 6, 3, 0), docs(index.cursorAfter(null, null, true, 1.0, 4)));
+        // Resuming past the range's end leaves nothing
+        assertEquals(List.of(), docs(index.cursorAfter(null, 1.0, false, 1.0, 7)));
+    }
+
+    @Test
+    void pendingEntriesMergeIntoTheMainRun() {
+        PriceIndex index = new PriceIndex();
+        int docCount = PriceIndex.MAX_PENDING + 10;
+        for (int doc = 0; doc < docCount; doc++) {
+            index.add(doc, docCount - doc);
+        }
+
+        // The first MAX_PENDING entries were merged and the rest are pending; cursors read both as one sorted run
+        List<Integer> ascending = docs(index.cursor(null, null, false));
+        assertEquals(docCount, ascending.size());
+        for (int i = 0; i < docCount; i++) {
+            assertEquals(docCount - 1 - i, ascending.get(i));
+        }
+    }
+
+    @Test
+    void removedAndRepricedDocsOnlyShowUnderTheirCurrentPrice() {
+        PriceIndex index = new PriceIndex();
+        index.add(0, 5.0);
+        index.add(1, 6.0);
+        index.add(2, 7.0);
+        index.remove(1);
+        index.add(2, 1.0);
+
+        assertEquals(Double.NaN, index.price(1));
+        assertEquals(1.0, index.price(2));
+        assertEquals(List.of(2, 0), docs(index.cursor(null, null, false)));
+        assertEquals(List.of(), docs(index.cursor(6.0, 7.0, false)));
+        // The stale entries stay in the runs until they are merged or compacted away
+        assertEquals(4, index.entryCount());
+    }
+
+    @Test
+    void compactionRenumbersDocsAndDropsStaleEntries() {
+        PriceIndex index = new PriceIndex();
+        index.add(0, 3.0);
+        index.add(1, 1.0);
+        index.add(2, 2.0);
+        index.add(3, 1.0);
+        index.remove(2);
+
+        PriceIndex compacted = index.compact(new int[]{0, 1, -1, 2}, 3);
+        assertEquals(3, compacted.entryCount());
+        assertEquals(List.of(1, 2, 0), docs(compacted.cursor(null, null, false)));
+        assertEquals(1.0, compacted.price(2));
+        assertEquals(Double.NaN, compacted.price(3));
+    }
+
+    private static List<Integer> docs(PriceIndex.Cursor cursor) {
+        List<Integer> docs = new ArrayList<>();
+        for (int doc = cursor.nextDoc(); doc != PostingList.NO_MORE_DOCS; doc = cursor.nextDoc()) {
+            docs.add(doc);
+        }
+        return docs;
+    }
+}
@@ -0,0 +1,812 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Category;
+import com.nyasha.store.entities.Product;
+import com.nyasha.store.entities.ProductVariant;
+import com.nyasha.store.entities.Review;
+import com.nyasha.store.entities.Supplier;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProductIndexTests {
+
+    private static long nextId = 1;
+
+    static Product product(String name, String description, Category... categories) {
+        Product product = new Product();
+        product.setProductId(nextId++);
+        product.setName(name);
+        product.setDescription(description);
+        product.setSku("SKU-" + product.getProductId());
+        product.setBasePrice(10.0);
+        product.getCategories().addAll(List.of(categories));
+        return product;
+    }
+
+    @Test
+    void searchByTextRanksNameMatchesAboveDescriptionMatches() {
+        ProductIndex index = new ProductIndex();
+        Product inDescription = product("Plain tee", "A soft shirt made from red cotton");
+        Product inName = product("Red cotton shirt", "Classic fit");
+        Product unrelated = product("Leather boots", "Waterproof");
+        index.insert(inDescription);
+        index.insert(inName);
+        index.insert(unrelated);
+
+        List<Product> results = index.searchByText("red cotton shirt");
+
+        assertEquals(List.of(inName, inDescription), results);
+    }
+
+    @Test
+    void queriesAndDocumentsShareTheSameAnalysis() {
+        ProductIndex index = new ProductIndex();
+        Product shoes = product("Running Shoes", "Light and breathable");
+        Product cafe = product("Caf\u00e9 table", "Seats four");
+        Product batteries = product("AA batteries", "Pack of eight");
+        index.insert(shoes);
+        index.insert(cafe);
+        index.insert(batteries);
+
+        assertEquals(List.of(shoes), index.searchByText("shoe"));
+        assertEquals(List.of(cafe), index.searchByText("CAFE tables"));
+        assertEquals(List.of(batteries), index.searchByText("battery"));
+        assertEquals(List.of(shoes), index.searchByText("\"running shoe\""));
+        // Stopwords are dropped on both sides, so phrases still line up across them
+        assertEquals(List.of(batteries), index.searchByText("\"pack eight\""));
+        assertEquals(List.of(), index.searchByText("the"));
+    }
+
+    @Test
+    void synonymsExpandQueriesBelowTheLiteralTerm() {
+        ProductIndex index = new ProductIndex();
+        Product television = product("Television 55 inch", "4K panel");
+        Product tv = product("TV stand", "Oak");
+        Product trainers = product("Trail trainers", "Grippy sole");
+        Product runningShoes = product("Running shoes", "Light");
+        Product notebook = product("Notebook", "A5 paper");
+        index.insert(television);
+        index.insert(tv);
+        index.insert(trainers);
+        index.insert(runningShoes);
+        index.insert(notebook);
+
+        assertEquals(List.of(), index.searchByText("sneakers"));
+        index.setSynonyms(SynonymDictionary.parse(List.of(
+                "# comment",
+                "tv, television",
+                "sneakers, trainers, running shoes",
+                "laptop => notebook^0.5"), index.analyzer()));
+
+        assertEquals(List.of(tv, television), index.searchByText("tv"));
+        assertEquals(List.of(television, tv), index.searchByText("television"));
+        assertEquals(new HashSet<>(List.of(trainers, runningShoes)), new HashSet<>(index.searchByText("sneaker")));
+        assertEquals(List.of(notebook), index.searchByText("laptop"));
+        assertEquals(List.of(), index.searchByText("+sneakers -trainers -running"));
+        // One-way rules do not expand backwards
+        assertEquals(List.of(notebook), index.searchByText("notebook"));
+
+        index.setSynonyms(SynonymDictionary.EMPTY);
+        assertEquals(List.of(), index.searchByText("laptop"));
+        assertThrows(IllegalArgumentException.class,
+                () -> SynonymDictionary.parse(List.of("tv, television^x"), index.analyzer()));
+    }
+
+    @Test
+    void generationChangesWithEveryChangeToResults() {
+        ProductIndex index = new ProductIndex();
+        long initial = index.generation();
+        Product kettle = product("Kettle", "Steel");
+        index.insert(kettle);
+        long inserted = index.generation();
+        assertTrue(inserted > initial);
+
+        index.search("kettle", 10, true);
+        assertEquals(inserted, index.generation());
+
+        Product renamed = product("Teapot", "Ceramic");
+        renamed.setProductId(kettle.getProductId());
+        index.update(kettle, renamed);
+        long updated = index.generation();
+        assertTrue(updated > inserted);
+        index.setSynonyms(SynonymDictionary.EMPTY);
+        assertTrue(index.generation() > updated);
+    }
+
+    @Test
+    void searchByTextKeepsOnlyTopK() {
+        ProductIndex index = new ProductIndex();
+        for (int i = 0; i < 50; i++) {
+            index.insert(product("Shirt " + i, "shirt ".repeat(i % 5 + 1)));
+        }
+
+        assertEquals(5, index.searchByText("shirt", 5).size());
+    }
+
+    @Test
+    void removedProductsAreNoLongerSearchable() {
+        ProductIndex index = new ProductIndex();
+        Product product = product("Usb cable", "Braided usb c cable");
+        index.insert(product);
+        index.remove(product);
+
+        assertTrue(index.searchByText("cable").isEmpty());
+    }
+
+    @Test
+    void updatedProductIsSearchableUnderItsNewText() {
+        ProductIndex index = new ProductIndex();
+        Product original = product("Wireless mouse", "Ergonomic");
+        index.insert(original);
+
+        Product renamed = product("Wireless keyboard", "Ergonomic");
+        renamed.setProductId(original.getProductId());
+        index.update(original, renamed);
+
+        assertTrue(index.searchByText("mouse").isEmpty());
+        assertEquals(List.of(renamed), index.searchByText("keyboard"));
+        assertEquals(List.of(renamed), index.searchByText("ergonomic"));
+    }
+
+    @Test
+    void reinsertedProductReplacesItsLookupsAndSuggestions() {
+        ProductIndex index = new ProductIndex();
+        Product original = product("Desk lamp", "Brass");
+        index.insert(original);
+        index.insert(original);
+
+        Product renamed = product("Floor lamp", "Brass");
+        renamed.setProductId(original.getProductId());
+        renamed.setSku(original.getSku());
+        index.insert(renamed);
+
+        assertTrue(index.suggest("desk", 10).isEmpty());
+        assertEquals(1, index.suggest("floor", 10).size());
+        assertEquals(1, index.suggest("lamp", 10).size());
+        assertEquals(List.of(renamed), index.searchByPrefix(original.getSku().toLowerCase()));
+    }
+
+    @Test
+    void booleanOperatorsRequireAndExcludeTerms() {
+        ProductIndex index = new ProductIndex();
+        Product redShirt = product("Red shirt", "Cotton");
+        Product blueShirt = product("Blue shirt", "Cotton");
+        Product redScarf = product("Red scarf", "Wool");
+        index.insert(redShirt);
+        index.insert(blueShirt);
+        index.insert(redScarf);
+
+        assertEquals(List.of(redShirt), index.searchByText("+red +shirt"));
+        assertEquals(List.of(blueShirt), index.searchByText("shirt -red"));
+        assertEquals(2, index.searchByText("+cotton +(red OR blue)").size());
+        assertEquals(List.of(redScarf), index.searchByText("\"red scarf\" -cotton"));
+    }
+
+    @Test
+    void conjunctionsSkipAcrossLongPostingLists() {
+        ProductIndex index = new ProductIndex();
+        int expected = 0;
+        for (int i = 0; i < 2000; i++) {
+            boolean rare = i % 97 == 0;
+            index.insert(product("Item " + i, rare ? "common rare" : "common"));
+            if (rare) expected++;
+        }
+
+        assertEquals(expected, index.searchByText("+common +rare", 1000).size());
+        assertTrue(index.searchByText("common -rare", 1000).stream()
+                .noneMatch(product -> product.getDescription().contains("rare")));
+    }
+
+    @Test
+    void phraseAndProximityQueriesUsePositions() {
+        ProductIndex index = new ProductIndex();
+        Product cable = product("Braided usb c cable", "Fast charging");
+        Product scattered = product("Cable organiser", "Holds usb sticks and a type c adapter");
+        Product reversed = product("Cable usb", "Short");
+        index.insert(cable);
+        index.insert(scattered);
+        index.insert(reversed);
+
+        assertEquals(List.of(cable), index.searchByText("\"usb c cable\""));
+        assertEquals(List.of(reversed), index.searchByText("\"cable usb\""));
+        assertEquals(2, index.searchByText("\"usb cable\"~1").size());
+        assertTrue(index.searchByText("\"usb cable\"").isEmpty());
+        assertTrue(index.searchByText("\"usb adapter\"~2").isEmpty());
+    }
+
+    @Test
+    void misspelledTermsFallBackToFuzzyMatches() {
+        ProductIndex index = new ProductIndex();
+        Product headphones = product("Wireless headphones", "Noise cancelling");
+        Product speaker = product("Bluetooth speaker", "Portable");
+        index.insert(headphones);
+        index.insert(speaker);
+
+        assertEquals(List.of(headphones), index.searchByText("hedphones"));
+        assertEquals(List.of(speaker), index.searchByText("bluetoth speker"));
+    }
+
+    @Test
+    void excludedMisspelledTermsAreNotExpanded() {
+        ProductIndex index = new ProductIndex();
+        Product headphones = product("Studio headphones", "Closed back");
+        Product monitor = product("Studio monitor", "Active speaker");
+        index.insert(headphones);
+        index.insert(monitor);
+
+        assertEquals(2, index.searchByText("studio -hedphones").size());
+        assertEquals(List.of(monitor), index.searchByText("studio -headphones"));
+    }
+
+    @Test
+    void fuzzyExpansionsScoreBelowExactMatches() {
+        ProductIndex index = new ProductIndex();
+        Product shows = product("Shows", "Box set");
+        Product shoes = product("Shoes", "Running");
+        index.insert(shows);
+        index.insert(shoes);
+
+        assertEquals(List.of(shoes, shows), index.searchByText("shoes~"));
+        assertEquals(List.of(shoes), index.searchByText("shoes~0"));
+    }
+
+    @Test
+    void suggestionsAreBoundedAndRankedByPopularity() {
+        ProductIndex index = new ProductIndex();
+        Product quiet = product("Headphones basic", "Wired");
+        Product popular = product("Headphones pro", "Wireless");
+        for (long reviewId = 1; reviewId <= 2; reviewId++) {
+            Review review = new Review();
+            review.setReviewId(reviewId);
+            popular.getReviews().add(review);
+        }
+        index.insert(quiet);
+        index.insert(popular);
+        for (int i = 0; i < 30; i++) {
+            index.insert(product("Hat " + i, "Wool"));
+        }
+
+        List<CompletionTrie.Suggestion> suggestions = index.suggest("head", 5);
+        assertEquals(List.of(popular.getProductId(), quiet.getProductId()),
+                suggestions.stream().map(CompletionTrie.Suggestion::productId).toList());
+        assertEquals(5, index.suggest("h", 5).size());
+        assertEquals(List.of(popular), index.searchByPrefix("pro"));
+
+        index.remove(popular);
+        assertEquals(List.of(quiet), index.searchByPrefix("headphones"));
+    }
+
+    @Test
+    void searchReturnsFacetCountsOverAllMatches() {
+        ProductIndex index = new ProductIndex();
+        Category shoes = new Category();
+        shoes.setCategoryId(7L);
+        Supplier supplier = new Supplier();
+        supplier.setSupplierId(3L);
+        Product cheap = product("Running shoe", "Light", shoes);
+        cheap.setBasePrice(20.0);
+        cheap.setSupplier(supplier);
+        Product pricey = product("Trail shoe", "Grippy", shoes);
+        pricey.setBasePrice(120.0);
+        index.insert(cheap);
+        index.insert(pricey);
+        index.insert(product("Wool hat", "Warm"));
+
+        SearchResult result = index.search("shoe", 1, true);
+
+        assertEquals(1, result.hits().size());
+        assertEquals(2, result.totalHits());
+        assertEquals(Map.of("7", 2), result.facets().get(FacetIndex.CATEGORY));
+        assertEquals(Map.of("3", 1), result.facets().get(FacetIndex.SUPPLIER));
+        assertEquals(Map.of("0-25", 1, "100-200", 1), result.facets().get(FacetIndex.PRICE));
+        assertEquals(List.of(cheap, pricey), index.searchByCategory("7"));
+    }
+
+    @Test
+    void priceRangesFilterAndSortByEffectivePrice() {
+        ProductIndex index = new ProductIndex();
+        List<Product> lamps = new ArrayList<>();
+        for (int i = 0; i < 2 * PriceIndex.MAX_PENDING; i++) {
+            Product lamp = product("Lamp " + i, "Desk lamp");
+            lamp.setBasePrice((double) (i % 100));
+            lamps.add(lamp);
+            index.insert(lamp);
+        }
+        Product discounted = product("Floor lamp", "Tall lamp");
+        discounted.setBasePrice(500.0);
+        ProductVariant small = new ProductVariant();
+        small.setVariantId(1L);
+        small.setPriceAdjustment(-499.5);
+        discounted.getVariants().add(small);
+        index.insert(discounted);
+        index.remove(lamps.get(0));
+
+        SearchResult cheapest = index.search("lamp", 3, false, null, null, SearchSort.PRICE_ASC);
+        assertEquals(List.of(lamps.get(100), lamps.get(200), lamps.get(300)), cheapest.hits());
+        assertEquals(2 * PriceIndex.MAX_PENDING, cheapest.totalHits());
+        assertEquals(List.of(discounted), index.search("lamp", 10, false, 0.4, 0.6, SearchSort.RELEVANCE).hits());
+
+        SearchResult underTwo = index.search("desk", 100, false, null, 2.0, SearchSort.RELEVANCE);
+        long expected = lamps.stream().skip(1).filter(lamp -> lamp.getBasePrice() <= 2.0).count();
+        assertEquals(expected, underTwo.totalHits());
+        assertTrue(underTwo.hits().stream().allMatch(hit -> hit.getBasePrice() <= 2.0));
+
+        SearchResult priciest = index.search("", 3, false, 90.0, 98.5, SearchSort.PRICE_DESC);
+        // Descending order also walks ties backwards, newest doc first
+        assertEquals(List.of(lamps.get(1998), lamps.get(1898), lamps.get(1798)), priciest.hits());
+    }
+
+    @Test
+    void categorySearchIncludesDescendantCategories() {
+        ProductIndex index = new ProductIndex();
+        Category electronics = category(11L, null);
+        Category audio = category(12L, electronics);
+        Category headphones = category(13L, audio);
+        Category clothing = category(14L, null);
+        Product speaker = product("Bookshelf speaker", "Stereo", audio);
+        Product earbuds = product("Wireless earbuds", "Noise cancelling", headphones);
+        Product shirt = product("Linen shirt", "Summer", clothing);
+        index.insert(speaker);
+        index.insert(earbuds);
+        index.insert(shirt);
+
+        assertEquals(List.of(speaker, earbuds), index.searchByCategory("11"));
+        assertEquals(List.of(speaker, earbuds), index.searchByCategory("12"));
+        assertEquals(List.of(speaker), index.searchByCategory("12", false));
+        assertEquals(List.of(), index.searchByCategory("11", false));
+
+        // Moving Headphones under Clothing renumbers the tree without touching any product
+        Category movedHeadphones = category(13L, clothing);
+        index.updateCategory(movedHeadphones);
+        assertEquals(List.of(speaker), index.searchByCategory("11"));
+        assertEquals(List.of(earbuds, shirt), index.searchByCategory("14"));
+
+        // Products keep their own tags; only the subtree relationship goes away
+        index.removeCategory(14L);
+        assertEquals(List.of(shirt), index.searchByCategory("14"));
+        assertEquals(List.of(earbuds), index.searchByCategory("13"));
+    }
+
+    @Test
+    void cursorsPageThroughResultsWithoutGapsOrDuplicates() {
+        ProductIndex index = new ProductIndex();
+        Category mugs = category(21L, null);
+        for (int i = 0; i < 95; i++) {
+            Product mug = product("Mug " + i, "mug ".repeat(i % 7 + 1), mugs);
+            mug.setBasePrice((double) (i % 13));
+            index.insert(mug);
+        }
+
+        for (SearchSort sort : SearchSort.values()) {
+            List<Product> expected = index.search(new SearchRequest("mug", 1000, false, null, null, sort, null)).hits();
+            List<Product> paged = new ArrayList<>();
+            String cursor = null;
+            do {
+                SearchResult page = index.search(new SearchRequest("mug", 10, false, null, null, sort, cursor));
+                assertEquals(95, page.totalHits());
+                paged.addAll(page.hits());
+                cursor = page.nextCursor();
+            } while (cursor != null);
+            assertEquals(expected, paged);
+
+            List<Product> categoryPaged = new ArrayList<>();
+            cursor = null;
+            do {
+                SearchResult page = index.searchByCategory("21", true, 7, sort, cursor);
+                categoryPaged.addAll(page.hits());
+                cursor = page.nextCursor();
+            } while (cursor != null);
+            assertEquals(95, categoryPaged.size());
+            assertEquals(95, new HashSet<>(categoryPaged).size());
+        }
+
+        SuggestionResult first = index.suggest("mug", 4, null);
+        SuggestionResult second = index.suggest("mug", 4, first.nextCursor());
+        assertEquals(4, second.suggestions().size());
+        assertTrue(first.suggestions().stream().noneMatch(second.suggestions()::contains));
+        assertThrows(IllegalArgumentException.class,
+                () -> index.search(new SearchRequest("mug", 10, false, null, null, SearchSort.PRICE_ASC, first.nextCursor())));
+    }
+
+    @Test
+    void segmentsSealAndMergeWithoutChangingResults() {
+        ProductIndex index = new ProductIndex(8);
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Product product = product("Kettle " + i, i % 2 == 0 ? "steel kettle" : "glass kettle");
+            products.add(product);
+            index.insert(product);
+        }
+        for (int i = 0; i < 30; i++) {
+            Product renamed = product("Teapot " + i, "ceramic teapot");
+            renamed.setProductId(products.get(i).getProductId());
+            index.update(products.get(i), renamed);
+            products.set(i, renamed);
+        }
+        for (int i = 30; i < 50; i++) {
+            index.remove(products.get(i));
+        }
+
+        List<Product> before = index.searchByText("kettle -glass", 1000);
+        assertEquals(25, before.size());
+        assertEquals(30, index.searchByText("ceramic teapot", 1000).size());
+        assertTrue(index.segmentCount() > 2);
+
+        index.forceMerge();
+
+        assertEquals(2, index.segmentCount());
+        assertEquals(before, index.searchByText("kettle -glass", 1000));
+        assertEquals(30, index.searchByText("ceramic teapot", 1000).size());
+        assertEquals(List.of(), index.searchByText("\"kettle 35\""));
+        index.close();
+    }
+
+    @Test
+    void repeatedUpdatesReclaimDocIds() {
+        ProductIndex index = new ProductIndex(16);
+        for (int i = 0; i < 40; i++) {
+            Product teapot = product("Teapot " + i, "ceramic teapot");
+            teapot.setBasePrice((double) (i % 7));
+            index.insert(teapot);
+        }
+        // Every version of the kettle has the same field lengths, so the teapots keep their scores
+        Product kettle = product("Kettle 0", "steel kettle");
+        index.insert(kettle);
+
+        Map<SearchSort, List<Product>> expected = new EnumMap<>(SearchSort.class);
+        Map<SearchSort, List<Product>> paged = new EnumMap<>(SearchSort.class);
+        Map<SearchSort, String> cursors = new EnumMap<>(SearchSort.class);
+        for (SearchSort sort : SearchSort.values()) {
+            expected.put(sort, index.search(new SearchRequest("ceramic teapot", 1000, false, null, null, sort, null)).hits());
+            SearchResult first = index.search(new SearchRequest("ceramic teapot", 10, false, null, null, sort, null));
+            paged.put(sort, new ArrayList<>(first.hits()));
+            cursors.put(sort, first.nextCursor());
+        }
+
+        // Every update deletes a doc and adds one, so without compaction the doc IDs would grow without bound
+        int bound = 3 * 41;
+        for (int i = 1; i <= 5000; i++) {
+            Product updated = product("Kettle " + i, "steel kettle");
+            updated.setProductId(kettle.getProductId());
+            index.update(kettle, updated);
+            kettle = updated;
+            if (i % 250 == 0) {
+                index.awaitMerges();
+                assertTrue(index.maxDoc() <= bound, "maxDoc " + index.maxDoc());
+                assertTrue(index.similarityGraphSize() <= bound, "graph size " + index.similarityGraphSize());
+                assertTrue(index.priceEntries() <= bound, "price entries " + index.priceEntries());
+            }
+        }
+        index.forceMerge();
+        assertEquals(41, index.maxDoc());
+        assertEquals(41, index.similarityGraphSize());
+        assertEquals(41, index.priceEntries());
+        assertEquals(List.of(kettle), index.searchByText("steel kettle"));
+        assertEquals(List.of(kettle), index.searchByText("\"kettle 5000\""));
+
+        // Cursors handed out before the doc IDs were compacted resume where they left off
+        for (SearchSort sort : SearchSort.values()) {
+            String cursor = cursors.get(sort);
+            while (cursor != null) {
+                SearchResult page = index.search(new SearchRequest("ceramic teapot", 10, false, null, null, sort, cursor));
+                paged.get(sort).addAll(page.hits());
+                cursor = page.nextCursor();
+            }
+            assertEquals(expected.get(sort), paged.get(sort));
+        }
+        index.close();
+    }
+
+    @Test
+    void snapshotsReopenWithTheSameResults() throws IOException {
+        Category home = category(900L, null);
+        Category kitchen = category(901L, home);
+        Supplier supplier = new Supplier();
+        supplier.setSupplierId(7L);
+        ProductIndex index = new ProductIndex(8);
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            Product product = product("Kettle " + i, i % 3 == 0 ? "steel kettle" : "glass kettle", i % 2 == 0 ? kitchen : home);
+            product.setSupplier(supplier);
+            product.setBasePrice(20.0 + i);
+            ProductVariant variant = new ProductVariant();
+            variant.setPriceAdjustment(-5.0);
+            product.getVariants().add(variant);
+            for (int r = 0; r < i % 4; r++) {
+                Review review = new Review();
+                review.setReviewId((long) (i * 10 + r));
+                review.setRating(1 + (i + r) % 5);
+                product.getReviews().add(review);
+            }
+            products.add(product);
+            index.insert(product);
+        }
+        for (int i = 0; i < 10; i++) {
+            index.remove(products.get(i));
+        }
+
+        Path dir = Files.createTempDirectory("index-snapshot");
+        Path file = dir.resolve("products.snapshot");
+        LocalDateTime watermark = LocalDateTime.of(2025, 3, 1, 12, 30, 15, 123456789);
+        index.writeSnapshot(file, watermark);
+        // Deleted after the snapshot was taken, so only the original index misses it
+        index.remove(products.get(10));
+
+        ProductIndex reopened = new ProductIndex(8);
+        assertEquals(watermark, reopened.loadSnapshot(file));
+        assertEquals(50, reopened.productIds().size());
+        reopened.remove(reopened.product(products.get(10).getProductId()));
+
+        assertEquals(ids(index.searchByText("steel kettle", 100)), ids(reopened.searchByText("steel kettle", 100)));
+        assertEquals(ids(index.searchByText("\"glass kettle\" -steel", 100)), ids(reopened.searchByText("\"glass kettle\" -steel", 100)));
+        assertEquals(ids(index.searchByText("ketle~", 100)), ids(reopened.searchByText("ketle~", 100)));
+        SearchRequest byPrice = new SearchRequest("kettle", 100, true, 30.0, 60.0, SearchSort.PRICE_DESC, null);
+        assertEquals(ids(index.search(byPrice).hits()), ids(reopened.search(byPrice).hits()));
+        assertEquals(index.search(byPrice).facets(), reopened.search(byPrice).facets());
+        assertEquals(ids(index.searchByCategory("900")), ids(reopened.searchByCategory("900")));
+        assertEquals(index.suggest("kettle", 10), reopened.suggest("kettle", 10));
+
+        // The reopened index keeps taking writes after the restored doc IDs
+        reopened.insert(product("Copper kettle", "copper kettle"));
+        assertEquals("Copper kettle", reopened.searchByText("copper").get(0).getName());
+
+        ProductIndex notEmpty = new ProductIndex(8);
+        notEmpty.insert(product("Teapot", "ceramic teapot"));
+        assertThrows(IllegalStateException.class, () -> notEmpty.loadSnapshot(file));
+
+        byte[] corrupt = Files.readAllBytes(file);
+        corrupt[corrupt.length / 2] ^= 0x5A;
+        Path corruptFile = dir.resolve("corrupt.snapshot");
+        Files.write(corruptFile, corrupt);
+        ProductIndex fresh = new ProductIndex(8);
+        assertThrows(IOException.class, () -> fresh.loadSnapshot(corruptFile));
+        assertEquals(0, fresh.productIds().size());
+
+        index.close();
+        reopened.close();
+        notEmpty.close();
+        fresh.close();
+    }
+
+    @Test
+    void parallelBulkBuildMatchesSequentialInserts() {
+        Category tools = category(950L, null);
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Product product = product("Drill " + i, i % 5 == 0 ? "cordless drill with battery" : "corded drill", tools);
+            product.setBasePrice(50.0 + i % 40);
+            products.add(product);
+        }
+        ProductIndex sequential = new ProductIndex(64);
+        products.forEach(sequential::insert);
+
+        ProductIndex bulk = new ProductIndex(64);
+        bulk.insert(products.get(0));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        BulkIndexer indexer = new BulkIndexer("products", pool, 16, 8);
+        IndexBuildProgress progress = indexer.run(pages(products), bulk::bulkIndex);
+        assertEquals(IndexBuildProgress.State.COMPLETED, progress.state());
+        assertEquals(300, progress.documentsIndexed());
+        assertEquals(19, progress.batchesIndexed());
+        bulk.forceMerge();
+
+        assertEquals(300, bulk.productIds().size());
+        // Batches are committed in the order they finish, so equally scored hits may come in another order
+        assertEquals(new HashSet<>(ids(sequential.searchByText("cordless battery", 100))),
+                new HashSet<>(ids(bulk.searchByText("cordless battery", 100))));
+        assertEquals(ids(sequential.searchByText("\"corded drill\"", 1000)).size(), bulk.searchByText("\"corded drill\"", 1000).size());
+        SearchRequest cheapest = new SearchRequest("drill", 10, true, null, 60.0, SearchSort.PRICE_ASC, null);
+        assertEquals(sequential.search(cheapest).totalHits(), bulk.search(cheapest).totalHits());
+        assertEquals(sequential.search(cheapest).facets(), bulk.search(cheapest).facets());
+        assertEquals(300, bulk.searchByCategory("950").size());
+
+        // Rebuilding over a populated index replaces every product instead of adding it twice
+        indexer.run(pages(products), bulk::bulkIndex);
+        assertEquals(300, bulk.productIds().size());
+        assertEquals(60, bulk.search("cordless", 100, false).totalHits());
+
+        assertThrows(IllegalStateException.class, () -> indexer.run(pages(products), batch -> {
+            throw new IllegalArgumentException("bad batch");
+        }));
+        assertEquals(IndexBuildProgress.State.FAILED, indexer.progress().state());
+        assertEquals("bad batch", indexer.progress().error());
+
+        pool.shutdown();
+        sequential.close();
+        bulk.close();
+    }
+
+    @Test
+    void storedFieldsHoldWhatResultListsShow() {
+        ProductIndex index = new ProductIndex();
+        Product lamp = product("Desk lamp", "Brass");
+        lamp.setThumbnailUrl("/img/lamp.jpg");
+        ProductVariant small = new ProductVariant();
+        small.setVariantId(2L);
+        small.setPriceAdjustment(-2.5);
+        lamp.getVariants().add(small);
+        for (int rating : new int[] {4, 5}) {
+            Review review = new Review();
+            review.setRating(rating);
+            lamp.getReviews().add(review);
+        }
+        index.insert(lamp);
+
+        StoredFields fields = index.storedFields(lamp.getProductId());
+        assertEquals(new StoredFields(lamp.getProductId(), "Desk lamp", lamp.getSku(), 7.5, "/img/lamp.jpg", 4.5),
+                fields);
+        index.remove(lamp);
+        assertNull(index.storedFields(lamp.getProductId()));
+    }
+
+    @Test
+    void similarProductsFollowNameAndDescription() {
+        ProductIndex index = new ProductIndex();
+        ShardedProductIndex sharded = new ShardedProductIndex(3, Analyzer.standard());
+        String[] kinds = {"lamp", "kettle", "sofa", "jacket", "drill"};
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String kind = kinds[i % kinds.length];
+            products.add(product("Model " + i + " " + kind, "A " + kind + " in colour " + (i % 37)));
+        }
+        index.bulkIndex(products);
+        sharded.bulkIndex(products);
+        index.remove(products.get(5));
+        sharded.remove(products.get(5));
+
+        Product lamp = products.get(0);
+        for (List<Product> similar : List.of(index.similar(lamp.getProductId(), 20, 64),
+                sharded.similar(lamp.getProductId(), 20, 64))) {
+            assertEquals(20, similar.size());
+            assertTrue(similar.stream().allMatch(product -> product.getName().endsWith("lamp")));
+            assertTrue(similar.stream().noneMatch(product -> product == lamp || product == products.get(5)));
+        }
+        List<Product> kettles = index.similarToText("kettles", 5, 64);
+        assertEquals(5, kettles.size());
+        assertTrue(kettles.stream().allMatch(product -> product.getName().endsWith("kettle")));
+        assertEquals(List.of(), index.similar(products.get(5).getProductId(), 5, 64));
+        index.close();
+        sharded.close();
+    }
+
+    @Test
+    void similarProductsSurviveDeletesAndSnapshots() throws IOException {
+        ProductIndex index = new ProductIndex();
+        String[] kinds = {"lamp", "kettle", "sofa", "jacket", "drill"};
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String kind = kinds[i % kinds.length];
+            products.add(product("Model " + i + " " + kind, "A " + kind + " in colour " + (i % 37)));
+        }
+        index.bulkIndex(products);
+        // Leaves 30 lamps among 1630 products, so a walk that counted deleted lamps towards ef would come up short
+        for (int i = 150; i < products.size(); i += kinds.length) {
+            index.remove(products.get(i));
+        }
+        assertEquals(1630, index.similarityGraphSize());
+
+        Product lamp = products.get(0);
+        List<Product> similar = index.similar(lamp.getProductId(), 20, 20);
+        assertEquals(20, similar.size());
+        assertTrue(similar.stream().allMatch(product -> product.getName().endsWith("lamp")));
+
+        Path dir = Files.createTempDirectory("index-snapshot");
+        Path file = dir.resolve("products.snapshot");
+        index.writeSnapshot(file, LocalDateTime.of(2025, 3, 1, 12, 0));
+        ProductIndex reopened = new ProductIndex();
+        reopened.loadSnapshot(file);
+
+        // The graph comes back with the links it was written with, so searches walk it the same way
+        assertEquals(1630, reopened.similarityGraphSize());
+        assertEquals(ids(index.similar(lamp.getProductId(), 20, 20)), ids(reopened.similar(lamp.getProductId(), 20, 20)));
+        assertEquals(ids(index.similarToText("kettles", 10, 64)), ids(reopened.similarToText("kettles", 10, 64)));
+        reopened.insert(product("Model 2000 lamp", "A lamp in colour 0"));
+        assertEquals(20, reopened.similar(lamp.getProductId(), 20, 20).size());
+        index.close();
+        reopened.close();
+    }
+
+    @Test
+    void staticRankLiftsReviewedAndSellingProducts() {
+        ProductIndex index = new ProductIndex();
+        Product listed = product("Desk lamp", "Brass");
+        Product reviewed = product("Desk lamp", "Brass");
+        Product selling = product("Desk lamp", "Brass");
+        for (int rating : new int[] {5, 5, 4}) {
+            Review review = new Review();
+            review.setRating(rating);
+            reviewed.getReviews().add(review);
+        }
+        index.insert(listed);
+        index.insert(reviewed);
+        index.insert(selling);
+        assertEquals(List.of(reviewed, listed, selling), index.searchByText("desk lamp"));
+
+        // Recent sales count for more than old ones, and stay with the product when it is updated
+        assertTrue(index.recordSale(selling.getProductId(), 20, LocalDateTime.now().minusDays(1)));
+        assertEquals(List.of(selling, reviewed, listed), index.searchByText("desk lamp"));
+        Product renamed = product("Desk lamp", "Brass and steel");
+        renamed.setProductId(selling.getProductId());
+        index.update(selling, renamed);
+        assertEquals(List.of(renamed, reviewed, listed), index.searchByText("desk lamp"));
+        assertTrue(index.recordSale(listed.getProductId(), 40, LocalDateTime.now().minusDays(70)));
+        assertTrue(index.staticRank(listed.getProductId()) < index.staticRank(renamed.getProductId()));
+
+        // Bad reviews counted in later drag the rating down
+        double before = index.staticRank(reviewed.getProductId());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(index.recordReview(reviewed.getProductId(), 1));
+        }
+        assertTrue(index.staticRank(reviewed.getProductId()) < before);
+        assertEquals(false, index.recordSale(999_999L, 1, LocalDateTime.now()));
+
+        // Without the static rank, equal text scores fall back to doc order
+        index.setStaticRankWeight(0);
+        assertEquals(List.of(listed, reviewed, renamed), index.searchByText("desk lamp"));
+        index.close();
+    }
+
+    @Test
+    void statisticsFollowSizeWritesAndLocking() {
+        ProductIndex index = new ProductIndex();
+        Product lamp = product("Desk lamp", "Brass");
+        Product kettle = product("Kettle", "Steel");
+        index.insert(lamp);
+        index.insert(kettle);
+        assertEquals(2, index.liveDocs());
+        assertEquals(5, index.termCount());
+        assertTrue(index.postingBytes() > 0);
+        long acquisitions = index.lockWait().acquisitions();
+
+        Product renamed = product("Desk lamp", "Brass and steel");
+        renamed.setProductId(lamp.getProductId());
+        index.update(lamp, renamed);
+        index.remove(kettle);
+        assertEquals(1, index.liveDocs());
+        assertEquals(2, index.deletedDocs());
+        assertEquals(3, index.documentsAdded());
+        assertEquals(2, index.documentsDeleted());
+        // Nested acquisitions by update are counted once
+        assertEquals(acquisitions + 2, index.lockWait().acquisitions());
+        assertTrue(index.lockWait().totalWaitNanos() >= 0);
+
+        index.forceMerge();
+        assertEquals(0, index.deletedDocs());
+        index.close();
+    }
+
+    private static BulkIndexer.BatchSource<Product> pages(List<Product> products) {
+        int[] next = {0};
+        return batchSize -> {
+            List<Product> page = products.subList(next[0], Math.min(next[0] + batchSize, products.size()));
+            next[0] += page.size();
+            return page;
+        };
+    }
+
+    private static List<Long> ids(List<Product> products) {
+        return products.stream().map(Product::getProductId).toList();
+    }
+
+    static Category category(Long id, Category parent) {
+        Category category = new Category();
+        category.setCategoryId(id);
+        category.setParentCategory(parent);
+        return category;
+    }
+}
@@ -0,0 +1,74 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.utils.QueryNode.Bool;
+import com.nyasha.store.utils.QueryNode.Fuzzy;
+import com.nyasha.store.utils.QueryNode.Phrase;
+import com.nyasha.store.utils.QueryNode.Term;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class QueryParserTests {
+
+    private final QueryParser parser = new QueryParser(Analyzer.standard()::terms);
+
+    @Test
+    void plainWordsAreOptionalClauses() {
+        assertEquals(new Term("shirt"), parser.parse("Shirts"));
+        assertEquals(new Bool(List.of(), List.of(new Term("red"), new Term("shirt")), List.of()),
+                parser.parse("red shirt"));
+    }
+
+    @Test
+    void prefixesRequireAndExcludeClauses() {
+        assertEquals(new Bool(List.of(new Term("cotton")), List.of(new Term("shirt")), List.of(new Term("polyester"))),
+                parser.parse("shirt +cotton -polyester"));
+        // A lone required clause needs no group around it
+        assertEquals(new Term("cotton"), parser.parse("+cotton"));
+    }
+
+    @Test
+    void alternativesGroupUnderOneClause() {
+        Bool either = new Bool(List.of(), List.of(new Term("tv"), new Term("television")), List.of());
+        assertEquals(either, parser.parse("tv OR television"));
+        assertEquals(either, parser.parse("tv|television"));
+        // The prefix applies to the whole group, and a lower-case "or" is just a stopword
+        assertEquals(new Bool(List.of(), List.of(new Term("stand")), List.of(either)),
+                parser.parse("stand -tv OR television"));
+        assertEquals(new Bool(List.of(), List.of(new Term("tv"), new Term("television")), List.of()),
+                parser.parse("tv or television"));
+    }
+
+    @Test
+    void parenthesesNestGroups() {
+        Bool colours = new Bool(List.of(), List.of(new Term("red"), new Term("blue")), List.of());
+        assertEquals(new Bool(List.of(colours), List.of(new Term("shirt")), List.of()),
+                parser.parse("shirt +(red blue)"));
+        // A group of one clause is unwrapped, and an unclosed group ends with the query
+        assertEquals(new Bool(List.of(new Term("red")), List.of(new Term("shirt")), List.of()),
+                parser.parse("shirt +(red"));
+    }
+
+    @Test
+    void quotesAndTildesMakePhrasesAndFuzzyTerms() {
+        assertEquals(new Phrase(List.of("usb", "c", "cable"), 0), parser.parse("\"USB-C cables\""));
+        assertEquals(new Phrase(List.of("usb", "cable"), 3), parser.parse("\"usb cable\"~3"));
+        // A word the analyzer splits is a phrase even without quotes
+        assertEquals(new Phrase(List.of("t", "shirt"), 0), parser.parse("t-shirt"));
+        assertEquals(new Fuzzy("hedphone", Fuzzy.AUTO), parser.parse("hedphones~"));
+        assertEquals(new Fuzzy("hedphone", 1), parser.parse("hedphones~1"));
+        assertEquals(new Fuzzy("hedphone", Fuzzy.MAX_EDITS), parser.parse("hedphones~9"));
+    }
+
+    @Test
+    void queriesWithoutSearchableTermsParseToNull() {
+        assertNull(parser.parse(null));
+        assertNull(parser.parse("   "));
+        assertNull(parser.parse("the of and"));
+        // Excluding alone cannot match anything
+        assertNull(parser.parse("-polyester"));
+    }
+}
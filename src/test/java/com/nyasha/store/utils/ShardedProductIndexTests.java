@@ -0,0 +1,210 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.Category;
+import com.nyasha.store.entities.Product;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.nyasha.store.utils.ProductIndexTests.category;
+import static com.nyasha.store.utils.ProductIndexTests.product;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedProductIndexTests {
+
+    @Test
+    void relevanceMergesTheShardsBestHitsFirst() {
+        ShardedProductIndex index = new ShardedProductIndex(3, Analyzer.standard());
+        List<Product> inName = new ArrayList<>();
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            Product product = i % 6 == 0
+                    ? product("Red kettle " + i, "Steel")
+                    : product("Kettle " + i, "Steel, with a red lid");
+            if (i % 6 == 0) {
+                inName.add(product);
+            }
+            products.add(product);
+        }
+        index.bulkIndex(products);
+
+        SearchResult result = index.search(new SearchRequest("red", 10, false, null, null, SearchSort.RELEVANCE, null));
+        assertEquals(60, result.totalHits());
+        // Every shard holds some of the name matches, and the merged page ranks all of them first
+        assertEquals(new HashSet<>(inName), new HashSet<>(result.hits()));
+
+        SearchResult cheapest = index.search(new SearchRequest("kettle", 60, false, null, null, SearchSort.PRICE_ASC, null));
+        List<Double> prices = cheapest.hits().stream().map(Product::getBasePrice).toList();
+        assertEquals(prices.stream().sorted().toList(), prices);
+        index.close();
+    }
+
+    @Test
+    void facetCountsAreSummedOverTheShards() {
+        ShardedProductIndex index = new ShardedProductIndex(4, Analyzer.standard());
+        Category lighting = category(31L, null);
+        Category outdoor = category(32L, null);
+        Map<String, Integer> expected = new HashMap<>();
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Category category = i % 3 == 0 ? outdoor : lighting;
+            products.add(product("Lamp " + i, "Lamp", category));
+            expected.merge(String.valueOf(category.getCategoryId()), 1, Integer::sum);
+        }
+        index.bulkIndex(products);
+
+        SearchResult result = index.search(new SearchRequest("lamp", 5, true, null, null, SearchSort.RELEVANCE, null));
+        assertEquals(100, result.totalHits());
+        assertEquals(expected, result.facets().get(FacetIndex.CATEGORY));
+        assertEquals(Map.of("0-25", 100), result.facets().get(FacetIndex.PRICE));
+        index.close();
+    }
+
+    @Test
+    void snapshotIsWrittenAndReopenedOneFilePerShard() throws IOException {
+        ShardedProductIndex index = new ShardedProductIndex(3, Analyzer.standard());
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 90; i++) {
+            products.add(product("Kettle " + i, i % 2 == 0 ? "Glass kettle" : "Steel kettle"));
+        }
+        index.bulkIndex(products);
+        index.remove(products.get(0));
+
+        Path file = Files.createTempDirectory("sharded-snapshot").resolve("products.snapshot");
+        LocalDateTime watermark = LocalDateTime.of(2025, 4, 2, 8, 0);
+        index.writeSnapshot(file, watermark);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(Files.exists(file.resolveSibling("products.snapshot." + i + "-of-3")));
+        }
+        assertFalse(Files.exists(file));
+
+        ShardedProductIndex reopened = new ShardedProductIndex(3, Analyzer.standard());
+        assertTrue(reopened.hasSnapshot(file));
+        assertEquals(watermark, reopened.loadSnapshot(file));
+        assertEquals(index.productIds(), reopened.productIds());
+        SearchRequest glass = new SearchRequest("glass kettle", 100, true, null, null, SearchSort.RELEVANCE, null);
+        assertEquals(new HashSet<>(index.search(glass).hits().stream().map(Product::getProductId).toList()),
+                new HashSet<>(reopened.search(glass).hits().stream().map(Product::getProductId).toList()));
+        assertEquals(index.search(glass).facets(), reopened.search(glass).facets());
+
+        // A snapshot taken with another shard count is never loaded
+        ShardedProductIndex resharded = new ShardedProductIndex(2, Analyzer.standard());
+        assertFalse(resharded.hasSnapshot(file));
+        assertThrows(IOException.class, () -> resharded.loadSnapshot(file));
+        index.close();
+        reopened.close();
+        resharded.close();
+    }
+
+    @Test
+    void generationSumsTheShardsAndIgnoresStaticRank() {
+        ShardedProductIndex index = new ShardedProductIndex(3, Analyzer.standard());
+        long initial = index.generation();
+        Product kettle = product("Kettle", "Steel");
+        index.insert(kettle);
+        long inserted = index.generation();
+        assertTrue(inserted > initial);
+
+        index.search(new SearchRequest("kettle", 10, true, null, null, SearchSort.RELEVANCE, null));
+        assertEquals(inserted, index.generation());
+
+        // Every shard takes the synonyms, and each one's bump shows in the sum
+        index.setSynonyms(SynonymDictionary.EMPTY);
+        long synonyms = index.generation();
+        assertEquals(inserted + 3, synonyms);
+
+        assertTrue(index.recordSale(kettle.getProductId(), 1, LocalDateTime.now()));
+        assertEquals(synonyms, index.generation());
+        assertEquals(1, index.rankEpoch());
+        index.close();
+    }
+
+    @Test
+    void shardedIndexPagesThroughTheSameResultsAsOneIndex() {
+        ProductIndex single = new ProductIndex();
+        ShardedProductIndex sharded = new ShardedProductIndex(4, Analyzer.standard());
+        Category lighting = category(21L, null);
+        List<Product> lamps = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Product lamp = product("Lamp " + i, i % 3 == 0 ? "Brass desk lamp" : "Floor lamp", lighting);
+            lamp.setBasePrice((double) (i % 50));
+            lamps.add(lamp);
+        }
+        single.bulkIndex(lamps);
+        sharded.bulkIndex(lamps);
+        sharded.remove(lamps.get(5));
+        single.remove(lamps.get(5));
+
+        for (SearchSort sort : SearchSort.values()) {
+            List<Product> expected = single.search("lamp", 1000, false, null, null, sort).hits();
+            List<Product> paged = new ArrayList<>();
+            String cursor = null;
+            do {
+                SearchResult page = sharded.search(new SearchRequest("lamp", 7, true, null, null, sort, cursor));
+                assertEquals(299, page.totalHits());
+                assertEquals(single.search("lamp", 1, true).facets(), page.facets());
+                paged.addAll(page.hits());
+                cursor = page.nextCursor();
+            } while (cursor != null);
+            assertEquals(new HashSet<>(expected), new HashSet<>(paged));
+            assertEquals(expected.size(), paged.size());
+            if (sort != SearchSort.RELEVANCE) {
+                assertEquals(expected.stream().map(Product::getBasePrice).toList(),
+                        paged.stream().map(Product::getBasePrice).toList());
+            }
+
+            List<Product> inCategory = new ArrayList<>();
+            cursor = null;
+            do {
+                SearchResult page = sharded.searchByCategory("21", true, 11, sort, cursor);
+                inCategory.addAll(page.hits());
+                cursor = page.nextCursor();
+            } while (cursor != null);
+            assertEquals(new HashSet<>(single.searchByCategory("21")), new HashSet<>(inCategory));
+            assertEquals(299, inCategory.size());
+        }
+        assertEquals(single.suggest("lamp", 10), sharded.suggest("lamp", 10, null).suggestions());
+        assertEquals(single.productIds(), sharded.productIds());
+        single.close();
+        sharded.close();
+    }
+
+    @Test
+    void tracedSearchesRecordStagesPostingsAndCandidates() {
+        ShardedProductIndex index = new ShardedProductIndex(2, Analyzer.standard());
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            products.add(product("Lamp " + i, i % 4 == 0 ? "Brass desk lamp" : "Floor lamp"));
+        }
+        index.bulkIndex(products);
+
+        SearchTrace trace = SearchTrace.start();
+        SearchResult result = index.search(new SearchRequest("brass lamp", 3, true, null, null, SearchSort.RELEVANCE, null), trace);
+        assertEquals(20, result.totalHits());
+        assertEquals(20, trace.candidates());
+        // Document frequencies are summed over the shards
+        assertEquals(5, (int) trace.postings().get("brass"));
+        assertEquals(20, (int) trace.postings().get("lamp"));
+        assertTrue(trace.stageNanos().get("scoring") > 0);
+        assertTrue(trace.stageNanos().get("merge") > 0);
+        assertEquals(0, (long) trace.stageNanos().get("serialization"));
+        assertTrue(trace.elapsedNanos() > 0);
+
+        // Untraced searches record nothing
+        index.search(new SearchRequest("brass lamp", 3, true, null, null, SearchSort.RELEVANCE, null), SearchTrace.OFF);
+        assertEquals(0, SearchTrace.OFF.candidates());
+        assertTrue(SearchTrace.OFF.postings().isEmpty());
+        index.close();
+    }
+}
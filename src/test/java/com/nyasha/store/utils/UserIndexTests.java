@@ -0,0 +1,89 @@
+package com.nyasha.store.utils;
+
+import com.nyasha.store.entities.User;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserIndexTests {
+
+    @Test
+    void bulkIndexReplacesUsersAlreadyIndexed() {
+        UserIndex index = new UserIndex();
+        List<User> users = new ArrayList<>();
+        for (long i = 1; i <= 50; i++) {
+            users.add(user(i, "User " + i, "user" + i + "@example.com"));
+        }
+        index.bulkIndex(users);
+        assertEquals(50, index.size());
+
+        // Indexed again under a new name, the old keys no longer find it
+        index.bulkIndex(List.of(user(7L, "Grace Hopper", "grace@example.com")));
+        assertEquals(50, index.size());
+        assertEquals("Grace Hopper", index.user(7L).getName());
+        assertEquals(Set.of(7L), ids(index.search("grace")));
+        assertEquals(Set.of(), ids(index.search("user7@")));
+        assertEquals(Set.of(1L, 10L, 11L, 12L, 13L, 14L, 15L, 16L, 17L, 18L, 19L), ids(index.search("User 1")));
+    }
+
+    @Test
+    void snapshotReopensUsersWithoutTheirPasswords() throws IOException {
+        UserIndex index = new UserIndex();
+        User ada = user(1L, "Ada Lovelace", "ada@example.com");
+        ada.setCreatedAt(LocalDateTime.of(2024, 12, 1, 9, 0));
+        index.insert(ada);
+        index.insert(user(2L, "Alan Turing", "alan@example.com"));
+
+        Path file = Files.createTempDirectory("user-snapshot").resolve("users.snapshot");
+        UserIndex reopened = new UserIndex();
+        assertFalse(reopened.hasSnapshot(file));
+        LocalDateTime watermark = LocalDateTime.of(2025, 3, 1, 12, 0);
+        index.writeSnapshot(file, watermark);
+        assertTrue(reopened.hasSnapshot(file));
+
+        assertEquals(watermark, reopened.loadSnapshot(file));
+        assertEquals(2, reopened.size());
+        assertEquals(Set.of(1L, 2L), ids(reopened.search("a")));
+        User restored = reopened.user(1L);
+        assertEquals("ada@example.com", restored.getEmail());
+        assertEquals(ada.getCreatedAt(), restored.getCreatedAt());
+        assertNull(restored.getHashedPassword());
+    }
+
+    @Test
+    void snapshotOfAnotherIndexIsRejected() throws IOException {
+        Path file = Files.createTempDirectory("user-snapshot").resolve("products.snapshot");
+        new ProductIndex().writeSnapshot(file, LocalDateTime.now());
+
+        UserIndex index = new UserIndex();
+        assertTrue(index.hasSnapshot(file));
+        assertThrows(IOException.class, () -> index.loadSnapshot(file));
+        assertEquals(0, index.size());
+    }
+
+    private static User user(Long id, String name, String email) {
+        User user = new User();
+        user.setUserId(id);
+        user.setName(name);
+        user.setEmail(email);
+        user.setHashedPassword("hash-" + id);
+        return user;
+    }
+
+    private static Set<Long> ids(List<User> users) {
+        return users.stream().map(User::getUserId).collect(Collectors.toSet());
+    }
+}